@@ -0,0 +1,156 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.search.analysis;
+
+import com.qwazr.classloader.ClassLoaderManager;
+import com.qwazr.utils.IOUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.util.ResourceLoader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded cache of the analyzers built from a definition. The key is given by the caller: it identifies the
+ * definition and the version of the resources. An analyzer is closed when it has been evicted and the last lease is
+ * closed.
+ */
+final public class AnalyzerCache implements Closeable {
+
+	private final LinkedHashMap<String, Entry> entries;
+
+	public AnalyzerCache(final int maxSize) {
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+				if (size() <= maxSize)
+					return false;
+				eldest.getValue().decRef();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached analyzer, or builds it. The factories are built outside the lock.
+	 *
+	 * @param key                the key of the definition, or null to build an analyzer which is not cached
+	 * @param classLoaderManager the class loader used to find the factories
+	 * @param resourceLoader     the resources used by the factories
+	 * @param definition         the definition of the analyzer
+	 * @return a lease which must be closed once the analyzer is not used anymore
+	 * @throws ReflectiveOperationException if a factory cannot be created
+	 * @throws IOException                  if a resource cannot be read
+	 */
+	public Lease acquire(final String key, final ClassLoaderManager classLoaderManager,
+			final ResourceLoader resourceLoader, final AnalyzerDefinition definition)
+			throws ReflectiveOperationException, IOException {
+		if (key == null)
+			return build(classLoaderManager, resourceLoader, definition);
+		synchronized (entries) {
+			final Entry entry = entries.get(key);
+			if (entry != null && entry.incRef())
+				return new Lease(entry);
+		}
+		final Entry newEntry = new Entry(new CustomAnalyzer(classLoaderManager, resourceLoader, definition));
+		synchronized (entries) {
+			final Entry entry = entries.get(key);
+			if (entry != null && entry.incRef()) {
+				// Built concurrently by another thread
+				newEntry.decRef();
+				return new Lease(entry);
+			}
+			newEntry.incRef();
+			entries.put(key, newEntry);
+			return new Lease(newEntry);
+		}
+	}
+
+	/**
+	 * @return a lease on a new analyzer, the analyzer is closed with the lease
+	 */
+	public static Lease build(final ClassLoaderManager classLoaderManager, final ResourceLoader resourceLoader,
+			final AnalyzerDefinition definition) throws ReflectiveOperationException, IOException {
+		return new Lease(new Entry(new CustomAnalyzer(classLoaderManager, resourceLoader, definition)));
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	@Override
+	public void close() {
+		final List<Entry> closed;
+		synchronized (entries) {
+			closed = new ArrayList<>(entries.values());
+			entries.clear();
+		}
+		closed.forEach(Entry::decRef);
+	}
+
+	private static class Entry {
+
+		private final Analyzer analyzer;
+
+		/**
+		 * One reference for the cache, one per lease
+		 */
+		private final AtomicInteger refCount;
+
+		private Entry(final Analyzer analyzer) {
+			this.analyzer = analyzer;
+			this.refCount = new AtomicInteger(1);
+		}
+
+		private boolean incRef() {
+			for (; ; ) {
+				final int count = refCount.get();
+				if (count <= 0)
+					return false;
+				if (refCount.compareAndSet(count, count + 1))
+					return true;
+			}
+		}
+
+		private void decRef() {
+			if (refCount.decrementAndGet() == 0)
+				IOUtils.closeQuietly(analyzer);
+		}
+	}
+
+	final public static class Lease implements Closeable {
+
+		public final Analyzer analyzer;
+		private final Entry entry;
+
+		private Lease(final Entry entry) {
+			this.entry = entry;
+			this.analyzer = entry.analyzer;
+		}
+
+		@Override
+		public void close() {
+			entry.decRef();
+		}
+	}
+}
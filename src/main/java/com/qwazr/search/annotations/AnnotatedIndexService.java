@@ -404,6 +404,11 @@ public class AnnotatedIndexService<T> extends FieldMapWrapper<T> {
 		return indexService.doBackup(schemaName, indexName, backupName);
 	}
 
+	public IndexStatus restoreBackup(final String backupName) {
+		checkParameters();
+		return indexService.restoreBackup(schemaName, indexName, backupName);
+	}
+
 	/**
 	 * Execute a search query
 	 *
@@ -422,6 +427,51 @@ public class AnnotatedIndexService<T> extends FieldMapWrapper<T> {
 		return indexService.searchQuery(schemaName, indexName, query, false);
 	}
 
+	/**
+	 * Execute several queries on the same searcher
+	 *
+	 * @param queries the queries to execute
+	 * @return the results in the order of the queries. A failed query gives a result with an error message.
+	 */
+	public List<ResultDefinition.WithObject<T>> multiSearchQuery(final List<QueryDefinition> queries) {
+		checkParameters();
+		if (annotatedService != null)
+			return annotatedService.multiSearchQuery(schemaName, indexName, queries, fieldMap, objectClass);
+		final List<ResultDefinition.WithMap> results = indexService.multiSearchQuery(schemaName, indexName, queries);
+		if (results == null)
+			return null;
+		final List<ResultDefinition.WithObject<T>> records = new ArrayList<>(results.size());
+		results.forEach(result -> records.add(toRecords(result)));
+		return records;
+	}
+
+	/**
+	 * Export every document matching the query as NDJSON (one JSON object per line)
+	 *
+	 * @param query    the query to execute
+	 * @param after    an optional $id$ to resume an interrupted export after it
+	 * @param parallel true to export the segments concurrently (the documents are not ordered)
+	 * @return the NDJSON stream
+	 * @throws IOException if the stream cannot be obtained
+	 */
+	public InputStream exportQuery(final QueryDefinition query, final String after, final Boolean parallel)
+			throws IOException {
+		checkParameters();
+		return indexService.exportQuery(schemaName, indexName, query, after, parallel).getInputStream();
+	}
+
+	/**
+	 * Execute a search query, the JSON result is streamed while the documents are loaded
+	 *
+	 * @param query the query to execute
+	 * @return the JSON stream of a ResultDefinition.WithMap
+	 * @throws IOException if the stream cannot be obtained
+	 */
+	public InputStream searchQueryStream(final QueryDefinition query) throws IOException {
+		checkParameters();
+		return indexService.searchQueryStream(schemaName, indexName, query).getInputStream();
+	}
+
 	public List<TermEnumDefinition> doExtractTerms(final String fieldName, final Integer start, final Integer rows) {
 		checkParameters();
 		return indexService.doExtractTerms(schemaName, indexName, fieldName, start, rows);
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.search.collector;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.util.FixedBitSet;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Approximate count of the distinct values of a doc values field, using a HyperLogLog++ sketch. The count is exact
+ * below 2^precision / 16 distinct values. The memory of the sketch only depends on the precision (from 4 to 18,
+ * default 14: 16KB).
+ */
+public abstract class CardinalityCollector extends BaseCollector<Long> implements ConcurrentCollector<Long> {
+
+	protected final String fieldName;
+	final HyperLogLogPlusPlus sketch;
+
+	private CardinalityCollector(final String collectorName, final String fieldName, final Integer precision) {
+		super(collectorName);
+		this.fieldName = fieldName;
+		this.sketch =
+				new HyperLogLogPlusPlus(precision == null ? HyperLogLogPlusPlus.DEFAULT_PRECISION : precision);
+	}
+
+	/**
+	 * Adds the pending values of the current segment to the sketch
+	 */
+	protected void flush() {
+	}
+
+	@Override
+	public Long getResult() {
+		flush();
+		return sketch.cardinality();
+	}
+
+	@Override
+	public Long getReducedResult(final Collection<BaseCollector<Long>> collectors) {
+		final HyperLogLogPlusPlus merged = new HyperLogLogPlusPlus(sketch.precision);
+		for (BaseCollector<Long> collector : collectors) {
+			final CardinalityCollector cardinalityCollector = (CardinalityCollector) collector;
+			cardinalityCollector.flush();
+			merged.merge(cardinalityCollector.sketch);
+		}
+		return merged.cardinality();
+	}
+
+	/**
+	 * Counts the distinct terms of a SortedDocValuesField or a SortedSetDocValuesField. The collected ordinals of a
+	 * segment are marked in a bit set, the term of each ordinal is hashed once when the segment is done.
+	 */
+	public static class SortedSet extends CardinalityCollector {
+
+		private FixedBitSet ords;
+		private SortedSetDocValues segmentValues;
+
+		public SortedSet(final String collectorName, final String fieldName) {
+			this(collectorName, fieldName, null);
+		}
+
+		public SortedSet(final String collectorName, final String fieldName, final Integer precision) {
+			super(collectorName, fieldName, precision);
+			this.ords = new FixedBitSet(64);
+			this.segmentValues = null;
+		}
+
+		@Override
+		final public LeafCollector getLeafCollector(final LeafReaderContext context) throws IOException {
+			flush();
+			final SortedSetDocValues docValues = DocValues.getSortedSet(context.reader(), fieldName);
+			final long valueCount = docValues.getValueCount();
+			if (valueCount == 0)
+				return DoNothingCollector.INSTANCE;
+			ords = FixedBitSet.ensureCapacity(ords, (int) valueCount);
+			segmentValues = docValues;
+			return new Leaf(docValues);
+		}
+
+		@Override
+		final protected void flush() {
+			if (segmentValues == null)
+				return;
+			final int length = ords.length();
+			int ord = ords.nextSetBit(0);
+			while (ord != DocIdSetIterator.NO_MORE_DOCS) {
+				sketch.add(HyperLogLogPlusPlus.hash(segmentValues.lookupOrd(ord)));
+				ords.clear(ord);
+				ord = ord + 1 < length ? ords.nextSetBit(ord + 1) : DocIdSetIterator.NO_MORE_DOCS;
+			}
+			segmentValues = null;
+		}
+
+		private class Leaf extends DocValuesLeafCollector.SortedSet {
+
+			private Leaf(final SortedSetDocValues docValues) throws IOException {
+				super(docValues);
+			}
+
+			@Override
+			final public void collect(final int doc) throws IOException {
+				docValues.setDocument(doc);
+				long ord;
+				while ((ord = docValues.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS)
+					ords.set((int) ord);
+			}
+		}
+	}
+
+	/**
+	 * Counts the distinct values of a numeric or a sorted numeric doc values field
+	 */
+	public static class Numeric extends CardinalityCollector {
+
+		public Numeric(final String collectorName, final String fieldName) {
+			this(collectorName, fieldName, null);
+		}
+
+		public Numeric(final String collectorName, final String fieldName, final Integer precision) {
+			super(collectorName, fieldName, precision);
+		}
+
+		@Override
+		final public LeafCollector getLeafCollector(final LeafReaderContext context) throws IOException {
+			return new Leaf(DocValues.getSortedNumeric(context.reader(), fieldName));
+		}
+
+		private class Leaf extends DocValuesLeafCollector.SortedNumeric {
+
+			private Leaf(final SortedNumericDocValues docValues) throws IOException {
+				super(docValues);
+			}
+
+			@Override
+			final public void collect(final int doc) throws IOException {
+				docValues.setDocument(doc);
+				final int count = docValues.count();
+				for (int i = 0; i < count; i++)
+					sketch.add(HyperLogLogPlusPlus.hash(docValues.valueAt(i)));
+			}
+		}
+	}
+}
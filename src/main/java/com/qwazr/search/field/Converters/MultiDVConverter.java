@@ -19,10 +19,13 @@ package com.qwazr.search.field.Converters;
 import com.qwazr.utils.ReflectiveUtils;
 import org.apache.lucene.index.SortedNumericDocValues;
 import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.NumericUtils;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 public abstract class MultiDVConverter<T extends SortedNumericDocValues, V, A> extends ValueConverter<T, A> {
 
@@ -141,5 +144,50 @@ public abstract class MultiDVConverter<T extends SortedNumericDocValues, V, A> e
 			return set;
 		}
 	}
-	
+
+	public static class SortedSetDVConverter extends ValueConverter<SortedSetDocValues, String[]> {
+
+		public SortedSetDVConverter(final SortedSetDocValues source) {
+			super(source);
+		}
+
+		private List<String> values(final int docId) {
+			source.setDocument(docId);
+			final List<String> values = new ArrayList<>();
+			long ord;
+			while ((ord = source.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+				final BytesRef bytesRef = source.lookupOrd(ord);
+				values.add(bytesRef.utf8ToString());
+			}
+			return values;
+		}
+
+		@Override
+		final public String[] convert(final int docId) {
+			final List<String> values = values(docId);
+			return values.toArray(new String[values.size()]);
+		}
+
+		@Override
+		final public void fillCollection(final Object record, final Field field, final Class<?> fieldClass,
+				final int docId) throws ReflectiveOperationException {
+			final List<String> values = values(docId);
+			if (values.isEmpty())
+				return;
+			ReflectiveUtils.<String>getCollection(record, field, fieldClass).addAll(values);
+		}
+
+		@Override
+		final public void fillSingleValue(final Object record, final Field field, final int docId)
+				throws ReflectiveOperationException {
+			final List<String> values = values(docId);
+			if (values.isEmpty())
+				return;
+			if (values.size() > 1)
+				throw new RuntimeException(
+						"Cannot fill several values on this field. It should be a collection: " + field.getName());
+			field.set(record, values.get(0));
+		}
+	}
+
 }
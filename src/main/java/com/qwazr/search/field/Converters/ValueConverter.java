@@ -146,7 +146,7 @@ public abstract class ValueConverter<T, V> {
 			final SortedSetDocValues sortedSetDocValues = MultiDocValues.getSortedSetValues(reader, fieldName);
 			if (sortedSetDocValues == null)
 				return null;
-			return null;
+			return new MultiDVConverter.SortedSetDVConverter(sortedSetDocValues);
 		}
 		throw new IOException("Unsupported doc value type: " + type + " for field: " + fieldName);
 	}
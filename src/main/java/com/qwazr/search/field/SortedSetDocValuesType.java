@@ -17,9 +17,16 @@ package com.qwazr.search.field;
 
 import com.qwazr.search.index.FieldConsumer;
 import com.qwazr.search.index.FieldMap;
+import com.qwazr.search.field.Converters.MultiDVConverter;
+import com.qwazr.search.field.Converters.ValueConverter;
 import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
 import org.apache.lucene.util.BytesRef;
 
+import java.io.IOException;
+
 class SortedSetDocValuesType extends FieldTypeAbstract {
 
 	SortedSetDocValuesType(final FieldMap.Item fieldMapItem) {
@@ -34,4 +41,12 @@ class SortedSetDocValuesType extends FieldTypeAbstract {
 			consumer.accept(fieldName, new SortedSetDocValuesField(fieldName, new BytesRef(value.toString())));
 	}
 
+	@Override
+	final public ValueConverter getConverter(final String fieldName, final IndexReader reader) throws IOException {
+		final SortedSetDocValues docValues = MultiDocValues.getSortedSetValues(reader, fieldName);
+		if (docValues == null)
+			return super.getConverter(fieldName, reader);
+		return new MultiDVConverter.SortedSetDVConverter(docValues);
+	}
+
 }
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import com.qwazr.search.collector.BaseCollector;
+import com.qwazr.search.field.FieldDefinition;
+import com.qwazr.server.ServerException;
+import org.apache.lucene.util.NumericUtils;
+
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A built-in aggregation. Each slice of the search creates its own collector, then the collectors are merged.
+ */
+abstract class AggregationCollector extends BaseCollector<Object> {
+
+	private final Factory factory;
+
+	protected AggregationCollector(final Factory factory) {
+		super(factory.name);
+		this.factory = factory;
+	}
+
+	/**
+	 * Adds the values collected by another collector built by the same factory
+	 */
+	abstract void add(final AggregationCollector other);
+
+	/**
+	 * Merges the collectors of the slices
+	 */
+	static Object reduce(final Collection<AggregationCollector> collectors) {
+		if (collectors.size() == 1)
+			return collectors.iterator().next().getResult();
+		AggregationCollector reduced = null;
+		for (AggregationCollector collector : collectors) {
+			if (reduced == null)
+				reduced = collector.factory.newCollector();
+			reduced.add(collector);
+		}
+		return reduced == null ? null : reduced.getResult();
+	}
+
+	/**
+	 * @return the result of a metric aggregation (count, min, max, sum, avg or stats)
+	 */
+	static Object getMetric(final AggregationDefinition.Type type, final long count, final double min,
+			final double max, final double sum) {
+		switch (type) {
+		case count:
+			return count;
+		case min:
+			return count == 0 ? null : min;
+		case max:
+			return count == 0 ? null : max;
+		case sum:
+			return sum;
+		case avg:
+			return count == 0 ? null : sum / count;
+		case stats:
+			final Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("count", count);
+			stats.put("min", count == 0 ? null : min);
+			stats.put("max", count == 0 ? null : max);
+			stats.put("sum", sum);
+			stats.put("avg", count == 0 ? null : sum / count);
+			return stats;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * How the long stored in the doc values is converted to a double, given by the template of the field
+	 */
+	enum Decoder {
+
+		LONG,
+
+		DOUBLE_BITS,
+
+		FLOAT_BITS,
+
+		SORTABLE_DOUBLE,
+
+		SORTABLE_FLOAT;
+
+		final double decode(final long value) {
+			switch (this) {
+			case DOUBLE_BITS:
+				return Double.longBitsToDouble(value);
+			case FLOAT_BITS:
+				return Float.intBitsToFloat((int) value);
+			case SORTABLE_DOUBLE:
+				return NumericUtils.sortableLongToDouble(value);
+			case SORTABLE_FLOAT:
+				return NumericUtils.sortableIntToFloat((int) value);
+			default:
+				return value;
+			}
+		}
+
+		static Decoder of(final FieldDefinition.Template template) {
+			if (template == null)
+				return null;
+			switch (template) {
+			case LongDocValuesField:
+			case IntDocValuesField:
+			case SortedLongDocValuesField:
+			case SortedIntDocValuesField:
+				return LONG;
+			case DoubleDocValuesField:
+				return DOUBLE_BITS;
+			case FloatDocValuesField:
+				return FLOAT_BITS;
+			case SortedDoubleDocValuesField:
+				return SORTABLE_DOUBLE;
+			case SortedFloatDocValuesField:
+				return SORTABLE_FLOAT;
+			default:
+				return null;
+			}
+		}
+
+		static Decoder of(final String name, final String field, final FieldMap fieldMap) {
+			final Decoder decoder = of(fieldMap.find(field).definition.template);
+			if (decoder == null)
+				throw new ServerException(Response.Status.NOT_ACCEPTABLE,
+						"The field " + field + " of the aggregation " + name + " does not have numeric doc values");
+			return decoder;
+		}
+	}
+
+	/**
+	 * The definition checked once per query
+	 */
+	static abstract class Factory {
+
+		final String name;
+
+		protected Factory(final String name) {
+			this.name = name;
+		}
+
+		abstract AggregationCollector newCollector();
+
+		static Factory of(final String name, final AggregationDefinition definition, final QueryContext queryContext)
+				throws IOException {
+			if (definition.type == null)
+				throw new ServerException(Response.Status.NOT_ACCEPTABLE,
+						"The type of the aggregation " + name + " is missing");
+			if (definition.type == AggregationDefinition.Type.terms)
+				return new TermsAggregationCollector.Factory(name, definition, queryContext);
+			return new NumericAggregationCollector.Factory(name, definition, queryContext.fieldMap);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.search.index;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.LinkedHashMap;
+
+/**
+ * An aggregation computed over the doc values of the matching documents.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class AggregationDefinition {
+
+	public enum Type {
+
+		count,
+
+		min,
+
+		max,
+
+		sum,
+
+		avg,
+
+		stats,
+
+		percentiles,
+
+		terms
+	}
+
+	final public Type type;
+	final public String field;
+
+	/**
+	 * The percents returned by a percentiles aggregation, between 0 and 100
+	 */
+	final public double[] percents;
+
+	/**
+	 * The accuracy of the percentiles, a higher compression keeps more centroids
+	 */
+	final public Integer compression;
+
+	/**
+	 * The number of terms returned by a terms aggregation
+	 */
+	final public Integer size;
+
+	/**
+	 * The minimum number of documents of a term returned by a terms aggregation
+	 */
+	final public Integer min_doc_count;
+
+	/**
+	 * The metrics computed for each term of a terms aggregation
+	 */
+	final public LinkedHashMap<String, AggregationDefinition> aggregations;
+
+	public AggregationDefinition() {
+		type = null;
+		field = null;
+		percents = null;
+		compression = null;
+		size = null;
+		min_doc_count = null;
+		aggregations = null;
+	}
+
+	public AggregationDefinition(final Type type, final String field) {
+		this(type, field, null, null);
+	}
+
+	public AggregationDefinition(final Type type, final String field, final double[] percents,
+			final Integer compression) {
+		this.type = type;
+		this.field = field;
+		this.percents = percents;
+		this.compression = compression;
+		this.size = null;
+		this.min_doc_count = null;
+		this.aggregations = null;
+	}
+
+	/**
+	 * A terms aggregation
+	 */
+	public AggregationDefinition(final String field, final Integer size, final Integer minDocCount,
+			final LinkedHashMap<String, AggregationDefinition> aggregations) {
+		this.type = Type.terms;
+		this.field = field;
+		this.percents = null;
+		this.compression = null;
+		this.size = size;
+		this.min_doc_count = minDocCount;
+		this.aggregations = aggregations;
+	}
+
+}
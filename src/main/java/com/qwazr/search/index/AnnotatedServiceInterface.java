@@ -49,4 +49,7 @@ public interface AnnotatedServiceInterface {
 
 	<T> ResultDefinition.WithObject<T> searchQuery(String schemaName, String indexName, QueryDefinition query,
 			Map<String, Field> fields, Class<T> indexDefinitionClass);
+
+	<T> List<ResultDefinition.WithObject<T>> multiSearchQuery(String schemaName, String indexName,
+			List<QueryDefinition> queries, Map<String, Field> fields, Class<T> indexDefinitionClass);
 }
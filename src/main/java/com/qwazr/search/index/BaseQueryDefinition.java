@@ -43,9 +43,14 @@ public class BaseQueryDefinition {
 		query_debug = builder.queryDebug;
 	}
 
+	@JsonIgnore
+	final public int getRows() {
+		return rows == null ? 10 : rows;
+	}
+
 	@JsonIgnore
 	final public int getEnd() {
-		return (start == null ? 0 : start) + (rows == null ? 10 : rows);
+		return (start == null ? 0 : start) + getRows();
 	}
 
 }
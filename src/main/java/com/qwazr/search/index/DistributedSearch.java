@@ -0,0 +1,478 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import com.qwazr.search.field.FieldDefinition;
+import com.qwazr.search.query.AbstractQuery;
+import com.qwazr.search.query.BooleanQuery;
+import com.qwazr.search.query.TermsQuery;
+import com.qwazr.server.ServerException;
+import com.qwazr.utils.TimeTracker;
+import org.apache.lucene.search.ScoreDoc;
+
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Searches the shards of a distributed index and merges the results, the local node being the coordinator.
+ * <p>
+ * The first phase collects in parallel, from every shard, the first (start + rows) documents with only their sort
+ * values and their $id$, and the facets with an over-fetched top. The documents are merged in the order of the sort.
+ * The second phase fetches the returned fields and the highlights of the merged page only, by the $id$ of its
+ * documents, from the shards having documents in it. A document deleted from its shard between the two phases is
+ * returned without fields. A failing shard, or a shard not answering within the timeout, is reported in the
+ * shard_errors of the result: the other shards still give a partial result.
+ */
+public class DistributedSearch {
+
+	/**
+	 * The default maximum time to wait for the shards, for each phase
+	 */
+	final static long DEFAULT_SHARD_TIMEOUT_MS = 60000;
+
+	private final List<RemoteIndex> shards;
+	private final List<IndexServiceInterface> services;
+	private final ExecutorService executorService;
+	private final long shardTimeoutMs;
+
+	/**
+	 * @param shards          the shards
+	 * @param serviceResolver returns the service hosting a shard
+	 * @param executorService the executor sending the queries to the shards
+	 * @param shardTimeoutMs  the maximum time to wait for the shards, for each phase, or null for the default
+	 */
+	public DistributedSearch(final List<RemoteIndex> shards,
+			final Function<RemoteIndex, IndexServiceInterface> serviceResolver, final ExecutorService executorService,
+			final Long shardTimeoutMs) {
+		if (shards == null || shards.isEmpty())
+			throw new ServerException(Response.Status.NOT_ACCEPTABLE, "A distributed index needs at least one shard");
+		this.shards = shards;
+		this.services = new ArrayList<>(shards.size());
+		for (RemoteIndex shard : shards)
+			services.add(serviceResolver.apply(shard));
+		this.executorService = executorService;
+		this.shardTimeoutMs = shardTimeoutMs == null ? DEFAULT_SHARD_TIMEOUT_MS : shardTimeoutMs;
+	}
+
+	/**
+	 * Only a shard without host is served by the local service. A shard on localhost may belong to another node
+	 * running on the same machine, it is reached through its port.
+	 *
+	 * @param localService the service of the local node
+	 * @param shard        the shard
+	 * @return the service hosting the shard
+	 */
+	static IndexServiceInterface getService(final IndexServiceInterface localService, final RemoteIndex shard) {
+		return shard.host == null ? localService : new IndexSingleClient(shard);
+	}
+
+	public ResultDefinition.WithMap search(final QueryDefinition queryDefinition) throws InterruptedException {
+		return (ResultDefinition.WithMap) search(queryDefinition, ResultDocumentBuilder.MapBuilderFactory.INSTANCE);
+	}
+
+	final <T extends ResultDocumentAbstract> ResultDefinition<T> search(final QueryDefinition queryDefinition,
+			final ResultDocumentBuilder.BuilderFactory<T> documentBuilderFactory) throws InterruptedException {
+		if (queryDefinition.search_after != null)
+			throw new ServerException(Response.Status.NOT_ACCEPTABLE,
+					"search_after is not supported by a distributed index");
+		if (queryDefinition.collectors != null && !queryDefinition.collectors.isEmpty())
+			throw new ServerException(Response.Status.NOT_ACCEPTABLE,
+					"The collectors are not supported by a distributed index");
+		if (queryDefinition.aggregations != null && !queryDefinition.aggregations.isEmpty())
+			throw new ServerException(Response.Status.NOT_ACCEPTABLE,
+					"The aggregations are not supported by a distributed index");
+		return new Execution<>(queryDefinition, documentBuilderFactory).execute();
+	}
+
+	/**
+	 * The top of a facet is over-fetched from the shards, a label out of the top of one shard may be in the merged top
+	 */
+	static int overFetch(final Integer top) {
+		final int t = top == null ? 10 : top;
+		return t + t / 2 + 10;
+	}
+
+	private static class Hit {
+
+		private final int shardPos;
+		private final int pos;
+		private final ResultDocumentMap document;
+
+		private Hit(final int shardPos, final int pos, final ResultDocumentMap document) {
+			this.shardPos = shardPos;
+			this.pos = pos;
+			this.document = document;
+		}
+
+		private float getScore() {
+			return document.score == null ? 0 : document.score;
+		}
+
+		private Object getSortValue(final String field) {
+			return getFirstValue(document, field);
+		}
+
+		private Object getId() {
+			return getFirstValue(document, FieldDefinition.ID_FIELD);
+		}
+	}
+
+	private static Object getFirstValue(final ResultDocumentMap document, final String field) {
+		if (document.fields == null)
+			return null;
+		final Object value = document.fields.get(field);
+		if (!(value instanceof Collection))
+			return value;
+		final Collection<?> values = (Collection<?>) value;
+		return values.isEmpty() ? null : values.iterator().next();
+	}
+
+	private class Execution<T extends ResultDocumentAbstract> {
+
+		private final QueryDefinition queryDefinition;
+		private final ResultDocumentBuilder.BuilderFactory<T> documentBuilderFactory;
+		private final TimeTracker timeTracker;
+		private final Map<String, String> shardErrors;
+		private final boolean withFetch;
+		private boolean timedOut;
+
+		private Execution(final QueryDefinition queryDefinition,
+				final ResultDocumentBuilder.BuilderFactory<T> documentBuilderFactory) {
+			this.queryDefinition = queryDefinition;
+			this.documentBuilderFactory = documentBuilderFactory;
+			this.timeTracker = new TimeTracker();
+			this.shardErrors = new LinkedHashMap<>();
+			this.withFetch = (queryDefinition.returned_fields != null && !queryDefinition.returned_fields.isEmpty()) ||
+					(queryDefinition.highlighters != null && !queryDefinition.highlighters.isEmpty());
+			this.timedOut = false;
+		}
+
+		private ResultDefinition<T> execute() throws InterruptedException {
+
+			// First phase: the sort values and the facets
+			final Map<Integer, QueryDefinition> firstQueries = new LinkedHashMap<>();
+			final QueryDefinition firstQuery = getFirstPhaseQuery();
+			for (int i = 0; i < shards.size(); i++)
+				firstQueries.put(i, firstQuery);
+			final Map<Integer, ResultDefinition.WithMap> firstResults = fanOut(firstQueries);
+			timeTracker.next("shards_search");
+			if (firstResults.isEmpty())
+				throw new ServerException(Response.Status.SERVICE_UNAVAILABLE, "No shard answered: " + shardErrors);
+
+			Long totalHits = null;
+			boolean totalHitsLowerBound = !shardErrors.isEmpty();
+			Float maxScore = null;
+			final List<Hit> hits = new ArrayList<>();
+			for (Map.Entry<Integer, ResultDefinition.WithMap> entry : firstResults.entrySet()) {
+				final ResultDefinition.WithMap result = entry.getValue();
+				if (result.total_hits != null)
+					totalHits = totalHits == null ? result.total_hits : totalHits + result.total_hits;
+				if (Boolean.TRUE.equals(result.total_hits_lower_bound))
+					totalHitsLowerBound = true;
+				if (result.max_score != null && (maxScore == null || result.max_score > maxScore))
+					maxScore = result.max_score;
+				if (result.documents != null) {
+					int pos = 0;
+					for (ResultDocumentMap document : result.documents)
+						hits.add(new Hit(entry.getKey(), pos++, document));
+				}
+			}
+			hits.sort(getComparator(queryDefinition.sorts));
+			final int start = queryDefinition.start == null ? 0 : queryDefinition.start;
+			final List<Hit> page = start >= hits.size() ?
+					Collections.emptyList() :
+					hits.subList(start, Math.min(hits.size(), queryDefinition.getEnd()));
+			final Map<String, Map<String, Number>> facets = mergeFacets(firstResults.values());
+			timeTracker.next("merge");
+
+			// Second phase: the returned fields and the highlights of the page
+			final Map<Integer, Map<Object, ResultDocumentMap>> fetchedDocuments = fetch(page);
+
+			final List<T> documents = new ArrayList<>(page.size());
+			final float maxScoreValue = maxScore == null ? 0 : maxScore;
+			int pos = start;
+			for (Hit hit : page) {
+				final ResultDocumentBuilder<T> builder = documentBuilderFactory.createBuilder(pos++,
+						new ScoreDoc(hit.document.getDoc(), hit.getScore(), hit.shardPos), maxScoreValue);
+				final ResultDocumentMap fetched = getFetched(fetchedDocuments, hit);
+				if (fetched != null) {
+					if (fetched.fields != null)
+						fetched.fields.forEach((name, value) -> {
+							if (isReturned(name))
+								setField(builder, name, value);
+						});
+					if (fetched.highlights != null)
+						fetched.highlights.forEach(builder::setHighlight);
+				}
+				documents.add(builder.build());
+			}
+
+			final ResultDefinition.WithMap merged =
+					new ResultDefinition.WithMap(timeTracker.getStatus(), totalHits, totalHitsLowerBound ? true : null,
+							timedOut ? true : null, maxScore, facets, shardErrors.isEmpty() ? null : shardErrors);
+			return documentBuilderFactory.build(merged, documents);
+		}
+
+		/**
+		 * The $id$ is fetched to find back the documents, it is only returned if the query asked for it
+		 */
+		private boolean isReturned(final String field) {
+			return queryDefinition.returned_fields != null &&
+					(queryDefinition.returned_fields.contains(field) || queryDefinition.returned_fields.contains("*"));
+		}
+
+		private QueryDefinition getFirstPhaseQuery() {
+			final QueryBuilder builder = new QueryBuilder(queryDefinition);
+			builder.start = 0;
+			builder.rows = queryDefinition.getEnd();
+			builder.returnedFields = new LinkedHashSet<>();
+			if (queryDefinition.sorts != null) {
+				queryDefinition.sorts.keySet().forEach(field -> {
+					if (!FieldDefinition.SCORE_FIELD.equals(field) && !FieldDefinition.DOC_FIELD.equals(field))
+						builder.returnedFields.add(field);
+				});
+			}
+			// The $id$ is a stored field, only read when the documents are fetched
+			if (withFetch)
+				builder.returnedFields.add(FieldDefinition.ID_FIELD);
+			builder.docValuesOnly = withFetch ? null : true;
+			builder.highlighters = null;
+			builder.queryDebug = null;
+			builder.profile = null;
+			if (queryDefinition.facets != null) {
+				builder.facets = new LinkedHashMap<>();
+				queryDefinition.facets.forEach((name, facet) -> builder.facets.put(name, facet.queries != null ?
+						facet :
+						new FacetDefinition(overFetch(facet.top), null)));
+			}
+			return builder.build();
+		}
+
+		/**
+		 * Fetch the returned fields and the highlights of the page. Each shard runs the query restricted to the $id$
+		 * of its documents in the page: the documents are found back by their $id$, even if the shard has been
+		 * refreshed or merged since the first phase.
+		 */
+		private Map<Integer, Map<Object, ResultDocumentMap>> fetch(final List<Hit> page) throws InterruptedException {
+			if (page.isEmpty() || !withFetch)
+				return null;
+			final Map<Integer, List<Object>> shardIds = new LinkedHashMap<>();
+			for (Hit hit : page) {
+				final Object id = hit.getId();
+				if (id != null)
+					shardIds.computeIfAbsent(hit.shardPos, shardPos -> new ArrayList<>()).add(id);
+			}
+			final Map<Integer, QueryDefinition> queries = new LinkedHashMap<>();
+			shardIds.forEach((shardPos, ids) -> {
+				final QueryBuilder builder = new QueryBuilder(queryDefinition);
+				final AbstractQuery idsQuery = new TermsQuery(FieldDefinition.ID_FIELD, ids);
+				builder.query = queryDefinition.query == null ?
+						idsQuery :
+						new BooleanQuery(new BooleanQuery.BooleanClause(BooleanQuery.Occur.must, queryDefinition.query),
+								new BooleanQuery.BooleanClause(BooleanQuery.Occur.filter, idsQuery));
+				builder.start = 0;
+				builder.rows = ids.size();
+				builder.returnedFields = new LinkedHashSet<>();
+				if (queryDefinition.returned_fields != null)
+					builder.returnedFields.addAll(queryDefinition.returned_fields);
+				builder.returnedFields.add(FieldDefinition.ID_FIELD);
+				builder.sorts = null;
+				builder.facets = null;
+				builder.queryDebug = null;
+				builder.profile = null;
+				queries.put(shardPos, builder.build());
+			});
+			final Map<Integer, ResultDefinition.WithMap> results = fanOut(queries);
+			timeTracker.next("shards_fetch");
+			final Map<Integer, Map<Object, ResultDocumentMap>> documents = new HashMap<>();
+			results.forEach((shardPos, result) -> {
+				if (result.documents == null)
+					return;
+				final Map<Object, ResultDocumentMap> shardDocuments = new HashMap<>();
+				for (ResultDocumentMap document : result.documents) {
+					final Object id = getFirstValue(document, FieldDefinition.ID_FIELD);
+					if (id != null)
+						shardDocuments.put(id, document);
+				}
+				documents.put(shardPos, shardDocuments);
+			});
+			return documents;
+		}
+
+		private ResultDocumentMap getFetched(final Map<Integer, Map<Object, ResultDocumentMap>> fetchedDocuments,
+				final Hit hit) {
+			if (fetchedDocuments == null)
+				return null;
+			final Map<Object, ResultDocumentMap> shardDocuments = fetchedDocuments.get(hit.shardPos);
+			final Object id = hit.getId();
+			return shardDocuments == null || id == null ? null : shardDocuments.get(id);
+		}
+
+		/**
+		 * Send the queries to the shards in parallel and wait for the answers until the timeout.
+		 *
+		 * @param queries the query of each shard, by shard position
+		 * @return the results of the shards which answered, by shard position
+		 * @throws InterruptedException if the thread is interrupted while waiting for the shards
+		 */
+		private Map<Integer, ResultDefinition.WithMap> fanOut(final Map<Integer, QueryDefinition> queries)
+				throws InterruptedException {
+			final Map<Integer, Future<ResultDefinition.WithMap>> futures = new LinkedHashMap<>();
+			queries.forEach((shardPos, query) -> {
+				final RemoteIndex shard = shards.get(shardPos);
+				final IndexServiceInterface service = services.get(shardPos);
+				futures.put(shardPos,
+						executorService.submit(() -> service.searchQuery(shard.schema, shard.index, query, false)));
+			});
+			final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shardTimeoutMs);
+			final Map<Integer, ResultDefinition.WithMap> results = new LinkedHashMap<>();
+			try {
+				for (Map.Entry<Integer, Future<ResultDefinition.WithMap>> entry : futures.entrySet()) {
+					final Integer shardPos = entry.getKey();
+					try {
+						final ResultDefinition.WithMap result =
+								entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+						if (result == null)
+							continue;
+						if (Boolean.TRUE.equals(result.timed_out))
+							timedOut = true;
+						results.put(shardPos, result);
+					} catch (TimeoutException e) {
+						timedOut = true;
+						shardErrors.put(shardPos.toString(),
+								"The shard did not answer within " + shardTimeoutMs + " ms");
+					} catch (ExecutionException e) {
+						final Throwable cause = e.getCause() == null ? e : e.getCause();
+						shardErrors.put(shardPos.toString(), Objects.toString(cause.getMessage(), cause.toString()));
+					}
+				}
+			} finally {
+				// Interrupting a local search could close the channels of a NIOFSDirectory,
+				// the late shards are stopped by the timeout of their query
+				futures.values().forEach(future -> future.cancel(false));
+			}
+			return results;
+		}
+
+		private Map<String, Map<String, Number>> mergeFacets(final Collection<ResultDefinition.WithMap> results) {
+			if (queryDefinition.facets == null)
+				return null;
+			final Map<String, Map<String, Number>> facets = new LinkedHashMap<>();
+			queryDefinition.facets.forEach((name, facet) -> {
+				final Map<String, Long> counts = new LinkedHashMap<>();
+				for (ResultDefinition.WithMap result : results) {
+					final Map<String, Number> shardCounts = result.facets == null ? null : result.facets.get(name);
+					if (shardCounts != null)
+						shardCounts.forEach((label, count) -> counts.merge(label, count.longValue(), Long::sum));
+				}
+				final Map<String, Number> merged = new LinkedHashMap<>();
+				if (facet.queries != null) {
+					facet.queries.keySet().forEach(label -> {
+						final Long count = counts.get(label);
+						if (count != null)
+							merged.put(label, count);
+					});
+				} else {
+					final int top = facet.top == null ? 10 : facet.top;
+					counts.entrySet()
+							.stream()
+							.sorted(Map.Entry.<String, Long>comparingByValue().reversed()
+									.thenComparing(Map.Entry.<String, Long>comparingByKey()))
+							.limit(top)
+							.forEach(entry -> merged.put(entry.getKey(), entry.getValue()));
+				}
+				facets.put(name, merged);
+			});
+			return facets;
+		}
+	}
+
+	private static void setField(final ResultDocumentBuilder<?> builder, final String name, final Object value) {
+		if (value instanceof Collection)
+			((Collection<?>) value).forEach(v -> builder.setStoredField(name, v));
+		else if (value != null)
+			builder.setStoredField(name, value);
+	}
+
+	/**
+	 * The hits are sorted like the shards sorted them. The ties are broken by shard, then by position in the shard.
+	 */
+	private static Comparator<Hit> getComparator(final LinkedHashMap<String, QueryDefinition.SortEnum> sorts) {
+		Comparator<Hit> comparator;
+		if (sorts == null || sorts.isEmpty())
+			comparator = (h1, h2) -> Float.compare(h2.getScore(), h1.getScore());
+		else {
+			comparator = null;
+			for (Map.Entry<String, QueryDefinition.SortEnum> sort : sorts.entrySet()) {
+				final Comparator<Hit> c = getComparator(sort.getKey(), sort.getValue());
+				comparator = comparator == null ? c : comparator.thenComparing(c);
+			}
+		}
+		return comparator.thenComparingInt(hit -> hit.shardPos).thenComparingInt(hit -> hit.pos);
+	}
+
+	private static Comparator<Hit> getComparator(final String field, final QueryDefinition.SortEnum sortEnum) {
+		final boolean descending = sortEnum != null && sortEnum.name().startsWith("descending");
+		if (FieldDefinition.SCORE_FIELD.equals(field))
+			return descending ?
+					(h1, h2) -> Float.compare(h2.getScore(), h1.getScore()) :
+					(h1, h2) -> Float.compare(h1.getScore(), h2.getScore());
+		if (FieldDefinition.DOC_FIELD.equals(field))
+			return descending ?
+					(h1, h2) -> Integer.compare(h2.document.getDoc(), h1.document.getDoc()) :
+					(h1, h2) -> Integer.compare(h1.document.getDoc(), h2.document.getDoc());
+		final boolean missingFirst = sortEnum == QueryDefinition.SortEnum.ascending_missing_first ||
+				sortEnum == QueryDefinition.SortEnum.descending_missing_first;
+		return (h1, h2) -> {
+			final Object v1 = h1.getSortValue(field);
+			final Object v2 = h2.getSortValue(field);
+			if (v1 == null)
+				return v2 == null ? 0 : missingFirst ? -1 : 1;
+			if (v2 == null)
+				return missingFirst ? 1 : -1;
+			final int c = compareValues(v1, v2);
+			return descending ? -c : c;
+		};
+	}
+
+	private static boolean isIntegral(final Object value) {
+		return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+	}
+
+	private static int compareValues(final Object v1, final Object v2) {
+		if (v1 instanceof Number && v2 instanceof Number) {
+			if (isIntegral(v1) && isIntegral(v2))
+				return Long.compare(((Number) v1).longValue(), ((Number) v2).longValue());
+			return Double.compare(((Number) v1).doubleValue(), ((Number) v2).doubleValue());
+		}
+		return v1.toString().compareTo(v2.toString());
+	}
+}
@@ -27,6 +27,7 @@ import org.apache.lucene.queryparser.flexible.core.QueryNodeException;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TotalHitCountCollector;
 
 import java.io.IOException;
 import java.util.Collections;
@@ -39,13 +40,15 @@ abstract class FacetsBuilder {
 	private final LinkedHashMap<String, FacetDefinition> facetsDef;
 	private final Query searchQuery;
 	private final TimeTracker timeTracker;
+	private final QueryDeadline deadline;
 
 	final LinkedHashMap<String, Map<String, Number>> results = new LinkedHashMap<>();
 
 	private FacetsBuilder(final QueryContext queryContext, final LinkedHashMap<String, FacetDefinition> facetsDef,
-			final Query searchQuery, final TimeTracker timeTracker) {
+			final Query searchQuery, final TimeTracker timeTracker, final QueryDeadline deadline) {
 
 		this.facetsDef = facetsDef;
+		this.deadline = deadline;
 		this.queryContext = queryContext;
 		this.searchQuery = searchQuery;
 		this.timeTracker = timeTracker;
@@ -54,6 +57,8 @@ abstract class FacetsBuilder {
 	final FacetsBuilder build()
 			throws IOException, ReflectiveOperationException, ParseException, QueryNodeException {
 		for (Map.Entry<String, FacetDefinition> entry : facetsDef.entrySet()) {
+			if (deadline != null && deadline.isExpired())
+				break;
 			final String dim = entry.getKey();
 			final FacetDefinition facet = entry.getValue();
 			final Map<String, Number> result;
@@ -92,19 +97,28 @@ abstract class FacetsBuilder {
 			final BooleanQuery.Builder builder = new BooleanQuery.Builder();
 			builder.add(searchQuery, BooleanClause.Occur.FILTER);
 			builder.add(entry.getValue().getQuery(queryContext), BooleanClause.Occur.FILTER);
-			facetMap.put(entry.getKey(), queryContext.indexSearcher.count(builder.build()));
+			facetMap.put(entry.getKey(), count(builder.build()));
 		}
 		return facetMap;
 	}
 
+	private int count(final Query query) throws IOException {
+		if (deadline == null)
+			return queryContext.indexSearcher.count(query);
+		final TotalHitCountCollector collector = new TotalHitCountCollector();
+		queryContext.indexSearcher.search(query, deadline.wrap(collector));
+		return collector.getTotalHits();
+	}
+
 	static class WithCollectors extends FacetsBuilder {
 
 		private final SortedSetDocValuesFacetCounts counts;
 
 		WithCollectors(final QueryContext queryContext, final LinkedHashMap<String, FacetDefinition> facetsDef,
-				final Query searchQuery, final TimeTracker timeTracker, final FacetsCollector facetsCollector)
+				final Query searchQuery, final TimeTracker timeTracker, final QueryDeadline deadline,
+				final FacetsCollector facetsCollector)
 				throws IOException, ParseException, ReflectiveOperationException, QueryNodeException {
-			super(queryContext, facetsDef, searchQuery, timeTracker);
+			super(queryContext, facetsDef, searchQuery, timeTracker, deadline);
 			this.counts = queryContext.state == null ?
 					null :
 					new SortedSetDocValuesFacetCounts(queryContext.state, facetsCollector);
@@ -121,10 +135,10 @@ abstract class FacetsBuilder {
 		final DrillSideways.DrillSidewaysResult results;
 
 		WithSideways(final QueryContext queryContext, final LinkedHashMap<String, FacetDefinition> facetsDef,
-				final Query searchQuery, final TimeTracker timeTracker,
+				final Query searchQuery, final TimeTracker timeTracker, final QueryDeadline deadline,
 				final DrillSideways.DrillSidewaysResult results)
 				throws IOException, ParseException, ReflectiveOperationException, QueryNodeException {
-			super(queryContext, facetsDef, searchQuery, timeTracker);
+			super(queryContext, facetsDef, searchQuery, timeTracker, deadline);
 			this.results = results;
 		}
 
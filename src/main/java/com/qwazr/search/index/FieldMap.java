@@ -15,11 +15,14 @@
  */
 package com.qwazr.search.index;
 
+import com.qwazr.search.field.Converters.ValueConverter;
 import com.qwazr.search.field.FieldDefinition;
 import com.qwazr.search.field.FieldTypeInterface;
 import com.qwazr.utils.WildcardMatcher;
 import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.index.IndexReader;
 
+import java.io.IOException;
 import java.util.*;
 
 public class FieldMap {
@@ -60,6 +63,31 @@ public class FieldMap {
 		return FieldTypeInterface.getInstance(find(fieldName));
 	}
 
+	/**
+	 * Build the doc values converters of the given fields.
+	 * Using a LeafReader avoids the MultiDocValues lookups of the top level reader.
+	 *
+	 * @param fieldNames the name of the fields
+	 * @param reader     the reader (preferably a LeafReader)
+	 * @return the converters of the fields having doc values, or null
+	 * @throws IOException if the doc values cannot be read
+	 */
+	final Map<String, ValueConverter> getConverters(final Collection<String> fieldNames, final IndexReader reader)
+			throws IOException {
+		if (fieldNames == null || fieldNames.isEmpty())
+			return null;
+		final Map<String, ValueConverter> converters = new LinkedHashMap<>();
+		for (String fieldName : fieldNames) {
+			final FieldTypeInterface fieldType = getFieldType(fieldName);
+			if (fieldType == null)
+				continue;
+			final ValueConverter converter = fieldType.getConverter(fieldName, reader);
+			if (converter != null)
+				converters.put(fieldName, converter);
+		}
+		return converters.isEmpty() ? null : converters;
+	}
+
 	final public LinkedHashMap<String, FieldDefinition> getFieldDefinitionMap() {
 		return fieldDefinitionMap;
 	}
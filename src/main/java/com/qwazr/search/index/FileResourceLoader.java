@@ -26,18 +26,45 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 
 class FileResourceLoader implements ResourceLoader {
 
+	/**
+	 * The versions are never reused, a loader opened again does not get the version of a previous loader
+	 */
+	private final static AtomicLong VERSIONS = new AtomicLong();
+
 	private final ClassLoaderManager classLoaderManager;
 	private final ResourceLoader delegate;
 	private final File directory;
+	private final AtomicLong version;
 
 	FileResourceLoader(final ClassLoaderManager classLoaderManager, final ResourceLoader delegate,
 			final File directory) {
+		this(classLoaderManager, delegate, directory, new AtomicLong(VERSIONS.incrementAndGet()));
+	}
+
+	private FileResourceLoader(final ClassLoaderManager classLoaderManager, final ResourceLoader delegate,
+			final File directory, final AtomicLong version) {
 		this.classLoaderManager = classLoaderManager;
 		this.delegate = delegate;
 		this.directory = directory;
+		this.version = version;
+	}
+
+	/**
+	 * @return a loader of the same directory sharing its version, the resources of the delegate follow
+	 */
+	final FileResourceLoader withDelegate(final ResourceLoader delegate) {
+		return new FileResourceLoader(classLoaderManager, delegate, directory, version);
+	}
+
+	/**
+	 * Called when a resource has been posted or deleted
+	 */
+	final void changed() {
+		version.set(VERSIONS.incrementAndGet());
 	}
 
 	final File checkResourceName(final String resourceName) {
@@ -49,6 +76,18 @@ class FileResourceLoader implements ResourceLoader {
 		return new File(directory, expectedResourceName);
 	}
 
+	/**
+	 * @return the version of the resources, the versions of the delegates follow
+	 */
+	final String getVersion() {
+		final StringBuilder sb = new StringBuilder(directory.getAbsolutePath()).append(':').append(version.get());
+		if (delegate instanceof FileResourceLoader)
+			sb.append('\n').append(((FileResourceLoader) delegate).getVersion());
+		else if (delegate != null)
+			return null;
+		return sb.toString();
+	}
+
 	@Override
 	public InputStream openResource(final String resourceName) throws IOException {
 		if (directory.exists()) {
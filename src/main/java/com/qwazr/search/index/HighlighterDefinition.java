@@ -15,6 +15,8 @@
  **/
 package com.qwazr.search.index;
 
+import java.util.Objects;
+
 public class HighlighterDefinition {
 
 	final public String field;
@@ -33,6 +35,21 @@ public class HighlighterDefinition {
 
 	final public Boolean escape;
 
+	public enum Engine {
+
+		/**
+		 * Uses the offsets stored in the postings (index_options: DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS)
+		 */
+		postings,
+
+		/**
+		 * Uses the term vectors (store_termvectors with store_termvector_positions and store_termvector_offsets)
+		 */
+		term_vectors
+	}
+
+	final public Engine engine;
+
 	public static class BreakIteratorDefinition {
 
 		public enum Type {
@@ -52,6 +69,19 @@ public class HighlighterDefinition {
 			this.type = type == null ? Type.sentence : type;
 			this.language = language;
 		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (o == null || !(o instanceof BreakIteratorDefinition))
+				return false;
+			final BreakIteratorDefinition def = (BreakIteratorDefinition) o;
+			return Objects.equals(type, def.type) && Objects.equals(language, def.language);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(type, language);
+		}
 	}
 
 	final public BreakIteratorDefinition break_iterator;
@@ -65,6 +95,7 @@ public class HighlighterDefinition {
 		post_tag = null;
 		ellipsis = null;
 		escape = null;
+		engine = null;
 		break_iterator = null;
 	}
 
@@ -77,9 +108,28 @@ public class HighlighterDefinition {
 		this.post_tag = builder.postTag;
 		this.ellipsis = builder.ellipsis;
 		this.escape = builder.escape;
+		this.engine = builder.engine;
 		this.break_iterator = builder.breakIterator;
 	}
 
+	@Override
+	public boolean equals(final Object o) {
+		if (o == null || !(o instanceof HighlighterDefinition))
+			return false;
+		final HighlighterDefinition def = (HighlighterDefinition) o;
+		return Objects.equals(field, def.field) && Objects.equals(max_passages, def.max_passages) &&
+				Objects.equals(max_length, def.max_length) &&
+				Objects.equals(multivalued_separator, def.multivalued_separator) &&
+				Objects.equals(pre_tag, def.pre_tag) && Objects.equals(post_tag, def.post_tag) &&
+				Objects.equals(ellipsis, def.ellipsis) && Objects.equals(escape, def.escape) &&
+				Objects.equals(engine, def.engine) && Objects.equals(break_iterator, def.break_iterator);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(field, pre_tag, post_tag, engine);
+	}
+
 	public static class Builder {
 
 		private String field = null;
@@ -98,6 +148,8 @@ public class HighlighterDefinition {
 
 		private Boolean escape = null;
 
+		private Engine engine = null;
+
 		private BreakIteratorDefinition breakIterator = null;
 
 		public Builder() {
@@ -179,6 +231,15 @@ public class HighlighterDefinition {
 			return this;
 		}
 
+		/**
+		 * @param engine the highlighting engine, postings by default
+		 * @return the current builder
+		 */
+		public Builder setEngine(Engine engine) {
+			this.engine = engine;
+			return this;
+		}
+
 		/**
 		 * @param breakIterator the break iterator parameters
 		 * @return the current builder
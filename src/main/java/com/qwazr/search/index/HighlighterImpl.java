@@ -15,79 +15,360 @@
  **/
 package com.qwazr.search.index;
 
+import com.qwazr.search.field.FieldDefinition;
+import com.qwazr.server.ServerException;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.postingshighlight.*;
+import org.apache.lucene.search.highlight.DefaultEncoder;
+import org.apache.lucene.search.highlight.Encoder;
+import org.apache.lucene.search.highlight.SimpleHTMLEncoder;
+import org.apache.lucene.search.postingshighlight.DefaultPassageFormatter;
+import org.apache.lucene.search.postingshighlight.PassageFormatter;
+import org.apache.lucene.search.postingshighlight.PostingsHighlighter;
+import org.apache.lucene.search.postingshighlight.WholeBreakIterator;
+import org.apache.lucene.search.vectorhighlight.BaseFragmentsBuilder;
+import org.apache.lucene.search.vectorhighlight.BoundaryScanner;
+import org.apache.lucene.search.vectorhighlight.BreakIteratorBoundaryScanner;
+import org.apache.lucene.search.vectorhighlight.FastVectorHighlighter;
+import org.apache.lucene.search.vectorhighlight.FieldFragList;
+import org.apache.lucene.search.vectorhighlight.FieldPhraseList;
+import org.apache.lucene.search.vectorhighlight.FieldQuery;
+import org.apache.lucene.search.vectorhighlight.ScoreOrderFragmentsBuilder;
+import org.apache.lucene.search.vectorhighlight.SimpleBoundaryScanner;
+import org.apache.lucene.search.vectorhighlight.SimpleFragListBuilder;
 
+import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-public class HighlighterImpl extends PostingsHighlighter {
+abstract class HighlighterImpl {
 
-	private final HighlighterDefinition definition;
+	private final static int MAX_PROTOTYPES = 1000;
 
-	private final char separator;
+	/**
+	 * The formatters and break iterators built for the last definitions, the least recently used are evicted first
+	 */
+	private final static Map<HighlighterDefinition, Prototypes> PROTOTYPES =
+			new LinkedHashMap<HighlighterDefinition, Prototypes>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<HighlighterDefinition, Prototypes> eldest) {
+					return size() > MAX_PROTOTYPES;
+				}
+			};
 
-	private final Locale locale;
+	private final static int FRAGMENT_SIZE = 100;
 
-	private final Analyzer analyzer;
+	/**
+	 * Number of documents highlighted at once by the postings highlighter when the query has a time limit
+	 */
+	private final static int DEADLINE_CHUNK = 16;
 
-	HighlighterImpl(HighlighterDefinition definition, Analyzer analyzer) {
-		super(definition.max_length == null ? PostingsHighlighter.DEFAULT_MAX_LENGTH : definition.max_length);
+	protected final HighlighterDefinition definition;
+
+	protected final Prototypes prototypes;
+
+	private HighlighterImpl(final HighlighterDefinition definition) {
 		this.definition = definition;
-		this.analyzer = analyzer;
+		synchronized (PROTOTYPES) {
+			this.prototypes = PROTOTYPES.computeIfAbsent(definition, Prototypes::new);
+		}
+	}
 
-		separator = definition.multivalued_separator == null || definition.multivalued_separator.isEmpty() ?
-				' ' :
-				definition.multivalued_separator.charAt(0);
+	/**
+	 * @param deadline an optional time limit, checked between two documents
+	 * @return the snippets, null for the documents not highlighted in time
+	 */
+	abstract String[] highlights(final Query query, final IndexSearcher indexSearcher, final int[] docs,
+			final QueryDeadline deadline) throws IOException;
 
-		if (definition.break_iterator != null && definition.break_iterator.language != null)
-			locale = Locale.forLanguageTag(definition.break_iterator.language);
-		else
-			locale = Locale.ROOT;
+	/**
+	 * The terms of the multi-term queries are enumerated with the deadline
+	 */
+	private String[] highlightsWithDeadline(final Query query, final IndexSearcher indexSearcher, final int[] docs,
+			final QueryDeadline deadline) throws IOException {
+		if (deadline == null)
+			return highlights(query, indexSearcher, docs, null);
+		try (final QueryDeadline.Scope scope = QueryDeadline.enter(deadline)) {
+			return highlights(query, indexSearcher, docs, deadline);
+		} catch (RuntimeException e) {
+			if (!QueryDeadline.isExpired(e))
+				throw e;
+			return new String[docs.length];
+		}
 	}
 
-	@Override
-	protected PassageFormatter getFormatter(String field) {
-		return new DefaultPassageFormatter(definition.pre_tag == null ? "<b>" : definition.pre_tag,
-				definition.post_tag == null ? "</b>" : definition.post_tag,
-				definition.ellipsis == null ? "... " : definition.ellipsis,
-				definition.escape == null ? false : definition.escape);
+	/**
+	 * Build the highlighter matching the engine of the definition
+	 *
+	 * @param definition the definition of the highlighter
+	 * @param analyzer   the analyzer of the field
+	 * @param fieldMap   the fields of the index
+	 * @return a new highlighter
+	 */
+	static HighlighterImpl of(final HighlighterDefinition definition, final Analyzer analyzer,
+			final FieldMap fieldMap) {
+		final FieldDefinition fieldDefinition = fieldMap.find(definition.field).definition;
+		if (definition.engine == HighlighterDefinition.Engine.term_vectors) {
+			if (!Boolean.TRUE.equals(fieldDefinition.store_termvectors) ||
+					!Boolean.TRUE.equals(fieldDefinition.store_termvector_positions) ||
+					!Boolean.TRUE.equals(fieldDefinition.store_termvector_offsets))
+				throw new ServerException(Response.Status.NOT_ACCEPTABLE, "The field " + definition.field +
+						" does not store term vectors with positions and offsets");
+			return new TermVectors(definition);
+		}
+		if (fieldDefinition.index_options != null &&
+				fieldDefinition.index_options != IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS)
+			throw new ServerException(Response.Status.NOT_ACCEPTABLE,
+					"The field " + definition.field + " is not indexed with offsets");
+		return new Postings(definition, analyzer);
 	}
 
-	@Override
-	protected BreakIterator getBreakIterator(String field) {
-		if (definition.break_iterator == null)
-			return new WholeBreakIterator();
-		switch (definition.break_iterator.type) {
-		case character:
-			return BreakIterator.getCharacterInstance(locale);
-		case word:
-			return BreakIterator.getWordInstance(locale);
-		case line:
-			return BreakIterator.getLineInstance(locale);
-		default:
-		case sentence:
-			return BreakIterator.getSentenceInstance(locale);
+	/**
+	 * Compute the snippets of each highlighter. The highlighters are run concurrently when an executor is given.
+	 *
+	 * @param highlighters    the highlighters by name
+	 * @param query           the query to highlight
+	 * @param indexSearcher   the searcher
+	 * @param docs            the documents to highlight
+	 * @param executorService an optional executor
+	 * @param deadline        an optional time limit, the documents not highlighted in time have no snippet
+	 * @return the snippets by highlighter name, in the order of the highlighters
+	 * @throws IOException if the index cannot be read
+	 */
+	static Map<String, String[]> highlights(final Map<String, HighlighterImpl> highlighters, final Query query,
+			final IndexSearcher indexSearcher, final int[] docs, final ExecutorService executorService,
+			final QueryDeadline deadline) throws IOException {
+		final Map<String, String[]> results = new LinkedHashMap<>();
+		if (executorService == null || highlighters.size() < 2) {
+			for (Map.Entry<String, HighlighterImpl> entry : highlighters.entrySet()) {
+				if (deadline != null && deadline.isExpired())
+					break;
+				results.put(entry.getKey(),
+						entry.getValue().highlightsWithDeadline(query, indexSearcher, docs, deadline));
+			}
+			return results;
+		}
+		final List<Future<String[]>> futures = new ArrayList<>(highlighters.size());
+		for (HighlighterImpl highlighter : highlighters.values())
+			futures.add(executorService.submit(
+					() -> highlighter.highlightsWithDeadline(query, indexSearcher, docs, deadline)));
+		try {
+			int i = 0;
+			for (String name : highlighters.keySet()) {
+				final Future<String[]> future = futures.get(i++);
+				if (deadline == null)
+					results.put(name, future.get());
+				else {
+					try {
+						results.put(name, future.get(deadline.getRemainingMs(), TimeUnit.MILLISECONDS));
+					} catch (TimeoutException e) {
+						deadline.expire();
+					}
+				}
+			}
+			return results;
+		} catch (InterruptedException e) {
+			throw new ServerException(e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new ServerException(cause);
+		} finally {
+			// The tasks stop by themselves at the deadline: an interrupt would close the channels of NIOFSDirectory
+			for (Future<String[]> future : futures)
+				future.cancel(false);
 		}
 	}
 
-	@Override
-	protected Analyzer getIndexAnalyzer(String field) {
-		return analyzer;
+	/**
+	 * The immutable parts of a highlighter. The break iterator is cloned before use.
+	 */
+	private static class Prototypes {
+
+		private final String preTag;
+		private final String postTag;
+		private final String ellipsis;
+		private final boolean escape;
+		private final char separator;
+		private final PassageFormatter formatter;
+		private final BreakIterator breakIterator;
+
+		private Prototypes(final HighlighterDefinition definition) {
+			preTag = definition.pre_tag == null ? "<b>" : definition.pre_tag;
+			postTag = definition.post_tag == null ? "</b>" : definition.post_tag;
+			ellipsis = definition.ellipsis == null ? "... " : definition.ellipsis;
+			escape = definition.escape == null ? false : definition.escape;
+			separator = definition.multivalued_separator == null || definition.multivalued_separator.isEmpty() ?
+					' ' :
+					definition.multivalued_separator.charAt(0);
+			formatter = new DefaultPassageFormatter(preTag, postTag, ellipsis, escape);
+			breakIterator = buildBreakIterator(definition.break_iterator);
+		}
+
+		private static BreakIterator buildBreakIterator(final HighlighterDefinition.BreakIteratorDefinition def) {
+			if (def == null)
+				return null;
+			final Locale locale = def.language != null ? Locale.forLanguageTag(def.language) : Locale.ROOT;
+			if (def.type == null)
+				return BreakIterator.getSentenceInstance(locale);
+			switch (def.type) {
+			case character:
+				return BreakIterator.getCharacterInstance(locale);
+			case word:
+				return BreakIterator.getWordInstance(locale);
+			case line:
+				return BreakIterator.getLineInstance(locale);
+			default:
+			case sentence:
+				return BreakIterator.getSentenceInstance(locale);
+			}
+		}
+
+		/**
+		 * @return a new break iterator, or null if the whole content is used
+		 */
+		private BreakIterator newBreakIterator() {
+			return breakIterator == null ? null : (BreakIterator) breakIterator.clone();
+		}
 	}
 
-	@Override
-	protected char getMultiValuedSeparator(String field) {
-		return separator;
+	/**
+	 * Uses the offsets stored in the postings
+	 */
+	private static class Postings extends HighlighterImpl {
+
+		private final PostingsHighlighter highlighter;
+
+		private Postings(final HighlighterDefinition definition, final Analyzer analyzer) {
+			super(definition);
+			highlighter = new PostingsHighlighter(
+					definition.max_length == null ? PostingsHighlighter.DEFAULT_MAX_LENGTH : definition.max_length) {
+
+				@Override
+				protected PassageFormatter getFormatter(String field) {
+					return prototypes.formatter;
+				}
+
+				@Override
+				protected BreakIterator getBreakIterator(String field) {
+					final BreakIterator breakIterator = prototypes.newBreakIterator();
+					return breakIterator == null ? new WholeBreakIterator() : breakIterator;
+				}
+
+				@Override
+				protected Analyzer getIndexAnalyzer(String field) {
+					return analyzer;
+				}
+
+				@Override
+				protected char getMultiValuedSeparator(String field) {
+					return prototypes.separator;
+				}
+			};
+		}
+
+		private String[] highlights(final Query query, final IndexSearcher indexSearcher, final int[] docs)
+				throws IOException {
+			return highlighter.highlightFields(new String[] { definition.field }, query, indexSearcher, docs,
+					definition.max_passages == null ? new int[] { 1 } : new int[] { definition.max_passages })
+					.get(definition.field);
+		}
+
+		@Override
+		final String[] highlights(final Query query, final IndexSearcher indexSearcher, final int[] docs,
+				final QueryDeadline deadline) throws IOException {
+			if (deadline == null)
+				return highlights(query, indexSearcher, docs);
+			// The documents are highlighted by chunks, the deadline is checked between two chunks
+			final String[] snippets = new String[docs.length];
+			for (int start = 0; start < docs.length && !deadline.isExpired(); start += DEADLINE_CHUNK) {
+				final int end = Math.min(docs.length, start + DEADLINE_CHUNK);
+				System.arraycopy(highlights(query, indexSearcher, Arrays.copyOfRange(docs, start, end)), 0, snippets,
+						start, end - start);
+			}
+			return snippets;
+		}
+	}
+
+	/**
+	 * Uses the positions and offsets stored in the term vectors
+	 */
+	private static class TermVectors extends HighlighterImpl {
+
+		private TermVectors(final HighlighterDefinition definition) {
+			super(definition);
+		}
+
+		@Override
+		final String[] highlights(final Query query, final IndexSearcher indexSearcher, final int[] docs,
+				final QueryDeadline deadline) throws IOException {
+			final IndexReader indexReader = indexSearcher.getIndexReader();
+			final FastVectorHighlighter highlighter = new FastVectorHighlighter(true, true);
+			final FieldQuery fieldQuery = highlighter.getFieldQuery(query, indexReader);
+
+			final String[] preTags = { prototypes.preTag };
+			final String[] postTags = { prototypes.postTag };
+			final BreakIterator breakIterator = prototypes.newBreakIterator();
+			final BoundaryScanner boundaryScanner = breakIterator == null ?
+					new SimpleBoundaryScanner() :
+					new BreakIteratorBoundaryScanner(breakIterator);
+			final BaseFragmentsBuilder fragmentsBuilder =
+					new ScoreOrderFragmentsBuilder(preTags, postTags, boundaryScanner);
+			fragmentsBuilder.setMultiValuedSeparator(prototypes.separator);
+			final SimpleFragListBuilder fragListBuilder = definition.max_length == null ?
+					new SimpleFragListBuilder() :
+					new MaxLengthFragListBuilder(definition.max_length);
+			final Encoder encoder = prototypes.escape ? new SimpleHTMLEncoder() : new DefaultEncoder();
+			final int maxPassages = definition.max_passages == null ? 1 : definition.max_passages;
+
+			final String[] snippets = new String[docs.length];
+			for (int i = 0; i < docs.length; i++) {
+				if (deadline != null && deadline.isExpired())
+					break;
+				final String[] fragments =
+						highlighter.getBestFragments(fieldQuery, indexReader, docs[i], definition.field,
+								FRAGMENT_SIZE, maxPassages, fragListBuilder, fragmentsBuilder, preTags, postTags,
+								encoder);
+				snippets[i] = fragments == null || fragments.length == 0 ?
+						null :
+						String.join(prototypes.ellipsis, fragments);
+			}
+			return snippets;
+		}
 	}
 
-	String[] highlights(Query query, IndexSearcher indexSearcher, int[] docs) throws IOException {
-		return highlightFields(new String[] { definition.field }, query, indexSearcher, docs,
-				definition.max_passages == null ? new int[] { 1 } : new int[] { definition.max_passages })
-				.get(definition.field);
+	/**
+	 * Like the postings highlighter, only the first max_length characters of the content are highlighted
+	 */
+	private static class MaxLengthFragListBuilder extends SimpleFragListBuilder {
 
+		private final int maxLength;
+
+		private MaxLengthFragListBuilder(final int maxLength) {
+			this.maxLength = maxLength;
+		}
+
+		@Override
+		public FieldFragList createFieldFragList(final FieldPhraseList fieldPhraseList, final int fragCharSize) {
+			fieldPhraseList.getPhraseList().removeIf(phrase -> phrase.getEndOffset() > maxLength);
+			return super.createFieldFragList(fieldPhraseList, fragCharSize);
+		}
 	}
 }
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Incremental copy of the files of a Lucene commit into a directory. A file already present in the target is kept
+ * when its Lucene checksum matches the source. The Lucene files are immutable: they are hard-linked when both
+ * directories are on the same file store, otherwise they are copied in parallel and their checksum is verified.
+ */
+class IndexBackup implements Closeable {
+
+	/**
+	 * The maximum number of files copied at the same time, the executor is shared with the searches
+	 */
+	final static int COPY_CONCURRENCY = 4;
+
+	private final Directory sourceDirectory;
+	private final Path sourcePath;
+	private final Path targetPath;
+	private final FSDirectory targetDirectory;
+	private final ExecutorService executorService;
+	private volatile boolean hardLink;
+
+	IndexBackup(final Directory sourceDirectory, final Path sourcePath, final Path targetPath,
+			final ExecutorService executorService) throws IOException {
+		this.sourceDirectory = sourceDirectory;
+		this.sourcePath = sourcePath;
+		this.targetPath = targetPath;
+		this.executorService = executorService;
+		Files.createDirectories(targetPath);
+		this.hardLink = Files.getFileStore(sourcePath).equals(Files.getFileStore(targetPath));
+		this.targetDirectory = FSDirectory.open(targetPath);
+	}
+
+	/**
+	 * Copy the files, then delete the files of the target which are not in the list
+	 *
+	 * @param fileNames the files of the commit
+	 * @throws IOException if a file cannot be copied or is corrupted
+	 */
+	void copy(final Collection<String> fileNames) throws IOException {
+		final Queue<String> queue = new ConcurrentLinkedQueue<>(fileNames);
+		final int workers = Math.min(COPY_CONCURRENCY, fileNames.size());
+		final List<Future<?>> futures = new ArrayList<>(workers);
+		try {
+			for (int i = 0; i < workers; i++)
+				futures.add(executorService.submit(() -> {
+					String fileName;
+					while ((fileName = queue.poll()) != null)
+						copyFile(fileName);
+					return null;
+				}));
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while copying to " + targetPath);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Cannot copy to " + targetPath, e.getCause());
+		} finally {
+			// On failure, the remaining files are skipped and the running copies end before we return
+			queue.clear();
+			for (Future<?> future : futures)
+				awaitQuietly(future);
+		}
+		deleteOthers(fileNames);
+	}
+
+	private static void awaitQuietly(final Future<?> future) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					future.get();
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException | CancellationException e) {
+					return;
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private void copyFile(final String fileName) throws IOException {
+		final Path source = sourcePath.resolve(fileName);
+		final Path target = targetPath.resolve(fileName);
+		if (Files.exists(target)) {
+			if (Files.isSameFile(source, target))
+				return;
+			if (Files.size(source) == Files.size(target) && isSameChecksum(fileName))
+				return;
+			Files.delete(target);
+		}
+		if (hardLink) {
+			try {
+				createLink(target, source);
+				return;
+			} catch (UnsupportedOperationException | IOException e) {
+				// Links are not supported by the file store, from now we copy
+				hardLink = false;
+			}
+		}
+		try (final FileChannel input = FileChannel.open(source, StandardOpenOption.READ);
+				final FileChannel output = FileChannel.open(target, StandardOpenOption.CREATE_NEW,
+						StandardOpenOption.WRITE)) {
+			final long size = input.size();
+			long position = 0;
+			while (position < size)
+				position += input.transferTo(position, size - position, output);
+		}
+		verify(fileName);
+	}
+
+	void createLink(final Path link, final Path existing) throws IOException {
+		Files.createLink(link, existing);
+	}
+
+	/**
+	 * Compare the checksums stored in the footers, a corrupted target is never the same
+	 */
+	private boolean isSameChecksum(final String fileName) throws IOException {
+		final long sourceChecksum;
+		try (final IndexInput input = sourceDirectory.openInput(fileName, IOContext.READONCE)) {
+			sourceChecksum = CodecUtil.retrieveChecksum(input);
+		}
+		try (final IndexInput input = targetDirectory.openInput(fileName, IOContext.READONCE)) {
+			return sourceChecksum == CodecUtil.retrieveChecksum(input);
+		} catch (CorruptIndexException e) {
+			return false;
+		}
+	}
+
+	private void verify(final String fileName) throws IOException {
+		try (final IndexInput input = targetDirectory.openInput(fileName, IOContext.READONCE)) {
+			CodecUtil.checksumEntireFile(input);
+		} catch (CorruptIndexException e) {
+			Files.deleteIfExists(targetPath.resolve(fileName));
+			throw e;
+		}
+	}
+
+	private void deleteOthers(final Collection<String> fileNames) throws IOException {
+		final Set<String> names = new HashSet<>(fileNames);
+		try (final DirectoryStream<Path> stream = Files.newDirectoryStream(targetPath)) {
+			for (Path path : stream)
+				if (Files.isRegularFile(path) && !names.contains(path.getFileName().toString()))
+					Files.delete(path);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		targetDirectory.close();
+	}
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.qwazr.search.field.Converters.ValueConverter;
+import com.qwazr.search.field.FieldDefinition;
+import com.qwazr.utils.json.JsonMapper;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Streams every document matching a query as NDJSON, without any top-N collection.
+ * The sequential export follows the order of the $id$ terms: unlike the doc ids, an $id$ cursor stays valid when the
+ * index is refreshed or merged. The documents having no $id$ term come last. The parallel export reads the segments
+ * concurrently in doc id order and cannot be resumed.
+ */
+class IndexExport {
+
+	private final IndexSearcher indexSearcher;
+	private final FieldMap fieldMap;
+	private final Query query;
+	private final Set<String> returnedFields;
+	private final BytesRef after;
+
+	IndexExport(final IndexSearcher indexSearcher, final FieldMap fieldMap, final Query query,
+			final Set<String> returnedFields, final String after) {
+		this.indexSearcher = indexSearcher;
+		this.fieldMap = fieldMap;
+		this.query = query;
+		this.returnedFields = returnedFields != null && returnedFields.contains("*") ?
+				fieldMap.getStaticFieldSet() :
+				returnedFields;
+		this.after = after == null ? null : new BytesRef(after);
+	}
+
+	final InputStream stream(final ExecutorService executorService, final boolean parallel, final Runnable release)
+			throws IOException {
+		return StreamingPipe.start(executorService, output -> write(output, parallel ? executorService : null),
+				release);
+	}
+
+	final void write(final OutputStream output, final ExecutorService executorService)
+			throws IOException, InterruptedException, ExecutionException {
+		final Weight weight = indexSearcher.createNormalizedWeight(query, false);
+		try (final JsonGenerator generator = JsonMapper.MAPPER.getFactory().createGenerator(output)) {
+			generator.setRootValueSeparator(null);
+			if (executorService == null) {
+				writeSorted(weight, generator);
+			} else {
+				final List<Future<?>> futures = new ArrayList<>();
+				for (LeafReaderContext leaf : indexSearcher.getIndexReader().leaves())
+					futures.add(executorService.submit(() -> {
+						writeLeaf(weight, leaf, generator);
+						return null;
+					}));
+				try {
+					for (Future<?> future : futures)
+						future.get();
+				} finally {
+					for (Future<?> future : futures)
+						future.cancel(true);
+				}
+			}
+			generator.flush();
+		}
+	}
+
+	/**
+	 * The matching documents are collected in a bit set, then written in the order of their $id$ term
+	 */
+	private void writeSorted(final Weight weight, final JsonGenerator generator) throws IOException {
+		final IndexReader indexReader = indexSearcher.getIndexReader();
+		final List<LeafReaderContext> leaves = indexReader.leaves();
+		final FixedBitSet matches = new FixedBitSet(indexReader.maxDoc());
+		for (LeafReaderContext leaf : leaves) {
+			final Scorer scorer = weight.scorer(leaf);
+			if (scorer == null)
+				continue;
+			final Bits liveDocs = leaf.reader().getLiveDocs();
+			final DocIdSetIterator iterator = scorer.iterator();
+			for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc())
+				if (liveDocs == null || liveDocs.get(doc))
+					matches.set(leaf.docBase + doc);
+		}
+
+		final List<Map<String, ValueConverter>> converters = new ArrayList<>(leaves.size());
+		for (LeafReaderContext leaf : leaves)
+			converters.add(fieldMap.getConverters(returnedFields, leaf.reader()));
+
+		final Terms terms = MultiFields.getTerms(indexReader, FieldDefinition.ID_FIELD);
+		if (terms != null) {
+			final TermsEnum termsEnum = terms.iterator();
+			PostingsEnum postings = null;
+			BytesRef term;
+			while ((term = termsEnum.next()) != null) {
+				// The documents before the cursor are only removed from the documents having no $id$
+				final boolean write = after == null || term.compareTo(after) > 0;
+				postings = termsEnum.postings(postings, PostingsEnum.NONE);
+				int doc;
+				while ((doc = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+					if (!matches.get(doc))
+						continue;
+					matches.clear(doc);
+					if (write)
+						writeDocument(leaves, converters, doc, term.utf8ToString(), generator);
+				}
+			}
+		}
+
+		int doc = 0;
+		while (doc < matches.length() && (doc = matches.nextSetBit(doc)) != DocIdSetIterator.NO_MORE_DOCS)
+			writeDocument(leaves, converters, doc++, null, generator);
+	}
+
+	private void writeDocument(final List<LeafReaderContext> leaves, final List<Map<String, ValueConverter>> converters,
+			final int doc, final String id, final JsonGenerator generator) throws IOException {
+		final int leafIndex = ReaderUtil.subIndex(doc, leaves);
+		final LeafReaderContext leaf = leaves.get(leafIndex);
+		final Map<String, Object> document =
+				buildDocument(leaf.reader(), converters.get(leafIndex), doc - leaf.docBase, doc);
+		if (id != null)
+			document.put(FieldDefinition.ID_FIELD, id);
+		JsonMapper.MAPPER.writeValue(generator, document);
+		generator.writeRaw('\n');
+	}
+
+	private void writeLeaf(final Weight weight, final LeafReaderContext leaf, final JsonGenerator generator)
+			throws IOException {
+
+		final Scorer scorer = weight.scorer(leaf);
+		if (scorer == null)
+			return;
+
+		final LeafReader leafReader = leaf.reader();
+		final Map<String, ValueConverter> converters = fieldMap.getConverters(returnedFields, leafReader);
+		final Bits liveDocs = leafReader.getLiveDocs();
+		final DocIdSetIterator iterator = scorer.iterator();
+
+		for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+			if (liveDocs != null && !liveDocs.get(doc))
+				continue;
+			final Map<String, Object> document = buildDocument(leafReader, converters, doc, leaf.docBase + doc);
+			synchronized (generator) {
+				JsonMapper.MAPPER.writeValue(generator, document);
+				generator.writeRaw('\n');
+			}
+		}
+	}
+
+	private Map<String, Object> buildDocument(final LeafReader leafReader, final Map<String, ValueConverter> converters,
+			final int leafDoc, final int doc) throws IOException {
+		final ResultDocumentMap.Builder builder = new ResultDocumentMap.Builder(0, new ScoreDoc(doc, 0), 0);
+		builder.setStoredField(FieldDefinition.DOC_FIELD, doc);
+		if (returnedFields != null && !returnedFields.isEmpty()) {
+			final DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(returnedFields);
+			leafReader.document(leafDoc, visitor);
+			builder.setStoredFields(visitor.getDocument());
+			if (converters != null)
+				converters.forEach((fieldName, converter) -> builder.setDocValuesField(fieldName, converter, leafDoc));
+		}
+		return builder.build().fields;
+	}
+}
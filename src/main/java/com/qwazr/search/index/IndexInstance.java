@@ -16,9 +16,9 @@
 package com.qwazr.search.index;
 
 import com.qwazr.classloader.ClassLoaderManager;
+import com.qwazr.search.analysis.AnalyzerCache;
 import com.qwazr.search.analysis.AnalyzerContext;
 import com.qwazr.search.analysis.AnalyzerDefinition;
-import com.qwazr.search.analysis.CustomAnalyzer;
 import com.qwazr.search.analysis.UpdatableAnalyzer;
 import com.qwazr.search.field.FieldDefinition;
 import com.qwazr.search.field.FieldTypeInterface;
@@ -28,7 +28,6 @@ import com.qwazr.utils.IOUtils;
 import com.qwazr.utils.StringUtils;
 import com.qwazr.utils.json.JsonMapper;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.FileFileFilter;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
@@ -48,43 +47,62 @@ import org.apache.lucene.replicator.Replicator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.join.JoinUtil;
 import org.apache.lucene.search.join.ScoreMode;
 import org.apache.lucene.store.Directory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
 import javax.ws.rs.core.Response;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 final public class IndexInstance implements Closeable {
 
+	private static final Logger LOGGER = LoggerFactory.getLogger(IndexInstance.class);
+
+	/**
+	 * The maximum time a master holds a replication manifest request
+	 */
+	final static long MAX_REPLICATION_WAIT_MS = 60000;
+
 	private final IndexInstanceBuilder.FileSet fileSet;
 	private final UUID indexUuid;
+	private final List<String> previousIndexUuids;
 	private final String indexName;
+	private final String schemaName;
 
 	private final SchemaInstance schema;
-	private final Directory dataDirectory;
 	private final LiveIndexWriterConfig indexWriterConfig;
-	private final SnapshotDeletionPolicy snapshotDeletionPolicy;
 	private final IndexWriter indexWriter;
+	private final IndexWriter[] indexWriters;
+	private final Directory[] dataDirectories;
 
-	private final SearcherManager searcherManager;
+	private final ReferenceManager<IndexSearcher> searcherManager;
 	private final ExecutorService executorService;
 	private final IndexSettingsDefinition settings;
 	private final FileResourceLoader fileResourceLoader;
@@ -93,7 +111,15 @@ final public class IndexInstance implements Closeable {
 	private final LocalReplicator replicator;
 	private final ReplicationClient replicationClient;
 	private final IndexReplicator indexReplicator;
+	private final DistributedSearch distributedSearch;
 	private final ReentrantLock replicationLock;
+	private final ReentrantLock backupLock;
+	private final AtomicBoolean replicationRunning;
+	private final ScheduledFuture<?> replicationSchedule;
+	private volatile ReplicationManifest appliedManifest;
+
+	private final Object publishMonitor;
+	private long publishCount;
 
 	private final UpdatableAnalyzer indexAnalyzer;
 	private final UpdatableAnalyzer queryAnalyzer;
@@ -103,23 +129,51 @@ final public class IndexInstance implements Closeable {
 
 	private volatile Pair<IndexReader, SortedSetDocValuesReaderState> facetsReaderStateCache;
 
+	/**
+	 * The join queries built on the current reader. The collected terms (and scores) are kept by the query.
+	 */
+	private volatile JoinQueryCache joinQueryCache;
+	private final static long JOIN_QUERY_CACHE_RAM_BYTES = 32 * 1024 * 1024;
+
+	private volatile OrdinalMapCache ordinalMapCache;
+
+	private final IndexMetrics metrics;
+	private final ObjectName mbeanName;
+
+	/**
+	 * The number of running operations, or -1 once the index is unloaded
+	 */
+	private final AtomicInteger refCount;
+	private volatile long lastAccess;
+
+	/**
+	 * The writes share the read lock. A restore holds the write lock while the index is replaced.
+	 */
+	private final ReentrantReadWriteLock writeGate;
+	private volatile boolean replaced;
+
+	/**
+	 * Set once a restored index replaces this instance: it is closed by the last running operation
+	 */
+	private volatile boolean retired;
+	private volatile Runnable onRetired;
+
 	IndexInstance(final ClassLoaderManager classLoaderManager, final IndexInstanceBuilder builder) {
 		this.classLoaderManager = classLoaderManager;
 		this.schema = builder.schema;
 		this.fileSet = builder.fileSet;
 		this.indexName = builder.fileSet.indexDirectory.getName();
 		this.indexUuid = builder.indexUuid;
-		this.dataDirectory = builder.dataDirectory;
+		this.previousIndexUuids = builder.previousIndexUuids;
 		this.analyzerMap = builder.analyzerMap;
 		this.fieldMap = builder.fieldMap == null ? null : new FieldMap(builder.fieldMap);
 		this.indexWriter = builder.indexWriter;
-		if (builder.indexWriter != null) { // We are a master
+		this.indexWriters = builder.indexWriters;
+		this.dataDirectories = builder.dataDirectories;
+		if (builder.indexWriter != null) // We are a master
 			this.indexWriterConfig = indexWriter.getConfig();
-			this.snapshotDeletionPolicy = (SnapshotDeletionPolicy) indexWriterConfig.getIndexDeletionPolicy();
-		} else { // We are a slave (no write)
+		else // We are a slave (no write)
 			this.indexWriterConfig = null;
-			this.snapshotDeletionPolicy = null;
-		}
 		this.indexAnalyzer = builder.indexAnalyzer;
 		this.queryAnalyzer = builder.queryAnalyzer;
 		this.settings = builder.settings;
@@ -129,24 +183,244 @@ final public class IndexInstance implements Closeable {
 		this.replicator = builder.replicator;
 		this.replicationClient = builder.replicationClient;
 		this.indexReplicator = builder.indexReplicator;
+		this.distributedSearch = builder.distributedSearch;
 		this.replicationLock = new ReentrantLock(true);
+		this.backupLock = new ReentrantLock();
+		this.replicationRunning = new AtomicBoolean(false);
+		this.publishMonitor = new Object();
+		this.publishCount = 0;
 		this.facetsReaderStateCache = null;
+		this.joinQueryCache = null;
+		this.ordinalMapCache = null;
+		this.metrics = builder.metrics;
+		this.refCount = new AtomicInteger();
+		this.writeGate = new ReentrantReadWriteLock(true);
+		this.replaced = false;
+		this.retired = false;
+		this.onRetired = null;
+		this.lastAccess = System.currentTimeMillis();
+		this.schemaName = fileSet.indexDirectory.getParentFile().getName();
+		this.mbeanName = MetricsMBean.register(
+				"type=Index,schema=" + ObjectName.quote(schemaName) + ",name=" + ObjectName.quote(indexName),
+				"Metrics of the index " + schemaName + '/' + indexName, metrics::toMap);
+		this.replicationSchedule = indexReplicator != null && settings != null && settings.replication_interval_ms != null
+				&& settings.replication_interval_ms > 0 ?
+				IndexReplicator.schedule(settings.replication_interval_ms, this::scheduledReplication) :
+				null;
 	}
 
 	public IndexSettingsDefinition getSettings() {
 		return settings;
 	}
 
+	String getIndexName() {
+		return indexName;
+	}
+
 	boolean isIndexWriterOpen() {
 		return indexWriter != null && indexWriter.isOpen();
 	}
 
+	void touch() {
+		lastAccess = System.currentTimeMillis();
+	}
+
+	long getLastAccess() {
+		return lastAccess;
+	}
+
+	/**
+	 * @return true if the index is unloaded, or replaced by a restored index: the schema holds another instance
+	 */
+	boolean isUnloaded() {
+		return retired || refCount.get() < 0;
+	}
+
+	/**
+	 * An unloaded index is closed, it is not deleted. The schema opens a new instance on the next access.
+	 * A retired index rejects the new operations, the schema already holds the restored instance.
+	 */
+	private void incRef() {
+		for (; ; ) {
+			final int count = refCount.get();
+			if (count < 0)
+				throw new ServerException(Response.Status.SERVICE_UNAVAILABLE,
+						"The index has been unloaded - Index: " + schemaName + '/' + indexName);
+			if (refCount.compareAndSet(count, count + 1))
+				break;
+		}
+		// Checked once counted: a concurrent retire either sees this operation or is seen by it
+		if (retired) {
+			decRef();
+			throw new ServerException(Response.Status.SERVICE_UNAVAILABLE,
+					"The index has been replaced by a restore - Index: " + schemaName + '/' + indexName);
+		}
+		touch();
+	}
+
+	private void decRef() {
+		touch();
+		if (refCount.decrementAndGet() == 0 && retired)
+			closeRetired();
+	}
+
+	private Semaphore acquireReadSemaphore() {
+		incRef();
+		try {
+			return schema.acquireReadSemaphore();
+		} catch (RuntimeException e) {
+			decRef();
+			throw e;
+		}
+	}
+
+	/**
+	 * The writes are rejected while a restore replaces the index, and once the index has been replaced: they would be
+	 * lost with the replaced data.
+	 */
+	private void beginWrite() {
+		incRef();
+		try {
+			// A fair lock: no write starts once a restore is waiting for the running writes
+			if (!writeGate.readLock().tryLock(0, TimeUnit.MILLISECONDS))
+				throw new ServerException(Response.Status.SERVICE_UNAVAILABLE,
+						"The index is being restored - Index: " + schemaName + '/' + indexName);
+		} catch (InterruptedException e) {
+			decRef();
+			throw new ServerException(e);
+		} catch (RuntimeException e) {
+			decRef();
+			throw e;
+		}
+		if (replaced) {
+			endWrite();
+			throw new ServerException(Response.Status.SERVICE_UNAVAILABLE,
+					"The index has been replaced by a restore - Index: " + schemaName + '/' + indexName);
+		}
+	}
+
+	private void endWrite() {
+		writeGate.readLock().unlock();
+		decRef();
+	}
+
+	private Semaphore acquireWriteSemaphore() {
+		beginWrite();
+		try {
+			return schema.acquireWriteSemaphore();
+		} catch (RuntimeException e) {
+			endWrite();
+			throw e;
+		}
+	}
+
+	private void release(final Semaphore sem) {
+		try {
+			if (sem != null)
+				sem.release();
+		} finally {
+			decRef();
+		}
+	}
+
+	private void releaseWrite(final Semaphore sem) {
+		try {
+			if (sem != null)
+				sem.release();
+		} finally {
+			endWrite();
+		}
+	}
+
+	/**
+	 * Wait for the running writes, then reject the writes until {@link #unlockWrites(boolean)} is called by the same
+	 * thread.
+	 */
+	void lockWrites() {
+		writeGate.writeLock().lock();
+	}
+
+	/**
+	 * @param replaced true if a restored index replaces this instance: the writes are rejected for good
+	 */
+	void unlockWrites(final boolean replaced) {
+		if (replaced)
+			this.replaced = true;
+		writeGate.writeLock().unlock();
+	}
+
+	/**
+	 * Commit and close the index if no operation is running. A replicated slave is never unloaded.
+	 *
+	 * @return true if the index has been unloaded
+	 */
+	boolean unload() {
+		if (replicationSchedule != null || !refCount.compareAndSet(0, -1))
+			return false;
+		if (retired) {
+			deleteRetired();
+			return true;
+		}
+		if (indexWriters != null)
+			for (IndexWriter writer : indexWriters) {
+				try {
+					if (writer.isOpen() && writer.hasUncommittedChanges())
+						writer.commit();
+				} catch (IOException e) {
+					LOGGER.warn("Cannot commit the unloaded index " + schemaName + '/' + indexName, e);
+				}
+			}
+		close();
+		return true;
+	}
+
 	@Override
 	public void close() {
+		MetricsMBean.unregister(mbeanName);
+		closeIndex();
+	}
+
+	private void closeIndex() {
+		if (replicationSchedule != null)
+			replicationSchedule.cancel(false);
 		IOUtils.closeQuietly(replicationClient, searcherManager, indexAnalyzer, queryAnalyzer, replicator);
-		if (indexWriter != null && indexWriter.isOpen())
-			IOUtils.closeQuietly(indexWriter);
-		IOUtils.closeQuietly(dataDirectory);
+		if (indexWriters != null)
+			for (IndexWriter writer : indexWriters)
+				if (writer.isOpen())
+					IOUtils.closeQuietly(writer);
+		IOUtils.closeQuietly(dataDirectories);
+	}
+
+	/**
+	 * Close an index replaced by a restored index. The new operations are rejected, the running ones keep the
+	 * reference count above zero: the last one closes the index, then the data directories are deleted. The metrics
+	 * MBean now belongs to the new instance.
+	 *
+	 * @param onDeleted called once the data directories are deleted
+	 */
+	void retire(final Runnable onDeleted) {
+		onRetired = onDeleted;
+		retired = true;
+		closeRetired();
+	}
+
+	/**
+	 * Only the caller taking the reference count from 0 to -1 closes the index
+	 */
+	private void closeRetired() {
+		if (refCount.compareAndSet(0, -1))
+			executorService.execute(this::deleteRetired);
+	}
+
+	private void deleteRetired() {
+		try {
+			closeIndex();
+			FileUtils.deleteQuietly(fileSet.dataDirectory);
+			FileUtils.deleteQuietly(fileSet.shardsDirectory);
+		} finally {
+			if (onRetired != null)
+				onRetired.run();
+		}
 	}
 
 	/**
@@ -162,24 +436,36 @@ final public class IndexInstance implements Closeable {
 		final IndexSearcher indexSearcher = searcherManager.acquire();
 		try {
 			return new IndexStatus(indexUuid, indexReplicator != null ? indexReplicator.getMasterUuid() : null,
-					indexSearcher.getIndexReader(), indexWriter, snapshotDeletionPolicy, settings, analyzerMap.keySet(),
+					indexSearcher.getIndexReader(), indexWriters, settings, analyzerMap.keySet(),
 					fieldMap.getFieldDefinitionMap().keySet());
 		} finally {
 			searcherManager.release(indexSearcher);
 		}
 	}
 
+	private Long getReaderVersion() throws IOException {
+		final IndexSearcher indexSearcher = searcherManager.acquire();
+		try {
+			return ShardsSearcherManager.getVersion(indexSearcher.getIndexReader());
+		} finally {
+			searcherManager.release(indexSearcher);
+		}
+	}
+
+	Map<String, Object> getMetrics() {
+		return metrics.toMap();
+	}
+
 	LinkedHashMap<String, FieldDefinition> getFields() {
 		return fieldMap.getFieldDefinitionMap();
 	}
 
 	IndexStatus getStatus() throws IOException, InterruptedException {
-		final Semaphore sem = schema.acquireReadSemaphore();
+		final Semaphore sem = acquireReadSemaphore();
 		try {
 			return getIndexStatus();
 		} finally {
-			if (sem != null)
-				sem.release();
+			release(sem);
 		}
 	}
 
@@ -189,14 +475,21 @@ final public class IndexInstance implements Closeable {
 				new AnalyzerContext(classLoaderManager, fileResourceLoader, analyzers, fields, true);
 		indexAnalyzer.update(analyzerContext.indexAnalyzerMap);
 		queryAnalyzer.update(analyzerContext.queryAnalyzerMap);
+		joinQueryCache = null;
 	}
 
 	synchronized void setFields(final LinkedHashMap<String, FieldDefinition> fields)
 			throws ServerException, IOException {
-		JsonMapper.MAPPER.writeValue(fileSet.fieldMapFile, fields);
-		fieldMap = new FieldMap(fields);
-		refreshFieldsAnalyzers(analyzerMap, fields);
-		schema.mayBeRefresh(true);
+		beginWrite();
+		try {
+			JsonMapper.MAPPER.writeValue(fileSet.fieldMapFile, fields);
+			fieldMap = new FieldMap(fields);
+			refreshFieldsAnalyzers(analyzerMap, fields);
+			schema.mayBeRefresh(true);
+			published();
+		} finally {
+			endWrite();
+		}
 	}
 
 	void setField(final String field_name, final FieldDefinition field) throws IOException, ServerException {
@@ -221,10 +514,16 @@ final public class IndexInstance implements Closeable {
 
 	synchronized void setAnalyzers(final LinkedHashMap<String, AnalyzerDefinition> analyzers)
 			throws ServerException, IOException {
-		refreshFieldsAnalyzers(analyzerMap, fieldMap.getFieldDefinitionMap());
-		JsonMapper.MAPPER.writeValue(fileSet.analyzerMapFile, analyzers);
-		analyzerMap = analyzers;
-		schema.mayBeRefresh(true);
+		beginWrite();
+		try {
+			refreshFieldsAnalyzers(analyzerMap, fieldMap.getFieldDefinitionMap());
+			JsonMapper.MAPPER.writeValue(fileSet.analyzerMapFile, analyzers);
+			analyzerMap = analyzers;
+			schema.mayBeRefresh(true);
+			published();
+		} finally {
+			endWrite();
+		}
 	}
 
 	void setAnalyzer(final String analyzerName, final AnalyzerDefinition analyzer) throws IOException, ServerException {
@@ -240,8 +539,8 @@ final public class IndexInstance implements Closeable {
 		if (analyzerDefinition == null)
 			throw new ServerException(Response.Status.NOT_FOUND,
 					"Analyzer not found: " + analyzerName + " - Index: " + indexName);
-		try (final Analyzer analyzer = new CustomAnalyzer(classLoaderManager, fileResourceLoader, analyzerDefinition)) {
-			return TermDefinition.buildTermList(analyzer, StringUtils.EMPTY, inputText);
+		try (final AnalyzerCache.Lease lease = schema.acquireAnalyzer(fileResourceLoader, analyzerDefinition)) {
+			return TermDefinition.buildTermList(lease.analyzer, StringUtils.EMPTY, inputText);
 		}
 	}
 
@@ -262,83 +561,153 @@ final public class IndexInstance implements Closeable {
 		return queryAnalyzer.getWrappedAnalyzer(field);
 	}
 
-	public Query createJoinQuery(final JoinQuery joinQuery)
+	/**
+	 * Collect the terms of the from field on this index (the from side of the join). The query is cached until the
+	 * reader, the fields or the analyzers change.
+	 *
+	 * @param joinQuery the definition of the join
+	 * @param deadline  the time limit of the query using the join, may be null. A join collected partially because
+	 *                  the time limit was reached is not cached.
+	 * @return a query matching the documents of the other index having the collected terms
+	 */
+	final Query createJoinQuery(final JoinQuery joinQuery, final QueryDeadline deadline)
 			throws IOException, ParseException, ReflectiveOperationException, QueryNodeException {
-		final Semaphore sem = schema.acquireReadSemaphore();
+		final Semaphore sem = acquireReadSemaphore();
 		try {
 			final IndexSearcher indexSearcher = searcherManager.acquire();
 			try {
+				final JoinQueryCache cache = getJoinQueryCache(indexSearcher.getIndexReader());
 				final Query fromQuery = joinQuery.from_query == null ?
 						new MatchAllDocsQuery() :
 						joinQuery.from_query.getQuery(buildQueryContext(indexSearcher, null));
-				return JoinUtil.createJoinQuery(joinQuery.from_field, joinQuery.multiple_values_per_document,
-						joinQuery.to_field, fromQuery, indexSearcher,
-						joinQuery.score_mode == null ? ScoreMode.None : joinQuery.score_mode);
+				final boolean multipleValuesPerDocument = Boolean.TRUE.equals(joinQuery.multiple_values_per_document);
+				final ScoreMode scoreMode = joinQuery.score_mode == null ? ScoreMode.None : joinQuery.score_mode;
+				final JoinQueryCache.Key key =
+						new JoinQueryCache.Key(joinQuery.from_field, joinQuery.to_field, multipleValuesPerDocument,
+								scoreMode, fromQuery);
+				Query query = cache.get(key);
+				if (query != null) {
+					metrics.joinCacheHits.increment();
+					return query;
+				}
+				final long start = System.nanoTime();
+				final LongAdder collectedDocuments = new LongAdder();
+				query = JoinUtil.createJoinQuery(joinQuery.from_field, multipleValuesPerDocument, joinQuery.to_field,
+						fromQuery, JoinQueryCache.newCountingSearcher(indexSearcher, deadline, collectedDocuments),
+						scoreMode);
+				metrics.join.recordSince(start);
+				if (deadline != null && deadline.isTimedOut())
+					return query;
+				cache.put(key, query, collectedDocuments.sum());
+				return query;
 			} finally {
 				searcherManager.release(indexSearcher);
 			}
 		} finally {
-			if (sem != null)
-				sem.release();
+			release(sem);
 		}
 	}
 
 	private void nrtCommit() throws IOException {
-		indexWriter.flush();
-		indexWriter.commit();
+		final long start = System.nanoTime();
+		for (IndexWriter writer : indexWriters)
+			writer.flush();
+		final long flushEnd = System.nanoTime();
+		metrics.flush.recordSince(start);
+		for (IndexWriter writer : indexWriters)
+			writer.commit();
+		final long commitEnd = System.nanoTime();
+		metrics.commit.recordSince(flushEnd);
 		replicator.publish(new IndexRevision(indexWriter));
 		searcherManager.maybeRefresh();
+		metrics.refresh.recordSince(commitEnd);
 		schema.mayBeRefresh(true);
+		metrics.nrtCommit.recordSince(start);
+		published();
 	}
 
-	final synchronized BackupStatus backup(final File backupIndexDirectory) throws IOException {
-		checkIsMaster();
-		final Semaphore sem = schema.acquireReadSemaphore();
-		try {
-			if (!backupIndexDirectory.exists())
-				backupIndexDirectory.mkdir();
-			if (!backupIndexDirectory.exists() || !backupIndexDirectory.isDirectory())
-				throw new IOException(
-						"Cannot create the backup directory: " + backupIndexDirectory.getAbsolutePath() + " - Index: "
-								+ indexName);
-			// Get the existing files
-			final Map<String, File> fileMap = new HashMap<>();
-			for (File file : backupIndexDirectory.listFiles((FileFilter) FileFileFilter.FILE))
-				fileMap.put(file.getName(), file);
-			final IndexCommit commit = snapshotDeletionPolicy.snapshot();
-			try {
-				for (String fileName : commit.getFileNames()) {
-					fileMap.remove(fileName);
-					final File sourceFile = new File(fileSet.dataDirectory, fileName);
-					final File targetFile = new File(backupIndexDirectory, fileName);
-					if (targetFile.exists() && targetFile.length() == sourceFile.length()
-							&& targetFile.lastModified() == sourceFile.lastModified())
-						continue;
-					FileUtils.copyFile(sourceFile, targetFile, true);
+	/**
+	 * Wake up the slaves waiting for a new manifest
+	 */
+	private void published() {
+		synchronized (publishMonitor) {
+			publishCount++;
+			publishMonitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the replication manifest of a master. If the version known by the slave is given, the call waits
+	 * until a new version is published, the fields, the analyzers or the resources change, or the wait expires.
+	 *
+	 * @param knownVersion the version of the slave, or null to return immediately
+	 * @param waitMs       the maximum wait, bounded by {@link #MAX_REPLICATION_WAIT_MS}
+	 * @return the current manifest
+	 */
+	ReplicationManifest getReplicationManifest(final Long knownVersion, final Long waitMs)
+			throws IOException, InterruptedException {
+		incRef();
+		try {
+			if (knownVersion != null && waitMs != null && waitMs > 0) {
+				final long deadline = System.currentTimeMillis() + Math.min(waitMs, MAX_REPLICATION_WAIT_MS);
+				synchronized (publishMonitor) {
+					final long count = publishCount;
+					long remaining;
+					while (count == publishCount && knownVersion.equals(getReaderVersion())
+							&& (remaining = deadline - System.currentTimeMillis()) > 0)
+						publishMonitor.wait(remaining);
 				}
-				// Delete files from previous backup
-				fileMap.forEach((name, file) -> file.delete());
-				return BackupStatus.newBackupStatus(backupIndexDirectory);
-			} catch (IOException e) {
-				FileUtils.deleteQuietly(backupIndexDirectory);
-				throw e;
-			} finally {
-				snapshotDeletionPolicy.release(commit);
 			}
+			return new ReplicationManifest(indexUuid, previousIndexUuids, getReaderVersion(),
+					fieldMap.getFieldDefinitionMap(), analyzerMap, getResources());
 		} finally {
-			if (sem != null)
-				sem.release();
+			decRef();
+		}
+	}
+
+	/**
+	 * The snapshot protects the files of the commit: the copy does not hold the index monitor nor the read semaphore
+	 */
+	final BackupStatus backup(final File backupIndexDirectory) throws IOException {
+		checkIsMaster();
+		incRef();
+		backupLock.lock();
+		try {
+			// The local shards are saved in the same layout than the index directory
+			for (int i = 0; i < indexWriters.length; i++)
+				backupShard(i, i == 0 ?
+						backupIndexDirectory :
+						new File(new File(backupIndexDirectory, IndexInstanceBuilder.SHARDS_DIR),
+								Integer.toString(i)));
+			return BackupStatus.newBackupStatus(backupIndexDirectory);
+		} catch (IOException e) {
+			FileUtils.deleteQuietly(backupIndexDirectory);
+			throw e;
+		} finally {
+			backupLock.unlock();
+			decRef();
+		}
+	}
+
+	private void backupShard(final int shard, final File backupShardDirectory) throws IOException {
+		final SnapshotDeletionPolicy shardDeletionPolicy =
+				(SnapshotDeletionPolicy) indexWriters[shard].getConfig().getIndexDeletionPolicy();
+		final IndexCommit commit = shardDeletionPolicy.snapshot();
+		try (final IndexBackup indexBackup = new IndexBackup(dataDirectories[shard],
+				fileSet.getShardDataDirectory(shard).toPath(), backupShardDirectory.toPath(), executorService)) {
+			indexBackup.copy(commit.getFileNames());
+		} finally {
+			shardDeletionPolicy.release(commit);
 		}
 	}
 
 	final BackupStatus getBackup(final File backupIndexDirectory) throws IOException {
 		checkIsMaster();
-		final Semaphore sem = schema.acquireReadSemaphore();
+		final Semaphore sem = acquireReadSemaphore();
 		try {
 			return BackupStatus.newBackupStatus(backupIndexDirectory);
 		} finally {
-			if (sem != null)
-				sem.release();
+			release(sem);
 		}
 	}
 
@@ -348,6 +717,16 @@ final public class IndexInstance implements Closeable {
 					"Writing in a read only index (slave) is not allowed: " + indexName);
 	}
 
+	/**
+	 * The searches of a distributed index only read its shards, the documents are written to the shards
+	 */
+	private void checkIsWritable() {
+		checkIsMaster();
+		if (distributedSearch != null)
+			throw new ServerException(Response.Status.NOT_ACCEPTABLE,
+					"The documents of a distributed index are written to its shards: " + indexName);
+	}
+
 	final UUID checkRemoteMasterUUID(final String remoteMasterUuid, final UUID localUuid) {
 		final UUID uuid = UUID.fromString(remoteMasterUuid);
 		if (!Objects.equals(uuid, localUuid))
@@ -359,6 +738,9 @@ final public class IndexInstance implements Closeable {
 
 	final Replicator getReplicator(final String remoteMasterUuid) {
 		checkRemoteMasterUUID(remoteMasterUuid, indexUuid);
+		if (indexWriters.length > 1)
+			throw new ServerException(Response.Status.NOT_ACCEPTABLE,
+					"An index having local shards cannot be replicated - Index: " + indexName);
 		return replicator;
 	}
 
@@ -366,8 +748,45 @@ final public class IndexInstance implements Closeable {
 		if (replicationClient == null)
 			throw new ServerException(Response.Status.NOT_ACCEPTABLE,
 					"No replication master has been setup - Index: " + indexName);
+		replicationCheck(indexReplicator.getMasterManifest(null, null));
+	}
 
-		final Semaphore sem = schema.acquireWriteSemaphore();
+	/**
+	 * Called by the scheduler. The replication runs in the executor, one at a time. The slave waits on the master
+	 * (long-poll) until a new version is published.
+	 */
+	private void scheduledReplication() {
+		if (!replicationRunning.compareAndSet(false, true))
+			return;
+		try {
+			executorService.execute(() -> {
+				try {
+					final Long version = appliedManifest == null ? null : getReaderVersion();
+					replicationCheck(indexReplicator.getMasterManifest(version, settings.replication_wait_ms));
+				} catch (Exception e) {
+					LOGGER.warn("Scheduled replication failed - Index: " + schemaName + '/' + indexName, e);
+				} finally {
+					replicationRunning.set(false);
+				}
+			});
+		} catch (RuntimeException e) {
+			replicationRunning.set(false);
+			LOGGER.warn("Cannot start the scheduled replication - Index: " + schemaName + '/' + indexName, e);
+		}
+	}
+
+	/**
+	 * Only the parts of the manifest having a different ETag than the last applied manifest are replicated
+	 */
+	private void replicationCheck(final ReplicationManifest manifest) throws IOException {
+		if (indexReplicator.isMasterRestored(manifest)) {
+			// The version of a restored master goes backwards: the slave copies the whole index again
+			LOGGER.info("The master has been restored, full replication - Index: " + schemaName + '/' + indexName);
+			schema.resync(this).replicationCheck(manifest);
+			return;
+		}
+
+		final Semaphore sem = acquireWriteSemaphore();
 
 		try {
 
@@ -376,107 +795,129 @@ final public class IndexInstance implements Closeable {
 			try {
 
 				// Check that the master is the right one
-				indexReplicator.checkRemoteMasterUuid();
+				indexReplicator.checkRemoteMasterUuid(manifest.index_uuid);
+
+				final ReplicationManifest applied = appliedManifest;
 
 				//Sync resources
-				final Map<String, ResourceInfo> localResources = getResources();
-				indexReplicator.getMasterResources().forEach((remoteName, remoteInfo) -> {
-					final ResourceInfo localInfo = localResources.remove(remoteName);
-					if (localInfo != null && localInfo.equals(remoteInfo))
-						return;
-					try (final InputStream input = indexReplicator.getResource(remoteName)) {
-						postResource(remoteName, remoteInfo.lastModified, input);
-					} catch (IOException e) {
-						throw new ServerException(
-								"Cannot replicate the resource " + remoteName + " - Index: " + indexName, e);
-					}
-				});
-				localResources.forEach((resourceName, resourceInfo) -> deleteResource(resourceName));
+				if (applied == null || !Objects.equals(applied.resources_etag, manifest.resources_etag)) {
+					final Map<String, ResourceInfo> localResources = getResources();
+					indexReplicator.getMasterResources().forEach((remoteName, remoteInfo) -> {
+						final ResourceInfo localInfo = localResources.remove(remoteName);
+						if (localInfo != null && localInfo.equals(remoteInfo))
+							return;
+						try (final InputStream input = indexReplicator.getResource(remoteName)) {
+							postResource(remoteName, remoteInfo.lastModified, input);
+						} catch (IOException e) {
+							throw new ServerException(
+									"Cannot replicate the resource " + remoteName + " - Index: " + indexName, e);
+						}
+					});
+					localResources.forEach((resourceName, resourceInfo) -> deleteResource(resourceName));
+				}
 
 				//Sync analyzer and fields
-				setAnalyzers(indexReplicator.getMasterAnalyzers());
-				setFields(indexReplicator.getMasterFields());
+				if (applied == null || !Objects.equals(applied.analyzers_etag, manifest.analyzers_etag))
+					setAnalyzers(indexReplicator.getMasterAnalyzers());
+				if (applied == null || !Objects.equals(applied.fields_etag, manifest.fields_etag))
+					setFields(indexReplicator.getMasterFields());
+				appliedManifest = manifest;
 
 				// Lucene index replication
-				long masterVersion = indexReplicator.getMasterStatus().version;
-				long slaveVersion = getIndexStatus().version;
-				if (masterVersion == slaveVersion) // same version, nothing to do
+				final Long masterVersion = manifest.version;
+				final Long slaveVersion = getReaderVersion();
+				if (masterVersion != null && masterVersion.equals(slaveVersion)) // same version, nothing to do
 					return;
-				if (slaveVersion > masterVersion)
+				if (masterVersion != null && slaveVersion != null && slaveVersion > masterVersion)
 					throw new ServerException(Response.Status.NOT_ACCEPTABLE,
 							"The slave version is greater than the master version: " + slaveVersion + " / "
 									+ masterVersion + " - Index: " + indexName);
 				replicationClient.updateNow();
+				indexReplicator.clearFetchedFiles();
 
 			} finally {
 				replicationLock.unlock();
 			}
 		} finally {
-			if (sem != null)
-				sem.release();
+			releaseWrite(sem);
 		}
 	}
 
 	final void deleteAll() throws IOException {
-		checkIsMaster();
-		final Semaphore sem = schema.acquireWriteSemaphore();
+		checkIsWritable();
+		final Semaphore sem = acquireWriteSemaphore();
 		try {
-			indexWriter.deleteAll();
+			for (IndexWriter writer : indexWriters)
+				writer.deleteAll();
 			nrtCommit();
 		} finally {
-			if (sem != null)
-				sem.release();
+			releaseWrite(sem);
 		}
 	}
 
+	/**
+	 * Updates the metrics and the slow log once the documents are committed
+	 *
+	 * @return the number of documents
+	 */
+	private int indexed(final RateMeter meter, final String operation, final long start, final long semaphoreWait,
+			final int count) {
+		meter.mark(count);
+		SlowLog.indexing(schema.getSettings(), schemaName, indexName, operation, count, System.nanoTime() - start,
+				semaphoreWait);
+		return count;
+	}
+
 	private RecordsPoster.UpdateObjectDocument getDocumentPoster(final Map<String, Field> fields) {
-		return new RecordsPoster.UpdateObjectDocument(fields, fieldMap, indexWriter);
+		return new RecordsPoster.UpdateObjectDocument(fields, fieldMap, indexWriters);
 	}
 
 	private RecordsPoster.UpdateMapDocument getDocumentPoster() {
-		return new RecordsPoster.UpdateMapDocument(fieldMap, indexWriter);
+		return new RecordsPoster.UpdateMapDocument(fieldMap, indexWriters);
 	}
 
 	private RecordsPoster.UpdateObjectDocValues getDocValuesPoster(final Map<String, Field> fields) {
-		return new RecordsPoster.UpdateObjectDocValues(fields, fieldMap, indexWriter);
+		return new RecordsPoster.UpdateObjectDocValues(fields, fieldMap, indexWriters);
 	}
 
 	private RecordsPoster.UpdateMapDocValues getDocValuesPoster() {
-		return new RecordsPoster.UpdateMapDocValues(fieldMap, indexWriter);
+		return new RecordsPoster.UpdateMapDocValues(fieldMap, indexWriters);
 	}
 
 	final <T> int postDocument(final Map<String, Field> fields, final T document)
 			throws IOException, InterruptedException {
 		if (document == null)
 			return 0;
-		checkIsMaster();
-		final Semaphore sem = schema.acquireWriteSemaphore();
+		checkIsWritable();
+		final long start = System.nanoTime();
+		final Semaphore sem = acquireWriteSemaphore();
+		final long semaphoreWait = System.nanoTime() - start;
 		try {
 			schema.checkSize(1);
 			final RecordsPoster.UpdateObjectDocument poster = getDocumentPoster(fields);
 			poster.accept(document);
 			nrtCommit();
-			return poster.counter;
+			return indexed(metrics.docsIndexed, "post_document", start, semaphoreWait, poster.counter);
 		} finally {
-			if (sem != null)
-				sem.release();
+			releaseWrite(sem);
 		}
 	}
 
 	final int postMappedDocument(final Map<String, Object> document) throws IOException, InterruptedException {
 		if (document == null || document.isEmpty())
 			return 0;
-		checkIsMaster();
-		final Semaphore sem = schema.acquireWriteSemaphore();
+		checkIsWritable();
+		final long start = System.nanoTime();
+		final Semaphore sem = acquireWriteSemaphore();
+		final long semaphoreWait = System.nanoTime() - start;
 		try {
 			schema.checkSize(1);
 			final RecordsPoster.UpdateMapDocument poster = getDocumentPoster();
 			poster.accept(document);
 			nrtCommit();
-			return poster.counter;
+			return indexed(metrics.docsIndexed, "post_mapped_document", start, semaphoreWait, poster.counter);
 		} finally {
-			if (sem != null)
-				sem.release();
+			releaseWrite(sem);
 		}
 	}
 
@@ -484,17 +925,18 @@ final public class IndexInstance implements Closeable {
 			throws IOException, InterruptedException {
 		if (documents == null || documents.isEmpty())
 			return 0;
-		checkIsMaster();
-		final Semaphore sem = schema.acquireWriteSemaphore();
+		checkIsWritable();
+		final long start = System.nanoTime();
+		final Semaphore sem = acquireWriteSemaphore();
+		final long semaphoreWait = System.nanoTime() - start;
 		try {
 			schema.checkSize(documents.size());
 			final RecordsPoster.UpdateMapDocument poster = getDocumentPoster();
 			documents.forEach(poster);
 			nrtCommit();
-			return poster.counter;
+			return indexed(metrics.docsIndexed, "post_mapped_documents", start, semaphoreWait, poster.counter);
 		} finally {
-			if (sem != null)
-				sem.release();
+			releaseWrite(sem);
 		}
 	}
 
@@ -502,17 +944,18 @@ final public class IndexInstance implements Closeable {
 			throws IOException, InterruptedException {
 		if (documents == null || documents.isEmpty())
 			return 0;
-		checkIsMaster();
-		final Semaphore sem = schema.acquireWriteSemaphore();
+		checkIsWritable();
+		final long start = System.nanoTime();
+		final Semaphore sem = acquireWriteSemaphore();
+		final long semaphoreWait = System.nanoTime() - start;
 		try {
 			schema.checkSize(documents.size());
 			final RecordsPoster.UpdateObjectDocument poster = getDocumentPoster(fields);
 			documents.forEach(poster);
 			nrtCommit();
-			return poster.counter;
+			return indexed(metrics.docsIndexed, "post_documents", start, semaphoreWait, poster.counter);
 		} finally {
-			if (sem != null)
-				sem.release();
+			releaseWrite(sem);
 		}
 	}
 
@@ -520,18 +963,19 @@ final public class IndexInstance implements Closeable {
 			throws IOException, InterruptedException {
 		if (documents == null || documents.length == 0)
 			return 0;
-		checkIsMaster();
-		final Semaphore sem = schema.acquireWriteSemaphore();
+		checkIsWritable();
+		final long start = System.nanoTime();
+		final Semaphore sem = acquireWriteSemaphore();
+		final long semaphoreWait = System.nanoTime() - start;
 		try {
 			schema.checkSize(documents.length);
 			final RecordsPoster.UpdateObjectDocument poster = getDocumentPoster(fields);
 			for (T document : documents)
 				poster.accept(document);
 			nrtCommit();
-			return poster.counter;
+			return indexed(metrics.docsIndexed, "post_documents", start, semaphoreWait, poster.counter);
 		} finally {
-			if (sem != null)
-				sem.release();
+			releaseWrite(sem);
 		}
 	}
 
@@ -539,32 +983,34 @@ final public class IndexInstance implements Closeable {
 			throws InterruptedException, IOException {
 		if (document == null)
 			return 0;
-		checkIsMaster();
-		final Semaphore sem = schema.acquireWriteSemaphore();
+		checkIsWritable();
+		final long start = System.nanoTime();
+		final Semaphore sem = acquireWriteSemaphore();
+		final long semaphoreWait = System.nanoTime() - start;
 		try {
 			final RecordsPoster.UpdateObjectDocValues poster = getDocValuesPoster(fields);
 			poster.accept(document);
 			nrtCommit();
-			return poster.counter;
+			return indexed(metrics.docValuesUpdated, "update_doc_values", start, semaphoreWait, poster.counter);
 		} finally {
-			if (sem != null)
-				sem.release();
+			releaseWrite(sem);
 		}
 	}
 
 	final int updateMappedDocValues(final Map<String, Object> document) throws IOException, InterruptedException {
 		if (document == null || document.isEmpty())
 			return 0;
-		checkIsMaster();
-		final Semaphore sem = schema.acquireWriteSemaphore();
+		checkIsWritable();
+		final long start = System.nanoTime();
+		final Semaphore sem = acquireWriteSemaphore();
+		final long semaphoreWait = System.nanoTime() - start;
 		try {
 			final RecordsPoster.UpdateMapDocValues poster = getDocValuesPoster();
 			poster.accept(document);
 			nrtCommit();
-			return poster.counter;
+			return indexed(metrics.docValuesUpdated, "update_mapped_doc_values", start, semaphoreWait, poster.counter);
 		} finally {
-			if (sem != null)
-				sem.release();
+			releaseWrite(sem);
 		}
 	}
 
@@ -572,16 +1018,17 @@ final public class IndexInstance implements Closeable {
 			throws IOException, InterruptedException {
 		if (documents == null || documents.isEmpty())
 			return 0;
-		checkIsMaster();
-		final Semaphore sem = schema.acquireWriteSemaphore();
+		checkIsWritable();
+		final long start = System.nanoTime();
+		final Semaphore sem = acquireWriteSemaphore();
+		final long semaphoreWait = System.nanoTime() - start;
 		try {
 			final RecordsPoster.UpdateObjectDocValues poster = getDocValuesPoster(fields);
 			documents.forEach(poster);
 			nrtCommit();
-			return poster.counter;
+			return indexed(metrics.docValuesUpdated, "update_docs_values", start, semaphoreWait, poster.counter);
 		} finally {
-			if (sem != null)
-				sem.release();
+			releaseWrite(sem);
 		}
 	}
 
@@ -589,17 +1036,18 @@ final public class IndexInstance implements Closeable {
 			throws IOException, InterruptedException {
 		if (documents == null || documents.length == 0)
 			return 0;
-		checkIsMaster();
-		final Semaphore sem = schema.acquireWriteSemaphore();
+		checkIsWritable();
+		final long start = System.nanoTime();
+		final Semaphore sem = acquireWriteSemaphore();
+		final long semaphoreWait = System.nanoTime() - start;
 		try {
 			final RecordsPoster.UpdateObjectDocValues poster = getDocValuesPoster(fields);
 			for (T document : documents)
 				poster.accept(document);
 			nrtCommit();
-			return poster.counter;
+			return indexed(metrics.docValuesUpdated, "update_docs_values", start, semaphoreWait, poster.counter);
 		} finally {
-			if (sem != null)
-				sem.release();
+			releaseWrite(sem);
 		}
 	}
 
@@ -607,46 +1055,50 @@ final public class IndexInstance implements Closeable {
 			throws IOException, ServerException, InterruptedException {
 		if (documents == null || documents.isEmpty())
 			return 0;
-		checkIsMaster();
-		final Semaphore sem = schema.acquireWriteSemaphore();
+		checkIsWritable();
+		final long start = System.nanoTime();
+		final Semaphore sem = acquireWriteSemaphore();
+		final long semaphoreWait = System.nanoTime() - start;
 		try {
 			RecordsPoster.UpdateMapDocValues poster = getDocValuesPoster();
 			documents.forEach(poster);
 			nrtCommit();
-			return poster.counter;
+			return indexed(metrics.docValuesUpdated, "update_mapped_docs_values", start, semaphoreWait, poster.counter);
 		} finally {
-			if (sem != null)
-				sem.release();
+			releaseWrite(sem);
 		}
 	}
 
 	final ResultDefinition.WithMap deleteByQuery(final QueryDefinition queryDefinition)
 			throws IOException, InterruptedException, QueryNodeException, ParseException, ServerException,
 			ReflectiveOperationException {
-		checkIsMaster();
+		checkIsWritable();
 		Objects.requireNonNull(queryDefinition, "The queryDefinition is missing - Index: " + indexName);
 		Objects.requireNonNull(queryDefinition.query, "The query is missing - Index: " + indexName);
-		final Semaphore sem = schema.acquireWriteSemaphore();
+		final Semaphore sem = acquireWriteSemaphore();
 		try {
 			final QueryContext queryContext =
 					new QueryContext(schema, fileResourceLoader, null, executorService, indexAnalyzer, queryAnalyzer,
 							fieldMap, null, queryDefinition);
 			final Query query = queryDefinition.query.getQuery(queryContext);
-			int docs = indexWriter.numDocs();
-			indexWriter.deleteDocuments(query);
+			int docs = 0;
+			for (IndexWriter writer : indexWriters) {
+				docs += writer.numDocs();
+				writer.deleteDocuments(query);
+			}
 			nrtCommit();
-			docs -= indexWriter.numDocs();
+			for (IndexWriter writer : indexWriters)
+				docs -= writer.numDocs();
 			return new ResultDefinition.WithMap(docs);
 		} finally {
-			if (sem != null)
-				sem.release();
+			releaseWrite(sem);
 		}
 	}
 
 	final List<TermEnumDefinition> getTermsEnum(final String fieldName, final String prefix, final Integer start,
 			final Integer rows) throws InterruptedException, IOException {
 		Objects.requireNonNull(fieldName, "The field name is missing - Index: " + indexName);
-		final Semaphore sem = schema.acquireReadSemaphore();
+		final Semaphore sem = acquireReadSemaphore();
 		try {
 			final IndexSearcher indexSearcher = searcherManager.acquire();
 			try {
@@ -664,17 +1116,36 @@ final public class IndexInstance implements Closeable {
 				searcherManager.release(indexSearcher);
 			}
 		} finally {
-			if (sem != null)
-				sem.release();
+			release(sem);
 		}
 	}
 
+	private synchronized JoinQueryCache getJoinQueryCache(final IndexReader indexReader) {
+		final JoinQueryCache current = joinQueryCache;
+		if (current != null && current.indexReader == indexReader)
+			return current;
+		final JoinQueryCache cache = new JoinQueryCache(indexReader, JOIN_QUERY_CACHE_RAM_BYTES);
+		joinQueryCache = cache;
+		return cache;
+	}
+
+	private synchronized OrdinalMapCache getOrdinalMapCache(final IndexReader indexReader) {
+		final OrdinalMapCache current = ordinalMapCache;
+		if (current != null && current.indexReader == indexReader)
+			return current;
+		final OrdinalMapCache cache = new OrdinalMapCache(indexReader);
+		ordinalMapCache = cache;
+		return cache;
+	}
+
 	private synchronized SortedSetDocValuesReaderState getFacetsState(final IndexReader indexReader)
 			throws IOException {
 		Pair<IndexReader, SortedSetDocValuesReaderState> current = facetsReaderStateCache;
 		if (current != null && current.getLeft() == indexReader)
 			return current.getRight();
+		final long start = System.nanoTime();
 		SortedSetDocValuesReaderState newState = IndexUtils.getNewFacetsState(indexReader);
+		metrics.facetsState.recordSince(start);
 		facetsReaderStateCache = Pair.of(indexReader, newState);
 		return newState;
 	}
@@ -685,29 +1156,212 @@ final public class IndexInstance implements Closeable {
 			indexSearcher.setSimilarity(indexWriterConfig.getSimilarity());
 		final SortedSetDocValuesReaderState facetsState = getFacetsState(indexSearcher.getIndexReader());
 		return new QueryContext(schema, fileResourceLoader, indexSearcher, executorService, indexAnalyzer,
-				queryAnalyzer, fieldMap, facetsState, queryDefinition);
+				queryAnalyzer, fieldMap, facetsState, getOrdinalMapCache(indexSearcher.getIndexReader()),
+				queryDefinition);
 	}
 
 	final ResultDefinition search(final QueryDefinition queryDefinition,
 			final ResultDocumentBuilder.BuilderFactory<?> documentBuilderFactory)
 			throws IOException, InterruptedException, ParseException, ReflectiveOperationException, QueryNodeException {
-		final Semaphore sem = schema.acquireReadSemaphore();
+		if (distributedSearch != null)
+			return searchShards(queryDefinition, documentBuilderFactory);
+		final long start = System.nanoTime();
+		final Semaphore sem = acquireReadSemaphore();
+		final long semaphoreWait = System.nanoTime() - start;
+		ResultDefinition result = null;
+		Long readerVersion = null;
 		try {
 			final IndexSearcher indexSearcher = searcherManager.acquire();
 			try {
-				return new QueryExecution(buildQueryContext(indexSearcher, queryDefinition)).execute(
+				readerVersion = ShardsSearcherManager.getVersion(indexSearcher.getIndexReader());
+				result = new QueryExecution(buildQueryContext(indexSearcher, queryDefinition)).execute(
 						documentBuilderFactory);
+				return result;
 			} finally {
 				searcherManager.release(indexSearcher);
 			}
 		} finally {
-			if (sem != null)
-				sem.release();
+			release(sem);
+			final long elapsed = metrics.search.recordSince(start);
+			SlowLog.search(schema.getSettings(), schemaName, indexName, queryDefinition, result, readerVersion,
+					elapsed, semaphoreWait);
 		}
 	}
 
-	Directory getDataDirectory() {
-		return dataDirectory;
+	/**
+	 * The search of a distributed index is sent to the shards, the local documents are ignored
+	 */
+	final private ResultDefinition searchShards(final QueryDefinition queryDefinition,
+			final ResultDocumentBuilder.BuilderFactory<?> documentBuilderFactory) throws InterruptedException {
+		final long start = System.nanoTime();
+		ResultDefinition result = null;
+		try {
+			result = distributedSearch.search(queryDefinition, documentBuilderFactory);
+			return result;
+		} finally {
+			final long elapsed = metrics.search.recordSince(start);
+			SlowLog.search(schema.getSettings(), schemaName, indexName, queryDefinition, result, null, elapsed, 0);
+		}
+	}
+
+	/**
+	 * Execute the queries concurrently on the same searcher, the results are consistent with each other.
+	 * A failed query gives a result carrying only the error message.
+	 *
+	 * @param queryDefinitions       the queries
+	 * @param documentBuilderFactory the factory of the returned documents
+	 * @return the results, in the order of the queries
+	 * @throws IOException if the searcher cannot be acquired
+	 */
+	final List<ResultDefinition> multiSearch(final List<QueryDefinition> queryDefinitions,
+			final ResultDocumentBuilder.BuilderFactory<?> documentBuilderFactory) throws IOException {
+		if (queryDefinitions == null || queryDefinitions.isEmpty())
+			return Collections.emptyList();
+		if (distributedSearch != null) {
+			final List<Future<ResultDefinition>> futures = new ArrayList<>(queryDefinitions.size());
+			for (QueryDefinition queryDefinition : queryDefinitions)
+				futures.add(executorService.submit(() -> searchShards(queryDefinition, documentBuilderFactory)));
+			return getResults(futures, documentBuilderFactory);
+		}
+		final long start = System.nanoTime();
+		final Semaphore sem = acquireReadSemaphore();
+		final long semaphoreWait = System.nanoTime() - start;
+		try {
+			final IndexSearcher indexSearcher = searcherManager.acquire();
+			try {
+				final Long readerVersion = ShardsSearcherManager.getVersion(indexSearcher.getIndexReader());
+				// The similarity, the fields and the facets state are shared by the queries
+				final QueryContext sharedContext = buildQueryContext(indexSearcher, null);
+				final List<Future<ResultDefinition>> futures = new ArrayList<>(queryDefinitions.size());
+				for (QueryDefinition queryDefinition : queryDefinitions) {
+					final QueryContext queryContext =
+							new QueryContext(schema, fileResourceLoader, indexSearcher, executorService,
+									indexAnalyzer, queryAnalyzer, sharedContext.fieldMap, sharedContext.state,
+									sharedContext.ordinalMaps, queryDefinition);
+					futures.add(executorService.submit(() -> {
+						// Each query is measured from the start of the multi search, like a single search
+						ResultDefinition result = null;
+						try {
+							result = new QueryExecution(queryContext).execute(documentBuilderFactory);
+							return result;
+						} finally {
+							final long elapsed = metrics.search.recordSince(start);
+							SlowLog.search(schema.getSettings(), schemaName, indexName, queryDefinition, result,
+									readerVersion, elapsed, semaphoreWait);
+						}
+					}));
+				}
+				return getResults(futures, documentBuilderFactory);
+			} finally {
+				searcherManager.release(indexSearcher);
+			}
+		} finally {
+			release(sem);
+		}
+	}
+
+	/**
+	 * @return the results of the queries, a failed query gives a result carrying only the error message
+	 */
+	private static List<ResultDefinition> getResults(final List<Future<ResultDefinition>> futures,
+			final ResultDocumentBuilder.BuilderFactory<?> documentBuilderFactory) {
+		final List<ResultDefinition> results = new ArrayList<>(futures.size());
+		try {
+			for (Future<ResultDefinition> future : futures) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					final Throwable cause = e.getCause();
+					results.add(documentBuilderFactory.error(
+							cause.getMessage() == null ? cause.toString() : cause.getMessage()));
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new ServerException(e);
+		} finally {
+			// Interrupting a running query could close the channels of a NIOFSDirectory
+			for (Future<ResultDefinition> future : futures)
+				future.cancel(false);
+		}
+		return results;
+	}
+
+	/**
+	 * The streaming APIs read the local documents, a distributed index keeps its documents in its shards
+	 */
+	private void checkIsNotDistributed(final String api) {
+		if (distributedSearch != null)
+			throw new ServerException(Response.Status.NOT_ACCEPTABLE,
+					"The " + api + " is not supported by a distributed index: " + indexName);
+	}
+
+	/**
+	 * Releases the searcher and the semaphore once a background stream is done
+	 */
+	private Runnable getReleaser(final IndexSearcher indexSearcher, final Semaphore sem) {
+		return () -> {
+			try {
+				searcherManager.release(indexSearcher);
+			} catch (IOException e) {
+				throw new ServerException(e);
+			} finally {
+				release(sem);
+			}
+		};
+	}
+
+	final InputStream searchStream(final QueryDefinition queryDefinition)
+			throws IOException, InterruptedException, ParseException, ReflectiveOperationException, QueryNodeException {
+		checkIsNotDistributed("streaming search");
+		final Semaphore sem = acquireReadSemaphore();
+		try {
+			final IndexSearcher indexSearcher = searcherManager.acquire();
+			try {
+				final ResultDefinitionStreamer streamer =
+						new QueryExecution(buildQueryContext(indexSearcher, queryDefinition)).stream();
+				return StreamingPipe.start(executorService, streamer::write, getReleaser(indexSearcher, sem));
+			} catch (Exception e) {
+				searcherManager.release(indexSearcher);
+				throw e;
+			}
+		} catch (Exception e) {
+			release(sem);
+			throw e;
+		}
+	}
+
+	final InputStream export(final QueryDefinition queryDefinition, final String after, final boolean parallel)
+			throws IOException, InterruptedException, ParseException, ReflectiveOperationException, QueryNodeException {
+		checkIsNotDistributed("export");
+		if (parallel && after != null)
+			throw new ServerException(Response.Status.NOT_ACCEPTABLE,
+					"A parallel export can't be resumed from a cursor");
+		final Semaphore sem = acquireReadSemaphore();
+		try {
+			final IndexSearcher indexSearcher = searcherManager.acquire();
+			try {
+				final QueryContext queryContext = buildQueryContext(indexSearcher, queryDefinition);
+				final Query query = queryDefinition == null || queryDefinition.query == null ?
+						new MatchAllDocsQuery() :
+						queryDefinition.query.getQuery(queryContext);
+				final IndexExport export = new IndexExport(indexSearcher, fieldMap, query,
+						queryDefinition == null ? null : queryDefinition.returned_fields, after);
+				return export.stream(executorService, parallel, getReleaser(indexSearcher, sem));
+			} catch (Exception e) {
+				searcherManager.release(indexSearcher);
+				throw e;
+			}
+		} catch (Exception e) {
+			release(sem);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the data directories of the local shards
+	 */
+	Directory[] getDataDirectories() {
+		return dataDirectories;
 	}
 
 	void fillFields(final Map<String, FieldDefinition> fields) {
@@ -755,14 +1409,21 @@ final public class IndexInstance implements Closeable {
 
 	final void postResource(final String resourceName, final long lastModified, final InputStream inputStream)
 			throws IOException {
-		if (!fileSet.resourcesDirectory.exists())
-			fileSet.resourcesDirectory.mkdir();
-		final File resourceFile = fileResourceLoader.checkResourceName(resourceName);
-		IOUtils.copy(inputStream, resourceFile);
-		resourceFile.setLastModified(lastModified);
-		refreshFieldsAnalyzers((LinkedHashMap<String, AnalyzerDefinition>) analyzerMap.clone(),
-				fieldMap.getFieldDefinitionMap());
-		schema.mayBeRefresh(true);
+		beginWrite();
+		try {
+			if (!fileSet.resourcesDirectory.exists())
+				fileSet.resourcesDirectory.mkdir();
+			final File resourceFile = fileResourceLoader.checkResourceName(resourceName);
+			IOUtils.copy(inputStream, resourceFile);
+			resourceFile.setLastModified(lastModified);
+			fileResourceLoader.changed();
+			refreshFieldsAnalyzers((LinkedHashMap<String, AnalyzerDefinition>) analyzerMap.clone(),
+					fieldMap.getFieldDefinitionMap());
+			schema.mayBeRefresh(true);
+			published();
+		} finally {
+			endWrite();
+		}
 	}
 
 	final LinkedHashMap<String, ResourceInfo> getResources() {
@@ -792,11 +1453,18 @@ final public class IndexInstance implements Closeable {
 		if (!resourceFile.exists())
 			throw new ServerException(Response.Status.NOT_FOUND,
 					"Resource not found : " + resourceName + " - Index: " + indexName);
-		resourceFile.delete();
+		beginWrite();
+		try {
+			resourceFile.delete();
+			fileResourceLoader.changed();
+			published();
+		} finally {
+			endWrite();
+		}
 	}
 
 	final FileResourceLoader newResourceLoader(final FileResourceLoader resourceLoader) {
-		return new FileResourceLoader(classLoaderManager, resourceLoader, fileSet.resourcesDirectory);
+		return fileResourceLoader.withDelegate(resourceLoader);
 	}
 
 }
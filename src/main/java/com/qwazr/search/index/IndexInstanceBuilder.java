@@ -23,19 +23,25 @@ import com.qwazr.utils.HashUtils;
 import com.qwazr.utils.IOUtils;
 import com.qwazr.utils.json.JsonMapper;
 import com.qwazr.server.ServerException;
+import org.apache.commons.io.FileUtils;
 import org.apache.lucene.index.*;
 import org.apache.lucene.replicator.*;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.SearcherFactory;
 import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 
+import javax.ws.rs.core.Response;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
@@ -44,35 +50,68 @@ class IndexInstanceBuilder {
 
 	final static String INDEX_DATA = "data";
 	final static String REPL_WORK = "repl_work";
+	final static String REPL_FETCH = "repl_fetch";
 	final static String UUID_FILE = "uuid";
 	final static String UUID_MASTER_FILE = "uuid.master";
+	final static String UUID_PREVIOUS_FILE = "uuid.previous";
 	final static String SETTINGS_FILE = "settings.json";
 	final static String FIELDS_FILE = "fields.json";
 	final static String ANALYZERS_FILE = "analyzers.json";
 	final static String RESOURCES_DIR = "resources";
+	final static String SHARDS_DIR = "shards";
+	final static String CURRENT_DATA_FILE = "data.current";
 
 	static class FileSet {
 
 		final File uuidFile;
 		final File uuidMasterFile;
+		final File uuidPreviousFile;
 		final File settingsFile;
 		final File indexDirectory;
 		final File dataDirectory;
 		final File analyzerMapFile;
 		final File resourcesDirectory;
 		final File fieldMapFile;
+		final File shardsDirectory;
 		final Path replWorkPath;
+		final Path replFetchPath;
 
-		private FileSet(File indexDirectory) {
+		/**
+		 * @param indexDirectory the directory of the index
+		 * @param dataName       the name of the data directory, the directory of a restored index has a new name
+		 */
+		private FileSet(final File indexDirectory, final String dataName) {
 			this.uuidFile = new File(indexDirectory, UUID_FILE);
 			this.uuidMasterFile = new File(indexDirectory, UUID_MASTER_FILE);
+			this.uuidPreviousFile = new File(indexDirectory, UUID_PREVIOUS_FILE);
 			this.indexDirectory = indexDirectory;
-			this.dataDirectory = new File(indexDirectory, INDEX_DATA);
+			this.dataDirectory = new File(indexDirectory, dataName);
 			this.analyzerMapFile = new File(indexDirectory, ANALYZERS_FILE);
 			this.resourcesDirectory = new File(indexDirectory, RESOURCES_DIR);
 			this.fieldMapFile = new File(indexDirectory, FIELDS_FILE);
 			this.settingsFile = new File(indexDirectory, SETTINGS_FILE);
+			// A restored index uses the layout of the backups: the local shards are inside the data directory
+			this.shardsDirectory = INDEX_DATA.equals(dataName) ?
+					new File(indexDirectory, SHARDS_DIR) :
+					new File(dataDirectory, SHARDS_DIR);
 			this.replWorkPath = indexDirectory.toPath().resolve(REPL_WORK);
+			this.replFetchPath = indexDirectory.toPath().resolve(REPL_FETCH);
+		}
+
+		/**
+		 * @param shard the position of the local shard
+		 * @return the data directory of the local shard, the first shard uses the data directory of the index
+		 */
+		File getShardDataDirectory(final int shard) {
+			return shard == 0 ? dataDirectory : new File(shardsDirectory, Integer.toString(shard));
+		}
+
+		/**
+		 * @return the name of the current data directory
+		 */
+		static String getDataName(final File indexDirectory) throws IOException {
+			final File currentDataFile = new File(indexDirectory, CURRENT_DATA_FILE);
+			return currentDataFile.exists() ? IOUtils.readFileAsString(currentDataFile).trim() : INDEX_DATA;
 		}
 	}
 
@@ -83,6 +122,7 @@ class IndexInstanceBuilder {
 	final ExecutorService executorService;
 
 	IndexSettingsDefinition settings;
+	private boolean writeSettings;
 
 	Directory dataDirectory = null;
 
@@ -90,7 +130,9 @@ class IndexInstanceBuilder {
 	LinkedHashMap<String, FieldDefinition> fieldMap = null;
 
 	IndexWriter indexWriter = null;
-	SearcherManager searcherManager = null;
+	IndexWriter[] indexWriters = null;
+	Directory[] dataDirectories = null;
+	ReferenceManager<IndexSearcher> searcherManager = null;
 	UpdatableAnalyzer indexAnalyzer = null;
 	UpdatableAnalyzer queryAnalyzer = null;
 
@@ -99,15 +141,24 @@ class IndexInstanceBuilder {
 	LocalReplicator replicator = null;
 	ReplicationClient replicationClient = null;
 	IndexReplicator indexReplicator = null;
+	DistributedSearch distributedSearch = null;
 
 	UUID indexUuid = null;
+	List<String> previousIndexUuids = null;
+
+	final IndexMetrics metrics = new IndexMetrics();
 
 	IndexInstanceBuilder(final SchemaInstance schema, final File indexDirectory, final IndexSettingsDefinition settings,
-			final ExecutorService executorService) {
+			final ExecutorService executorService) throws IOException {
+		this(schema, indexDirectory, settings, executorService, FileSet.getDataName(indexDirectory));
+	}
+
+	IndexInstanceBuilder(final SchemaInstance schema, final File indexDirectory, final IndexSettingsDefinition settings,
+			final ExecutorService executorService, final String dataName) {
 		this.schema = schema;
 		this.indexDirectory = indexDirectory;
 		this.settings = settings;
-		this.fileSet = new FileSet(indexDirectory);
+		this.fileSet = new FileSet(indexDirectory, dataName);
 		this.searcherFactory = new MultiThreadSearcherFactory(executorService);
 		this.executorService = executorService;
 	}
@@ -142,6 +193,9 @@ class IndexInstanceBuilder {
 			indexUuid = HashUtils.newTimeBasedUUID();
 			IOUtils.writeStringAsFile(indexUuid.toString(), fileSet.uuidFile);
 		}
+		// The UUIDs replaced by the restores
+		if (fileSet.uuidPreviousFile.exists())
+			previousIndexUuids = Files.readAllLines(fileSet.uuidPreviousFile.toPath(), StandardCharsets.UTF_8);
 
 		//Loading the settings
 		if (settings == null)
@@ -149,7 +203,7 @@ class IndexInstanceBuilder {
 					JsonMapper.MAPPER.readValue(fileSet.settingsFile, IndexSettingsDefinition.class) :
 					IndexSettingsDefinition.EMPTY;
 		else
-			JsonMapper.MAPPER.writeValue(fileSet.settingsFile, settings);
+			writeSettings = true;
 
 		//Loading the fields
 		final File fieldMapFile = new File(indexDirectory, FIELDS_FILE);
@@ -177,6 +231,10 @@ class IndexInstanceBuilder {
 	}
 
 	private void openOrCreateIndex() throws ReflectiveOperationException, IOException {
+		indexWriter = openOrCreateWriter(dataDirectory);
+	}
+
+	private IndexWriter openOrCreateWriter(final Directory directory) throws ReflectiveOperationException, IOException {
 		final IndexWriterConfig indexWriterConfig = new IndexWriterConfig(indexAnalyzer);
 		indexWriterConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
 		if (settings != null) {
@@ -186,14 +244,81 @@ class IndexInstanceBuilder {
 			if (settings.ram_buffer_size != null)
 				indexWriterConfig.setRAMBufferSizeMB(settings.ram_buffer_size);
 		}
-		final SerialMergeScheduler serialMergeScheduler = new SerialMergeScheduler();
-		indexWriterConfig.setMergeScheduler(serialMergeScheduler);
+		indexWriterConfig.setMergeScheduler(metrics.newMergeScheduler());
 		final SnapshotDeletionPolicy snapshotDeletionPolicy =
 				new SnapshotDeletionPolicy(indexWriterConfig.getIndexDeletionPolicy());
 		indexWriterConfig.setIndexDeletionPolicy(snapshotDeletionPolicy);
-		indexWriter = new IndexWriter(dataDirectory, indexWriterConfig);
-		if (indexWriter.hasUncommittedChanges())
-			indexWriter.commit();
+		final IndexWriter writer = new IndexWriter(directory, indexWriterConfig);
+		if (writer.hasUncommittedChanges())
+			writer.commit();
+		return writer;
+	}
+
+	/**
+	 * The number of local shards can only be changed while the index is empty, as the documents are routed to the
+	 * shards by the hash of their id.
+	 *
+	 * @return the number of local shards, checked against the shards found on the disk
+	 */
+	private int getLocalShards() throws IOException {
+		final int localShards = settings.local_shards == null || settings.local_shards < 1 ? 1 : settings.local_shards;
+		final File[] existingShards = fileSet.shardsDirectory.listFiles(File::isDirectory);
+		final int currentShards = existingShards == null ? 1 : existingShards.length + 1;
+		if (currentShards == localShards)
+			return localShards;
+		if (indexWriter.numDocs() > 0 || hasDocuments(existingShards))
+			throw new ServerException(Response.Status.NOT_ACCEPTABLE,
+					"The number of local shards of an index having documents cannot be changed: " + currentShards
+							+ " <> " + localShards);
+		// The index is empty, the shards will be created again
+		FileUtils.deleteDirectory(fileSet.shardsDirectory);
+		return localShards;
+	}
+
+	private static boolean hasDocuments(final File[] shardDirectories) throws IOException {
+		if (shardDirectories == null)
+			return false;
+		for (File shardDirectory : shardDirectories) {
+			try (final Directory directory = FSDirectory.open(shardDirectory.toPath())) {
+				if (!DirectoryReader.indexExists(directory))
+					continue;
+				try (final DirectoryReader reader = DirectoryReader.open(directory)) {
+					if (reader.numDocs() > 0)
+						return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the last commit of a closed index, without opening it
+	 *
+	 * @param indexDirectory the directory of the index
+	 * @return the number of documents of every local shard
+	 * @throws IOException if the commit cannot be read
+	 */
+	static int getCommittedNumDocs(final File indexDirectory) throws IOException {
+		final FileSet fileSet = new FileSet(indexDirectory, FileSet.getDataName(indexDirectory));
+		int numDocs = getCommittedNumDocs(fileSet.dataDirectory.toPath());
+		final File[] shardDirectories = fileSet.shardsDirectory.listFiles(File::isDirectory);
+		if (shardDirectories != null)
+			for (File shardDirectory : shardDirectories)
+				numDocs += getCommittedNumDocs(shardDirectory.toPath());
+		return numDocs;
+	}
+
+	private static int getCommittedNumDocs(final Path dataPath) throws IOException {
+		if (!Files.isDirectory(dataPath))
+			return 0;
+		try (final Directory directory = FSDirectory.open(dataPath)) {
+			if (!DirectoryReader.indexExists(directory))
+				return 0;
+			int numDocs = 0;
+			for (SegmentCommitInfo segment : SegmentInfos.readLatestCommit(directory))
+				numDocs += segment.info.maxDoc() - segment.getDelCount();
+			return numDocs;
+		}
 	}
 
 	private void buildSlave() throws IOException, URISyntaxException, ReflectiveOperationException {
@@ -210,11 +335,15 @@ class IndexInstanceBuilder {
 		};
 		ReplicationClient.ReplicationHandler handler = new IndexReplicationHandler(dataDirectory, callback);
 		ReplicationClient.SourceDirectoryFactory factory = new PerSessionDirectoryFactory(fileSet.replWorkPath);
-		indexReplicator = new IndexReplicator(schema.getService(), settings.master, fileSet.uuidMasterFile);
+		indexReplicator = new IndexReplicator(schema.getService(), settings.master, fileSet.uuidMasterFile,
+				executorService, fileSet.replFetchPath, settings.replication_concurrency,
+				settings.replication_compression);
 		replicationClient = new ReplicationClient(indexReplicator, handler, factory);
 
-		// we build the SearcherManager
-		searcherManager = new SearcherManager(dataDirectory, searcherFactory);
+		// we build the SearcherManager, the reopened readers are wrapped like the first one
+		searcherManager =
+				new SearcherManager(QueryDeadline.wrap(DirectoryReader.open(dataDirectory)), searcherFactory);
+		dataDirectories = new Directory[] { dataDirectory };
 	}
 
 	private void buildMaster() throws IOException, ReflectiveOperationException {
@@ -225,26 +354,60 @@ class IndexInstanceBuilder {
 		replicator = new LocalReplicator();
 		replicator.publish(new IndexRevision(indexWriter));
 
+		// Open the writers of the other local shards
+		final int localShards = getLocalShards();
+		indexWriters = new IndexWriter[localShards];
+		dataDirectories = new Directory[localShards];
+		indexWriters[0] = indexWriter;
+		dataDirectories[0] = dataDirectory;
+		for (int i = 1; i < localShards; i++) {
+			final File shardDirectory = fileSet.getShardDataDirectory(i);
+			if (!shardDirectory.exists())
+				shardDirectory.mkdirs();
+			dataDirectories[i] = FSDirectory.open(shardDirectory.toPath());
+			indexWriters[i] = openOrCreateWriter(dataDirectories[i]);
+		}
+
 		// Finally we build the SearcherManager
-		searcherManager = new SearcherManager(indexWriter, searcherFactory);
+		searcherManager = localShards == 1 ?
+				new SearcherManager(QueryDeadline.wrap(DirectoryReader.open(indexWriter)), searcherFactory) :
+				new ShardsSearcherManager(indexWriters, searcherFactory);
 	}
 
 	private void abort() {
 		IOUtils.closeQuietly(replicationClient, searcherManager, indexAnalyzer, queryAnalyzer, replicator);
 		if (indexWriter != null && indexWriter.isOpen())
 			IOUtils.closeQuietly(indexWriter);
+		if (indexWriters != null)
+			for (int i = 1; i < indexWriters.length; i++)
+				if (indexWriters[i] != null && indexWriters[i].isOpen())
+					IOUtils.closeQuietly(indexWriters[i]);
+		if (dataDirectories != null)
+			for (int i = 1; i < dataDirectories.length; i++)
+				IOUtils.closeQuietly(dataDirectories[i]);
 		IOUtils.closeQuietly(dataDirectory);
 	}
 
 	IndexInstance build() throws ReflectiveOperationException, IOException, URISyntaxException {
 		try {
 			buildCommon();
-			if (fileSet.uuidMasterFile.exists() || settings.master != null)
+			if (fileSet.uuidMasterFile.exists() || settings.master != null) {
+				if (settings.local_shards != null && settings.local_shards > 1)
+					throw new ServerException(Response.Status.NOT_ACCEPTABLE,
+							"A replicated index cannot have local shards: " + indexDirectory.getName());
 				buildSlave();
+			}
 			else
 				buildMaster();
+			if (settings.shards != null && !settings.shards.isEmpty())
+				distributedSearch = new DistributedSearch(settings.shards,
+						shard -> DistributedSearch.getService(schema.getService(), shard), executorService,
+						settings.shard_timeout_ms);
+			// The new settings are only stored once they have been accepted
+			if (writeSettings)
+				JsonMapper.MAPPER.writeValue(fileSet.settingsFile, settings);
 			return new IndexInstance(schema.getClassLoaderManager(), this);
-		} catch (IOException | ReflectiveOperationException | URISyntaxException e) {
+		} catch (IOException | ReflectiveOperationException | URISyntaxException | ServerException e) {
 			abort();
 			throw e;
 		} catch (Exception e) {
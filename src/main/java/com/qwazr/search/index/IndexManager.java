@@ -32,13 +32,19 @@ import java.io.FileFilter;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class IndexManager implements Closeable {
@@ -47,6 +53,47 @@ public class IndexManager implements Closeable {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(IndexManager.class);
 
+	/**
+	 * The maximum number of indexes opened in parallel at startup
+	 */
+	static final int MAX_OPEN_THREADS = 256;
+
+	/**
+	 * The number of indexes opened in parallel at startup
+	 */
+	private static final int OPEN_THREADS;
+
+	static {
+		String v = System.getProperty("QWAZR_INDEX_OPEN_THREADS");
+		if (v == null)
+			v = System.getenv("QWAZR_INDEX_OPEN_THREADS");
+		OPEN_THREADS = parseOpenThreads(v, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param value          the value of QWAZR_INDEX_OPEN_THREADS, may be null
+	 * @param defaultThreads the number of threads used when no valid value is given
+	 * @return a number of threads between 1 and MAX_OPEN_THREADS
+	 */
+	static int parseOpenThreads(final String value, final int defaultThreads) {
+		if (value == null || value.trim().isEmpty())
+			return Math.max(1, Math.min(MAX_OPEN_THREADS, defaultThreads));
+		final int threads;
+		try {
+			threads = Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			LOGGER.error("QWAZR_INDEX_OPEN_THREADS is not a number: \"" + value + "\". Using " + defaultThreads +
+					" threads");
+			return parseOpenThreads(null, defaultThreads);
+		}
+		if (threads >= 1 && threads <= MAX_OPEN_THREADS)
+			return threads;
+		final int clamped = Math.max(1, Math.min(MAX_OPEN_THREADS, threads));
+		LOGGER.warn("QWAZR_INDEX_OPEN_THREADS must be between 1 and " + MAX_OPEN_THREADS + ", got " + threads +
+				". Using " + clamped + " threads");
+		return clamped;
+	}
+
 	private final ConcurrentHashMap<String, SchemaInstance> schemaMap;
 
 	private final File rootDirectory;
@@ -95,6 +142,55 @@ public class IndexManager implements Closeable {
 				LOGGER.error(e.getMessage(), e);
 			}
 		}
+		openIndexes();
+	}
+
+	/**
+	 * Open the indexes of every schema on a bounded pool, except the indexes of the lazy schemas. An index which
+	 * cannot be opened is logged, another opening is tried on its first access.
+	 */
+	private void openIndexes() {
+		final List<Runnable> tasks = new ArrayList<>();
+		final AtomicInteger opened = new AtomicInteger();
+		schemaMap.forEach((schemaName, schemaInstance) -> {
+			if (schemaInstance.isLazy())
+				return;
+			for (String indexName : schemaInstance.getClosedIndexes())
+				tasks.add(() -> {
+					try {
+						schemaInstance.get(indexName, false);
+					} catch (Exception e) {
+						LOGGER.error("Cannot open the index " + schemaName + '/' + indexName, e);
+					}
+					final int count = opened.incrementAndGet();
+					if (count % 50 == 0 || count == tasks.size())
+						LOGGER.info("Opened indexes: " + count + " / " + tasks.size());
+				});
+		});
+		if (tasks.isEmpty())
+			return;
+		final long start = System.currentTimeMillis();
+		final ExecutorService openExecutor = Executors.newFixedThreadPool(Math.min(OPEN_THREADS, tasks.size()));
+		try {
+			final List<Future<?>> futures = new ArrayList<>(tasks.size());
+			for (Runnable task : tasks)
+				futures.add(openExecutor.submit(task));
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			LOGGER.error("The opening of the indexes has been interrupted", e);
+		} finally {
+			openExecutor.shutdownNow();
+		}
+		// One reader per schema, once its indexes are opened
+		schemaMap.forEach((schemaName, schemaInstance) -> {
+			try {
+				schemaInstance.mayBeRefresh(false);
+			} catch (IOException | ServerException e) {
+				LOGGER.error(e.getMessage(), e);
+			}
+		});
+		LOGGER.info(tasks.size() + " indexes opened in " + (System.currentTimeMillis() - start) + " ms");
 	}
 
 	final public IndexServiceInterface getService() {
@@ -156,6 +252,16 @@ public class IndexManager implements Closeable {
 		}
 	}
 
+	LinkedHashMap<String, Object> getMetrics() {
+		final LinkedHashMap<String, Object> metrics = new LinkedHashMap<>();
+		for (String schemaName : nameSet()) {
+			final SchemaInstance schemaInstance = schemaMap.get(schemaName);
+			if (schemaInstance != null)
+				metrics.put(schemaName, schemaInstance.getMetrics());
+		}
+		return metrics;
+	}
+
 	private void schemaIterator(final String schemaName,
 			final FunctionUtils.BiConsumerEx<String, SchemaInstance, IOException> consumer) throws IOException {
 		synchronized (schemaMap) {
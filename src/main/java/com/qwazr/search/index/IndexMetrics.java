@@ -0,0 +1,94 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.index.MergeTrigger;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The runtime metrics of one index
+ */
+class IndexMetrics {
+
+	final LatencyHistogram open = new LatencyHistogram();
+	final LatencyHistogram search = new LatencyHistogram();
+	final LatencyHistogram nrtCommit = new LatencyHistogram();
+	final LatencyHistogram flush = new LatencyHistogram();
+	final LatencyHistogram commit = new LatencyHistogram();
+	final LatencyHistogram refresh = new LatencyHistogram();
+	final LatencyHistogram merge = new LatencyHistogram();
+	final LatencyHistogram facetsState = new LatencyHistogram();
+	final LatencyHistogram join = new LatencyHistogram();
+	final LongAdder joinCacheHits = new LongAdder();
+	final RateMeter docsIndexed = new RateMeter();
+	final RateMeter docValuesUpdated = new RateMeter();
+	private final LongAdder mergedDocs = new LongAdder();
+
+	final Map<String, Object> toMap() {
+		final Map<String, Object> map = new LinkedHashMap<>();
+		map.put("open", open.toMap());
+		map.put("search", search.toMap());
+		map.put("docs_indexed", docsIndexed.toMap());
+		map.put("doc_values_updated", docValuesUpdated.toMap());
+		map.put("nrt_commit", nrtCommit.toMap());
+		map.put("flush", flush.toMap());
+		map.put("commit", commit.toMap());
+		map.put("refresh", refresh.toMap());
+		final Map<String, Object> mergeMap = merge.toMap();
+		mergeMap.put("merged_docs", mergedDocs.sum());
+		map.put("merge", mergeMap);
+		map.put("facets_state", facetsState.toMap());
+		final Map<String, Object> joinMap = join.toMap();
+		joinMap.put("cache_hits", joinCacheHits.sum());
+		map.put("join", joinMap);
+		return map;
+	}
+
+	/**
+	 * @return a merge scheduler running the merges sequentially, like the SerialMergeScheduler, and timing them
+	 */
+	final MergeScheduler newMergeScheduler() {
+		return new TimedMergeScheduler();
+	}
+
+	private class TimedMergeScheduler extends MergeScheduler {
+
+		@Override
+		synchronized public void merge(final IndexWriter writer, final MergeTrigger trigger,
+				final boolean newMergesFound) throws IOException {
+			for (; ; ) {
+				final MergePolicy.OneMerge oneMerge = writer.getNextMerge();
+				if (oneMerge == null)
+					break;
+				final long start = System.nanoTime();
+				writer.merge(oneMerge);
+				merge.recordSince(start);
+				mergedDocs.add(oneMerge.totalNumDocs());
+			}
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -20,17 +20,60 @@ import com.qwazr.search.field.FieldDefinition;
 import com.qwazr.utils.IOUtils;
 import com.qwazr.server.AbstractStreamingOutput;
 import com.qwazr.server.ServerException;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexFileNames;
 import org.apache.lucene.replicator.Replicator;
 import org.apache.lucene.replicator.Revision;
+import org.apache.lucene.replicator.RevisionFile;
 import org.apache.lucene.replicator.SessionToken;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
 
 import javax.ws.rs.core.Response;
 import java.io.*;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.InflaterInputStream;
 
+/**
+ * The replicator of a slave index. When a new revision is available, the files are fetched in parallel into the
+ * fetch directory, then Lucene's ReplicationClient copies them from the local disk. An interrupted transfer resumes
+ * from the bytes already written in the fetch directory. Each fetched file is verified using its Lucene footer.
+ * A new fetch cancels the previous one and waits for its workers, only one worker at a time appends to a file.
+ */
 class IndexReplicator implements Replicator {
 
+	/**
+	 * The default number of files fetched in parallel
+	 */
+	final static int DEFAULT_CONCURRENCY = 4;
+
+	/**
+	 * The thread starting the scheduled replications. The replications are run by the executor of the index.
+	 */
+	private final static ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		final Thread thread = new Thread(runnable, "qwazr-search-replication");
+		thread.setDaemon(true);
+		return thread;
+	});
+
 	private final IndexServiceInterface indexService;
 	private final RemoteIndex master;
 	private final File masterUuidFile;
@@ -38,10 +81,21 @@ class IndexReplicator implements Replicator {
 	private volatile UUID masterUuid;
 	private final Set<InputStream> inputStreams;
 
-	IndexReplicator(final IndexServiceInterface service, final RemoteIndex master, final File masterUuidFile)
-			throws URISyntaxException, IOException {
+	private final ExecutorService executorService;
+	private final Path fetchPath;
+	private final int concurrency;
+	private final boolean compression;
+	private volatile FetchSession fetchSession;
+
+	IndexReplicator(final IndexServiceInterface service, final RemoteIndex master, final File masterUuidFile,
+			final ExecutorService executorService, final Path fetchPath, final Integer concurrency,
+			final Boolean compression) throws URISyntaxException, IOException {
 		this.master = master;
 		this.masterUuidFile = masterUuidFile;
+		this.executorService = executorService;
+		this.fetchPath = fetchPath;
+		this.concurrency = concurrency == null || concurrency < 1 ? DEFAULT_CONCURRENCY : concurrency;
+		this.compression = compression != null && compression;
 		indexService = master == null ?
 				null :
 				master.host == null ?
@@ -61,7 +115,11 @@ class IndexReplicator implements Replicator {
 	}
 
 	String checkRemoteMasterUuid() throws IOException {
-		final UUID remoteMasterUuid = UUID.fromString(checkService().getIndex(master.schema, master.index).index_uuid);
+		return checkRemoteMasterUuid(checkService().getIndex(master.schema, master.index).index_uuid);
+	}
+
+	String checkRemoteMasterUuid(final String remoteUuid) throws IOException {
+		final UUID remoteMasterUuid = UUID.fromString(remoteUuid);
 		if (masterUuid == null) {
 			masterUuid = remoteMasterUuid;
 			masterUuidString = masterUuid.toString();
@@ -75,6 +133,15 @@ class IndexReplicator implements Replicator {
 		return masterUuidString;
 	}
 
+	/**
+	 * @param manifest the manifest of the master
+	 * @return true if the master has been restored from a backup since the last replication
+	 */
+	boolean isMasterRestored(final ReplicationManifest manifest) {
+		return masterUuidString != null && !masterUuidString.equals(manifest.index_uuid)
+				&& manifest.previous_index_uuids != null && manifest.previous_index_uuids.contains(masterUuidString);
+	}
+
 	UUID getMasterUuid() {
 		return masterUuid;
 	}
@@ -95,8 +162,136 @@ class IndexReplicator implements Replicator {
 			if (inputStream == null)
 				return null;
 			final DataInput input = new DataInputStream(inputStream);
-			return new SessionToken(input);
+			final SessionToken token = new SessionToken(input);
+			startFetch(token);
+			return token;
+		}
+	}
+
+	/**
+	 * Start fetching the files of the revision, with at most "concurrency" files fetched at the same time
+	 */
+	private synchronized void startFetch(final SessionToken token) throws IOException {
+		cancelFetch();
+		final FetchSession session = new FetchSession();
+		final Set<Path> paths = new HashSet<>();
+		final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		token.sourceFiles.forEach((source, revisionFiles) -> {
+			for (RevisionFile revisionFile : revisionFiles) {
+				final Path path = fetchPath.resolve(source).resolve(revisionFile.fileName);
+				paths.add(path);
+				final CompletableFuture<Path> future = new CompletableFuture<>();
+				session.files.put(source + '/' + revisionFile.fileName, future);
+				tasks.add(() -> {
+					try {
+						future.complete(fetch(session, token.id, source, revisionFile, path));
+					} catch (IOException | RuntimeException e) {
+						future.completeExceptionally(e);
+					}
+				});
+			}
+		});
+		deleteStaleFiles(paths);
+		final int workers = Math.min(concurrency, tasks.size());
+		for (int i = 0; i < workers; i++)
+			session.workers.add(CompletableFuture.runAsync(() -> {
+				Runnable task;
+				while (!session.cancelled && (task = tasks.poll()) != null)
+					task.run();
+			}, executorService));
+		fetchSession = session;
+	}
+
+	/**
+	 * Stop the workers of the current fetch and wait until they are done
+	 */
+	private synchronized void cancelFetch() throws IOException {
+		final FetchSession session = fetchSession;
+		if (session == null)
+			return;
+		fetchSession = null;
+		session.cancelled = true;
+		try {
+			CompletableFuture.allOf(session.workers.toArray(new CompletableFuture[session.workers.size()])).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while cancelling the fetch");
+		} catch (ExecutionException e) {
+			throw new IOException("The fetch has failed", e.getCause());
+		} finally {
+			// The files not fetched yet are not waited for
+			session.files.values().forEach(future -> future.cancel(false));
+		}
+	}
+
+	/**
+	 * The files left by an interrupted transfer are kept only if they belong to the new revision
+	 */
+	private void deleteStaleFiles(final Set<Path> paths) throws IOException {
+		if (!Files.exists(fetchPath))
+			return;
+		try (final Stream<Path> stream = Files.walk(fetchPath)) {
+			stream.filter(Files::isRegularFile).filter(path -> !paths.contains(path)).forEach(path -> {
+				try {
+					Files.deleteIfExists(path);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+	}
+
+	private Path fetch(final FetchSession session, final String sessionID, final String source,
+			final RevisionFile revisionFile, final Path path) throws IOException {
+		Files.createDirectories(path.getParent());
+		long offset = Files.exists(path) ? Files.size(path) : 0;
+		if (offset > revisionFile.size) {
+			Files.delete(path);
+			offset = 0;
+		}
+		if (offset < revisionFile.size) {
+			// The compound files are mostly made of already compressed data
+			final boolean compress = compression && !IndexFileNames.COMPOUND_FILE_EXTENSION.equals(
+					IndexFileNames.getExtension(revisionFile.fileName));
+			final InputStream stream =
+					checkService().replicationObtain(master.schema, master.index, masterUuidString, sessionID, source,
+							revisionFile.fileName, offset, compress).getInputStream();
+			try (final InputStream input = compress ? new InflaterInputStream(stream) : stream;
+					final OutputStream output = Files.newOutputStream(path, StandardOpenOption.CREATE,
+							StandardOpenOption.APPEND)) {
+				final byte[] buffer = new byte[65536];
+				int length;
+				while ((length = input.read(buffer)) != -1) {
+					if (session.cancelled)
+						throw new InterruptedIOException("The fetch of " + revisionFile.fileName + " is cancelled");
+					output.write(buffer, 0, length);
+				}
+			}
 		}
+		final long size = Files.size(path);
+		if (size != revisionFile.size)
+			throw new IOException(
+					"Incomplete transfer of " + revisionFile.fileName + ": " + size + " / " + revisionFile.size);
+		verifyChecksum(path);
+		return path;
+	}
+
+	private static void verifyChecksum(final Path path) throws IOException {
+		try (final Directory directory = FSDirectory.open(path.getParent());
+				final IndexInput input = directory.openInput(path.getFileName().toString(), IOContext.READONCE)) {
+			CodecUtil.checksumEntireFile(input);
+		} catch (CorruptIndexException e) {
+			Files.deleteIfExists(path);
+			throw e;
+		}
+	}
+
+	/**
+	 * Delete the fetched files, once the revision has been copied to the index
+	 */
+	synchronized void clearFetchedFiles() throws IOException {
+		cancelFetch();
+		FileUtils.deleteQuietly(fetchPath.toFile());
 	}
 
 	@Override
@@ -107,15 +302,51 @@ class IndexReplicator implements Replicator {
 	@Override
 	public InputStream obtainFile(final String sessionID, final String source, final String fileName)
 			throws IOException {
-		final InputStream stream =
+		final FetchSession session = fetchSession;
+		final CompletableFuture<Path> future = session == null ? null : session.files.get(source + '/' + fileName);
+		final InputStream stream = future == null ?
 				checkService().replicationObtain(master.schema, master.index, masterUuidString, sessionID, source,
-						fileName).getInputStream();
+						fileName, null, null).getInputStream() :
+				Files.newInputStream(getFetched(future, fileName));
 		inputStreams.add(stream);
 		return stream;
 	}
 
+	private static Path getFetched(final CompletableFuture<Path> future, final String fileName) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while fetching " + fileName);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Cannot fetch " + fileName, e.getCause());
+		} catch (CancellationException e) {
+			throw new InterruptedIOException("The fetch of " + fileName + " has been cancelled");
+		}
+	}
+
+	/**
+	 * The files of the revision being fetched and the workers fetching them
+	 */
+	private static class FetchSession {
+
+		private final Map<String, CompletableFuture<Path>> files = new HashMap<>();
+		private final List<CompletableFuture<Void>> workers = new ArrayList<>();
+		private volatile boolean cancelled;
+	}
+
+	/**
+	 * Run the task repeatedly, with the given delay between the end of a run and the start of the next one
+	 */
+	static ScheduledFuture<?> schedule(final long intervalMs, final Runnable task) {
+		return SCHEDULER.scheduleWithFixedDelay(task, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
 	@Override
 	public void close() throws IOException {
+		cancelFetch();
 		inputStreams.forEach(IOUtils::closeQuietly);
 	}
 
@@ -131,6 +362,15 @@ class IndexReplicator implements Replicator {
 		return checkService().getResources(master.schema, master.index);
 	}
 
+	/**
+	 * @param version the version known by the slave
+	 * @param waitMs  how long the master may wait for a version different from the known version
+	 * @return the manifest of the master
+	 */
+	final ReplicationManifest getMasterManifest(final Long version, final Long waitMs) {
+		return checkService().getReplicationManifest(master.schema, master.index, version, waitMs);
+	}
+
 	final IndexStatus getMasterStatus() {
 		return checkService().getIndex(master.schema, master.index);
 	}
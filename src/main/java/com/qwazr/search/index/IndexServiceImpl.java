@@ -22,9 +22,8 @@ import com.qwazr.search.query.TermQuery;
 import com.qwazr.server.AbstractServiceImpl;
 import com.qwazr.server.AbstractStreamingOutput;
 import com.qwazr.server.ServerException;
+import org.apache.commons.io.IOUtils;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.flexible.core.QueryNodeException;
 import org.apache.lucene.replicator.Replicator;
 import org.apache.lucene.replicator.SessionToken;
 import org.slf4j.Logger;
@@ -51,6 +50,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.zip.DeflaterInputStream;
 
 final class IndexServiceImpl extends AbstractServiceImpl implements IndexServiceInterface, AnnotatedServiceInterface {
 
@@ -153,6 +153,16 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 		}
 	}
 
+	@Override
+	final public LinkedHashMap<String, Object> getMetrics() {
+		try {
+			checkRight(null);
+			return indexManager.getMetrics();
+		} catch (Exception e) {
+			throw ServerException.getJsonException(LOGGER, e);
+		}
+	}
+
 	@Override
 	final public Response deleteSchema(final String schemaName) {
 		try {
@@ -208,7 +218,7 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 			final LinkedHashMap<String, FieldDefinition> fields) {
 		try {
 			checkRight(schemaName);
-			indexManager.get(schemaName).get(indexName, false).setFields(fields);
+			indexManager.get(schemaName).accept(indexName, false, index -> index.setFields(fields));
 			return fields;
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
@@ -247,7 +257,8 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 			final String fieldName, final String prefix, final Integer start, final Integer rows) {
 		try {
 			checkRight(schemaName);
-			return indexManager.get(schemaName).get(indexName, false).getTermsEnum(fieldName, prefix, start, rows);
+			return indexManager.get(schemaName)
+					.apply(indexName, false, index -> index.getTermsEnum(fieldName, prefix, start, rows));
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
 		}
@@ -268,7 +279,7 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 			final FieldDefinition field) {
 		try {
 			checkRight(schemaName);
-			indexManager.get(schemaName).get(indexName, false).setField(fieldName, field);
+			indexManager.get(schemaName).accept(indexName, false, index -> index.setField(fieldName, field));
 			return field;
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
@@ -279,7 +290,7 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 	final public Response deleteField(final String schemaName, final String indexName, final String fieldName) {
 		try {
 			checkRight(schemaName);
-			indexManager.get(schemaName).get(indexName, false).deleteField(fieldName);
+			indexManager.get(schemaName).accept(indexName, false, index -> index.deleteField(fieldName));
 			return Response.ok().build();
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
@@ -318,7 +329,7 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 			final String analyzerName, final AnalyzerDefinition analyzer) {
 		try {
 			checkRight(schemaName);
-			indexManager.get(schemaName).get(indexName, false).setAnalyzer(analyzerName, analyzer);
+			indexManager.get(schemaName).accept(indexName, false, index -> index.setAnalyzer(analyzerName, analyzer));
 			return analyzer;
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
@@ -329,7 +340,7 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 			final LinkedHashMap<String, AnalyzerDefinition> analyzers) {
 		try {
 			checkRight(schemaName);
-			indexManager.get(schemaName).get(indexName, false).setAnalyzers(analyzers);
+			indexManager.get(schemaName).accept(indexName, false, index -> index.setAnalyzers(analyzers));
 			return analyzers;
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
@@ -340,7 +351,7 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 	final public Response deleteAnalyzer(final String schemaName, final String indexName, final String analyzerName) {
 		try {
 			checkRight(schemaName);
-			indexManager.get(schemaName).get(indexName, false).deleteAnalyzer(analyzerName);
+			indexManager.get(schemaName).accept(indexName, false, index -> index.deleteAnalyzer(analyzerName));
 			return Response.ok().build();
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
@@ -407,7 +418,7 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 	final public IndexStatus getIndex(final String schemaName, final String indexName) {
 		try {
 			checkRight(schemaName);
-			return indexManager.get(schemaName).get(indexName, false).getStatus();
+			return indexManager.get(schemaName).apply(indexName, false, IndexInstance::getStatus);
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
 		}
@@ -429,7 +440,7 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 			final Map<String, Object> document) {
 		try {
 			checkRight(schemaName);
-			return indexManager.get(schemaName).get(indexName, true).postMappedDocument(document);
+			return indexManager.get(schemaName).apply(indexName, true, index -> index.postMappedDocument(document));
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
 		}
@@ -440,7 +451,7 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 			final Collection<Map<String, Object>> documents) {
 		try {
 			checkRight(schemaName);
-			return indexManager.get(schemaName).get(indexName, true).postMappedDocuments(documents);
+			return indexManager.get(schemaName).apply(indexName, true, index -> index.postMappedDocuments(documents));
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
 		}
@@ -450,21 +461,21 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 	final public <T> int postDocument(final String schemaName, final String indexName, final Map<String, Field> fields,
 			final T document) throws IOException, InterruptedException {
 		checkRight(schemaName);
-		return indexManager.get(schemaName).get(indexName, true).postDocument(fields, document);
+		return write(schemaName, indexName, index -> index.postDocument(fields, document));
 	}
 
 	@Override
 	final public <T> int postDocuments(final String schemaName, final String indexName, final Map<String, Field> fields,
 			final Collection<T> documents) throws IOException, InterruptedException {
 		checkRight(schemaName);
-		return indexManager.get(schemaName).get(indexName, true).postDocuments(fields, documents);
+		return write(schemaName, indexName, index -> index.postDocuments(fields, documents));
 	}
 
 	@Override
 	final public <T> int postDocuments(final String schemaName, final String indexName, final Map<String, Field> fields,
 			final T... documents) throws IOException, InterruptedException {
 		checkRight(schemaName);
-		return indexManager.get(schemaName).get(indexName, true).postDocuments(fields, documents);
+		return write(schemaName, indexName, index -> index.postDocuments(fields, documents));
 	}
 
 	@Override
@@ -472,7 +483,7 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 			final Map<String, Object> document) {
 		try {
 			checkRight(schemaName);
-			return indexManager.get(schemaName).get(indexName, true).updateMappedDocValues(document);
+			return indexManager.get(schemaName).apply(indexName, true, index -> index.updateMappedDocValues(document));
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
 		}
@@ -483,7 +494,8 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 			final Collection<Map<String, Object>> documents) {
 		try {
 			checkRight(schemaName);
-			return indexManager.get(schemaName).get(indexName, true).updateMappedDocsValues(documents);
+			return indexManager.get(schemaName)
+					.apply(indexName, true, index -> index.updateMappedDocsValues(documents));
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
 		}
@@ -493,21 +505,35 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 	final public <T> int updateDocValues(final String schemaName, final String indexName,
 			final Map<String, Field> fields, final T document) throws IOException, InterruptedException {
 		checkRight(schemaName);
-		return indexManager.get(schemaName).get(indexName, true).updateDocValues(fields, document);
+		return write(schemaName, indexName, index -> index.updateDocValues(fields, document));
 	}
 
 	@Override
 	final public <T> int updateDocsValues(final String schemaName, final String indexName,
 			final Map<String, Field> fields, final Collection<T> documents) throws IOException, InterruptedException {
 		checkRight(schemaName);
-		return indexManager.get(schemaName).get(indexName, true).updateDocsValues(fields, documents);
+		return write(schemaName, indexName, index -> index.updateDocsValues(fields, documents));
 	}
 
 	@Override
 	final public <T> int updateDocsValues(final String schemaName, final String indexName,
 			final Map<String, Field> fields, final T... documents) throws IOException, InterruptedException {
 		checkRight(schemaName);
-		return indexManager.get(schemaName).get(indexName, true).updateDocsValues(fields, documents);
+		return write(schemaName, indexName, index -> index.updateDocsValues(fields, documents));
+	}
+
+	/**
+	 * Runs a write of the Java API, which keeps its checked exceptions
+	 */
+	private int write(final String schemaName, final String indexName,
+			final SchemaInstance.IndexFunction<Integer> function) throws IOException, InterruptedException {
+		try {
+			return indexManager.get(schemaName).apply(indexName, true, function);
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ServerException(e);
+		}
 	}
 
 	@Override
@@ -542,15 +568,31 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 		}
 	}
 
+	@Override
+	public IndexStatus restoreBackup(final String schemaName, final String indexName, final String backupName) {
+		try {
+			checkRight(null);
+			return indexManager.get(schemaName).restoreBackup(indexName, backupName);
+		} catch (Exception e) {
+			throw ServerException.getJsonException(LOGGER, e);
+		}
+	}
+
 	@Override
 	final public AbstractStreamingOutput replicationObtain(final String schemaName, final String indexName,
-			final String masterUuid, final String sessionID, final String source, final String fileName) {
+			final String masterUuid, final String sessionID, final String source, final String fileName,
+			final Long offset, final Boolean compress) {
 		try {
 			checkRight(null);
 			final Replicator replicator = indexManager.get(schemaName).get(indexName, false).getReplicator(masterUuid);
-			final InputStream input = replicator.obtainFile(sessionID, source, fileName);
+			InputStream input = replicator.obtainFile(sessionID, source, fileName);
 			if (input == null)
 				throw new ServerException(Response.Status.NOT_FOUND, "File not found: " + fileName);
+			// Resume an interrupted transfer
+			if (offset != null && offset > 0)
+				IOUtils.skipFully(input, offset);
+			if (compress != null && compress)
+				input = new DeflaterInputStream(input);
 			return AbstractStreamingOutput.with(input);
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
@@ -593,11 +635,23 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 		}
 	}
 
+	@Override
+	final public ReplicationManifest getReplicationManifest(final String schemaName, final String indexName,
+			final Long version, final Long waitMs) {
+		try {
+			checkRight(null);
+			return indexManager.get(schemaName)
+					.apply(indexName, false, index -> index.getReplicationManifest(version, waitMs));
+		} catch (Exception e) {
+			throw ServerException.getJsonException(LOGGER, e);
+		}
+	}
+
 	@Override
 	final public Response replicationCheck(final String schemaName, final String indexName) {
 		try {
 			checkRight(null);
-			indexManager.get(schemaName).get(indexName, false).replicationCheck();
+			indexManager.get(schemaName).accept(indexName, false, IndexInstance::replicationCheck);
 			return Response.ok().build();
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
@@ -634,7 +688,8 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 			final long lastModified, final InputStream inputStream) {
 		try {
 			checkRight(null);
-			indexManager.get(schemaName).get(indexName, false).postResource(resourceName, lastModified, inputStream);
+			indexManager.get(schemaName)
+					.accept(indexName, false, index -> index.postResource(resourceName, lastModified, inputStream));
 			return Response.ok().build();
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
@@ -645,7 +700,7 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 	public Response deleteResource(final String schemaName, final String indexName, final String resourceName) {
 		try {
 			checkRight(null);
-			indexManager.get(schemaName).get(indexName, false).deleteResource(resourceName);
+			indexManager.get(schemaName).accept(indexName, false, index -> index.deleteResource(resourceName));
 			return Response.ok().build();
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
@@ -656,7 +711,7 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 	final public Response deleteAll(final String schemaName, final String indexName) {
 		try {
 			checkRight(schemaName);
-			indexManager.get(schemaName).get(indexName, false).deleteAll();
+			indexManager.get(schemaName).accept(indexName, false, IndexInstance::deleteAll);
 			return Response.ok().build();
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
@@ -680,19 +735,20 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 	}
 
 	private ResultDefinition doSearchMap(final String schemaName, final String indexName, final QueryDefinition query)
-			throws InterruptedException, ReflectiveOperationException, QueryNodeException, ParseException, IOException {
+			throws Exception {
 		checkRight(schemaName);
-		IndexInstance index = indexManager.get(schemaName).get(indexName, false);
-		return index.search(query, ResultDocumentBuilder.MapBuilderFactory.INSTANCE);
+		return indexManager.get(schemaName)
+				.apply(indexName, false,
+						index -> index.search(query, ResultDocumentBuilder.MapBuilderFactory.INSTANCE));
 	}
 
 	private ResultDefinition doSearchObject(final String schemaName, final String indexName,
 			final QueryDefinition query, final Map<String, Field> fields, final Class<?> indexDefinitionClass)
-			throws InterruptedException, ReflectiveOperationException, QueryNodeException, ParseException, IOException {
+			throws Exception {
 		checkRight(schemaName);
-		final IndexInstance index = indexManager.get(schemaName).get(indexName, false);
-		return index.search(query,
-				ResultDocumentBuilder.ObjectBuilderFactory.createFactory(fields, indexDefinitionClass));
+		return indexManager.get(schemaName)
+				.apply(indexName, false, index -> index.search(query,
+						ResultDocumentBuilder.ObjectBuilderFactory.createFactory(fields, indexDefinitionClass)));
 	}
 
 	@Override
@@ -767,6 +823,30 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 		}
 	}
 
+	@Override
+	final public AbstractStreamingOutput searchQueryStream(final String schemaName, final String indexName,
+			final QueryDefinition query) {
+		try {
+			checkRight(schemaName);
+			return AbstractStreamingOutput.with(
+					indexManager.get(schemaName).apply(indexName, false, index -> index.searchStream(query)));
+		} catch (Exception e) {
+			throw ServerException.getJsonException(LOGGER, e);
+		}
+	}
+
+	@Override
+	final public AbstractStreamingOutput exportQuery(final String schemaName, final String indexName,
+			final QueryDefinition query, final String after, final Boolean parallel) {
+		try {
+			checkRight(schemaName);
+			return AbstractStreamingOutput.with(indexManager.get(schemaName)
+					.apply(indexName, false, index -> index.export(query, after, parallel != null && parallel)));
+		} catch (Exception e) {
+			throw ServerException.getJsonException(LOGGER, e);
+		}
+	}
+
 	@Override
 	final public ResultDefinition.WithMap searchQuery(final String schemaName, final String indexName,
 			final QueryDefinition query, final Boolean delete) {
@@ -775,11 +855,40 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 			if ("*".equals(indexName))
 				return (ResultDefinition.WithMap) indexManager.get(schemaName)
 						.search(query, ResultDocumentBuilder.MapBuilderFactory.INSTANCE);
-			final IndexInstance index = indexManager.get(schemaName).get(indexName, delete != null && delete);
 			if (delete != null && delete)
-				return index.deleteByQuery(query);
+				return indexManager.get(schemaName).apply(indexName, true, index -> index.deleteByQuery(query));
 			else
-				return (ResultDefinition.WithMap) index.search(query, ResultDocumentBuilder.MapBuilderFactory.INSTANCE);
+				return (ResultDefinition.WithMap) indexManager.get(schemaName)
+						.apply(indexName, false,
+								index -> index.search(query, ResultDocumentBuilder.MapBuilderFactory.INSTANCE));
+		} catch (Exception e) {
+			throw ServerException.getJsonException(LOGGER, e);
+		}
+	}
+
+	@Override
+	final public List<ResultDefinition.WithMap> multiSearchQuery(final String schemaName, final String indexName,
+			final List<QueryDefinition> queries) {
+		try {
+			checkRight(schemaName);
+			return (List) indexManager.get(schemaName)
+					.apply(indexName, false,
+							index -> index.multiSearch(queries, ResultDocumentBuilder.MapBuilderFactory.INSTANCE));
+		} catch (Exception e) {
+			throw ServerException.getJsonException(LOGGER, e);
+		}
+	}
+
+	@Override
+	final public <T> List<ResultDefinition.WithObject<T>> multiSearchQuery(final String schemaName,
+			final String indexName, final List<QueryDefinition> queries, final Map<String, Field> fields,
+			final Class<T> indexDefinitionClass) {
+		try {
+			checkRight(schemaName);
+			final ResultDocumentBuilder.ObjectBuilderFactory documentBuilderFactory =
+					ResultDocumentBuilder.ObjectBuilderFactory.createFactory(fields, indexDefinitionClass);
+			return (List) indexManager.get(schemaName)
+					.apply(indexName, false, index -> index.multiSearch(queries, documentBuilderFactory));
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
 		}
@@ -795,8 +904,8 @@ final class IndexServiceImpl extends AbstractServiceImpl implements IndexService
 			if ("*".equals(indexName))
 				return (ResultDefinition.WithObject<T>) indexManager.get(schemaName)
 						.search(query, documentBuilerFactory);
-			final IndexInstance index = indexManager.get(schemaName).get(indexName, false);
-			return (ResultDefinition.WithObject<T>) index.search(query, documentBuilerFactory);
+			return (ResultDefinition.WithObject<T>) indexManager.get(schemaName)
+					.apply(indexName, false, index -> index.search(query, documentBuilerFactory));
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
 		}
@@ -49,6 +49,7 @@ public interface IndexServiceInterface extends ServiceInterface {
 
 	String SERVICE_NAME = "search";
 	String PATH = "indexes";
+	String APPLICATION_NDJSON = "application/x-ndjson";
 
 	@POST
 	@Path("/{schema_name}")
@@ -67,6 +68,11 @@ public interface IndexServiceInterface extends ServiceInterface {
 	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
 	Set<String> getSchemas();
 
+	@GET
+	@Path("/_metrics")
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	LinkedHashMap<String, Object> getMetrics();
+
 	@DELETE
 	@Path("/{schema_name}")
 	Response deleteSchema(@PathParam("schema_name") String schema_name);
@@ -271,13 +277,20 @@ public interface IndexServiceInterface extends ServiceInterface {
 	Integer deleteBackups(@PathParam("schema_name") String schema_name, @PathParam("index_name") String index_name,
 			@PathParam("backup_name") String backup_name);
 
+	@POST
+	@Path("/{schema_name}/{index_name}/backup/{backup_name}/restore")
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	IndexStatus restoreBackup(@PathParam("schema_name") String schema_name, @PathParam("index_name") String index_name,
+			@PathParam("backup_name") String backup_name);
+
 	@GET
 	@Path("/{schema_name}/{index_name}/replication/{master_uuid}/{session_id}/{source}/{filename}")
 	@Produces(MediaType.APPLICATION_OCTET_STREAM)
 	AbstractStreamingOutput replicationObtain(@PathParam("schema_name") String schema_name,
 			@PathParam("index_name") String index_name, @PathParam("master_uuid") String masterUuid,
 			@PathParam("session_id") String sessionID, @PathParam("source") String source,
-			@PathParam("filename") String fileName);
+			@PathParam("filename") String fileName, @QueryParam("offset") Long offset,
+			@QueryParam("compress") Boolean compress);
 
 	@DELETE
 	@Path("/{schema_name}/{index_name}/replication/{master_uuid}/{session_id}")
@@ -291,6 +304,13 @@ public interface IndexServiceInterface extends ServiceInterface {
 			@PathParam("index_name") String index_name, @PathParam("master_uuid") String masterUuid,
 			@PathParam("current_version") String current_version);
 
+	@GET
+	@Path("/{schema_name}/{index_name}/replication/manifest")
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	ReplicationManifest getReplicationManifest(@PathParam("schema_name") String schema_name,
+			@PathParam("index_name") String index_name, @QueryParam("version") Long version,
+			@QueryParam("wait_ms") Long wait_ms);
+
 	@GET
 	@Path("/{schema_name}/{index_name}/replication")
 	Response replicationCheck(@PathParam("schema_name") String schema_name, @PathParam("index_name") String index_name);
@@ -323,6 +343,28 @@ public interface IndexServiceInterface extends ServiceInterface {
 	ResultDefinition.WithMap searchQuery(@PathParam("schema_name") String schema_name,
 			@PathParam("index_name") String index_name, QueryDefinition query, @QueryParam("delete") Boolean delete);
 
+	@POST
+	@Path("/{schema_name}/{index_name}/msearch")
+	@Consumes(ServiceInterface.APPLICATION_JSON_UTF8)
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	List<ResultDefinition.WithMap> multiSearchQuery(@PathParam("schema_name") String schema_name,
+			@PathParam("index_name") String index_name, List<QueryDefinition> queries);
+
+	@POST
+	@Path("/{schema_name}/{index_name}/search/stream")
+	@Consumes(ServiceInterface.APPLICATION_JSON_UTF8)
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	AbstractStreamingOutput searchQueryStream(@PathParam("schema_name") String schema_name,
+			@PathParam("index_name") String index_name, QueryDefinition query);
+
+	@POST
+	@Path("/{schema_name}/{index_name}/export")
+	@Consumes(ServiceInterface.APPLICATION_JSON_UTF8)
+	@Produces(APPLICATION_NDJSON)
+	AbstractStreamingOutput exportQuery(@PathParam("schema_name") String schema_name,
+			@PathParam("index_name") String index_name, QueryDefinition query, @QueryParam("after") String after,
+			@QueryParam("parallel") Boolean parallel);
+
 	TypeReference<Set<String>> SetStringTypeRef = new TypeReference<Set<String>>() {
 	};
 
@@ -339,6 +381,10 @@ public interface IndexServiceInterface extends ServiceInterface {
 			new TypeReference<LinkedHashMap<String, IndexInstance.ResourceInfo>>() {
 			};
 
+	TypeReference<List<ResultDefinition.WithMap>> ListResultDefinitionWithMapTypeRef =
+			new TypeReference<List<ResultDefinition.WithMap>>() {
+			};
+
 	TypeReference<ArrayList<Map<String, Object>>> ListMapStringObjectTypeRef =
 			new TypeReference<ArrayList<Map<String, Object>>>() {
 			};
@@ -22,6 +22,7 @@ import com.qwazr.utils.json.JsonMapper;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.List;
 import java.util.Objects;
 
 @JsonInclude(JsonInclude.Include.NON_EMPTY)
@@ -31,16 +32,90 @@ public class IndexSettingsDefinition {
 	final public RemoteIndex master;
 	final public Double ram_buffer_size;
 
+	/**
+	 * The shards of a distributed index. The searches are sent to every shard and the results are merged.
+	 */
+	final public List<RemoteIndex> shards;
+
+	/**
+	 * The maximum time to wait for each shard of a distributed index
+	 */
+	final public Long shard_timeout_ms;
+
+	/**
+	 * The number of sub-indexes of the index, each one having its own writer. The documents are routed by the hash of
+	 * their identifier. The number of local shards of an existing index cannot be changed.
+	 */
+	final public Integer local_shards;
+
+	/**
+	 * The number of files fetched in parallel by a slave
+	 */
+	final public Integer replication_concurrency;
+
+	/**
+	 * Compress the files sent by the master, except the compound files
+	 */
+	final public Boolean replication_compression;
+
+	/**
+	 * The delay between two replications of a slave, no scheduled replication if not set
+	 */
+	final public Long replication_interval_ms;
+
+	/**
+	 * How long the master holds the request of a slave waiting for a new version (long-poll)
+	 */
+	final public Long replication_wait_ms;
+
 	public IndexSettingsDefinition() {
 		similarity_class = null;
 		master = null;
 		ram_buffer_size = null;
+		shards = null;
+		shard_timeout_ms = null;
+		local_shards = null;
+		replication_concurrency = null;
+		replication_compression = null;
+		replication_interval_ms = null;
+		replication_wait_ms = null;
 	}
 
 	public IndexSettingsDefinition(final String similaritySlass, final RemoteIndex master, final Double ramBufferSize) {
+		this(similaritySlass, master, ramBufferSize, null, null);
+	}
+
+	public IndexSettingsDefinition(final String similaritySlass, final RemoteIndex master, final Double ramBufferSize,
+			final List<RemoteIndex> shards, final Long shardTimeoutMs) {
+		this(similaritySlass, master, ramBufferSize, shards, shardTimeoutMs, null);
+	}
+
+	public IndexSettingsDefinition(final String similaritySlass, final RemoteIndex master, final Double ramBufferSize,
+			final List<RemoteIndex> shards, final Long shardTimeoutMs, final Integer localShards) {
+		this(similaritySlass, master, ramBufferSize, shards, shardTimeoutMs, localShards, null, null);
+	}
+
+	public IndexSettingsDefinition(final String similaritySlass, final RemoteIndex master, final Double ramBufferSize,
+			final List<RemoteIndex> shards, final Long shardTimeoutMs, final Integer localShards,
+			final Integer replicationConcurrency, final Boolean replicationCompression) {
+		this(similaritySlass, master, ramBufferSize, shards, shardTimeoutMs, localShards, replicationConcurrency,
+				replicationCompression, null, null);
+	}
+
+	public IndexSettingsDefinition(final String similaritySlass, final RemoteIndex master, final Double ramBufferSize,
+			final List<RemoteIndex> shards, final Long shardTimeoutMs, final Integer localShards,
+			final Integer replicationConcurrency, final Boolean replicationCompression,
+			final Long replicationIntervalMs, final Long replicationWaitMs) {
 		this.similarity_class = similaritySlass;
 		this.master = master;
 		this.ram_buffer_size = ramBufferSize;
+		this.shards = shards;
+		this.shard_timeout_ms = shardTimeoutMs;
+		this.local_shards = localShards;
+		this.replication_concurrency = replicationConcurrency;
+		this.replication_compression = replicationCompression;
+		this.replication_interval_ms = replicationIntervalMs;
+		this.replication_wait_ms = replicationWaitMs;
 	}
 
 	public IndexSettingsDefinition(final String similaritySlass, final String masterUrl, final Double ramBufferSize)
@@ -48,6 +123,13 @@ public class IndexSettingsDefinition {
 		this.similarity_class = similaritySlass;
 		this.master = RemoteIndex.build(masterUrl);
 		this.ram_buffer_size = ramBufferSize;
+		this.shards = null;
+		this.shard_timeout_ms = null;
+		this.local_shards = null;
+		this.replication_concurrency = null;
+		this.replication_compression = null;
+		this.replication_interval_ms = null;
+		this.replication_wait_ms = null;
 	}
 
 	public IndexSettingsDefinition(final String similaritySlass, final String schema, final String index,
@@ -55,6 +137,13 @@ public class IndexSettingsDefinition {
 		this.similarity_class = similaritySlass;
 		this.master = new RemoteIndex(schema, index);
 		this.ram_buffer_size = ramBufferSize;
+		this.shards = null;
+		this.shard_timeout_ms = null;
+		this.local_shards = null;
+		this.replication_concurrency = null;
+		this.replication_compression = null;
+		this.replication_interval_ms = null;
+		this.replication_wait_ms = null;
 	}
 
 	public IndexSettingsDefinition(final Index annotatedIndex) throws URISyntaxException {
@@ -80,6 +169,20 @@ public class IndexSettingsDefinition {
 			return false;
 		if (!Objects.equals(ram_buffer_size, s.ram_buffer_size))
 			return false;
+		if (!Objects.deepEquals(shards, s.shards))
+			return false;
+		if (!Objects.equals(shard_timeout_ms, s.shard_timeout_ms))
+			return false;
+		if (!Objects.equals(local_shards, s.local_shards))
+			return false;
+		if (!Objects.equals(replication_concurrency, s.replication_concurrency))
+			return false;
+		if (!Objects.equals(replication_compression, s.replication_compression))
+			return false;
+		if (!Objects.equals(replication_interval_ms, s.replication_interval_ms))
+			return false;
+		if (!Objects.equals(replication_wait_ms, s.replication_wait_ms))
+			return false;
 		return true;
 	}
 }
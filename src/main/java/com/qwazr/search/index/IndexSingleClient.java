@@ -59,6 +59,13 @@ class IndexSingleClient extends JsonClientAbstract implements IndexServiceInterf
 		return executeJson(request, null, null, SetStringTypeRef, valid200Json);
 	}
 
+	@Override
+	public LinkedHashMap<String, Object> getMetrics() {
+		final UBuilder uriBuilder = RemoteService.getNewUBuilder(remote, PATH_SLASH, "_metrics");
+		final HttpRequest request = HttpRequest.Get(uriBuilder.buildNoEx());
+		return executeJson(request, null, null, MapStringObjectTypeRef, valid200Json);
+	}
+
 	@Override
 	public Response deleteSchema(final String schema_name) {
 		final UBuilder uriBuilder = RemoteService.getNewUBuilder(remote, PATH_SLASH, schema_name);
@@ -276,12 +283,23 @@ class IndexSingleClient extends JsonClientAbstract implements IndexServiceInterf
 		return executeJson(request, null, null, Integer.class, valid200Json);
 	}
 
+	@Override
+	public IndexStatus restoreBackup(final String schema_name, final String index_name, final String backup_name) {
+		final UBuilder uriBuilder =
+				RemoteService.getNewUBuilder(remote, PATH_SLASH, schema_name, "/", index_name, "/backup/", backup_name,
+						"/restore");
+		final HttpRequest request = HttpRequest.Post(uriBuilder.buildNoEx());
+		return executeJson(request, null, null, IndexStatus.class, valid200Json);
+	}
+
 	@Override
 	public AbstractStreamingOutput replicationObtain(final String schema_name, final String index_name,
-			final String masterUuid, final String sessionID, final String source, final String fileName) {
+			final String masterUuid, final String sessionID, final String source, final String fileName,
+			final Long offset, final Boolean compress) {
 		final UBuilder uriBuilder =
 				RemoteService.getNewUBuilder(remote, PATH_SLASH, schema_name, "/", index_name, "/replication/",
 						masterUuid, "/", sessionID, "/", source, "/", fileName);
+		uriBuilder.setParameter("offset", offset).setParameter("compress", compress);
 		return executeStream(HttpRequest.Get(uriBuilder.buildNoEx()), null, null, valid200Stream);
 	}
 
@@ -305,6 +323,16 @@ class IndexSingleClient extends JsonClientAbstract implements IndexServiceInterf
 		return executeStream(request, null, null, valid200204);
 	}
 
+	@Override
+	public ReplicationManifest getReplicationManifest(final String schema_name, final String index_name,
+			final Long version, final Long wait_ms) {
+		final UBuilder uriBuilder =
+				RemoteService.getNewUBuilder(remote, PATH_SLASH, schema_name, "/", index_name, "/replication/manifest");
+		uriBuilder.setParameter("version", version).setParameter("wait_ms", wait_ms);
+		final HttpRequest request = HttpRequest.Get(uriBuilder.buildNoEx());
+		return executeJson(request, null, null, ReplicationManifest.class, valid200Json);
+	}
+
 	@Override
 	public Response replicationCheck(final String schema_name, final String index_name) {
 		final UBuilder uriBuilder =
@@ -416,6 +444,35 @@ class IndexSingleClient extends JsonClientAbstract implements IndexServiceInterf
 		return executeJson(request, null, null, ListMapStringObjectTypeRef, valid200Json);
 	}
 
+	@Override
+	public List<ResultDefinition.WithMap> multiSearchQuery(final String schema_name, final String index_name,
+			final List<QueryDefinition> queries) {
+		final UBuilder uriBuilder =
+				RemoteService.getNewUBuilder(remote, PATH_SLASH, schema_name, "/", index_name, "/msearch");
+		final HttpRequest request = HttpRequest.Post(uriBuilder.buildNoEx());
+		return executeJson(request, queries, null, ListResultDefinitionWithMapTypeRef, valid200Json);
+	}
+
+	@Override
+	public AbstractStreamingOutput searchQueryStream(final String schema_name, final String index_name,
+			final QueryDefinition query) {
+		final UBuilder uriBuilder =
+				RemoteService.getNewUBuilder(remote, PATH_SLASH, schema_name, "/", index_name, "/search/stream");
+		final HttpRequest request = HttpRequest.Post(uriBuilder.buildNoEx());
+		return executeStream(request, query, null, valid200Stream);
+	}
+
+	@Override
+	public AbstractStreamingOutput exportQuery(final String schema_name, final String index_name,
+			final QueryDefinition query, final String after, final Boolean parallel) {
+		final UBuilder uriBuilder =
+				RemoteService.getNewUBuilder(remote, PATH_SLASH, schema_name, "/", index_name, "/export")
+						.setParameterObject("after", after)
+						.setParameterObject("parallel", parallel);
+		final HttpRequest request = HttpRequest.Post(uriBuilder.buildNoEx());
+		return executeStream(request, query, null, valid200Stream);
+	}
+
 	@Override
 	public ResultDefinition.WithMap searchQuery(final String schema_name, final String index_name,
 			final QueryDefinition query, final Boolean delete) {
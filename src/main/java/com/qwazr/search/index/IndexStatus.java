@@ -37,6 +37,12 @@ public class IndexStatus {
 	final public String index_uuid;
 	final public String master_uuid;
 	final public Long version;
+
+	/**
+	 * The number of documents of each local shard
+	 */
+	final public List<Long> shards_num_docs;
+
 	final public Set<String> analyzers;
 	final public Set<String> fields;
 	final public IndexSettingsDefinition settings;
@@ -54,43 +60,64 @@ public class IndexStatus {
 		index_uuid = null;
 		master_uuid = null;
 		version = null;
+		shards_num_docs = null;
 		analyzers = null;
 		fields = null;
 		settings = null;
 		field_infos = null;
 	}
 
+	/**
+	 * @param indexWriters the writers of the local shards of a master, or null for a slave
+	 */
 	public IndexStatus(final UUID indexUuid, final UUID masterUuid, final IndexReader indexReader,
-			final IndexWriter indexWriter, final SnapshotDeletionPolicy snapshotDeletionPolicy,
-			final IndexSettingsDefinition settings, final Set<String> analyzers, final Set<String> fields) {
+			final IndexWriter[] indexWriters, final IndexSettingsDefinition settings, final Set<String> analyzers,
+			final Set<String> fields) {
 		num_docs = (long) indexReader.numDocs();
 		num_deleted_docs = (long) indexReader.numDeletedDocs();
 		field_infos = new TreeMap<>();
 		fillFieldInfos(field_infos, indexReader.leaves());
-		if (indexWriter == null) {
+		if (indexWriters == null) {
 			has_pending_merges = null;
 			has_uncommitted_changes = null;
 			has_deletions = null;
 			ram_buffer_size_mb = null;
-		} else {
-			has_pending_merges = indexWriter.hasPendingMerges();
-			has_uncommitted_changes = indexWriter.hasUncommittedChanges();
-			has_deletions = indexWriter.hasDeletions();
-			ram_buffer_size_mb = indexWriter.getConfig().getRAMBufferSizeMB();
-		}
-		if (snapshotDeletionPolicy != null) {
-			snapshot_deletion_count = snapshotDeletionPolicy.getSnapshotCount();
-			snapshot_deletion_commits = new ArrayList<>(snapshot_deletion_count);
-			snapshotDeletionPolicy.getSnapshots()
-					.forEach(indexCommit -> snapshot_deletion_commits.add(indexCommit.getSegmentsFileName()));
-		} else {
 			snapshot_deletion_count = null;
 			snapshot_deletion_commits = null;
+		} else {
+			boolean pendingMerges = false;
+			boolean uncommittedChanges = false;
+			boolean deletions = false;
+			int snapshotCount = 0;
+			snapshot_deletion_commits = new ArrayList<>();
+			for (IndexWriter indexWriter : indexWriters) {
+				pendingMerges |= indexWriter.hasPendingMerges();
+				uncommittedChanges |= indexWriter.hasUncommittedChanges();
+				deletions |= indexWriter.hasDeletions();
+				final SnapshotDeletionPolicy snapshotDeletionPolicy =
+						(SnapshotDeletionPolicy) indexWriter.getConfig().getIndexDeletionPolicy();
+				snapshotCount += snapshotDeletionPolicy.getSnapshotCount();
+				snapshotDeletionPolicy.getSnapshots()
+						.forEach(indexCommit -> snapshot_deletion_commits.add(indexCommit.getSegmentsFileName()));
+			}
+			has_pending_merges = pendingMerges;
+			has_uncommitted_changes = uncommittedChanges;
+			has_deletions = deletions;
+			ram_buffer_size_mb = indexWriters[0].getConfig().getRAMBufferSizeMB();
+			snapshot_deletion_count = snapshotCount;
 		}
 
 		this.index_uuid = indexUuid == null ? null : indexUuid.toString();
 		this.master_uuid = masterUuid == null ? null : masterUuid.toString();
-		version = indexReader instanceof DirectoryReader ? ((DirectoryReader) indexReader).getVersion() : null;
+		version = ShardsSearcherManager.getVersion(indexReader);
+		final DirectoryReader[] shardReaders = ShardsSearcherManager.getShardReaders(indexReader);
+		if (shardReaders == null)
+			shards_num_docs = null;
+		else {
+			shards_num_docs = new ArrayList<>(shardReaders.length);
+			for (DirectoryReader shardReader : shardReaders)
+				shards_num_docs.add((long) shardReader.numDocs());
+		}
 		this.settings = settings;
 		this.analyzers = analyzers;
 		this.fields = fields;
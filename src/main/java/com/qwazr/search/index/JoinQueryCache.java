@@ -0,0 +1,198 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.search.index;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FilterCollector;
+import org.apache.lucene.search.FilterLeafCollector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.join.ScoreMode;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The join queries built on one reader of the from index. The query returned by JoinUtil holds the collected terms
+ * (and scores): the cache is bounded by an estimation of their size, the least recently used queries are evicted
+ * first.
+ */
+class JoinQueryCache implements Accountable {
+
+	/**
+	 * The estimated size of the term collected from one document: the bytes of a short term, its slots in the hash
+	 * and in the ordinals, and its score
+	 */
+	private final static long BYTES_PER_DOCUMENT = 64;
+
+	private final static long ENTRY_BYTES =
+			RamUsageEstimator.shallowSizeOfInstance(Key.class) + RamUsageEstimator.shallowSizeOfInstance(Entry.class)
+					+ 2 * RamUsageEstimator.NUM_BYTES_OBJECT_REF + RamUsageEstimator.NUM_BYTES_OBJECT_HEADER;
+
+	final IndexReader indexReader;
+	private final long maxRamBytes;
+	private final LinkedHashMap<Key, Entry> entries;
+	private long ramBytesUsed;
+
+	JoinQueryCache(final IndexReader indexReader, final long maxRamBytes) {
+		this.indexReader = indexReader;
+		this.maxRamBytes = maxRamBytes;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+		this.ramBytesUsed = 0;
+	}
+
+	synchronized Query get(final Key key) {
+		final Entry entry = entries.get(key);
+		return entry == null ? null : entry.query;
+	}
+
+	/**
+	 * @param key                the definition of the join
+	 * @param query              the join query
+	 * @param collectedDocuments the number of documents collected on the from side
+	 */
+	synchronized void put(final Key key, final Query query, final long collectedDocuments) {
+		final Entry entry = new Entry(query, collectedDocuments);
+		// A join larger than the whole cache is not kept
+		if (entry.ramBytesUsed > maxRamBytes)
+			return;
+		final Entry previous = entries.put(key, entry);
+		if (previous != null)
+			ramBytesUsed -= previous.ramBytesUsed;
+		ramBytesUsed += entry.ramBytesUsed;
+		final Iterator<Entry> iterator = entries.values().iterator();
+		while (ramBytesUsed > maxRamBytes && iterator.hasNext()) {
+			ramBytesUsed -= iterator.next().ramBytesUsed;
+			iterator.remove();
+		}
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized long ramBytesUsed() {
+		return ramBytesUsed;
+	}
+
+	/**
+	 * @param indexSearcher the searcher of the from index
+	 * @param deadline      the time limit of the query, may be null
+	 * @param counter       incremented for each collected document
+	 * @return a single threaded searcher on the same reader counting the collected documents
+	 */
+	static IndexSearcher newCountingSearcher(final IndexSearcher indexSearcher, final QueryDeadline deadline,
+			final LongAdder counter) {
+		final IndexSearcher searcher = new IndexSearcher(indexSearcher.getTopReaderContext()) {
+
+			@Override
+			protected void search(final List<LeafReaderContext> leaves, final Weight weight, final Collector collector)
+					throws IOException {
+				super.search(leaves, weight, count(deadline == null ? collector : deadline.wrap(collector), counter));
+			}
+		};
+		searcher.setSimilarity(indexSearcher.getSimilarity(true));
+		return searcher;
+	}
+
+	private static Collector count(final Collector collector, final LongAdder counter) {
+		return new FilterCollector(collector) {
+
+			@Override
+			public LeafCollector getLeafCollector(final LeafReaderContext context) throws IOException {
+				return new FilterLeafCollector(super.getLeafCollector(context)) {
+
+					@Override
+					public void collect(final int doc) throws IOException {
+						super.collect(doc);
+						counter.increment();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * The join is identified by the Lucene query of its from side: the query objects compare their whole state,
+	 * including what the JSON definition does not serialize (classes, analyzers)
+	 */
+	static class Key {
+
+		private final String fromField;
+		private final String toField;
+		private final boolean multipleValuesPerDocument;
+		private final ScoreMode scoreMode;
+		private final Query fromQuery;
+		private final int hashCode;
+
+		Key(final String fromField, final String toField, final boolean multipleValuesPerDocument,
+				final ScoreMode scoreMode, final Query fromQuery) {
+			this.fromField = fromField;
+			this.toField = toField;
+			this.multipleValuesPerDocument = multipleValuesPerDocument;
+			this.scoreMode = scoreMode;
+			this.fromQuery = fromQuery;
+			this.hashCode = Objects.hash(fromField, toField, multipleValuesPerDocument, scoreMode, fromQuery);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (o == this)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			final Key key = (Key) o;
+			return hashCode == key.hashCode && multipleValuesPerDocument == key.multipleValuesPerDocument &&
+					scoreMode == key.scoreMode && Objects.equals(fromField, key.fromField) &&
+					Objects.equals(toField, key.toField) && fromQuery.equals(key.fromQuery);
+		}
+	}
+
+	private static class Entry implements Accountable {
+
+		private final Query query;
+		private final long ramBytesUsed;
+
+		private Entry(final Query query, final long collectedDocuments) {
+			this.query = query;
+			this.ramBytesUsed = ENTRY_BYTES + (query instanceof Accountable ?
+					((Accountable) query).ramBytesUsed() :
+					collectedDocuments * BYTES_PER_DOCUMENT);
+		}
+
+		@Override
+		public long ramBytesUsed() {
+			return ramBytesUsed;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations in microseconds.
+ * The buckets are log-linear: each power of two is split in 16 sub-buckets, the relative error is below 6.25%.
+ */
+class LatencyHistogram {
+
+	private final static int SUB_BUCKET_BITS = 4;
+	private final static int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private final static int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray buckets;
+	private final LongAdder count;
+	private final LongAdder sum;
+	private final LongAccumulator min;
+	private final LongAccumulator max;
+
+	LatencyHistogram() {
+		buckets = new AtomicLongArray(BUCKET_COUNT);
+		count = new LongAdder();
+		sum = new LongAdder();
+		min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+		max = new LongAccumulator(Math::max, 0);
+	}
+
+	private static int bucketIndex(final long value) {
+		if (value < SUB_BUCKET_COUNT)
+			return (int) value;
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		final int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+		return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	/**
+	 * @return the middle of the range of values of the bucket
+	 */
+	private static long bucketValue(final int index) {
+		if (index < SUB_BUCKET_COUNT)
+			return index;
+		final int shift = index / SUB_BUCKET_COUNT - 1;
+		final long lowerBound = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+		return lowerBound + ((1L << shift) >> 1);
+	}
+
+	/**
+	 * @param micros a duration in microseconds
+	 */
+	final void record(final long micros) {
+		final long value = micros < 0 ? 0 : micros;
+		buckets.incrementAndGet(bucketIndex(value));
+		count.increment();
+		sum.add(value);
+		min.accumulate(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * @param startNanos a start time given by System.nanoTime()
+	 * @return the recorded duration in nanoseconds
+	 */
+	final long recordSince(final long startNanos) {
+		final long nanos = System.nanoTime() - startNanos;
+		record(nanos / 1000);
+		return nanos;
+	}
+
+	final long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * The snapshot is not atomic, the values recorded meanwhile may be partially taken into account.
+	 *
+	 * @return the count, the min, the max, the mean and the percentiles in microseconds
+	 */
+	final Map<String, Object> toMap() {
+		final long[] counts = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			total += counts[i] = buckets.get(i);
+		final Map<String, Object> map = new LinkedHashMap<>();
+		map.put("count", total);
+		if (total == 0)
+			return map;
+		map.put("min_us", min.get());
+		map.put("max_us", max.get());
+		map.put("mean_us", sum.sum() / Math.max(1, count.sum()));
+		map.put("p50_us", percentile(counts, total, 0.50));
+		map.put("p90_us", percentile(counts, total, 0.90));
+		map.put("p99_us", percentile(counts, total, 0.99));
+		map.put("p999_us", percentile(counts, total, 0.999));
+		return map;
+	}
+
+	private static long percentile(final long[] counts, final long total, final double percentile) {
+		final long rank = Math.max(1, (long) Math.ceil(total * percentile));
+		long cumulative = 0;
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			if (cumulative >= rank)
+				return bucketValue(i);
+		}
+		return bucketValue(counts.length - 1);
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Exposes the metrics over JMX. The nested maps are flattened: the attribute "search.p99_us" is the "p99_us" entry of
+ * the "search" map. The attributes are read only.
+ */
+class MetricsMBean implements DynamicMBean {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetricsMBean.class);
+
+	final static String DOMAIN = "com.qwazr.search";
+
+	private final String description;
+	private final Supplier<Map<String, Object>> metrics;
+
+	private MetricsMBean(final String description, final Supplier<Map<String, Object>> metrics) {
+		this.description = description;
+		this.metrics = metrics;
+	}
+
+	private Map<String, Object> getAttributeMap() {
+		final Map<String, Object> attributes = new LinkedHashMap<>();
+		flatten(null, metrics.get(), attributes);
+		return attributes;
+	}
+
+	private static void flatten(final String prefix, final Map<?, ?> map, final Map<String, Object> attributes) {
+		map.forEach((key, value) -> {
+			final String name = prefix == null ? key.toString() : prefix + '.' + key;
+			if (value instanceof Map)
+				flatten(name, (Map<?, ?>) value, attributes);
+			else if (value != null)
+				attributes.put(name, value);
+		});
+	}
+
+	@Override
+	public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+		final Object value = getAttributeMap().get(attribute);
+		if (value == null)
+			throw new AttributeNotFoundException(attribute);
+		return value;
+	}
+
+	@Override
+	public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("The attribute is read only: " + attribute.getName());
+	}
+
+	@Override
+	public AttributeList getAttributes(final String[] attributes) {
+		final Map<String, Object> attributeMap = getAttributeMap();
+		final AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			final Object value = attributeMap.get(attribute);
+			if (value != null)
+				list.add(new Attribute(attribute, value));
+		}
+		return list;
+	}
+
+	@Override
+	public AttributeList setAttributes(final AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(final String actionName, final Object[] params, final String[] signature)
+			throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		final Map<String, Object> attributeMap = getAttributeMap();
+		final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[attributeMap.size()];
+		int i = 0;
+		for (Map.Entry<String, Object> entry : attributeMap.entrySet())
+			attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+					entry.getKey(), true, false, false);
+		return new MBeanInfo(getClass().getName(), description, attributes, null, null, null);
+	}
+
+	/**
+	 * Register the metrics on the platform MBean server. An existing MBean with the same name is replaced.
+	 *
+	 * @param properties  the key properties of the object name
+	 * @param description the description of the MBean
+	 * @param metrics     the supplier of the metrics
+	 * @return the name of the registered MBean, or null if the registration failed
+	 */
+	static ObjectName register(final String properties, final String description,
+			final Supplier<Map<String, Object>> metrics) {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName objectName = new ObjectName(DOMAIN + ':' + properties);
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(new MetricsMBean(description, metrics), objectName);
+			return objectName;
+		} catch (JMException e) {
+			LOGGER.warn("Cannot register the metrics " + properties + ": " + e.getMessage(), e);
+			return null;
+		}
+	}
+
+	static void unregister(final ObjectName objectName) {
+		if (objectName == null)
+			return;
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+		} catch (JMException e) {
+			LOGGER.warn("Cannot unregister the metrics " + objectName + ": " + e.getMessage(), e);
+		}
+	}
+}
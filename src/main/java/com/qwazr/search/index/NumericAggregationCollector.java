@@ -0,0 +1,139 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import com.qwazr.search.collector.DocValuesLeafCollector;
+import com.qwazr.server.ServerException;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.search.LeafCollector;
+
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Computes a built-in aggregation over the numeric doc values of one slice. The values are accumulated in primitive
+ * fields (and in a preallocated t-digest for the percentiles): nothing is allocated per document.
+ */
+class NumericAggregationCollector extends AggregationCollector {
+
+	final static int DEFAULT_COMPRESSION = 100;
+	final static double[] DEFAULT_PERCENTS = { 1, 5, 25, 50, 75, 95, 99 };
+
+	private final Factory factory;
+	private final TDigest digest;
+	private long count;
+	private double min;
+	private double max;
+	private double sum;
+
+	private NumericAggregationCollector(final Factory factory) {
+		super(factory);
+		this.factory = factory;
+		this.digest = factory.type == AggregationDefinition.Type.percentiles ? new TDigest(factory.compression) : null;
+		this.count = 0;
+		this.min = Double.POSITIVE_INFINITY;
+		this.max = Double.NEGATIVE_INFINITY;
+		this.sum = 0;
+	}
+
+	@Override
+	final public LeafCollector getLeafCollector(final LeafReaderContext context) throws IOException {
+		return new Leaf(DocValues.getSortedNumeric(context.reader(), factory.field));
+	}
+
+	@Override
+	final void add(final AggregationCollector collector) {
+		final NumericAggregationCollector other = (NumericAggregationCollector) collector;
+		count += other.count;
+		sum += other.sum;
+		if (other.min < min)
+			min = other.min;
+		if (other.max > max)
+			max = other.max;
+		if (digest != null)
+			digest.add(other.digest);
+	}
+
+	@Override
+	final public Object getResult() {
+		if (factory.type != AggregationDefinition.Type.percentiles)
+			return getMetric(factory.type, count, min, max, sum);
+		final Map<String, Double> percentiles = new LinkedHashMap<>();
+		for (double percent : factory.percents)
+			percentiles.put(Double.toString(percent), count == 0 ? null : digest.quantile(percent / 100));
+		return percentiles;
+	}
+
+	private class Leaf extends DocValuesLeafCollector.SortedNumeric {
+
+		private final Decoder decoder;
+
+		private Leaf(final SortedNumericDocValues docValues) throws IOException {
+			super(docValues);
+			this.decoder = factory.decoder;
+		}
+
+		@Override
+		final public void collect(final int doc) throws IOException {
+			docValues.setDocument(doc);
+			final int valueCount = docValues.count();
+			for (int i = 0; i < valueCount; i++) {
+				final double value = decoder.decode(docValues.valueAt(i));
+				count++;
+				sum += value;
+				if (value < min)
+					min = value;
+				if (value > max)
+					max = value;
+				if (digest != null)
+					digest.add(value);
+			}
+		}
+	}
+
+	static class Factory extends AggregationCollector.Factory {
+
+		private final AggregationDefinition.Type type;
+		private final String field;
+		private final Decoder decoder;
+		private final double[] percents;
+		private final int compression;
+
+		Factory(final String name, final AggregationDefinition definition, final FieldMap fieldMap) {
+			super(name);
+			this.type = definition.type;
+			this.field = definition.field;
+			this.decoder = Decoder.of(name, definition.field, fieldMap);
+			this.percents = definition.percents == null || definition.percents.length == 0 ?
+					DEFAULT_PERCENTS :
+					definition.percents;
+			for (double percent : percents)
+				if (percent < 0 || percent > 100)
+					throw new ServerException(Response.Status.NOT_ACCEPTABLE,
+							"The percents of the aggregation " + name + " must be between 0 and 100");
+			this.compression = definition.compression == null ? DEFAULT_COMPRESSION : definition.compression;
+		}
+
+		@Override
+		final NumericAggregationCollector newCollector() {
+			return new NumericAggregationCollector(this);
+		}
+	}
+}
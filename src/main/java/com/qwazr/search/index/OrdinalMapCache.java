@@ -0,0 +1,57 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.packed.PackedInts;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The maps from the segment ordinals to the global ordinals of the Sorted and SortedSet doc values of one reader.
+ * Building an OrdinalMap merges the terms of every segment: it is built once per field and per reader.
+ */
+class OrdinalMapCache {
+
+	final IndexReader indexReader;
+	private final Map<String, MultiDocValues.OrdinalMap> ordinalMaps;
+
+	OrdinalMapCache(final IndexReader indexReader) {
+		this.indexReader = indexReader;
+		this.ordinalMaps = new ConcurrentHashMap<>();
+	}
+
+	MultiDocValues.OrdinalMap get(final String field) throws IOException {
+		MultiDocValues.OrdinalMap ordinalMap = ordinalMaps.get(field);
+		if (ordinalMap != null)
+			return ordinalMap;
+		final List<LeafReaderContext> leaves = indexReader.leaves();
+		final SortedSetDocValues[] values = new SortedSetDocValues[leaves.size()];
+		for (int i = 0; i < values.length; i++)
+			values[i] = DocValues.getSortedSet(leaves.get(i).reader(), field);
+		ordinalMap = MultiDocValues.OrdinalMap.build(indexReader.getCoreCacheKey(), values, PackedInts.DEFAULT);
+		// Two queries may build the same map concurrently, both are identical
+		ordinalMaps.put(field, ordinalMap);
+		return ordinalMap;
+	}
+}
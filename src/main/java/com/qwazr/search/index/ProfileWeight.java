@@ -0,0 +1,192 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Records the time spent in the scorers of one query node, per segment.
+ * The bulk scorer is the default one, built on top of the profiled scorer.
+ */
+class ProfileWeight extends Weight {
+
+	private final Weight weight;
+	private final QueryProfiler.Node node;
+
+	ProfileWeight(final Weight weight, final QueryProfiler.Node node) {
+		super(weight.getQuery());
+		this.weight = weight;
+		this.node = node;
+	}
+
+	@Override
+	public void extractTerms(final Set<Term> terms) {
+		weight.extractTerms(terms);
+	}
+
+	@Override
+	public Explanation explain(final LeafReaderContext context, final int doc) throws IOException {
+		return weight.explain(context, doc);
+	}
+
+	@Override
+	public float getValueForNormalization() throws IOException {
+		return weight.getValueForNormalization();
+	}
+
+	@Override
+	public void normalize(final float norm, final float boost) {
+		weight.normalize(norm, boost);
+	}
+
+	@Override
+	public Scorer scorer(final LeafReaderContext context) throws IOException {
+		final QueryProfiler.LeafStats stats = node.getLeafStats(context.ord);
+		final long start = System.nanoTime();
+		final Scorer scorer = weight.scorer(context);
+		stats.buildScorer.add(start);
+		return scorer == null ? null : new ProfileScorer(this, scorer, stats);
+	}
+
+	private static class ProfileScorer extends Scorer {
+
+		private final Scorer scorer;
+		private final QueryProfiler.LeafStats stats;
+		private final TwoPhaseIterator twoPhaseIterator;
+		private final DocIdSetIterator iterator;
+
+		private ProfileScorer(final Weight weight, final Scorer scorer, final QueryProfiler.LeafStats stats) {
+			super(weight);
+			this.scorer = scorer;
+			this.stats = stats;
+			final TwoPhaseIterator twoPhase = scorer.twoPhaseIterator();
+			if (twoPhase == null) {
+				twoPhaseIterator = null;
+				iterator = new ProfileIterator(scorer.iterator(), stats);
+			} else {
+				twoPhaseIterator = new ProfileTwoPhaseIterator(twoPhase, stats);
+				iterator = TwoPhaseIterator.asDocIdSetIterator(twoPhaseIterator);
+			}
+		}
+
+		@Override
+		public int docID() {
+			return scorer.docID();
+		}
+
+		@Override
+		public int freq() throws IOException {
+			return scorer.freq();
+		}
+
+		@Override
+		public float score() throws IOException {
+			final long start = System.nanoTime();
+			final float score = scorer.score();
+			stats.score.add(start);
+			return score;
+		}
+
+		@Override
+		public DocIdSetIterator iterator() {
+			return iterator;
+		}
+
+		@Override
+		public TwoPhaseIterator twoPhaseIterator() {
+			return twoPhaseIterator;
+		}
+
+		@Override
+		public Collection<ChildScorer> getChildren() {
+			return Collections.singleton(new ChildScorer(scorer, "PROFILED"));
+		}
+	}
+
+	private static class ProfileIterator extends DocIdSetIterator {
+
+		private final DocIdSetIterator iterator;
+		private final QueryProfiler.LeafStats stats;
+
+		private ProfileIterator(final DocIdSetIterator iterator, final QueryProfiler.LeafStats stats) {
+			this.iterator = iterator;
+			this.stats = stats;
+		}
+
+		@Override
+		public int docID() {
+			return iterator.docID();
+		}
+
+		@Override
+		public int nextDoc() throws IOException {
+			final long start = System.nanoTime();
+			final int doc = iterator.nextDoc();
+			stats.nextDoc.add(start);
+			return doc;
+		}
+
+		@Override
+		public int advance(final int target) throws IOException {
+			final long start = System.nanoTime();
+			final int doc = iterator.advance(target);
+			stats.advance.add(start);
+			return doc;
+		}
+
+		@Override
+		public long cost() {
+			return iterator.cost();
+		}
+	}
+
+	private static class ProfileTwoPhaseIterator extends TwoPhaseIterator {
+
+		private final TwoPhaseIterator twoPhaseIterator;
+		private final QueryProfiler.LeafStats stats;
+
+		private ProfileTwoPhaseIterator(final TwoPhaseIterator twoPhaseIterator,
+				final QueryProfiler.LeafStats stats) {
+			super(new ProfileIterator(twoPhaseIterator.approximation(), stats));
+			this.twoPhaseIterator = twoPhaseIterator;
+			this.stats = stats;
+		}
+
+		@Override
+		public boolean matches() throws IOException {
+			final long start = System.nanoTime();
+			final boolean matches = twoPhaseIterator.matches();
+			stats.matches.add(start);
+			return matches;
+		}
+
+		@Override
+		public float matchCost() {
+			return twoPhaseIterator.matchCost();
+		}
+	}
+}
@@ -27,6 +27,7 @@ public class QueryBuilder {
 	Integer rows = null;
 	Boolean queryDebug = null;
 	LinkedHashSet<String> returnedFields = null;
+	Boolean docValuesOnly = null;
 
 	String queryString = null;
 	Boolean escapeQuery = null;
@@ -36,6 +37,8 @@ public class QueryBuilder {
 
 	LinkedHashMap<String, FacetDefinition> facets = null;
 
+	LinkedHashMap<String, AggregationDefinition> aggregations = null;
+
 	LinkedHashMap<String, QueryDefinition.SortEnum> sorts = null;
 	LinkedHashMap<String, QueryDefinition.CollectorDefinition> collectors = null;
 
@@ -43,6 +46,11 @@ public class QueryBuilder {
 
 	AbstractQuery query = null;
 
+	SearchAfterDefinition searchAfter = null;
+	Integer totalHitsThreshold = null;
+	Long timeoutMs = null;
+	Boolean profile = null;
+
 	public QueryBuilder() {
 	}
 
@@ -55,18 +63,25 @@ public class QueryBuilder {
 		rows = queryDef.rows;
 		queryDebug = queryDef.query_debug;
 		returnedFields = queryDef.returned_fields;
+		docValuesOnly = queryDef.doc_values_only;
 
 		queryString = queryDef.query_string;
 		escapeQuery = queryDef.escape_query;
 		escapedChars = queryDef.escaped_chars;
 
 		facets = queryDef.facets;
+		aggregations = queryDef.aggregations;
 		sorts = queryDef.sorts;
 		collectors = queryDef.collectors;
 
 		highlighters = queryDef.highlighters;
 
 		query = queryDef.query;
+
+		searchAfter = queryDef.search_after;
+		totalHitsThreshold = queryDef.total_hits_threshold;
+		timeoutMs = queryDef.timeout_ms;
+		profile = queryDef.profile;
 	}
 
 	public QueryBuilder queryDebug(final Boolean queryDebug) {
@@ -135,6 +150,15 @@ public class QueryBuilder {
 		return this;
 	}
 
+	/**
+	 * @param docValuesOnly true to read the returned fields from the doc values only, the stored fields are not read
+	 * @return the current builder
+	 */
+	public QueryBuilder docValuesOnly(final Boolean docValuesOnly) {
+		this.docValuesOnly = docValuesOnly;
+		return this;
+	}
+
 	public QueryBuilder facets(final Map<String, FacetDefinition> facets) {
 		if (facets == null || facets.isEmpty())
 			return this;
@@ -159,6 +183,24 @@ public class QueryBuilder {
 		return facet(facetName.name(), facetDefinition);
 	}
 
+	public QueryBuilder aggregations(final Map<String, AggregationDefinition> aggregations) {
+		if (aggregations == null || aggregations.isEmpty())
+			return this;
+		if (this.aggregations == null)
+			this.aggregations = new LinkedHashMap<>();
+		this.aggregations.putAll(aggregations);
+		return this;
+	}
+
+	public QueryBuilder aggregation(final String name, final AggregationDefinition aggregationDefinition) {
+		if (name == null || aggregationDefinition == null)
+			return this;
+		if (this.aggregations == null)
+			this.aggregations = new LinkedHashMap<>();
+		this.aggregations.put(name, aggregationDefinition);
+		return this;
+	}
+
 	public QueryBuilder similarity(final Similarity similarity) {
 		this.similarity = similarity;
 		return this;
@@ -221,6 +263,39 @@ public class QueryBuilder {
 		return this;
 	}
 
+	public QueryBuilder searchAfter(final SearchAfterDefinition searchAfter) {
+		this.searchAfter = searchAfter;
+		return this;
+	}
+
+	/**
+	 * @param totalHitsThreshold the number of hits after which the collection may stop, the total hits becoming a
+	 *                           lower bound
+	 * @return the current builder
+	 */
+	public QueryBuilder totalHitsThreshold(final Integer totalHitsThreshold) {
+		this.totalHitsThreshold = totalHitsThreshold;
+		return this;
+	}
+
+	/**
+	 * @param timeoutMs the time limit of the search in milliseconds, the documents collected so far are returned
+	 * @return the current builder
+	 */
+	public QueryBuilder timeoutMs(final Long timeoutMs) {
+		this.timeoutMs = timeoutMs;
+		return this;
+	}
+
+	/**
+	 * @param profile true to return the timings of the query nodes and of the collectors
+	 * @return the current builder
+	 */
+	public QueryBuilder profile(final Boolean profile) {
+		this.profile = profile;
+		return this;
+	}
+
 	public QueryDefinition build() {
 		return new QueryDefinition(this);
 	}
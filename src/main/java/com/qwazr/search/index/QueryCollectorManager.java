@@ -33,6 +33,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -57,23 +58,26 @@ class QueryCollectorManager extends QueryCollectors implements CollectorManager<
 
 			final Set<String> facetKeys = queryExecution.queryDef.facets.keySet();
 			final ParallelDrillSideways.Result<QueryCollectors> drillSidewaysResult =
-					new ParallelDrillSideways(queryExecution.queryContext.executorService,
-							queryExecution.queryContext.indexSearcher,
+					new ParallelDrillSideways(queryExecution.executorService,
+							queryExecution.indexSearcher,
 							queryExecution.queryContext.fieldMap.getNewFacetsConfig(facetKeys),
-							queryExecution.queryContext.state).search(
+							queryExecution.queryContext.state,
+							queryExecution.deadline == null ? null : queryExecution.deadline::wrap).search(
 							(org.apache.lucene.facet.DrillDownQuery) queryExecution.query, facetKeys,
 							getDimPathPairs((DrillDownQuery) queryExecution.queryDef.query), this);
 			facetsBuilder = new FacetsBuilder.WithSideways(queryExecution.queryContext, queryExecution.queryDef.facets,
-					queryExecution.query, queryExecution.timeTracker, drillSidewaysResult).build();
+					queryExecution.query, queryExecution.timeTracker, queryExecution.deadline,
+					drillSidewaysResult).build();
 
 		} else {
 
-			queryExecution.queryContext.indexSearcher.search(queryExecution.query, this);
+			queryExecution.indexSearcher.search(queryExecution.query, this);
 			facetsCollector = getFacetsCollector();
 			if (facetsCollector != null)
 				facetsBuilder =
 						new FacetsBuilder.WithCollectors(queryExecution.queryContext, queryExecution.queryDef.facets,
-								queryExecution.query, queryExecution.timeTracker, facetsCollector).build();
+								queryExecution.query, queryExecution.timeTracker, queryExecution.deadline,
+								facetsCollector).build();
 			else
 				facetsBuilder = null;
 		}
@@ -172,4 +176,22 @@ class QueryCollectorManager extends QueryCollectors implements CollectorManager<
 		}
 		return results;
 	}
+
+	@Override
+	public final Map<String, Object> getAggregationResults() {
+		if (queryCollectorsList == null || queryCollectorsList.isEmpty())
+			return null;
+		if (queryExecution.aggregationFactories == null)
+			return null;
+		final Map<String, Object> results = new LinkedHashMap<>();
+		int i = 0;
+		for (AggregationCollector.Factory factory : queryExecution.aggregationFactories) {
+			final List<AggregationCollector> sliceCollectors = new ArrayList<>(queryCollectorsList.size());
+			for (QueryCollectorsClassic queryCollectors : queryCollectorsList)
+				sliceCollectors.add(queryCollectors.aggregationCollectors.get(i));
+			results.put(factory.name, AggregationCollector.reduce(sliceCollectors));
+			i++;
+		}
+		return results;
+	}
 }
@@ -20,7 +20,9 @@ import com.qwazr.search.collector.BaseCollector;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.lucene.facet.FacetsCollector;
 import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.MultiCollector;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopDocsCollector;
@@ -44,6 +46,8 @@ class QueryCollectorsClassic extends QueryCollectors {
 
 	final List<BaseCollector> userCollectors;
 
+	final List<AggregationCollector> aggregationCollectors;
+
 	final TotalHitCountCollector totalHitCountCollector;
 
 	final TopDocsCollector topDocsCollector;
@@ -55,13 +59,20 @@ class QueryCollectorsClassic extends QueryCollectors {
 		collectors = new ArrayList<>();
 		facetsCollector = queryExecution.useDrillSideways ? null : buildFacetsCollector(queryExecution.queryDef.facets);
 		totalHitCountCollector = buildTotalHitsCollector(queryExecution.numHits);
-		topDocsCollector = buildTopDocCollector(queryExecution.sort, queryExecution.numHits, queryExecution.bNeedScore);
+		topDocsCollector = buildTopDocCollector(queryExecution.sort, queryExecution.numHits, queryExecution.searchAfter,
+				queryExecution.bNeedScore);
 		if (queryExecution.collectorConstructors != null) {
 			userCollectors = new ArrayList<>();
 			for (Pair<Constructor, Object[]> item : queryExecution.collectorConstructors)
 				userCollectors.add(add((BaseCollector) item.getLeft().newInstance(item.getRight())));
 		} else
 			userCollectors = null;
+		if (queryExecution.aggregationFactories != null) {
+			aggregationCollectors = new ArrayList<>(queryExecution.aggregationFactories.size());
+			for (AggregationCollector.Factory factory : queryExecution.aggregationFactories)
+				aggregationCollectors.add(add(factory.newCollector()));
+		} else
+			aggregationCollectors = null;
 		finalCollector = getFinalCollector();
 	}
 
@@ -70,7 +81,7 @@ class QueryCollectorsClassic extends QueryCollectors {
 		return collector;
 	}
 
-	private Collector getFinalCollector() {
+	private Collector buildFinalCollector() {
 		switch (collectors.size()) {
 		case 0:
 			return null;
@@ -81,6 +92,19 @@ class QueryCollectorsClassic extends QueryCollectors {
 		}
 	}
 
+	private Collector getFinalCollector() {
+		Collector collector = buildFinalCollector();
+		if (collector == null)
+			return null;
+		if (collector == topDocsCollector && queryExecution.totalHitsThreshold != null)
+			collector = queryExecution.totalHitsThreshold.wrap(collector);
+		if (queryExecution.deadline != null)
+			collector = queryExecution.deadline.wrap(collector);
+		if (queryExecution.profiler != null)
+			collector = queryExecution.profiler.wrap(collector);
+		return collector;
+	}
+
 	private FacetsCollector buildFacetsCollector(final LinkedHashMap<String, FacetDefinition> facets) {
 		if (facets == null || facets.isEmpty())
 			return null;
@@ -90,15 +114,16 @@ class QueryCollectorsClassic extends QueryCollectors {
 		return null;
 	}
 
-	private TopDocsCollector buildTopDocCollector(final Sort sort, final int numHits, final boolean bNeedScore)
-			throws IOException {
+	private TopDocsCollector buildTopDocCollector(final Sort sort, final int numHits, final ScoreDoc searchAfter,
+			final boolean bNeedScore) throws IOException {
 		if (numHits == 0)
 			return null;
 		final TopDocsCollector topDocsCollector;
 		if (sort != null)
-			topDocsCollector = TopFieldCollector.create(sort, numHits, true, bNeedScore, bNeedScore);
+			topDocsCollector =
+					TopFieldCollector.create(sort, numHits, (FieldDoc) searchAfter, true, bNeedScore, bNeedScore);
 		else
-			topDocsCollector = TopScoreDocCollector.create(numHits);
+			topDocsCollector = TopScoreDocCollector.create(numHits, searchAfter);
 		return add(topDocsCollector);
 	}
 
@@ -144,4 +169,14 @@ class QueryCollectorsClassic extends QueryCollectors {
 			results.put(name, userCollectors.get(i++).getResult());
 		return results;
 	}
+
+	@Override
+	public final Map<String, Object> getAggregationResults() {
+		if (aggregationCollectors == null)
+			return null;
+		final Map<String, Object> results = new LinkedHashMap<>();
+		for (AggregationCollector collector : aggregationCollectors)
+			results.put(collector.name, collector.getResult());
+		return results;
+	}
 }
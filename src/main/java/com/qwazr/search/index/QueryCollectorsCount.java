@@ -0,0 +1,67 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.search.TopDocs;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Used when no document, no facet, no collector and no aggregation is requested.
+ * IndexSearcher.count answers without any collection for some queries (MatchAllDocsQuery, TermQuery).
+ */
+class QueryCollectorsCount extends QueryCollectors {
+
+	private Integer totalHits;
+
+	QueryCollectorsCount(final QueryExecution queryExecution) {
+		super(queryExecution);
+		totalHits = null;
+	}
+
+	@Override
+	final FacetsBuilder execute() throws IOException {
+		totalHits = queryExecution.indexSearcher.count(queryExecution.query);
+		return null;
+	}
+
+	@Override
+	final Integer getTotalHits() {
+		return totalHits;
+	}
+
+	@Override
+	final TopDocs getTopDocs() {
+		return null;
+	}
+
+	@Override
+	final FacetsCollector getFacetsCollector() {
+		return null;
+	}
+
+	@Override
+	final Map<String, Object> getExternalResults() {
+		return null;
+	}
+
+	@Override
+	final Map<String, Object> getAggregationResults() {
+		return null;
+	}
+}
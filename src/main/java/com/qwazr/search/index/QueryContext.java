@@ -16,6 +16,8 @@
 package com.qwazr.search.index;
 
 import com.qwazr.classloader.ClassLoaderManager;
+import com.qwazr.search.analysis.AnalyzerCache;
+import com.qwazr.search.analysis.AnalyzerDefinition;
 import com.qwazr.search.analysis.UpdatableAnalyzer;
 import com.qwazr.utils.StringUtils;
 import org.apache.lucene.analysis.util.ResourceLoader;
@@ -23,6 +25,7 @@ import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
 
+import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 
 final public class QueryContext {
@@ -38,22 +41,51 @@ final public class QueryContext {
 	final public ResourceLoader resourceLoader;
 	final public ClassLoaderManager classLoaderManager;
 	final public SchemaInstance schemaInstance;
+	final OrdinalMapCache ordinalMaps;
+	final QueryDeadline deadline;
 
 	public QueryContext(final SchemaInstance schemaInstance, final ResourceLoader resourceLoader,
 			final IndexSearcher indexSearcher, final ExecutorService executorService,
 			final UpdatableAnalyzer indexAnalyzer, final UpdatableAnalyzer queryAnalyzer, final FieldMap fieldMap,
 			final SortedSetDocValuesReaderState state, final QueryDefinition queryDefinition) {
+		this(schemaInstance, resourceLoader, indexSearcher, executorService, indexAnalyzer, queryAnalyzer, fieldMap,
+				state, null, queryDefinition);
+	}
+
+	/**
+	 * @param ordinalMaps the ordinal maps cached for the reader of the searcher, or null to build them per query
+	 */
+	QueryContext(final SchemaInstance schemaInstance, final ResourceLoader resourceLoader,
+			final IndexSearcher indexSearcher, final ExecutorService executorService,
+			final UpdatableAnalyzer indexAnalyzer, final UpdatableAnalyzer queryAnalyzer, final FieldMap fieldMap,
+			final SortedSetDocValuesReaderState state, final OrdinalMapCache ordinalMaps,
+			final QueryDefinition queryDefinition) {
 		this.schemaInstance = schemaInstance;
 		this.classLoaderManager = schemaInstance == null ? null : schemaInstance.getClassLoaderManager();
 		this.resourceLoader = resourceLoader;
 		this.indexSearcher = indexSearcher;
 		this.executorService = executorService;
 		this.state = state;
+		this.ordinalMaps = ordinalMaps != null || indexSearcher == null ?
+				ordinalMaps :
+				new OrdinalMapCache(indexSearcher.getIndexReader());
 		this.indexAnalyzer = indexAnalyzer;
 		this.queryAnalyzer = queryAnalyzer;
 		this.fieldMap = fieldMap;
 		this.queryDefinition = queryDefinition;
 		this.queryString = queryDefinition == null ? null : getFinalQueryString(queryDefinition);
+		this.deadline =
+				QueryDeadline.of(queryDefinition, schemaInstance == null ? null : schemaInstance.getSettings());
+	}
+
+	/**
+	 * @return an analyzer built with the resources of the query, cached by the schema
+	 */
+	public AnalyzerCache.Lease acquireAnalyzer(final AnalyzerDefinition definition)
+			throws ReflectiveOperationException, IOException {
+		return schemaInstance == null ?
+				AnalyzerCache.build(classLoaderManager, resourceLoader, definition) :
+				schemaInstance.acquireAnalyzer(resourceLoader, definition);
 	}
 
 	private static String getFinalQueryString(final QueryDefinition queryDef) {
@@ -0,0 +1,375 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.FilterDirectoryReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FilterCollector;
+import org.apache.lucene.search.FilterLeafCollector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time limit of a query. The collectors, the term enumerations, the facets and the highlighters check it
+ * cooperatively: once expired, the remaining work is skipped and the response is flagged as timed out.
+ */
+class QueryDeadline {
+
+	/**
+	 * Number of collected documents, or enumerated terms, between two checks of the clock
+	 */
+	private final static int CHECK_INTERVAL = 128;
+
+	/**
+	 * The deadline checked by the term enumerations of the current thread
+	 */
+	private final static ThreadLocal<QueryDeadline> CURRENT = new ThreadLocal<>();
+
+	private final long deadlineNanos;
+	private volatile boolean expired;
+
+	private QueryDeadline(final long timeoutMs) {
+		this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		this.expired = false;
+	}
+
+	/**
+	 * @param queryDef       the query definition
+	 * @param schemaSettings the settings of the schema, may be null
+	 * @return the deadline of the query, or null if there is no time limit
+	 */
+	static QueryDeadline of(final QueryDefinition queryDef, final SchemaSettingsDefinition schemaSettings) {
+		if (queryDef == null)
+			return null;
+		final Long timeoutMs = queryDef.timeout_ms != null ?
+				queryDef.timeout_ms :
+				schemaSettings == null ? null : schemaSettings.default_timeout_ms;
+		return timeoutMs == null || timeoutMs <= 0 ? null : new QueryDeadline(timeoutMs);
+	}
+
+	/**
+	 * @return true if the time limit is reached
+	 */
+	final boolean isExpired() {
+		if (expired)
+			return true;
+		if (System.nanoTime() - deadlineNanos >= 0)
+			expired = true;
+		return expired;
+	}
+
+	/**
+	 * Called when a task did not finish in time
+	 */
+	final void expire() {
+		expired = true;
+	}
+
+	/**
+	 * @return true if some work has been skipped because the time limit was reached
+	 */
+	final boolean isTimedOut() {
+		return expired;
+	}
+
+	/**
+	 * @return the remaining time in milliseconds, at least 0
+	 */
+	final long getRemainingMs() {
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+	}
+
+	/**
+	 * @param collector the collector of one slice
+	 * @return a collector which stops collecting once the time limit is reached
+	 */
+	final Collector wrap(final Collector collector) {
+		return new FilterCollector(collector) {
+
+			@Override
+			public LeafCollector getLeafCollector(final LeafReaderContext context) throws IOException {
+				if (isExpired())
+					throw new CollectionTerminatedException();
+				return new FilterLeafCollector(super.getLeafCollector(context)) {
+
+					private int count = 0;
+
+					@Override
+					public void collect(final int doc) throws IOException {
+						if (++count == CHECK_INTERVAL) {
+							count = 0;
+							if (isExpired())
+								throw new CollectionTerminatedException();
+						}
+						super.collect(doc);
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * @param indexSearcher   the searcher to limit
+	 * @param executorService the executor returned by {@link #wrap(ExecutorService)}, may be null
+	 * @return a searcher on the same reader whose concurrent slices enumerate the terms with this deadline
+	 */
+	final IndexSearcher newSearcher(final IndexSearcher indexSearcher, final ExecutorService executorService) {
+		final IndexSearcher searcher = new IndexSearcher(indexSearcher.getTopReaderContext(), executorService);
+		searcher.setSimilarity(indexSearcher.getSimilarity(true));
+		return searcher;
+	}
+
+	/**
+	 * @param executorService the executor to wrap, may be null
+	 * @return an executor running its tasks with this deadline, see {@link #enter(QueryDeadline)}
+	 */
+	final ExecutorService wrap(final ExecutorService executorService) {
+		return executorService == null ? null : new DeadlineExecutor(executorService);
+	}
+
+	/**
+	 * Sets the deadline checked by the term enumerations of the current thread, until the returned scope is closed
+	 *
+	 * @param deadline the deadline, may be null
+	 * @return the scope restoring the previous deadline of the thread
+	 */
+	static Scope enter(final QueryDeadline deadline) {
+		final QueryDeadline previous = CURRENT.get();
+		if (deadline != null)
+			CURRENT.set(deadline);
+		return new Scope(previous);
+	}
+
+	static class Scope implements AutoCloseable {
+
+		private final QueryDeadline previous;
+
+		private Scope(final QueryDeadline previous) {
+			this.previous = previous;
+		}
+
+		@Override
+		public void close() {
+			if (previous == null)
+				CURRENT.remove();
+			else
+				CURRENT.set(previous);
+		}
+	}
+
+	/**
+	 * @param throwable an exception thrown by a search
+	 * @return true if the exception, or one of its causes, stopped a term enumeration at the time limit
+	 */
+	static boolean isExpired(Throwable throwable) {
+		while (throwable != null) {
+			if (throwable instanceof Expired)
+				return true;
+			throwable = throwable.getCause();
+		}
+		return false;
+	}
+
+	/**
+	 * Thrown by a term enumeration once the time limit is reached
+	 */
+	private static class Expired extends RuntimeException {
+
+		private Expired() {
+			super("The time limit of the query is reached", null, false, false);
+		}
+	}
+
+	/**
+	 * @param reader the reader to wrap
+	 * @return a reader whose term enumerations check the deadline of the current thread, if any
+	 */
+	static DirectoryReader wrap(final DirectoryReader reader) throws IOException {
+		return new DeadlineDirectoryReader(reader);
+	}
+
+	private static class DeadlineDirectoryReader extends FilterDirectoryReader {
+
+		private DeadlineDirectoryReader(final DirectoryReader in) throws IOException {
+			super(in, new SubReaderWrapper() {
+				@Override
+				public LeafReader wrap(final LeafReader reader) {
+					return new DeadlineLeafReader(reader);
+				}
+			});
+		}
+
+		@Override
+		protected DirectoryReader doWrapDirectoryReader(final DirectoryReader in) throws IOException {
+			return new DeadlineDirectoryReader(in);
+		}
+	}
+
+	/**
+	 * The caches of the segment are shared with the wrapped reader
+	 */
+	private static class DeadlineLeafReader extends FilterLeafReader {
+
+		private DeadlineLeafReader(final LeafReader in) {
+			super(in);
+		}
+
+		@Override
+		public Fields fields() throws IOException {
+			final Fields fields = super.fields();
+			final QueryDeadline deadline = CURRENT.get();
+			if (deadline == null)
+				return fields;
+			return new FilterFields(fields) {
+				@Override
+				public Terms terms(final String field) throws IOException {
+					final Terms terms = super.terms(field);
+					return terms == null ? null : deadline.wrap(terms);
+				}
+			};
+		}
+
+		@Override
+		public Object getCoreCacheKey() {
+			return in.getCoreCacheKey();
+		}
+
+		@Override
+		public Object getCombinedCoreAndDeletesKey() {
+			return in.getCombinedCoreAndDeletesKey();
+		}
+
+		@Override
+		public void addCoreClosedListener(final CoreClosedListener listener) {
+			in.addCoreClosedListener(listener);
+		}
+
+		@Override
+		public void removeCoreClosedListener(final CoreClosedListener listener) {
+			in.removeCoreClosedListener(listener);
+		}
+	}
+
+	private Terms wrap(final Terms terms) {
+		return new FilterLeafReader.FilterTerms(terms) {
+
+			@Override
+			public TermsEnum iterator() throws IOException {
+				return wrap(in.iterator());
+			}
+
+			@Override
+			public TermsEnum intersect(final CompiledAutomaton compiled, final BytesRef startTerm) throws IOException {
+				return wrap(in.intersect(compiled, startTerm));
+			}
+		};
+	}
+
+	private TermsEnum wrap(final TermsEnum termsEnum) {
+		return new FilterLeafReader.FilterTermsEnum(termsEnum) {
+
+			private int count = 0;
+
+			@Override
+			public BytesRef next() throws IOException {
+				if (++count == CHECK_INTERVAL) {
+					count = 0;
+					if (isExpired())
+						throw new Expired();
+				}
+				return in.next();
+			}
+
+			@Override
+			public boolean seekExact(final BytesRef text) throws IOException {
+				return in.seekExact(text);
+			}
+
+			@Override
+			public void seekExact(final BytesRef term, final TermState state) throws IOException {
+				in.seekExact(term, state);
+			}
+
+			@Override
+			public TermState termState() throws IOException {
+				return in.termState();
+			}
+		};
+	}
+
+	/**
+	 * Runs the tasks of the shared executor with this deadline
+	 */
+	private class DeadlineExecutor extends AbstractExecutorService {
+
+		private final ExecutorService executorService;
+
+		private DeadlineExecutor(final ExecutorService executorService) {
+			this.executorService = executorService;
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+			executorService.execute(() -> {
+				try (final Scope scope = enter(QueryDeadline.this)) {
+					command.run();
+				}
+			});
+		}
+
+		@Override
+		public void shutdown() {
+			throw new UnsupportedOperationException("The executor is shared");
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			throw new UnsupportedOperationException("The executor is shared");
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return executorService.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return executorService.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+			return executorService.awaitTermination(timeout, unit);
+		}
+	}
+}
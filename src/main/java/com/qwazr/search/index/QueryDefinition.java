@@ -52,13 +52,21 @@ public class QueryDefinition extends BaseQueryDefinition {
 	}
 
 	final public LinkedHashSet<String> returned_fields;
+	final public Boolean doc_values_only;
 
 	final public LinkedHashMap<String, FacetDefinition> facets;
 
+	final public LinkedHashMap<String, AggregationDefinition> aggregations;
+
 	final public LinkedHashMap<String, HighlighterDefinition> highlighters;
 
 	final public AbstractQuery query;
 
+	final public SearchAfterDefinition search_after;
+	final public Integer total_hits_threshold;
+	final public Long timeout_ms;
+	final public Boolean profile;
+
 	public static class CollectorDefinition {
 
 		@JsonProperty("class")
@@ -82,11 +90,17 @@ public class QueryDefinition extends BaseQueryDefinition {
 		escape_query = null;
 		escaped_chars = null;
 		returned_fields = null;
+		doc_values_only = null;
 		facets = null;
+		aggregations = null;
 		sorts = null;
 		collectors = null;
 		highlighters = null;
 		query = null;
+		search_after = null;
+		total_hits_threshold = null;
+		timeout_ms = null;
+		profile = null;
 	}
 
 	QueryDefinition(final QueryBuilder builder) {
@@ -95,11 +109,17 @@ public class QueryDefinition extends BaseQueryDefinition {
 		escape_query = builder.escapeQuery;
 		escaped_chars = builder.escapedChars;
 		returned_fields = builder.returnedFields;
+		doc_values_only = builder.docValuesOnly;
 		facets = builder.facets;
+		aggregations = builder.aggregations;
 		sorts = builder.sorts;
 		collectors = builder.collectors;
 		highlighters = builder.highlighters;
 		query = builder.query;
+		search_after = builder.searchAfter;
+		total_hits_threshold = builder.totalHitsThreshold;
+		timeout_ms = builder.timeoutMs;
+		profile = builder.profile;
 	}
 
 	public static QueryDefinition newQuery(final String jsonString) throws IOException {
@@ -25,17 +25,23 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.flexible.core.QueryNodeException;
 import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TopDocs;
 
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
 class QueryExecution {
@@ -44,27 +50,55 @@ class QueryExecution {
 	final QueryDefinition queryDef;
 	final TimeTracker timeTracker;
 	final int numHits;
+	final ScoreDoc searchAfter;
 	final Sort sort;
 	final boolean bNeedScore;
 	final boolean useDrillSideways;
 	final Query query;
 	final List<Pair<Constructor, Object[]>> collectorConstructors;
+	final List<AggregationCollector.Factory> aggregationFactories;
+	final TotalHitsThreshold totalHitsThreshold;
+	final QueryDeadline deadline;
+	final QueryProfiler profiler;
+	final IndexSearcher indexSearcher;
+	final ExecutorService executorService;
 
 	private final boolean isConcurrent;
+	private final boolean isCountOnly;
 
 	QueryExecution(final QueryContext queryContext)
 			throws QueryNodeException, ReflectiveOperationException, ParseException, IOException {
 
 		this.timeTracker = new TimeTracker();
+		this.deadline = queryContext.deadline;
 
 		this.queryContext = queryContext;
 		this.queryDef = queryContext.queryDefinition;
 
-		this.query = queryDef.query == null ? new MatchAllDocsQuery() : queryDef.query.getQuery(queryContext);
+		// The concurrent tasks enumerate the terms with the deadline of the query
+		this.executorService =
+				deadline == null ? queryContext.executorService : deadline.wrap(queryContext.executorService);
+		if (queryDef.profile != null && queryDef.profile) {
+			this.profiler = new QueryProfiler();
+			this.indexSearcher = profiler.newSearcher(queryContext.indexSearcher, executorService);
+		} else {
+			this.profiler = null;
+			this.indexSearcher = deadline == null ?
+					queryContext.indexSearcher :
+					deadline.newSearcher(queryContext.indexSearcher, executorService);
+		}
+
+		this.query = buildQuery();
 
 		this.sort = queryDef.sorts == null ? null : SortUtils.buildSort(queryContext.fieldMap, queryDef.sorts);
 
-		this.numHits = queryDef.getEnd();
+		if (queryDef.search_after != null) {
+			this.searchAfter = queryDef.search_after.getScoreDoc(sort);
+			this.numHits = queryDef.getRows();
+		} else {
+			this.searchAfter = null;
+			this.numHits = queryDef.getEnd();
+		}
 		this.bNeedScore = sort == null || sort.needsScores();
 		this.useDrillSideways =
 				queryDef.query instanceof DrillDownQuery && ((DrillDownQuery) queryDef.query).useDrillSideways
@@ -77,6 +111,60 @@ class QueryExecution {
 			collectorConstructors = null;
 			isConcurrent = true;
 		}
+		if (queryDef.aggregations != null && !queryDef.aggregations.isEmpty()) {
+			aggregationFactories = new ArrayList<>(queryDef.aggregations.size());
+			for (Map.Entry<String, AggregationDefinition> entry : queryDef.aggregations.entrySet())
+				aggregationFactories.add(
+						AggregationCollector.Factory.of(entry.getKey(), entry.getValue(), queryContext));
+		} else
+			aggregationFactories = null;
+		this.totalHitsThreshold = TotalHitsThreshold.of(queryDef, query, sort, numHits);
+		this.isCountOnly = queryDef.getRows() == 0 && searchAfter == null && collectorConstructors == null &&
+				aggregationFactories == null && !useDrillSideways &&
+				(queryDef.facets == null || queryDef.facets.isEmpty());
+	}
+
+	/**
+	 * @return the query, or a query matching no document if the time limit was reached while building it
+	 */
+	private Query buildQuery() throws QueryNodeException, ReflectiveOperationException, ParseException, IOException {
+		if (queryDef.query == null)
+			return new MatchAllDocsQuery();
+		try (final QueryDeadline.Scope scope = QueryDeadline.enter(deadline)) {
+			return queryDef.query.getQuery(queryContext);
+		} catch (RuntimeException e) {
+			if (!QueryDeadline.isExpired(e))
+				throw e;
+			return new MatchNoDocsQuery();
+		}
+	}
+
+	/**
+	 * Runs the collectors. If the time limit is reached while enumerating the terms, the documents collected so far
+	 * are returned without facets.
+	 */
+	private FacetsBuilder collect(final QueryCollectors queryCollectors)
+			throws IOException, ParseException, ReflectiveOperationException, QueryNodeException {
+		try (final QueryDeadline.Scope scope = QueryDeadline.enter(deadline)) {
+			return queryCollectors.execute();
+		} catch (RuntimeException e) {
+			if (!QueryDeadline.isExpired(e))
+				throw e;
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the collection terminated early, null if the total hits is exact
+	 */
+	private Boolean isTotalHitsLowerBound() {
+		return totalHitsThreshold != null && totalHitsThreshold.isTerminated() ? Boolean.TRUE : null;
+	}
+
+	private QueryCollectors newQueryCollectors() throws IOException, ReflectiveOperationException {
+		if (isCountOnly)
+			return new QueryCollectorsCount(this);
+		return isConcurrent ? new QueryCollectorManager(this) : new QueryCollectorsClassic(this);
 	}
 
 	private static boolean buildExternalCollectors(final ClassLoaderManager classLoaderManager,
@@ -88,13 +176,10 @@ class QueryExecution {
 		final AtomicInteger classicCollectors = new AtomicInteger(0);
 		FunctionUtils.forEach(collectors, (name, collector) -> {
 			final Class<? extends Collector> collectorClass = classLoaderManager.findClass(collector.classname);
-			Constructor<?>[] constructors = collectorClass.getConstructors();
-			if (constructors.length == 0)
-				throw new ReflectiveOperationException("No constructor for class: " + collectorClass);
 			final Constructor<?> constructor;
 			final Object[] arguments;
 			if (collector.arguments == null || collector.arguments.length == 0) {
-				constructor = collectorClass.getConstructor(String.class);
+				constructor = getConstructor(collectorClass, String.class);
 				arguments = new Object[] { name };
 			} else {
 				arguments = new Object[collector.arguments.length + 1];
@@ -104,7 +189,7 @@ class QueryExecution {
 				int i = 0;
 				for (Object arg : arguments)
 					classes[i++] = arg.getClass();
-				constructor = collectorClass.getConstructor(classes);
+				constructor = getConstructor(collectorClass, classes);
 			}
 			collectorConstructors.add(Pair.of(constructor, arguments));
 			if (ConcurrentCollector.class.isAssignableFrom(collectorClass))
@@ -117,36 +202,84 @@ class QueryExecution {
 		return concurrentCollectors.get() > 0 || classicCollectors.get() == 0;
 	}
 
+	/**
+	 * The constructors already resolved, by argument types. A class reloaded by the ClassLoaderManager is a new Class
+	 * object, and a ClassValue does not prevent the previous one from being unloaded.
+	 */
+	private final static ClassValue<Map<List<Class<?>>, Constructor<?>>> COLLECTOR_CONSTRUCTORS =
+			new ClassValue<Map<List<Class<?>>, Constructor<?>>>() {
+				@Override
+				protected Map<List<Class<?>>, Constructor<?>> computeValue(final Class<?> type) {
+					return new ConcurrentHashMap<>();
+				}
+			};
+
+	private static Constructor<?> getConstructor(final Class<?> collectorClass, final Class<?>... parameterTypes)
+			throws NoSuchMethodException {
+		final Map<List<Class<?>>, Constructor<?>> constructors = COLLECTOR_CONSTRUCTORS.get(collectorClass);
+		final List<Class<?>> key = Arrays.asList(parameterTypes);
+		Constructor<?> constructor = constructors.get(key);
+		if (constructor == null) {
+			constructor = collectorClass.getConstructor(parameterTypes);
+			constructors.put(key, constructor);
+		}
+		return constructor;
+	}
+
+	private Map<String, HighlighterImpl> buildHighlighters(final TopDocs topDocs) {
+		if (queryDef.highlighters == null || topDocs == null)
+			return null;
+		final Map<String, HighlighterImpl> highlighters = new LinkedHashMap<>();
+		queryDef.highlighters.forEach((name, highlighterDefinition) -> highlighters.put(name,
+				HighlighterImpl.of(highlighterDefinition,
+						queryContext.indexAnalyzer.getWrappedAnalyzer(highlighterDefinition.field),
+						queryContext.fieldMap)));
+		return highlighters;
+	}
+
 	ResultDefinition execute(final ResultDocumentBuilder.BuilderFactory documentBuilderFactory)
 			throws ReflectiveOperationException, IOException, ParseException, QueryNodeException {
 
-		final QueryCollectors queryCollectors =
-				isConcurrent ? new QueryCollectorManager(this) : new QueryCollectorsClassic(this);
+		final QueryCollectors queryCollectors = newQueryCollectors();
 
-		final FacetsBuilder facetsBuilder = queryCollectors.execute();
+		final FacetsBuilder facetsBuilder = collect(queryCollectors);
 
 		final TopDocs topDocs = queryCollectors.getTopDocs();
 		final Integer totalHits = queryCollectors.getTotalHits();
 
-		final Map<String, HighlighterImpl> highlighters;
-		if (queryDef.highlighters != null && topDocs != null)
-
-		{
-			highlighters = new LinkedHashMap<>();
-			queryDef.highlighters.forEach((name, highlighterDefinition) -> highlighters.put(name,
-					new HighlighterImpl(highlighterDefinition,
-							queryContext.indexAnalyzer.getWrappedAnalyzer(highlighterDefinition.field))));
-		} else
-			highlighters = null;
+		final Map<String, HighlighterImpl> highlighters = buildHighlighters(topDocs);
 
 		timeTracker.next("search_query");
 
 		final ResultDefinitionBuilder resultBuilder =
 				new ResultDefinitionBuilder(queryDef, topDocs, queryContext.indexSearcher, query, highlighters,
-						queryCollectors.getExternalResults(), queryContext.fieldMap, timeTracker,
-						documentBuilderFactory, facetsBuilder, totalHits);
+						queryCollectors.getExternalResults(), queryCollectors.getAggregationResults(),
+						queryContext.fieldMap, timeTracker, documentBuilderFactory, facetsBuilder, totalHits,
+						isTotalHitsLowerBound(), deadline, profiler == null ? null : profiler.toMap(),
+						queryContext.executorService);
 
 		return documentBuilderFactory.build(resultBuilder);
 	}
 
+	/**
+	 * Executes the query, the documents are loaded later while the returned streamer writes them.
+	 */
+	ResultDefinitionStreamer stream()
+			throws ReflectiveOperationException, IOException, ParseException, QueryNodeException {
+
+		final QueryCollectors queryCollectors = newQueryCollectors();
+
+		final FacetsBuilder facetsBuilder = collect(queryCollectors);
+
+		final TopDocs topDocs = queryCollectors.getTopDocs();
+		final Integer totalHits = queryCollectors.getTotalHits();
+
+		timeTracker.next("search_query");
+
+		return new ResultDefinitionStreamer(queryDef, topDocs, queryContext.indexSearcher, query,
+				buildHighlighters(topDocs), queryCollectors.getExternalResults(), queryCollectors.getAggregationResults(),
+				queryContext.fieldMap, timeTracker, facetsBuilder, totalHits, isTotalHitsLowerBound(), deadline,
+				profiler == null ? null : profiler.toMap(), queryContext.executorService);
+	}
+
 }
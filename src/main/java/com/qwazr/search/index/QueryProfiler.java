@@ -0,0 +1,256 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FilterCollector;
+import org.apache.lucene.search.FilterLeafCollector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Collects the timings of a query: the rewrite, each node of the query tree per segment, and each collector
+ * per concurrent slice and per segment. The times are in nanoseconds, a parent node includes its children.
+ */
+class QueryProfiler {
+
+	private final List<Node> roots;
+	private final List<SliceStats> slices;
+	private final ThreadLocal<Deque<Node>> stack;
+	private final Timer rewrite;
+
+	QueryProfiler() {
+		roots = Collections.synchronizedList(new ArrayList<>());
+		slices = Collections.synchronizedList(new ArrayList<>());
+		stack = ThreadLocal.withInitial(ArrayDeque::new);
+		rewrite = new Timer();
+	}
+
+	/**
+	 * @param indexSearcher   the searcher to profile
+	 * @param executorService the executor used by the searcher
+	 * @return a searcher on the same reader which profiles every weight it creates. The query cache is disabled.
+	 */
+	final IndexSearcher newSearcher(final IndexSearcher indexSearcher, final ExecutorService executorService) {
+		final IndexSearcher searcher = new ProfileSearcher(indexSearcher, executorService);
+		searcher.setSimilarity(indexSearcher.getSimilarity(true));
+		searcher.setQueryCache(null);
+		return searcher;
+	}
+
+	/**
+	 * @param collector the collector of one slice
+	 * @return a collector recording the time spent in the collector per segment
+	 */
+	final Collector wrap(final Collector collector) {
+		final SliceStats sliceStats = new SliceStats(collector);
+		slices.add(sliceStats);
+		return new FilterCollector(collector) {
+
+			@Override
+			public LeafCollector getLeafCollector(final LeafReaderContext context) throws IOException {
+				final Timer collect = new Timer();
+				sliceStats.leaves.put(context.ord, collect);
+				return new FilterLeafCollector(super.getLeafCollector(context)) {
+
+					@Override
+					public void collect(final int doc) throws IOException {
+						final long start = System.nanoTime();
+						super.collect(doc);
+						collect.add(start);
+					}
+				};
+			}
+		};
+	}
+
+	final Map<String, Object> toMap() {
+		final Map<String, Object> map = new LinkedHashMap<>();
+		map.put("rewrite_count", rewrite.count);
+		map.put("rewrite_ns", rewrite.time);
+		final List<Object> queries = new ArrayList<>();
+		synchronized (roots) {
+			roots.forEach(node -> queries.add(node.toMap()));
+		}
+		map.put("queries", queries);
+		final List<Object> collectors = new ArrayList<>();
+		synchronized (slices) {
+			int slice = 0;
+			for (SliceStats sliceStats : slices)
+				collectors.add(sliceStats.toMap(slice++));
+		}
+		map.put("collectors", collectors);
+		return map;
+	}
+
+	static class Timer {
+
+		long count;
+		long time;
+
+		final void add(final long start) {
+			time += System.nanoTime() - start;
+			count++;
+		}
+	}
+
+	/**
+	 * The timings of a scorer on one segment. A segment is scored by one thread.
+	 */
+	static class LeafStats {
+
+		final Timer buildScorer = new Timer();
+		final Timer nextDoc = new Timer();
+		final Timer advance = new Timer();
+		final Timer matches = new Timer();
+		final Timer score = new Timer();
+
+		private Map<String, Object> toMap(final int leaf) {
+			final Map<String, Object> map = new LinkedHashMap<>();
+			map.put("leaf", leaf);
+			put(map, "build_scorer", buildScorer);
+			put(map, "next_doc", nextDoc);
+			put(map, "advance", advance);
+			put(map, "matches", matches);
+			put(map, "score", score);
+			return map;
+		}
+	}
+
+	private static void put(final Map<String, Object> map, final String name, final Timer timer) {
+		if (timer.count == 0)
+			return;
+		map.put(name + "_count", timer.count);
+		map.put(name + "_ns", timer.time);
+	}
+
+	static class Node {
+
+		private final Query query;
+		private final List<Node> children;
+		private final Map<Integer, LeafStats> leaves;
+		private long createWeightTime;
+
+		private Node(final Query query) {
+			this.query = query;
+			this.children = Collections.synchronizedList(new ArrayList<>());
+			this.leaves = new ConcurrentSkipListMap<>();
+		}
+
+		final LeafStats getLeafStats(final int leaf) {
+			return leaves.computeIfAbsent(leaf, ord -> new LeafStats());
+		}
+
+		private Map<String, Object> toMap() {
+			final Map<String, Object> map = new LinkedHashMap<>();
+			map.put("type", query.getClass().getSimpleName());
+			map.put("description", query.toString());
+			map.put("create_weight_ns", createWeightTime);
+			final List<Object> leafList = new ArrayList<>(leaves.size());
+			leaves.forEach((leaf, stats) -> leafList.add(stats.toMap(leaf)));
+			map.put("leaves", leafList);
+			if (!children.isEmpty()) {
+				final List<Object> childList = new ArrayList<>(children.size());
+				synchronized (children) {
+					children.forEach(child -> childList.add(child.toMap()));
+				}
+				map.put("children", childList);
+			}
+			return map;
+		}
+	}
+
+	private static class SliceStats {
+
+		private final String type;
+		private final Map<Integer, Timer> leaves;
+
+		private SliceStats(final Collector collector) {
+			this.type = collector.getClass().getSimpleName();
+			this.leaves = new ConcurrentSkipListMap<>();
+		}
+
+		private Map<String, Object> toMap(final int slice) {
+			final Map<String, Object> map = new LinkedHashMap<>();
+			map.put("slice", slice);
+			map.put("type", type);
+			final List<Object> leafList = new ArrayList<>(leaves.size());
+			leaves.forEach((leaf, collect) -> {
+				final Map<String, Object> leafMap = new LinkedHashMap<>();
+				leafMap.put("leaf", leaf);
+				put(leafMap, "collect", collect);
+				leafList.add(leafMap);
+			});
+			map.put("leaves", leafList);
+			return map;
+		}
+	}
+
+	/**
+	 * Wraps every weight of the query tree. The nested calls to createWeight give the structure of the tree.
+	 */
+	private class ProfileSearcher extends IndexSearcher {
+
+		private ProfileSearcher(final IndexSearcher indexSearcher, final ExecutorService executorService) {
+			super(indexSearcher.getTopReaderContext(), executorService);
+		}
+
+		@Override
+		public Query rewrite(final Query original) throws IOException {
+			final long start = System.nanoTime();
+			try {
+				return super.rewrite(original);
+			} finally {
+				synchronized (rewrite) {
+					rewrite.add(start);
+				}
+			}
+		}
+
+		@Override
+		public Weight createWeight(final Query query, final boolean needsScores) throws IOException {
+			final Deque<Node> nodes = stack.get();
+			final Node node = new Node(query);
+			final Node parent = nodes.peek();
+			if (parent == null)
+				roots.add(node);
+			else
+				parent.children.add(node);
+			nodes.push(node);
+			final long start = System.nanoTime();
+			try {
+				return new ProfileWeight(super.createWeight(query, needsScores), node);
+			} finally {
+				node.createWeightTime = System.nanoTime() - start;
+				nodes.pop();
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events and gives their rate per second: the mean rate since the creation and a one minute moving average.
+ * The moving average is updated every 5 seconds by the first thread marking or reading the meter.
+ */
+class RateMeter {
+
+	private final static long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+	private final static double ALPHA = 1 - Math.exp(-5.0 / 60);
+
+	private final long startTime;
+	private final LongAdder count;
+	private final LongAdder uncounted;
+	private final AtomicLong lastTick;
+	private volatile double rate;
+	private volatile boolean initialized;
+
+	RateMeter() {
+		startTime = System.nanoTime();
+		count = new LongAdder();
+		uncounted = new LongAdder();
+		lastTick = new AtomicLong(startTime);
+		rate = 0;
+		initialized = false;
+	}
+
+	final void mark(final long n) {
+		if (n <= 0)
+			return;
+		tickIfNecessary();
+		count.add(n);
+		uncounted.add(n);
+	}
+
+	private void tickIfNecessary() {
+		final long oldTick = lastTick.get();
+		final long now = System.nanoTime();
+		final long age = now - oldTick;
+		if (age < TICK_INTERVAL)
+			return;
+		// Only the thread which moves the tick updates the rate
+		if (!lastTick.compareAndSet(oldTick, now - age % TICK_INTERVAL))
+			return;
+		final long ticks = age / TICK_INTERVAL;
+		for (long i = 0; i < ticks; i++) {
+			final double instantRate = (double) uncounted.sumThenReset() / 5;
+			if (initialized)
+				rate += ALPHA * (instantRate - rate);
+			else {
+				rate = instantRate;
+				initialized = true;
+			}
+		}
+	}
+
+	final Map<String, Object> toMap() {
+		tickIfNecessary();
+		final long total = count.sum();
+		final double elapsed = (double) (System.nanoTime() - startTime) / TimeUnit.SECONDS.toNanos(1);
+		final Map<String, Object> map = new LinkedHashMap<>();
+		map.put("count", total);
+		map.put("mean_rate", elapsed == 0 ? 0 : total / elapsed);
+		map.put("one_minute_rate", rate);
+		return map;
+	}
+}
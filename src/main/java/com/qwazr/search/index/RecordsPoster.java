@@ -22,6 +22,8 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.facet.FacetsConfig;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
 
 import javax.ws.rs.core.Response;
 import java.io.IOException;
@@ -33,16 +35,28 @@ abstract class RecordsPoster {
 
 	protected final Map<String, Field> fields;
 	protected final FieldMap fieldMap;
-	protected final IndexWriter indexWriter;
+	protected final IndexWriter[] indexWriters;
 	protected int counter;
 
-	RecordsPoster(final Map<String, Field> fields, final FieldMap fieldMap, final IndexWriter indexWriter) {
+	RecordsPoster(final Map<String, Field> fields, final FieldMap fieldMap, final IndexWriter[] indexWriters) {
 		this.fields = fields;
 		this.fieldMap = fieldMap;
-		this.indexWriter = indexWriter;
+		this.indexWriters = indexWriters;
 		this.counter = 0;
 	}
 
+	/**
+	 * The documents are routed to the local shards by the hash of their identifier. The hash does not depend on the
+	 * JVM: a document always goes to the same shard.
+	 */
+	final protected IndexWriter getIndexWriter(final Term termId) {
+		if (indexWriters.length == 1)
+			return indexWriters[0];
+		final BytesRef id = termId.bytes();
+		final int hash = StringHelper.murmurhash3_x86_32(id.bytes, id.offset, id.length, 0);
+		return indexWriters[Math.floorMod(hash, indexWriters.length)];
+	}
+
 	final protected void updateDocument(Object id, final FieldConsumer.ForDocument fields) {
 		if (id == null)
 			id = HashUtils.newTimeBasedUUID().toString();
@@ -50,7 +64,7 @@ abstract class RecordsPoster {
 		final FacetsConfig facetsConfig = fieldMap.getNewFacetsConfig(fields.fieldNameSet);
 		try {
 			final Document facetedDoc = facetsConfig.build(fields.document);
-			indexWriter.updateDocument(termId, facetedDoc);
+			getIndexWriter(termId).updateDocument(termId, facetedDoc);
 		} catch (IOException e) {
 			throw new ServerException(e);
 		}
@@ -63,7 +77,7 @@ abstract class RecordsPoster {
 					"The field " + FieldDefinition.ID_FIELD + " is missing");
 		final Term termId = new Term(FieldDefinition.ID_FIELD, BytesRefUtils.fromAny(id));
 		try {
-			indexWriter.updateDocValues(termId, fields.toArray());
+			getIndexWriter(termId).updateDocValues(termId, fields.toArray());
 		} catch (IOException e) {
 			throw new ServerException(e);
 		}
@@ -72,8 +86,8 @@ abstract class RecordsPoster {
 
 	final static class UpdateMapDocument extends RecordsPoster implements Consumer<Map<String, Object>> {
 
-		UpdateMapDocument(final FieldMap fieldMap, final IndexWriter indexWriter) {
-			super(null, fieldMap, indexWriter);
+		UpdateMapDocument(final FieldMap fieldMap, final IndexWriter[] indexWriters) {
+			super(null, fieldMap, indexWriters);
 		}
 
 		@Override
@@ -88,8 +102,8 @@ abstract class RecordsPoster {
 	final static class UpdateObjectDocument extends RecordsPoster implements Consumer<Object> {
 
 		UpdateObjectDocument(final Map<String, java.lang.reflect.Field> fields, final FieldMap fieldMap,
-				final IndexWriter indexWriter) {
-			super(fields, fieldMap, indexWriter);
+				final IndexWriter[] indexWriters) {
+			super(fields, fieldMap, indexWriters);
 		}
 
 		@Override
@@ -104,8 +118,8 @@ abstract class RecordsPoster {
 
 	final static class UpdateMapDocValues extends RecordsPoster implements Consumer<Map<String, Object>> {
 
-		UpdateMapDocValues(final FieldMap fieldMap, final IndexWriter indexWriter) {
-			super(null, fieldMap, indexWriter);
+		UpdateMapDocValues(final FieldMap fieldMap, final IndexWriter[] indexWriters) {
+			super(null, fieldMap, indexWriters);
 		}
 
 		@Override
@@ -119,8 +133,8 @@ abstract class RecordsPoster {
 
 	final static class UpdateObjectDocValues extends RecordsPoster implements Consumer<Object> {
 
-		UpdateObjectDocValues(Map<String, Field> fields, FieldMap fieldMap, IndexWriter indexWriter) {
-			super(fields, fieldMap, indexWriter);
+		UpdateObjectDocValues(Map<String, Field> fields, FieldMap fieldMap, IndexWriter[] indexWriters) {
+			super(fields, fieldMap, indexWriters);
 		}
 
 		@Override
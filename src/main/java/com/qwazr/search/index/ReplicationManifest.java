@@ -0,0 +1,82 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.qwazr.utils.json.JsonMapper;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * What a slave needs to know to replicate a master index, in one call. The ETags change when the fields, the
+ * analyzers or the resources change: the slave only applies the parts having a new ETag.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ReplicationManifest {
+
+	final public String index_uuid;
+
+	/**
+	 * The UUIDs of the index before it has been restored from a backup, the oldest first
+	 */
+	final public List<String> previous_index_uuids;
+
+	final public Long version;
+	final public String fields_etag;
+	final public String analyzers_etag;
+	final public String resources_etag;
+
+	public ReplicationManifest() {
+		index_uuid = null;
+		previous_index_uuids = null;
+		version = null;
+		fields_etag = null;
+		analyzers_etag = null;
+		resources_etag = null;
+	}
+
+	ReplicationManifest(final UUID indexUuid, final List<String> previousIndexUuids, final Long version,
+			final Object fields, final Object analyzers, final Object resources) throws JsonProcessingException {
+		this.index_uuid = indexUuid == null ? null : indexUuid.toString();
+		this.previous_index_uuids = previousIndexUuids;
+		this.version = version;
+		this.fields_etag = etag(fields);
+		this.analyzers_etag = etag(analyzers);
+		this.resources_etag = etag(resources);
+	}
+
+	/**
+	 * @return the SHA-1 of the JSON serialization of the object
+	 */
+	static String etag(final Object object) throws JsonProcessingException {
+		if (object == null)
+			return null;
+		try {
+			final byte[] digest =
+					MessageDigest.getInstance("SHA-1").digest(JsonMapper.MAPPER.writeValueAsBytes(object));
+			final StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest)
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -28,66 +28,152 @@ public abstract class ResultDefinition<T extends ResultDocumentAbstract> {
 
 	final public TimeTracker.Status timer;
 	final public Long total_hits;
+	final public Boolean total_hits_lower_bound;
+	final public Boolean timed_out;
 	final public Float max_score;
 	final public List<T> documents;
 	final public Map<String, Map<String, Number>> facets;
+	final public Map<String, Object> aggregations;
 	final public String query;
+	final public Map<String, Object> profile;
 	final public Map<String, Object> collectors;
+	final public SearchAfterDefinition search_after;
+	final public String error;
+	final public Map<String, String> shard_errors;
 
 	public ResultDefinition() {
 		this.timer = null;
 		this.total_hits = null;
+		this.total_hits_lower_bound = null;
+		this.timed_out = null;
 		this.documents = null;
 		this.facets = null;
+		this.aggregations = null;
 		this.collectors = null;
 		this.max_score = null;
 		this.query = null;
+		this.profile = null;
+		this.search_after = null;
+		this.error = null;
+		this.shard_errors = null;
 	}
 
 	protected ResultDefinition(final ResultDefinitionBuilder<T> builder) {
 		this.query = builder.queryDebug;
+		this.profile = builder.profile;
 		this.timer = builder.timeTrackerStatus;
 		this.total_hits = builder.totalHits;
+		this.total_hits_lower_bound = builder.totalHitsLowerBound;
+		this.timed_out = builder.timedOut;
 		this.max_score = builder.maxScore;
 		this.documents = builder.documents;
 		this.facets = builder.facets;
+		this.aggregations = builder.aggregations;
 		this.collectors = builder.collectors;
+		this.search_after = builder.searchAfter;
+		this.error = null;
+		this.shard_errors = null;
 	}
 
 	protected ResultDefinition(final ResultDefinition<?> src, final List<T> documents) {
 		this.query = src.query;
+		this.profile = src.profile;
 		this.timer = src.timer;
 		this.total_hits = src.total_hits;
+		this.total_hits_lower_bound = src.total_hits_lower_bound;
+		this.timed_out = src.timed_out;
 		this.max_score = src.max_score;
 		this.documents = documents;
 		this.facets = src.facets;
+		this.aggregations = src.aggregations;
 		this.collectors = src.collectors;
+		this.search_after = src.search_after;
+		this.error = src.error;
+		this.shard_errors = src.shard_errors;
 	}
 
 	ResultDefinition(TimeTracker timeTracker) {
 		query = null;
+		profile = null;
 		total_hits = 0L;
+		total_hits_lower_bound = null;
+		timed_out = null;
 		documents = Collections.emptyList();
 		facets = null;
+		aggregations = null;
 		collectors = null;
 		max_score = null;
+		search_after = null;
+		error = null;
+		shard_errors = null;
 		this.timer = timeTracker != null ? timeTracker.getStatus() : null;
 	}
 
 	protected ResultDefinition(long total_hits) {
 		query = null;
+		profile = null;
 		this.total_hits = total_hits;
+		total_hits_lower_bound = null;
+		timed_out = null;
 		documents = Collections.emptyList();
 		facets = null;
+		aggregations = null;
 		collectors = null;
 		max_score = null;
+		search_after = null;
+		error = null;
+		shard_errors = null;
 		this.timer = null;
 	}
 
+	protected ResultDefinition(final String error) {
+		query = null;
+		profile = null;
+		total_hits = null;
+		total_hits_lower_bound = null;
+		timed_out = null;
+		documents = null;
+		facets = null;
+		aggregations = null;
+		collectors = null;
+		max_score = null;
+		search_after = null;
+		timer = null;
+		this.error = error;
+		this.shard_errors = null;
+	}
+
+	protected ResultDefinition(final TimeTracker.Status timer, final Long totalHits, final Boolean totalHitsLowerBound,
+			final Boolean timedOut, final Float maxScore, final Map<String, Map<String, Number>> facets,
+			final Map<String, String> shardErrors) {
+		query = null;
+		profile = null;
+		this.timer = timer;
+		this.total_hits = totalHits;
+		this.total_hits_lower_bound = totalHitsLowerBound;
+		this.timed_out = timedOut;
+		this.max_score = maxScore;
+		documents = null;
+		this.facets = facets;
+		aggregations = null;
+		collectors = null;
+		search_after = null;
+		error = null;
+		this.shard_errors = shardErrors;
+	}
+
 	public Long getTotal_hits() {
 		return total_hits;
 	}
 
+	public Boolean getTotal_hits_lower_bound() {
+		return total_hits_lower_bound;
+	}
+
+	public Boolean getTimed_out() {
+		return timed_out;
+	}
+
 	public Float getMax_score() {
 		return max_score;
 	}
@@ -100,6 +186,14 @@ public abstract class ResultDefinition<T extends ResultDocumentAbstract> {
 		return facets;
 	}
 
+	public Map<String, Object> getAggregations() {
+		return aggregations;
+	}
+
+	public <O> O getAggregation(final String name) {
+		return aggregations == null ? null : (O) aggregations.get(name);
+	}
+
 	public TimeTracker.Status getTimer() {
 		return timer;
 	}
@@ -108,6 +202,28 @@ public abstract class ResultDefinition<T extends ResultDocumentAbstract> {
 		return query;
 	}
 
+	public Map<String, Object> getProfile() {
+		return profile;
+	}
+
+	public SearchAfterDefinition getSearch_after() {
+		return search_after;
+	}
+
+	/**
+	 * @return the error message of a failed query of a multi search
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * @return the errors of the shards of a distributed search, by shard position
+	 */
+	public Map<String, String> getShard_errors() {
+		return shard_errors;
+	}
+
 	public <O> O getCollector(String name) {
 		return collectors == null ? null : (O) collectors.get(name);
 	}
@@ -125,6 +241,20 @@ public abstract class ResultDefinition<T extends ResultDocumentAbstract> {
 		WithMap(long totalHits) {
 			super(totalHits);
 		}
+
+		WithMap(String error) {
+			super(error);
+		}
+
+		WithMap(final ResultDefinition<?> result, final List<ResultDocumentMap> documents) {
+			super(result, documents);
+		}
+
+		WithMap(final TimeTracker.Status timer, final Long totalHits, final Boolean totalHitsLowerBound,
+				final Boolean timedOut, final Float maxScore, final Map<String, Map<String, Number>> facets,
+				final Map<String, String> shardErrors) {
+			super(timer, totalHits, totalHitsLowerBound, timedOut, maxScore, facets, shardErrors);
+		}
 	}
 
 	public static class WithObject<T> extends ResultDefinition<ResultDocumentObject<T>> {
@@ -137,6 +267,10 @@ public abstract class ResultDefinition<T extends ResultDocumentAbstract> {
 			super(result, documents);
 		}
 
+		WithObject(String error) {
+			super(error);
+		}
+
 	}
 
 }
@@ -16,17 +16,22 @@
 package com.qwazr.search.index;
 
 import com.qwazr.search.field.Converters.ValueConverter;
-import com.qwazr.search.field.FieldTypeInterface;
+import com.qwazr.server.ServerException;
 import com.qwazr.utils.StringUtils;
 import com.qwazr.utils.TimeTracker;
-import com.qwazr.server.ServerException;
-import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TopDocs;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 class ResultDefinitionBuilder<T extends ResultDocumentAbstract> {
 
@@ -38,21 +43,36 @@ class ResultDefinitionBuilder<T extends ResultDocumentAbstract> {
 	private final TimeTracker timeTracker;
 	private final ResultDocumentBuilder.BuilderFactory documentBuilderFactory;
 	private final TopDocs topDocs;
+	private final ExecutorService executorService;
+	private final QueryDeadline deadline;
+
+	/**
+	 * Below this number of returned documents the stored fields are read by the calling thread
+	 */
+	private final static int PARALLEL_STORED_FIELDS_THRESHOLD = 100;
 
 	final ResultDocumentBuilder<T>[] resultDocumentBuilders;
 	final List<T> documents;
 	final Map<String, Object> collectors;
+	final Map<String, Object> aggregations;
 	final String queryDebug;
 	final TimeTracker.Status timeTrackerStatus;
 	final Long totalHits;
+	final Boolean totalHitsLowerBound;
+	final Boolean timedOut;
+	final Map<String, Object> profile;
 	final Float maxScore;
 	final LinkedHashMap<String, Map<String, Number>> facets;
+	final SearchAfterDefinition searchAfter;
 
 	ResultDefinitionBuilder(final QueryDefinition queryDefinition, final TopDocs topDocs,
 			final IndexSearcher indexSearcher, final Query luceneQuery, final Map<String, HighlighterImpl> highlighters,
-			final Map<String, Object> externalCollectorsResults, final FieldMap fieldMap, final TimeTracker timeTracker,
+			final Map<String, Object> externalCollectorsResults, final Map<String, Object> aggregationResults,
+			final FieldMap fieldMap, final TimeTracker timeTracker,
 			final ResultDocumentBuilder.BuilderFactory documentBuilderFactory, final FacetsBuilder facetsBuilder,
-			Integer totalHits) throws ReflectiveOperationException, IOException {
+			final Integer totalHits, final Boolean totalHitsLowerBound, final QueryDeadline deadline,
+			final Map<String, Object> profile, final ExecutorService executorService)
+			throws ReflectiveOperationException, IOException {
 
 		this.queryDefinition = queryDefinition;
 		this.topDocs = topDocs;
@@ -60,12 +80,17 @@ class ResultDefinitionBuilder<T extends ResultDocumentAbstract> {
 		this.luceneQuery = luceneQuery;
 		this.highlighters = highlighters;
 		this.collectors = externalCollectorsResults;
+		this.aggregations = aggregationResults;
 		this.fieldMap = fieldMap;
 		this.timeTracker = timeTracker;
 		this.documentBuilderFactory = documentBuilderFactory;
+		this.executorService = executorService;
+		this.deadline = deadline;
+		this.profile = profile;
 
 		this.maxScore = topDocs == null ? null : topDocs.getMaxScore();
 		this.totalHits = totalHits == null ? null : (long) totalHits;
+		this.totalHitsLowerBound = totalHitsLowerBound;
 
 		this.resultDocumentBuilders = buildResultDocuments();
 		if (resultDocumentBuilders != null) {
@@ -77,8 +102,10 @@ class ResultDefinitionBuilder<T extends ResultDocumentAbstract> {
 								queryDefinition.returned_fields;
 
 				if (returnedFields != null && !returnedFields.isEmpty()) {
-					buildStoredFields(returnedFields);
-					buildDocValuesReturnedFields(returnedFields);
+					final List<LeafDocuments<T>> leafDocumentsList = groupByLeaf();
+					if (queryDefinition.doc_values_only == null || !queryDefinition.doc_values_only)
+						buildStoredFields(leafDocumentsList, returnedFields);
+					buildDocValuesReturnedFields(leafDocumentsList, returnedFields);
 				}
 				buildHighlights();
 				for (ResultDocumentBuilder<T> rdb : resultDocumentBuilders)
@@ -87,9 +114,14 @@ class ResultDefinitionBuilder<T extends ResultDocumentAbstract> {
 		} else
 			this.documents = null;
 
+		this.searchAfter = resultDocumentBuilders == null || resultDocumentBuilders.length == 0 ?
+				null :
+				SearchAfterDefinition.of(resultDocumentBuilders[resultDocumentBuilders.length - 1].scoreDoc);
+
 		this.facets = facetsBuilder == null ? null : facetsBuilder.results;
 		this.queryDebug = buildQueryDebug();
 
+		this.timedOut = deadline != null && deadline.isTimedOut() ? Boolean.TRUE : null;
 		this.timeTrackerStatus = timeTracker == null ? null : timeTracker.getStatus();
 	}
 
@@ -98,10 +130,10 @@ class ResultDefinitionBuilder<T extends ResultDocumentAbstract> {
 			return null;
 		if (topDocs.scoreDocs == null)
 			return null;
-		int pos = queryDefinition.start == null ? 0 : queryDefinition.start;
-		int end = queryDefinition.getEnd();
-		if (end > topDocs.totalHits)
-			end = topDocs.totalHits;
+		int pos = getStart(queryDefinition);
+		int end = pos + queryDefinition.getRows();
+		if (end > topDocs.scoreDocs.length)
+			end = topDocs.scoreDocs.length;
 		final int size = end - pos;
 		if (size <= 0)
 			return new ResultDocumentBuilder[0];
@@ -112,7 +144,14 @@ class ResultDefinitionBuilder<T extends ResultDocumentAbstract> {
 		return resultDocuments;
 	}
 
-	final private void buildHighlights() {
+	/**
+	 * With a search_after cursor the collectors only kept the requested page
+	 */
+	static int getStart(final QueryDefinition queryDefinition) {
+		return queryDefinition.start == null || queryDefinition.search_after != null ? 0 : queryDefinition.start;
+	}
+
+	final private void buildHighlights() throws IOException {
 
 		if (highlighters == null)
 			return;
@@ -121,48 +160,111 @@ class ResultDefinitionBuilder<T extends ResultDocumentAbstract> {
 		int pos = 0;
 		for (ResultDocumentBuilder resultDocumentBuilder : resultDocumentBuilders)
 			docIDs[pos++] = resultDocumentBuilder.scoreDoc.doc;
-		highlighters.forEach((name, highlighter) -> {
-			try {
-				String[] snippetsByDoc = highlighter.highlights(luceneQuery, indexSearcher, docIDs);
-				int i = 0;
-				for (String snippet : snippetsByDoc)
-					resultDocumentBuilders[i++].setHighlight(name, snippet);
-			} catch (IOException e) {
-				throw new RuntimeException("Highlighter failure: " + name, e);
-			}
-		});
+		HighlighterImpl.highlights(highlighters, luceneQuery, indexSearcher, docIDs, executorService, deadline)
+				.forEach((name, snippetsByDoc) -> {
+					int i = 0;
+					for (String snippet : snippetsByDoc)
+						resultDocumentBuilders[i++].setHighlight(name, snippet);
+				});
 
 		if (timeTracker != null)
 			timeTracker.next("highlighting");
 	}
 
-	final private void buildStoredFields(final Set<String> returnedFields) throws IOException {
-		for (final ResultDocumentBuilder resultDocumentBuilder : resultDocumentBuilders)
-			resultDocumentBuilder.setStoredFields(
-					indexSearcher.doc(resultDocumentBuilder.scoreDoc.doc, returnedFields));
-		if (timeTracker != null)
-			timeTracker.next("storedFields");
-	}
+	/**
+	 * The documents of one segment, in doc id order
+	 */
+	private static class LeafDocuments<T extends ResultDocumentAbstract> {
 
-	final private void buildDocValuesReturnedFields(final Set<String> returnedFields) throws IOException {
+		private final LeafReaderContext leaf;
+		private final List<ResultDocumentBuilder<T>> builders;
 
-		final IndexReader indexReader = indexSearcher.getIndexReader();
+		private LeafDocuments(final LeafReaderContext leaf) {
+			this.leaf = leaf;
+			this.builders = new ArrayList<>();
+		}
+	}
+
+	/**
+	 * Groups the returned documents by segment. Reading the segments in doc id order lets neighbor documents
+	 * share the same decompressed stored fields block.
+	 */
+	final private List<LeafDocuments<T>> groupByLeaf() {
+		final List<LeafReaderContext> leaves = indexSearcher.getIndexReader().leaves();
+		final ResultDocumentBuilder<T>[] sortedBuilders = resultDocumentBuilders.clone();
+		Arrays.sort(sortedBuilders, (b1, b2) -> Integer.compare(b1.scoreDoc.doc, b2.scoreDoc.doc));
+		final List<LeafDocuments<T>> leafDocumentsList = new ArrayList<>();
+		LeafDocuments<T> current = null;
+		for (ResultDocumentBuilder<T> builder : sortedBuilders) {
+			if (current == null || builder.scoreDoc.doc >= current.leaf.docBase + current.leaf.reader().maxDoc()) {
+				current = new LeafDocuments<>(leaves.get(ReaderUtil.subIndex(builder.scoreDoc.doc, leaves)));
+				leafDocumentsList.add(current);
+			}
+			current.builders.add(builder);
+		}
+		return leafDocumentsList;
+	}
 
-		returnedFields.forEach(fieldName -> {
-			final FieldTypeInterface fieldType = fieldMap.getFieldType(fieldName);
-			if (fieldType == null)
-				return;
-			final ValueConverter converter;
+	final private void buildStoredFields(final List<LeafDocuments<T>> leafDocumentsList,
+			final Set<String> returnedFields) throws IOException {
+		if (executorService == null || leafDocumentsList.size() < 2 ||
+				resultDocumentBuilders.length < PARALLEL_STORED_FIELDS_THRESHOLD) {
+			for (LeafDocuments<T> leafDocuments : leafDocumentsList)
+				buildStoredFields(leafDocuments, returnedFields);
+		} else {
+			final List<Future<?>> futures = new ArrayList<>(leafDocumentsList.size());
+			for (LeafDocuments<T> leafDocuments : leafDocumentsList)
+				futures.add(executorService.submit(() -> {
+					buildStoredFields(leafDocuments, returnedFields);
+					return null;
+				}));
 			try {
-				converter = fieldType.getConverter(fieldName, indexReader);
-			} catch (IOException e) {
+				for (Future<?> future : futures)
+					future.get();
+			} catch (InterruptedException e) {
 				throw new ServerException(e);
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				throw new ServerException(cause);
+			} finally {
+				// An interrupt would close the channels of NIOFSDirectory: the remaining tasks are only skipped
+				for (Future<?> future : futures)
+					future.cancel(false);
+			}
+		}
+		if (timeTracker != null)
+			timeTracker.next("storedFields");
+	}
+
+	private static <T extends ResultDocumentAbstract> void buildStoredFields(final LeafDocuments<T> leafDocuments,
+			final Set<String> returnedFields) throws IOException {
+		final LeafReader leafReader = leafDocuments.leaf.reader();
+		final int docBase = leafDocuments.leaf.docBase;
+		for (ResultDocumentBuilder<T> resultDocumentBuilder : leafDocuments.builders) {
+			final DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(returnedFields);
+			leafReader.document(resultDocumentBuilder.scoreDoc.doc - docBase, visitor);
+			resultDocumentBuilder.setStoredFields(visitor.getDocument());
+		}
+	}
+
+	final private void buildDocValuesReturnedFields(final List<LeafDocuments<T>> leafDocumentsList,
+			final Set<String> returnedFields) throws IOException {
+		for (LeafDocuments<T> leafDocuments : leafDocumentsList) {
+			final Map<String, ValueConverter> converters =
+					fieldMap.getConverters(returnedFields, leafDocuments.leaf.reader());
+			if (converters == null)
+				continue;
+			final int docBase = leafDocuments.leaf.docBase;
+			for (ResultDocumentBuilder<T> resultDocumentBuilder : leafDocuments.builders) {
+				final int leafDoc = resultDocumentBuilder.scoreDoc.doc - docBase;
+				converters.forEach((fieldName, converter) -> resultDocumentBuilder.setDocValuesField(fieldName,
+						converter, leafDoc));
 			}
-			if (converter == null)
-				return;
-			for (ResultDocumentBuilder resultDocumentBuilder : resultDocumentBuilders)
-				resultDocumentBuilder.setDocValuesField(fieldName, converter, resultDocumentBuilder.scoreDoc.doc);
-		});
+		}
 		if (timeTracker != null)
 			timeTracker.next("docValuesFields");
 	}
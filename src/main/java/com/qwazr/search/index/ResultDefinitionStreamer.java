@@ -0,0 +1,327 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.qwazr.search.field.Converters.ValueConverter;
+import com.qwazr.utils.StringUtils;
+import com.qwazr.utils.TimeTracker;
+import com.qwazr.utils.json.JsonMapper;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Writes the same JSON as ResultDefinition.WithMap, but straight to a JsonGenerator:
+ * the fields of each document are written as they are loaded, without building any intermediate map.
+ */
+class ResultDefinitionStreamer {
+
+	private final QueryDefinition queryDefinition;
+	private final TopDocs topDocs;
+	private final IndexSearcher indexSearcher;
+	private final Query luceneQuery;
+	private final Map<String, HighlighterImpl> highlighters;
+	private final Map<String, Object> collectors;
+	private final Map<String, Object> aggregations;
+	private final FieldMap fieldMap;
+	private final TimeTracker timeTracker;
+	private final FacetsBuilder facetsBuilder;
+	private final Integer totalHits;
+	private final Boolean totalHitsLowerBound;
+	private final ExecutorService executorService;
+	private final QueryDeadline deadline;
+	private final Map<String, Object> profile;
+
+	ResultDefinitionStreamer(final QueryDefinition queryDefinition, final TopDocs topDocs,
+			final IndexSearcher indexSearcher, final Query luceneQuery, final Map<String, HighlighterImpl> highlighters,
+			final Map<String, Object> externalCollectorsResults, final Map<String, Object> aggregationResults,
+			final FieldMap fieldMap, final TimeTracker timeTracker, final FacetsBuilder facetsBuilder,
+			final Integer totalHits, final Boolean totalHitsLowerBound, final QueryDeadline deadline,
+			final Map<String, Object> profile, final ExecutorService executorService) {
+		this.queryDefinition = queryDefinition;
+		this.topDocs = topDocs;
+		this.indexSearcher = indexSearcher;
+		this.luceneQuery = luceneQuery;
+		this.highlighters = highlighters;
+		this.collectors = externalCollectorsResults;
+		this.aggregations = aggregationResults;
+		this.fieldMap = fieldMap;
+		this.timeTracker = timeTracker;
+		this.facetsBuilder = facetsBuilder;
+		this.totalHits = totalHits;
+		this.totalHitsLowerBound = totalHitsLowerBound;
+		this.executorService = executorService;
+		this.deadline = deadline;
+		this.profile = profile;
+	}
+
+	final void write(final OutputStream output) throws IOException {
+		try (final JsonGenerator generator = JsonMapper.MAPPER.getFactory().createGenerator(output)) {
+			generator.writeStartObject();
+			if (totalHits != null)
+				generator.writeNumberField("total_hits", totalHits);
+			if (totalHitsLowerBound != null)
+				generator.writeBooleanField("total_hits_lower_bound", totalHitsLowerBound);
+			if (topDocs != null)
+				generator.writeNumberField("max_score", topDocs.getMaxScore());
+			final ScoreDoc lastScoreDoc = writeDocuments(generator);
+			if (facetsBuilder != null && facetsBuilder.results != null)
+				generator.writeObjectField("facets", facetsBuilder.results);
+			if (aggregations != null)
+				generator.writeObjectField("aggregations", aggregations);
+			if (queryDefinition.query_debug != null && queryDefinition.query_debug && luceneQuery != null)
+				generator.writeStringField("query", luceneQuery.toString(StringUtils.EMPTY));
+			if (profile != null)
+				generator.writeObjectField("profile", profile);
+			if (collectors != null)
+				generator.writeObjectField("collectors", collectors);
+			if (lastScoreDoc != null)
+				generator.writeObjectField("search_after", SearchAfterDefinition.of(lastScoreDoc));
+			if (deadline != null && deadline.isTimedOut())
+				generator.writeBooleanField("timed_out", true);
+			if (timeTracker != null) {
+				timeTracker.next("streaming");
+				generator.writeObjectField("timer", timeTracker.getStatus());
+			}
+			generator.writeEndObject();
+		}
+	}
+
+	private ScoreDoc writeDocuments(final JsonGenerator generator) throws IOException {
+		if (topDocs == null || topDocs.scoreDocs == null)
+			return null;
+		final int start = ResultDefinitionBuilder.getStart(queryDefinition);
+		final int end = Math.min(start + queryDefinition.getRows(), topDocs.scoreDocs.length);
+
+		generator.writeArrayFieldStart("documents");
+		if (end <= start) {
+			generator.writeEndArray();
+			return null;
+		}
+
+		final ScoreDoc[] scoreDocs = Arrays.copyOfRange(topDocs.scoreDocs, start, end);
+		final Map<String, String[]> highlights = buildHighlights(scoreDocs);
+
+		final Set<String> returnedFields =
+				queryDefinition.returned_fields != null && queryDefinition.returned_fields.contains("*") ?
+						fieldMap.getStaticFieldSet() :
+						queryDefinition.returned_fields;
+		final boolean hasReturnedFields = returnedFields != null && !returnedFields.isEmpty();
+		final boolean docValuesOnly = queryDefinition.doc_values_only != null && queryDefinition.doc_values_only;
+		final FieldsWriter fieldsWriter = hasReturnedFields ? new FieldsWriter(generator, returnedFields) : null;
+		final List<LeafReaderContext> leaves = indexSearcher.getIndexReader().leaves();
+		final LeafConverters[] leafConverters = hasReturnedFields ? new LeafConverters[leaves.size()] : null;
+
+		final float maxScore = topDocs.getMaxScore();
+		for (int i = 0; i < scoreDocs.length; i++) {
+			final ScoreDoc scoreDoc = scoreDocs[i];
+			generator.writeStartObject();
+			generator.writeNumberField("score", scoreDoc.score);
+			if (maxScore > 0)
+				generator.writeNumberField("percent_score", scoreDoc.score == 0 ? 0 : scoreDoc.score / maxScore);
+			generator.writeNumberField("doc", scoreDoc.doc);
+			generator.writeNumberField("shard_index", scoreDoc.shardIndex);
+			if (highlights != null) {
+				generator.writeObjectFieldStart("highlights");
+				for (Map.Entry<String, String[]> entry : highlights.entrySet()) {
+					final String snippet = entry.getValue()[i];
+					if (snippet != null)
+						generator.writeStringField(entry.getKey(), snippet);
+				}
+				generator.writeEndObject();
+			}
+			if (fieldsWriter != null) {
+				generator.writeObjectFieldStart("fields");
+				fieldsWriter.reset();
+				if (!docValuesOnly) {
+					indexSearcher.doc(scoreDoc.doc, fieldsWriter);
+					fieldsWriter.flush();
+				}
+				final int leafIndex = ReaderUtil.subIndex(scoreDoc.doc, leaves);
+				LeafConverters leafConverter = leafConverters[leafIndex];
+				if (leafConverter == null) {
+					final LeafReaderContext leaf = leaves.get(leafIndex);
+					leafConverter = new LeafConverters(leaf.docBase,
+							fieldMap.getConverters(returnedFields, leaf.reader()));
+					leafConverters[leafIndex] = leafConverter;
+				}
+				if (leafConverter.converters != null) {
+					final int leafDoc = scoreDoc.doc - leafConverter.docBase;
+					for (Map.Entry<String, ValueConverter> entry : leafConverter.converters.entrySet()) {
+						if (fieldsWriter.writtenFields.contains(entry.getKey()))
+							continue;
+						generator.writeFieldName(entry.getKey());
+						writeValue(generator, entry.getValue().convert(leafDoc));
+					}
+				}
+				generator.writeEndObject();
+			}
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+		if (timeTracker != null)
+			timeTracker.next("documents");
+		return scoreDocs[scoreDocs.length - 1];
+	}
+
+	private Map<String, String[]> buildHighlights(final ScoreDoc[] scoreDocs) throws IOException {
+		if (highlighters == null)
+			return null;
+		final int[] docIDs = new int[scoreDocs.length];
+		for (int i = 0; i < scoreDocs.length; i++)
+			docIDs[i] = scoreDocs[i].doc;
+		final Map<String, String[]> highlights =
+				HighlighterImpl.highlights(highlighters, luceneQuery, indexSearcher, docIDs, executorService,
+						deadline);
+		if (timeTracker != null)
+			timeTracker.next("highlighting");
+		return highlights;
+	}
+
+	/**
+	 * The doc values converters of one segment, built the first time a document of the segment is written
+	 */
+	private static class LeafConverters {
+
+		private final int docBase;
+		private final Map<String, ValueConverter> converters;
+
+		private LeafConverters(final int docBase, final Map<String, ValueConverter> converters) {
+			this.docBase = docBase;
+			this.converters = converters;
+		}
+	}
+
+	private static void writeValue(final JsonGenerator generator, final Object value) throws IOException {
+		if (value instanceof String)
+			generator.writeString((String) value);
+		else if (value instanceof Integer)
+			generator.writeNumber((Integer) value);
+		else if (value instanceof Long)
+			generator.writeNumber((Long) value);
+		else if (value instanceof Float)
+			generator.writeNumber((Float) value);
+		else if (value instanceof Double)
+			generator.writeNumber((Double) value);
+		else if (value instanceof byte[])
+			generator.writeBinary((byte[]) value);
+		else
+			generator.writeObject(value);
+	}
+
+	/**
+	 * Writes the stored fields while they are visited.
+	 * Consecutive values of the same field are grouped in an array, like in ResultDocumentMap.
+	 */
+	private static class FieldsWriter extends StoredFieldVisitor {
+
+		private final JsonGenerator generator;
+		private final Set<String> fieldNames;
+		private final Set<String> writtenFields;
+		private final List<Object> values;
+		private String currentField;
+
+		private FieldsWriter(final JsonGenerator generator, final Set<String> fieldNames) {
+			this.generator = generator;
+			this.fieldNames = fieldNames;
+			this.writtenFields = new HashSet<>();
+			this.values = new ArrayList<>();
+		}
+
+		private void reset() {
+			writtenFields.clear();
+			values.clear();
+			currentField = null;
+		}
+
+		private void add(final String fieldName, final Object value) throws IOException {
+			if (!fieldName.equals(currentField)) {
+				flush();
+				currentField = fieldName;
+			}
+			values.add(value);
+		}
+
+		private void flush() throws IOException {
+			if (currentField == null)
+				return;
+			generator.writeFieldName(currentField);
+			if (values.size() == 1)
+				writeValue(generator, values.get(0));
+			else {
+				generator.writeStartArray();
+				for (Object value : values)
+					writeValue(generator, value);
+				generator.writeEndArray();
+			}
+			writtenFields.add(currentField);
+			values.clear();
+			currentField = null;
+		}
+
+		@Override
+		public Status needsField(final FieldInfo fieldInfo) throws IOException {
+			return fieldNames.contains(fieldInfo.name) ? Status.YES : Status.NO;
+		}
+
+		@Override
+		public void binaryField(final FieldInfo fieldInfo, final byte[] value) throws IOException {
+			add(fieldInfo.name, value);
+		}
+
+		@Override
+		public void stringField(final FieldInfo fieldInfo, final byte[] value) throws IOException {
+			add(fieldInfo.name, new String(value, StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public void intField(final FieldInfo fieldInfo, final int value) throws IOException {
+			add(fieldInfo.name, value);
+		}
+
+		@Override
+		public void longField(final FieldInfo fieldInfo, final long value) throws IOException {
+			add(fieldInfo.name, value);
+		}
+
+		@Override
+		public void floatField(final FieldInfo fieldInfo, final float value) throws IOException {
+			add(fieldInfo.name, value);
+		}
+
+		@Override
+		public void doubleField(final FieldInfo fieldInfo, final double value) throws IOException {
+			add(fieldInfo.name, value);
+		}
+	}
+}
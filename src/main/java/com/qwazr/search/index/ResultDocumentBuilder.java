@@ -23,6 +23,7 @@ import org.apache.lucene.util.BytesRef;
 
 import java.lang.reflect.Field;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Consumer;
 
@@ -91,6 +92,10 @@ abstract class ResultDocumentBuilder<T extends ResultDocumentAbstract> implement
 		abstract ResultDocumentBuilder<T>[] createArray(int size);
 
 		abstract ResultDefinition<T> build(ResultDefinitionBuilder<T> resultBuilder);
+
+		abstract ResultDefinition<T> error(String error);
+
+		abstract ResultDefinition<T> build(ResultDefinition<?> result, List<T> documents);
 	}
 
 	static class ObjectBuilderFactory<T> extends BuilderFactory<ResultDocumentObject<T>> {
@@ -120,6 +125,17 @@ abstract class ResultDocumentBuilder<T extends ResultDocumentAbstract> implement
 			return new ResultDefinition.WithObject(resultBuilder);
 		}
 
+		@Override
+		final ResultDefinition<ResultDocumentObject<T>> error(final String error) {
+			return new ResultDefinition.WithObject<>(error);
+		}
+
+		@Override
+		final ResultDefinition<ResultDocumentObject<T>> build(final ResultDefinition<?> result,
+				final List<ResultDocumentObject<T>> documents) {
+			return new ResultDefinition.WithObject<>(result, documents);
+		}
+
 		final static <T> ObjectBuilderFactory<T> createFactory(final Map<String, Field> fieldMap,
 				final Class<T> objectClass) {
 			return new ObjectBuilderFactory(objectClass, fieldMap);
@@ -147,6 +163,17 @@ abstract class ResultDocumentBuilder<T extends ResultDocumentAbstract> implement
 				final ResultDefinitionBuilder<ResultDocumentMap> resultBuilder) {
 			return new ResultDefinition.WithMap(resultBuilder);
 		}
+
+		@Override
+		final ResultDefinition<ResultDocumentMap> error(final String error) {
+			return new ResultDefinition.WithMap(error);
+		}
+
+		@Override
+		final ResultDefinition<ResultDocumentMap> build(final ResultDefinition<?> result,
+				final List<ResultDocumentMap> documents) {
+			return new ResultDefinition.WithMap(result, documents);
+		}
 	}
 
 }
@@ -16,18 +16,23 @@
 package com.qwazr.search.index;
 
 import com.qwazr.classloader.ClassLoaderManager;
+import com.qwazr.search.analysis.AnalyzerCache;
 import com.qwazr.search.analysis.AnalyzerContext;
 import com.qwazr.search.analysis.AnalyzerDefinition;
 import com.qwazr.search.analysis.UpdatableAnalyzer;
 import com.qwazr.search.field.FieldDefinition;
+import com.qwazr.search.query.JoinQuery;
 import com.qwazr.server.ServerException;
 import com.qwazr.utils.FunctionUtils;
+import com.qwazr.utils.HashUtils;
 import com.qwazr.utils.IOUtils;
 import com.qwazr.utils.LockUtils;
 import com.qwazr.utils.StringUtils;
 import com.qwazr.utils.json.JsonMapper;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.DirectoryFileFilter;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.lucene.analysis.util.ResourceLoader;
 import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
@@ -35,32 +40,83 @@ import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.flexible.core.QueryNodeException;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
 import javax.ws.rs.core.Response;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
 public class SchemaInstance implements Closeable {
 
+	private static final Logger LOGGER = LoggerFactory.getLogger(SchemaInstance.class);
+
 	private final static String SETTINGS_FILE = "settings.json";
 
 	private final ConcurrentHashMap<String, IndexInstance> indexMap;
 
+	/**
+	 * The indexes found on the disk which are not opened yet, and the indexes being opened
+	 */
+	private final ConcurrentHashMap<String, File> closedIndexes;
+
+	/**
+	 * The number of documents of the closed indexes, read from their last commit: a closed index does not change
+	 */
+	private final ConcurrentHashMap<String, Integer> closedIndexesNumDocs;
+	private final ConcurrentHashMap<String, CompletableFuture<IndexInstance>> openings;
+	private volatile boolean searchContextStale;
+
+	/**
+	 * The indexes closed by the unloader, their next opening is a reopening
+	 */
+	private final Set<String> unloadedIndexes;
+	private final AtomicBoolean unloading;
+	private volatile ScheduledFuture<?> unloadSchedule;
+
+	private final static long UNLOAD_CHECK_INTERVAL_MS = 5000;
+
+	/**
+	 * An index returned by get() is not unloaded before its caller starts to use it
+	 */
+	private final static long UNLOAD_MIN_IDLE_MS = 1000;
+
+	/**
+	 * The number of times an operation is run again when its index has been unloaded before the operation started
+	 */
+	private final static int UNLOADED_RETRIES = 3;
+
 	private final ClassLoaderManager classLoaderManager;
 	private final IndexServiceInterface service;
 	private final ExecutorService executorService;
@@ -70,12 +126,27 @@ public class SchemaInstance implements Closeable {
 	private volatile File backupRootDirectory;
 
 	private final LockUtils.ReadWriteLock backupLock = new LockUtils.ReadWriteLock();
+	private final ReentrantLock restoreLock = new ReentrantLock();
+
+	/**
+	 * The data directories of the indexes replaced by a restore, kept until their last search is done
+	 */
+	private final Set<File> retiredDataDirectories = ConcurrentHashMap.newKeySet();
 
 	private volatile Semaphore readSemaphore;
 	private volatile Semaphore writeSemaphore;
 
 	private volatile SearchContext searchContext = null;
 
+	private final SchemaMetrics metrics;
+
+	/**
+	 * The analyzers built for a call (test of an analyzer, inline tokenizer of a query), shared by the indexes
+	 */
+	private final AnalyzerCache analyzerCache;
+	private final static int ANALYZER_CACHE_SIZE = 128;
+	private final ObjectName mbeanName;
+
 	private class SearchContext implements Closeable, AutoCloseable {
 
 		private final MultiReader multiReader;
@@ -96,19 +167,19 @@ public class SchemaInstance implements Closeable {
 				fieldMap = null;
 				return;
 			}
-			IndexReader[] indexReaders = new IndexReader[indexMap.size()];
-			int i = 0;
+			final List<IndexReader> indexReaders = new ArrayList<>(indexMap.size());
 			analyzerMap = new HashMap<>();
 			FileResourceLoader resourceLoader = null;
 			final LinkedHashMap<String, FieldDefinition> fieldDefinitionMap = new LinkedHashMap<>();
 			for (IndexInstance indexInstance : indexMap.values()) {
-				indexReaders[i++] = DirectoryReader.open(indexInstance.getDataDirectory());
+				for (Directory dataDirectory : indexInstance.getDataDirectories())
+					indexReaders.add(QueryDeadline.wrap(DirectoryReader.open(dataDirectory)));
 				indexInstance.fillFields(fieldDefinitionMap);
 				indexInstance.fillAnalyzers(analyzerMap);
 				resourceLoader = indexInstance.newResourceLoader(resourceLoader);
 			}
 			fieldMap = new FieldMap(fieldDefinitionMap);
-			multiReader = new MultiReader(indexReaders);
+			multiReader = new MultiReader(indexReaders.toArray(new IndexReader[indexReaders.size()]));
 			indexSearcher = new IndexSearcher(multiReader);
 			final AnalyzerContext analyzerContext =
 					new AnalyzerContext(classLoaderManager, resourceLoader, analyzerMap, fieldDefinitionMap,
@@ -154,7 +225,9 @@ public class SchemaInstance implements Closeable {
 				return null;
 			incRef();
 			try {
+				final long start = System.nanoTime();
 				SortedSetDocValuesReaderState state = IndexUtils.getNewFacetsState(indexSearcher.getIndexReader());
+				metrics.facetsState.recordSince(start);
 				final QueryContext queryContext =
 						new QueryContext(SchemaInstance.this, null, indexSearcher, executorService, indexAnalyzer,
 								queryAnalyzer, fieldMap, state, queryDef);
@@ -177,6 +250,15 @@ public class SchemaInstance implements Closeable {
 		if (!schemaDirectory.exists())
 			throw new IOException("The directory does not exist: " + schemaDirectory.getName());
 		indexMap = new ConcurrentHashMap<>();
+		closedIndexes = new ConcurrentHashMap<>();
+		closedIndexesNumDocs = new ConcurrentHashMap<>();
+		openings = new ConcurrentHashMap<>();
+		unloadedIndexes = ConcurrentHashMap.newKeySet();
+		unloading = new AtomicBoolean(false);
+		metrics = new SchemaMetrics(indexMap::size, closedIndexes::size);
+		analyzerCache = new AnalyzerCache(ANALYZER_CACHE_SIZE);
+		mbeanName = MetricsMBean.register("type=Schema,name=" + ObjectName.quote(schemaDirectory.getName()),
+				"Metrics of the schema " + schemaDirectory.getName(), metrics::toMap);
 
 		settingsFile = new File(schemaDirectory, SETTINGS_FILE);
 		settingsDefinition = settingsFile.exists() ?
@@ -184,12 +266,106 @@ public class SchemaInstance implements Closeable {
 				SchemaSettingsDefinition.EMPTY;
 		checkSettings();
 
-		File[] directories = schemaDirectory.listFiles((FileFilter) DirectoryFileFilter.INSTANCE);
-		if (directories == null)
+		// The indexes are opened by the IndexManager, or on first access if the schema is lazy
+		final File[] directories = schemaDirectory.listFiles((FileFilter) DirectoryFileFilter.INSTANCE);
+		if (directories != null)
+			for (File indexDirectory : directories)
+				closedIndexes.put(indexDirectory.getName(), indexDirectory);
+	}
+
+	/**
+	 * @return true if the indexes are opened on first access
+	 */
+	boolean isLazy() {
+		return settingsDefinition != null && Boolean.TRUE.equals(settingsDefinition.lazy_index_open);
+	}
+
+	/**
+	 * @return the names of the indexes which are not opened
+	 */
+	Set<String> getClosedIndexes() {
+		return new TreeSet<>(closedIndexes.keySet());
+	}
+
+	/**
+	 * Returns an opened index. A closed index is opened, the concurrent callers wait for the same opening.
+	 *
+	 * @param indexName the name of the index
+	 * @return the index, or null if the index does not exist
+	 * @throws IOException if the index cannot be opened
+	 */
+	private IndexInstance open(final String indexName) throws IOException {
+		File indexDirectory = closedIndexes.get(indexName);
+		if (indexDirectory == null) {
+			final IndexInstance indexInstance = indexMap.get(indexName);
+			if (indexInstance == null || !indexInstance.isUnloaded())
+				return indexInstance;
+			// The index is being unloaded, the unloader holds the lock until it is closed
+			synchronized (indexMap) {
+				indexDirectory = closedIndexes.get(indexName);
+			}
+			if (indexDirectory == null)
+				return indexMap.get(indexName);
+		}
+		final CompletableFuture<IndexInstance> newFuture = new CompletableFuture<>();
+		final CompletableFuture<IndexInstance> future = openings.putIfAbsent(indexName, newFuture);
+		if (future != null)
+			return waitForOpening(indexName, future);
+		try {
+			// The index may have been opened since the first check
+			IndexInstance indexInstance = indexMap.get(indexName);
+			if ((indexInstance == null || indexInstance.isUnloaded()) && closedIndexes.containsKey(indexName)) {
+				final long start = System.nanoTime();
+				final IndexInstanceBuilder builder =
+						new IndexInstanceBuilder(this, indexDirectory, null, executorService);
+				indexInstance = builder.build();
+				builder.metrics.open.recordSince(start);
+				if (unloadedIndexes.remove(indexName))
+					metrics.indexReopen.recordSince(start);
+				indexMap.put(indexName, indexInstance);
+				closedIndexes.remove(indexName);
+				searchContextStale = true;
+				final SchemaSettingsDefinition settings = settingsDefinition;
+				if (settings != null && settings.max_open_indexes != null
+						&& indexMap.size() > settings.max_open_indexes)
+					executorService.execute(this::unloadIdle);
+			}
+			newFuture.complete(indexInstance);
+			return indexInstance;
+		} catch (IOException | RuntimeException e) {
+			newFuture.completeExceptionally(e);
+			throw e;
+		} catch (ReflectiveOperationException | URISyntaxException e) {
+			newFuture.completeExceptionally(e);
+			throw new ServerException(e);
+		} finally {
+			openings.remove(indexName, newFuture);
+		}
+	}
+
+	private static IndexInstance waitForOpening(final String indexName, final CompletableFuture<IndexInstance> future)
+			throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new ServerException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			if (e.getCause() instanceof ServerException)
+				throw (ServerException) e.getCause();
+			throw new ServerException("Cannot open the index: " + indexName, e.getCause());
+		}
+	}
+
+	/**
+	 * The searches across the schema need every index
+	 */
+	private void openAll() throws IOException {
+		if (closedIndexes.isEmpty() && !searchContextStale)
 			return;
-		for (File indexDirectory : directories)
-			indexMap.put(indexDirectory.getName(),
-					new IndexInstanceBuilder(this, indexDirectory, null, executorService).build());
+		for (String indexName : getClosedIndexes())
+			open(indexName);
 		mayBeRefresh(false);
 	}
 
@@ -203,6 +379,9 @@ public class SchemaInstance implements Closeable {
 
 	@Override
 	public void close() throws IOException {
+		MetricsMBean.unregister(mbeanName);
+		if (unloadSchedule != null)
+			unloadSchedule.cancel(false);
 		if (searchContext != null) {
 			searchContext.close();
 			searchContext = null;
@@ -210,6 +389,28 @@ public class SchemaInstance implements Closeable {
 		synchronized (indexMap) {
 			indexMap.values().forEach(IOUtils::closeQuietly);
 		}
+		analyzerCache.close();
+	}
+
+	/**
+	 * Returns an analyzer from the cache of the schema. The key is the JSON of the definition and the version of the
+	 * resources.
+	 *
+	 * @param resourceLoader the resources of the index
+	 * @param definition     the definition of the analyzer
+	 * @return a lease to close once the analyzer is not used
+	 * @throws ReflectiveOperationException if a factory cannot be created
+	 * @throws IOException                  if a resource cannot be read
+	 */
+	AnalyzerCache.Lease acquireAnalyzer(final ResourceLoader resourceLoader, final AnalyzerDefinition definition)
+			throws ReflectiveOperationException, IOException {
+		final String version = resourceLoader == null ?
+				StringUtils.EMPTY :
+				resourceLoader instanceof FileResourceLoader ?
+						((FileResourceLoader) resourceLoader).getVersion() :
+						null;
+		final String key = version == null ? null : version + '\n' + JsonMapper.MAPPER.writeValueAsString(definition);
+		return analyzerCache.acquire(key, classLoaderManager, resourceLoader, definition);
 	}
 
 	IndexInstance createUpdate(final String indexName, final IndexSettingsDefinition settings)
@@ -220,15 +421,27 @@ public class SchemaInstance implements Closeable {
 			final IndexInstanceBuilder builder =
 					new IndexInstanceBuilder(this, new File(schemaDirectory, indexName), settings, executorService);
 
-			IndexInstance indexInstance = indexMap.get(indexName);
+			IndexInstance indexInstance = open(indexName);
 
-			if (indexInstance != null && !Objects.equals(indexInstance.getSettings(), settings)) {
+			final boolean settingsChanged =
+					indexInstance != null && !Objects.equals(indexInstance.getSettings(), settings);
+			if (settingsChanged) {
 				IOUtils.closeQuietly(indexInstance);
 				indexMap.remove(indexName);
 				indexInstance = null;
 			}
 			if (indexInstance == null) {
-				indexInstance = builder.build();
+				final long start = System.nanoTime();
+				try {
+					indexInstance = builder.build();
+				} catch (ServerException | IOException | ReflectiveOperationException | URISyntaxException e) {
+					// The rejected settings have not been stored, the index is reopened with its current settings
+					if (settingsChanged)
+						indexMap.put(indexName, new IndexInstanceBuilder(this, new File(schemaDirectory, indexName),
+								null, executorService).build());
+					throw e;
+				}
+				builder.metrics.open.recordSince(start);
 				indexMap.put(indexName, indexInstance);
 			}
 
@@ -249,8 +462,11 @@ public class SchemaInstance implements Closeable {
 	 */
 	public IndexInstance get(String indexName, boolean ensureWriterOpen) throws IOException {
 		IndexInstance indexInstance = indexMap.get(indexName);
+		if (indexInstance == null || indexInstance.isUnloaded())
+			indexInstance = open(indexName);
 		if (indexInstance == null)
 			throw new ServerException(Response.Status.NOT_FOUND, "Index not found: " + indexName);
+		indexInstance.touch();
 		if (!ensureWriterOpen)
 			return indexInstance;
 		try {
@@ -260,7 +476,80 @@ public class SchemaInstance implements Closeable {
 		}
 	}
 
+	/**
+	 * An operation on an index
+	 */
+	interface IndexFunction<T> {
+		T apply(IndexInstance indexInstance) throws Exception;
+	}
+
+	/**
+	 * An operation on an index without result
+	 */
+	interface IndexConsumer {
+		void accept(IndexInstance indexInstance) throws Exception;
+	}
+
+	/**
+	 * Runs an operation on an index. The idle unloader may close the index between its lookup and the start of the
+	 * operation: the closed instance rejects the operation before doing anything, then the operation is run again on
+	 * the reopened index.
+	 *
+	 * @param indexName        the name of the index
+	 * @param ensureWriterOpen if true the index will be reopen if the writer has been closed
+	 * @param function         the operation
+	 * @param <T>              the type of the result
+	 * @return the result of the operation
+	 * @throws Exception the error of the operation
+	 */
+	<T> T apply(final String indexName, final boolean ensureWriterOpen, final IndexFunction<T> function)
+			throws Exception {
+		for (int retry = 0; ; retry++) {
+			final IndexInstance indexInstance = get(indexName, ensureWriterOpen);
+			try {
+				return function.apply(indexInstance);
+			} catch (ServerException e) {
+				// The unloaded instance, like the other unavailable states, rejects the operation before any change
+				if (retry >= UNLOADED_RETRIES || !indexInstance.isUnloaded() ||
+						e.getStatusCode() != Response.Status.SERVICE_UNAVAILABLE.getStatusCode())
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * @see #apply(String, boolean, IndexFunction)
+	 */
+	void accept(final String indexName, final boolean ensureWriterOpen, final IndexConsumer consumer)
+			throws Exception {
+		apply(indexName, ensureWriterOpen, indexInstance -> {
+			consumer.accept(indexInstance);
+			return null;
+		});
+	}
+
+	/**
+	 * Collects the join terms from an index of the schema
+	 *
+	 * @param queryContext the context of the query using the join
+	 * @param joinQuery    the join query
+	 * @return a query matching the documents having the collected terms
+	 */
+	public Query createJoinQuery(final QueryContext queryContext, final JoinQuery joinQuery)
+			throws IOException, ParseException, ReflectiveOperationException, QueryNodeException {
+		try {
+			return apply(joinQuery.from_index, false,
+					indexInstance -> indexInstance.createJoinQuery(joinQuery, queryContext.deadline));
+		} catch (IOException | ParseException | ReflectiveOperationException | QueryNodeException |
+				RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ServerException(e);
+		}
+	}
+
 	void delete() {
+		MetricsMBean.unregister(mbeanName);
 		synchronized (indexMap) {
 			for (IndexInstance instance : indexMap.values()) {
 				instance.close();
@@ -281,7 +570,21 @@ public class SchemaInstance implements Closeable {
 	}
 
 	Set<String> nameSet() {
-		return indexMap.keySet();
+		final Set<String> names = new TreeSet<>(indexMap.keySet());
+		names.addAll(closedIndexes.keySet());
+		return names;
+	}
+
+	/**
+	 * @return the metrics of the schema and the metrics of each index
+	 */
+	Map<String, Object> getMetrics() {
+		final Map<String, Object> map = new LinkedHashMap<>();
+		map.put("schema", metrics.toMap());
+		final Map<String, Object> indexes = new TreeMap<>();
+		indexMap.forEach((name, indexInstance) -> indexes.put(name, indexInstance.getMetrics()));
+		map.put("indexes", indexes);
+		return map;
 	}
 
 	final private static Pattern backupNameMatcher = Pattern.compile("[^a-zA-Z0-9-_]");
@@ -322,8 +625,8 @@ public class SchemaInstance implements Closeable {
 			final FunctionUtils.BiConsumerEx<String, IndexInstance, IOException> consumer) throws IOException {
 		synchronized (indexMap) {
 			if ("*".equals(indexName)) {
-				for (Map.Entry<String, IndexInstance> entry : indexMap.entrySet())
-					consumer.accept(entry.getKey(), entry.getValue());
+				for (String name : nameSet())
+					consumer.accept(name, get(name, false));
 			} else
 				consumer.accept(indexName, get(indexName, false));
 		}
@@ -334,10 +637,12 @@ public class SchemaInstance implements Closeable {
 			if (settingsDefinition == null || StringUtils.isEmpty(settingsDefinition.backup_directory_path))
 				return null;
 			final File backupDirectory = getBackupDirectory(backupName, true);
+			// The index map is not locked during the copy
+			final SortedMap<String, IndexInstance> indexes = new TreeMap<>();
+			indexIterator(indexName, indexes::put);
 			final SortedMap<String, BackupStatus> results = new TreeMap<>();
-			indexIterator(indexName, (idxName, indexInstance) -> {
-				results.put(idxName, indexInstance.backup(new File(backupDirectory, idxName)));
-			});
+			for (Map.Entry<String, IndexInstance> entry : indexes.entrySet())
+				results.put(entry.getKey(), entry.getValue().backup(new File(backupDirectory, entry.getKey())));
 			return results;
 		});
 	}
@@ -394,6 +699,208 @@ public class SchemaInstance implements Closeable {
 		});
 	}
 
+	/**
+	 * Restore an index from a backup. The files are copied into a new data directory while the current index is
+	 * still serving. The new index is opened, then it replaces the current index. The current index is closed in the
+	 * background once its searches are done.
+	 *
+	 * @param indexName  the name of the index
+	 * @param backupName the name of the backup
+	 * @return the status of the restored index
+	 * @throws IOException if the files cannot be copied or the index cannot be opened
+	 */
+	IndexStatus restoreBackup(final String indexName, final String backupName) throws IOException {
+		return backupLock.readEx(() -> {
+			restoreLock.lock();
+			try {
+				return restore(indexName, new File(getBackupDirectory(backupName, false), indexName));
+			} finally {
+				restoreLock.unlock();
+			}
+		});
+	}
+
+	private IndexStatus restore(final String indexName, final File backupIndexDirectory) throws IOException {
+		if (!backupIndexDirectory.exists() || !backupIndexDirectory.isDirectory())
+			throw new ServerException(Response.Status.NOT_FOUND,
+					"Backup not found: " + backupIndexDirectory.getParentFile().getName() + " - Index: " + indexName);
+		final IndexInstance oldInstance = get(indexName, false);
+		oldInstance.checkIsMaster();
+
+		final File indexDirectory = new File(schemaDirectory, indexName);
+		final String currentDataName = IndexInstanceBuilder.FileSet.getDataName(indexDirectory);
+		final String dataName = IndexInstanceBuilder.INDEX_DATA + '.' + System.currentTimeMillis();
+		final File dataDirectory = new File(indexDirectory, dataName);
+
+		// The writes acknowledged by the current index would be lost: they are rejected until the swap
+		oldInstance.lockWrites();
+		boolean replaced = false;
+		try {
+			deleteStaleDataDirectories(indexDirectory, currentDataName);
+			final File uuidFile = new File(indexDirectory, IndexInstanceBuilder.UUID_FILE);
+			final File uuidPreviousFile = new File(indexDirectory, IndexInstanceBuilder.UUID_PREVIOUS_FILE);
+			final String currentUuid = IOUtils.readFileAsString(uuidFile).trim();
+			final String previousUuids =
+					uuidPreviousFile.exists() ? IOUtils.readFileAsString(uuidPreviousFile) : StringUtils.EMPTY;
+			final IndexInstance newInstance;
+			try {
+				restoreFiles(backupIndexDirectory.toPath(), dataDirectory.toPath());
+				setDataName(indexDirectory, dataName);
+				// A new UUID: the version of the index goes backwards, the slaves have to copy the whole index
+				replaceFile(indexDirectory, IndexInstanceBuilder.UUID_PREVIOUS_FILE,
+						previousUuids + currentUuid + '\n');
+				replaceFile(indexDirectory, IndexInstanceBuilder.UUID_FILE, HashUtils.newTimeBasedUUID().toString());
+				try {
+					newInstance =
+							new IndexInstanceBuilder(this, indexDirectory, null, executorService, dataName).build();
+				} catch (Exception e) {
+					setDataName(indexDirectory, currentDataName);
+					replaceFile(indexDirectory, IndexInstanceBuilder.UUID_FILE, currentUuid);
+					if (previousUuids.isEmpty())
+						uuidPreviousFile.delete();
+					else
+						replaceFile(indexDirectory, IndexInstanceBuilder.UUID_PREVIOUS_FILE, previousUuids);
+					throw e;
+				}
+			} catch (ReflectiveOperationException | URISyntaxException e) {
+				FileUtils.deleteQuietly(dataDirectory);
+				throw new ServerException(e);
+			} catch (IOException | RuntimeException e) {
+				FileUtils.deleteQuietly(dataDirectory);
+				throw e;
+			}
+			replace(indexName, newInstance);
+			replaced = true;
+			// Retired before the writes are released: a rejected write is run again on the new instance
+			retire(oldInstance, new File(indexDirectory, currentDataName));
+		} finally {
+			oldInstance.unlockWrites(replaced);
+		}
+		try {
+			return get(indexName, false).getStatus();
+		} catch (InterruptedException e) {
+			throw new ServerException(e);
+		}
+	}
+
+	/**
+	 * Replace a slave index by an empty index, once its master has been restored from a backup. The next replication
+	 * copies the whole index of the master. The current index is closed in the background once its searches are done.
+	 *
+	 * @param indexInstance the slave index
+	 * @return the new instance of the index
+	 * @throws IOException if the new index cannot be created
+	 */
+	IndexInstance resync(final IndexInstance indexInstance) throws IOException {
+		restoreLock.lock();
+		try {
+			final String indexName = indexInstance.getIndexName();
+			if (indexMap.get(indexName) != indexInstance)
+				return get(indexName, false);
+			final File indexDirectory = new File(schemaDirectory, indexName);
+			final String currentDataName = IndexInstanceBuilder.FileSet.getDataName(indexDirectory);
+			final String dataName = IndexInstanceBuilder.INDEX_DATA + '.' + System.currentTimeMillis();
+			deleteStaleDataDirectories(indexDirectory, currentDataName);
+			final File uuidMasterFile = new File(indexDirectory, IndexInstanceBuilder.UUID_MASTER_FILE);
+			final String masterUuid = IOUtils.readFileAsString(uuidMasterFile).trim();
+			final IndexInstance newInstance;
+			try {
+				setDataName(indexDirectory, dataName);
+				// The new instance takes the UUID of the restored master on its first replication
+				uuidMasterFile.delete();
+				newInstance = new IndexInstanceBuilder(this, indexDirectory, null, executorService, dataName).build();
+			} catch (IOException | ReflectiveOperationException | URISyntaxException | RuntimeException e) {
+				setDataName(indexDirectory, currentDataName);
+				IOUtils.writeStringAsFile(masterUuid, uuidMasterFile);
+				FileUtils.deleteQuietly(new File(indexDirectory, dataName));
+				if (e instanceof IOException)
+					throw (IOException) e;
+				if (e instanceof RuntimeException)
+					throw (RuntimeException) e;
+				throw new ServerException(e);
+			}
+			replace(indexName, newInstance);
+			retire(indexInstance, new File(indexDirectory, currentDataName));
+			return newInstance;
+		} finally {
+			restoreLock.unlock();
+		}
+	}
+
+	private void replace(final String indexName, final IndexInstance newInstance) throws IOException {
+		synchronized (indexMap) {
+			indexMap.put(indexName, newInstance);
+			closedIndexes.remove(indexName);
+			mayBeRefresh(true);
+		}
+	}
+
+	/**
+	 * Remove what was left by a failed restore
+	 */
+	private void deleteStaleDataDirectories(final File indexDirectory, final String currentDataName) {
+		final File[] directories = indexDirectory.listFiles((FileFilter) DirectoryFileFilter.INSTANCE);
+		if (directories != null)
+			for (File directory : directories)
+				if (directory.getName().startsWith(IndexInstanceBuilder.INDEX_DATA + '.') && !directory.getName()
+						.equals(currentDataName) && !retiredDataDirectories.contains(directory))
+					FileUtils.deleteQuietly(directory);
+	}
+
+	/**
+	 * The replaced instance is closed by its last running operation, its data directory is not stale until then
+	 */
+	private void retire(final IndexInstance indexInstance, final File dataDirectory) {
+		retiredDataDirectories.add(dataDirectory);
+		indexInstance.retire(() -> retiredDataDirectories.remove(dataDirectory));
+	}
+
+	/**
+	 * Copy the files of a backup, and the files of its local shards
+	 */
+	private void restoreFiles(final Path source, final Path target) throws IOException {
+		final List<String> fileNames = new ArrayList<>();
+		try (final DirectoryStream<Path> stream = Files.newDirectoryStream(source)) {
+			for (Path path : stream)
+				if (Files.isRegularFile(path))
+					fileNames.add(path.getFileName().toString());
+		}
+		try (final Directory sourceDirectory = FSDirectory.open(source);
+				final IndexBackup copy = new IndexBackup(sourceDirectory, source, target, executorService)) {
+			copy.copy(fileNames);
+		}
+		final Path shards = source.resolve(IndexInstanceBuilder.SHARDS_DIR);
+		if (!Files.isDirectory(shards))
+			return;
+		try (final DirectoryStream<Path> stream = Files.newDirectoryStream(shards)) {
+			for (Path path : stream)
+				if (Files.isDirectory(path))
+					restoreFiles(path, target.resolve(IndexInstanceBuilder.SHARDS_DIR).resolve(path.getFileName()));
+		}
+	}
+
+	/**
+	 * Atomically replace the name of the current data directory
+	 */
+	private static void setDataName(final File indexDirectory, final String dataName) throws IOException {
+		replaceFile(indexDirectory, IndexInstanceBuilder.CURRENT_DATA_FILE, dataName);
+	}
+
+	/**
+	 * Atomically replace the content of a file of the index directory
+	 */
+	private static void replaceFile(final File indexDirectory, final String fileName, final String content)
+			throws IOException {
+		final Path file = indexDirectory.toPath().resolve(fileName);
+		final Path tmpFile = Files.createTempFile(indexDirectory.toPath(), fileName, null);
+		try {
+			IOUtils.writeStringAsFile(content, tmpFile.toFile());
+			Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmpFile);
+		}
+	}
+
 	synchronized void setSettings(SchemaSettingsDefinition settings) throws IOException, URISyntaxException {
 		if (settings == null) {
 			settings = SchemaSettingsDefinition.EMPTY;
@@ -405,9 +912,12 @@ public class SchemaInstance implements Closeable {
 	}
 
 	synchronized void mayBeRefresh(final boolean failOnException) throws IOException, ServerException {
+		searchContextStale = false;
 		if (searchContext != null)
 			searchContext.close();
+		final long start = System.nanoTime();
 		searchContext = new SearchContext(failOnException);
+		metrics.reopen.recordSince(start);
 	}
 
 	SchemaSettingsDefinition getSettings() {
@@ -432,6 +942,73 @@ public class SchemaInstance implements Closeable {
 			backupRootDirectory = new File(settingsDefinition.backup_directory_path);
 		else
 			backupRootDirectory = null;
+		if (settingsDefinition.max_open_indexes != null || settingsDefinition.index_idle_timeout_ms != null) {
+			if (unloadSchedule == null)
+				unloadSchedule = IndexReplicator.schedule(UNLOAD_CHECK_INTERVAL_MS,
+						() -> executorService.execute(this::unloadIdle));
+		} else if (unloadSchedule != null) {
+			unloadSchedule.cancel(false);
+			unloadSchedule = null;
+		}
+	}
+
+	/**
+	 * Close the indexes idle for longer than index_idle_timeout_ms, then the least recently used indexes beyond
+	 * max_open_indexes. An index running an operation is never closed. The index is opened again on its next access.
+	 */
+	void unloadIdle() {
+		final SchemaSettingsDefinition settings = settingsDefinition;
+		if (settings == null || (settings.max_open_indexes == null && settings.index_idle_timeout_ms == null))
+			return;
+		if (!unloading.compareAndSet(false, true))
+			return;
+		try {
+			// A restore replaces the index instance
+			if (!restoreLock.tryLock())
+				return;
+			try {
+				synchronized (indexMap) {
+					synchronized (this) {
+						if (unloadIdle(settings))
+							mayBeRefresh(false);
+					}
+				}
+			} finally {
+				restoreLock.unlock();
+			}
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warn("Cannot unload the idle indexes - Schema: " + schemaDirectory.getName(), e);
+		} finally {
+			unloading.set(false);
+		}
+	}
+
+	private boolean unloadIdle(final SchemaSettingsDefinition settings) {
+		final long now = System.currentTimeMillis();
+		// The least recently used first, the access times are read once
+		final List<Pair<Long, IndexInstance>> entries = new ArrayList<>(indexMap.size());
+		indexMap.forEach((name, indexInstance) -> entries.add(Pair.of(indexInstance.getLastAccess(), indexInstance)));
+		entries.sort((a, b) -> Long.compare(a.getLeft(), b.getLeft()));
+		int exceeding = settings.max_open_indexes == null ? 0 : entries.size() - settings.max_open_indexes;
+		boolean unloaded = false;
+		for (Pair<Long, IndexInstance> entry : entries) {
+			final IndexInstance indexInstance = entry.getRight();
+			final String indexName = indexInstance.getIndexName();
+			final long idle = now - entry.getLeft();
+			final boolean expired = settings.index_idle_timeout_ms != null && idle >= settings.index_idle_timeout_ms;
+			if (!expired && (exceeding <= 0 || idle < UNLOAD_MIN_IDLE_MS))
+				continue;
+			if (!indexInstance.unload())
+				continue;
+			closedIndexes.put(indexName, new File(schemaDirectory, indexName));
+			closedIndexesNumDocs.remove(indexName);
+			unloadedIndexes.add(indexName);
+			indexMap.remove(indexName, indexInstance);
+			metrics.indexUnloads.mark(1);
+			exceeding--;
+			unloaded = true;
+		}
+		return unloaded;
 	}
 
 	private static <T extends ResultDocumentAbstract> ResultDefinition<T> atomicSearch(
@@ -446,20 +1023,30 @@ public class SchemaInstance implements Closeable {
 	public <T extends ResultDocumentAbstract> ResultDefinition<T> search(final QueryDefinition queryDef,
 			final ResultDocumentBuilder.BuilderFactory<T> documentBuilderFactory)
 			throws ServerException, IOException, QueryNodeException, ParseException, ReflectiveOperationException {
+		openAll();
+		final long start = System.nanoTime();
 		final Semaphore sem = acquireReadSemaphore();
+		final long semaphoreWait = System.nanoTime() - start;
+		ResultDefinition<T> result = null;
 		try {
-			return atomicSearch(searchContext, queryDef, documentBuilderFactory);
+			result = atomicSearch(searchContext, queryDef, documentBuilderFactory);
+			return result;
 		} finally {
 			if (sem != null)
 				sem.release();
+			final long elapsed = metrics.search.recordSince(start);
+			SlowLog.search(settingsDefinition, schemaDirectory.getName(), null, queryDef, result, null, elapsed,
+					semaphoreWait);
 		}
 	}
 
-	private static Semaphore atomicAquire(final Semaphore semaphore) {
+	private static Semaphore atomicAquire(final Semaphore semaphore, final LatencyHistogram waitHistogram) {
 		if (semaphore == null)
 			return null;
+		final long start = System.nanoTime();
 		try {
 			semaphore.acquire();
+			waitHistogram.recordSince(start);
 			return semaphore;
 		} catch (InterruptedException e) {
 			throw new ServerException(e);
@@ -467,15 +1054,15 @@ public class SchemaInstance implements Closeable {
 	}
 
 	Semaphore acquireReadSemaphore() {
-		return atomicAquire(readSemaphore);
+		return atomicAquire(readSemaphore, metrics.readSemaphoreWait);
 	}
 
 	Semaphore acquireWriteSemaphore() {
-		return atomicAquire(writeSemaphore);
+		return atomicAquire(writeSemaphore, metrics.writeSemaphoreWait);
 	}
 
 	private static void atomicCheckSize(SchemaSettingsDefinition settingsDefinition, SearchContext searchContext,
-			int addSize) {
+			long addSize) {
 		if (settingsDefinition == null)
 			return;
 		if (settingsDefinition.max_size == null)
@@ -487,8 +1074,32 @@ public class SchemaInstance implements Closeable {
 					"This schema is limited to " + settingsDefinition.max_size + " documents");
 	}
 
+	/**
+	 * @return the number of documents of the closed indexes, which are not opened
+	 * @throws IOException if the commit of an index cannot be read
+	 */
+	private long getClosedIndexesNumDocs() throws IOException {
+		long numDocs = 0;
+		for (Map.Entry<String, File> entry : closedIndexes.entrySet()) {
+			Integer indexNumDocs = closedIndexesNumDocs.get(entry.getKey());
+			if (indexNumDocs == null) {
+				indexNumDocs = IndexInstanceBuilder.getCommittedNumDocs(entry.getValue());
+				closedIndexesNumDocs.put(entry.getKey(), indexNumDocs);
+			}
+			numDocs += indexNumDocs;
+		}
+		return numDocs;
+	}
+
+	/**
+	 * The search context counts the opened indexes, the closed indexes are counted from their last commit
+	 */
 	final void checkSize(final int addSize) throws IOException, ServerException {
-		atomicCheckSize(settingsDefinition, searchContext, addSize);
+		if (settingsDefinition == null || settingsDefinition.max_size == null)
+			return;
+		if (searchContextStale)
+			mayBeRefresh(false);
+		atomicCheckSize(settingsDefinition, searchContext, getClosedIndexesNumDocs() + addSize);
 	}
 
 }
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntSupplier;
+
+/**
+ * The runtime metrics of one schema. The semaphores are shared by the indexes of the schema.
+ */
+class SchemaMetrics {
+
+	final LatencyHistogram search = new LatencyHistogram();
+	final LatencyHistogram reopen = new LatencyHistogram();
+	final LatencyHistogram facetsState = new LatencyHistogram();
+	final LatencyHistogram readSemaphoreWait = new LatencyHistogram();
+	final LatencyHistogram writeSemaphoreWait = new LatencyHistogram();
+	final LatencyHistogram indexReopen = new LatencyHistogram();
+	final RateMeter indexUnloads = new RateMeter();
+
+	private final IntSupplier openIndexes;
+	private final IntSupplier closedIndexes;
+
+	SchemaMetrics(final IntSupplier openIndexes, final IntSupplier closedIndexes) {
+		this.openIndexes = openIndexes;
+		this.closedIndexes = closedIndexes;
+	}
+
+	final Map<String, Object> toMap() {
+		final Map<String, Object> map = new LinkedHashMap<>();
+		map.put("search", search.toMap());
+		map.put("reopen", reopen.toMap());
+		map.put("facets_state", facetsState.toMap());
+		map.put("read_semaphore_wait", readSemaphoreWait.toMap());
+		map.put("write_semaphore_wait", writeSemaphoreWait.toMap());
+		map.put("open_indexes", openIndexes.getAsInt());
+		map.put("closed_indexes", closedIndexes.getAsInt());
+		map.put("index_reopen", indexReopen.toMap());
+		map.put("index_unloads", indexUnloads.toMap());
+		return map;
+	}
+}
@@ -26,20 +26,77 @@ public class SchemaSettingsDefinition {
 	final public Integer max_simultaneous_read;
 	final public Long max_size;
 	final public String backup_directory_path;
+	final public Long default_timeout_ms;
+	final public Long slow_search_ms;
+	final public Long slow_indexing_ms;
+	final public Float slow_log_sampling;
+
+	/**
+	 * When true, an index is opened on its first access rather than when the server starts
+	 */
+	final public Boolean lazy_index_open;
+
+	/**
+	 * The indexes which are not used are closed, beyond this number of opened indexes or after this idle time
+	 */
+	final public Integer max_open_indexes;
+	final public Long index_idle_timeout_ms;
 
 	public SchemaSettingsDefinition() {
 		max_simultaneous_write = null;
 		max_simultaneous_read = null;
 		max_size = null;
 		backup_directory_path = null;
+		default_timeout_ms = null;
+		slow_search_ms = null;
+		slow_indexing_ms = null;
+		slow_log_sampling = null;
+		lazy_index_open = null;
+		max_open_indexes = null;
+		index_idle_timeout_ms = null;
 	}
 
 	public SchemaSettingsDefinition(final Integer max_simultaneous_write, final Integer max_simultaneous_read,
 			final Long max_size, final String backupDirectoryPath) {
+		this(max_simultaneous_write, max_simultaneous_read, max_size, backupDirectoryPath, null);
+	}
+
+	public SchemaSettingsDefinition(final Integer max_simultaneous_write, final Integer max_simultaneous_read,
+			final Long max_size, final String backupDirectoryPath, final Long defaultTimeoutMs) {
+		this(max_simultaneous_write, max_simultaneous_read, max_size, backupDirectoryPath, defaultTimeoutMs, null, null,
+				null);
+	}
+
+	public SchemaSettingsDefinition(final Integer max_simultaneous_write, final Integer max_simultaneous_read,
+			final Long max_size, final String backupDirectoryPath, final Long defaultTimeoutMs,
+			final Long slowSearchMs, final Long slowIndexingMs, final Float slowLogSampling) {
+		this(max_simultaneous_write, max_simultaneous_read, max_size, backupDirectoryPath, defaultTimeoutMs,
+				slowSearchMs, slowIndexingMs, slowLogSampling, null);
+	}
+
+	public SchemaSettingsDefinition(final Integer max_simultaneous_write, final Integer max_simultaneous_read,
+			final Long max_size, final String backupDirectoryPath, final Long defaultTimeoutMs,
+			final Long slowSearchMs, final Long slowIndexingMs, final Float slowLogSampling,
+			final Boolean lazyIndexOpen) {
+		this(max_simultaneous_write, max_simultaneous_read, max_size, backupDirectoryPath, defaultTimeoutMs,
+				slowSearchMs, slowIndexingMs, slowLogSampling, lazyIndexOpen, null, null);
+	}
+
+	public SchemaSettingsDefinition(final Integer max_simultaneous_write, final Integer max_simultaneous_read,
+			final Long max_size, final String backupDirectoryPath, final Long defaultTimeoutMs,
+			final Long slowSearchMs, final Long slowIndexingMs, final Float slowLogSampling,
+			final Boolean lazyIndexOpen, final Integer maxOpenIndexes, final Long indexIdleTimeoutMs) {
 		this.max_simultaneous_write = max_simultaneous_write;
 		this.max_simultaneous_read = max_simultaneous_read;
 		this.max_size = max_size;
 		this.backup_directory_path = backupDirectoryPath;
+		this.default_timeout_ms = defaultTimeoutMs;
+		this.slow_search_ms = slowSearchMs;
+		this.slow_indexing_ms = slowIndexingMs;
+		this.slow_log_sampling = slowLogSampling;
+		this.lazy_index_open = lazyIndexOpen;
+		this.max_open_indexes = maxOpenIndexes;
+		this.index_idle_timeout_ms = indexIdleTimeoutMs;
 	}
 
 	@Override
@@ -55,6 +112,20 @@ public class SchemaSettingsDefinition {
 			return false;
 		if (!Objects.equals(backup_directory_path, def.backup_directory_path))
 			return false;
+		if (!Objects.equals(default_timeout_ms, def.default_timeout_ms))
+			return false;
+		if (!Objects.equals(slow_search_ms, def.slow_search_ms))
+			return false;
+		if (!Objects.equals(slow_indexing_ms, def.slow_indexing_ms))
+			return false;
+		if (!Objects.equals(slow_log_sampling, def.slow_log_sampling))
+			return false;
+		if (!Objects.equals(lazy_index_open, def.lazy_index_open))
+			return false;
+		if (!Objects.equals(max_open_indexes, def.max_open_indexes))
+			return false;
+		if (!Objects.equals(index_idle_timeout_ms, def.index_idle_timeout_ms))
+			return false;
 		return true;
 	}
 
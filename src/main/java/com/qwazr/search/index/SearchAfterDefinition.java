@@ -0,0 +1,135 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.SortedNumericSortField;
+import org.apache.lucene.search.SortedSetSortField;
+import org.apache.lucene.util.BytesRef;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The position of the last document of a page. Passing it back in the next QueryDefinition returns the documents
+ * following this one without collecting the previous pages.
+ */
+@JsonInclude(Include.NON_NULL)
+public class SearchAfterDefinition {
+
+	final public Integer doc;
+	final public Float score;
+	final public Object[] sort_values;
+
+	public SearchAfterDefinition() {
+		doc = null;
+		score = null;
+		sort_values = null;
+	}
+
+	public SearchAfterDefinition(final Integer doc, final Float score, final Object... sortValues) {
+		this.doc = doc;
+		this.score = score;
+		this.sort_values = sortValues == null || sortValues.length == 0 ? null : sortValues;
+	}
+
+	static SearchAfterDefinition of(final ScoreDoc scoreDoc) {
+		if (scoreDoc == null)
+			return null;
+		if (!(scoreDoc instanceof FieldDoc))
+			return new SearchAfterDefinition(scoreDoc.doc, scoreDoc.score);
+		final Object[] fields = ((FieldDoc) scoreDoc).fields;
+		final Object[] values = new Object[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			final Object field = fields[i];
+			values[i] = field instanceof BytesRef ? ((BytesRef) field).utf8ToString() : field;
+		}
+		return new SearchAfterDefinition(scoreDoc.doc, null, values);
+	}
+
+	final ScoreDoc getScoreDoc(final Sort sort) {
+		if (doc == null)
+			throw new IllegalArgumentException("The search_after cursor requires a doc");
+		if (sort == null) {
+			// The documents are ordered by score: a NaN score would skip no document
+			if (score == null)
+				throw new IllegalArgumentException("The search_after cursor requires a score");
+			return new ScoreDoc(doc, score);
+		}
+		final SortField[] sortFields = sort.getSort();
+		if (sort_values == null || sort_values.length != sortFields.length)
+			throw new IllegalArgumentException(
+					"The search_after cursor requires one value per sort field: " + sortFields.length);
+		final Object[] fields = new Object[sortFields.length];
+		for (int i = 0; i < sortFields.length; i++)
+			fields[i] = toFieldValue(sortFields[i], sort_values[i]);
+		return new FieldDoc(doc, Float.NaN, fields);
+	}
+
+	private static SortField.Type getType(final SortField sortField) {
+		if (sortField instanceof SortedNumericSortField)
+			return ((SortedNumericSortField) sortField).getNumericType();
+		if (sortField instanceof SortedSetSortField)
+			return SortField.Type.STRING;
+		return sortField.getType();
+	}
+
+	private static Object toFieldValue(final SortField sortField, final Object value) {
+		if (value == null)
+			return null;
+		switch (getType(sortField)) {
+		case SCORE:
+		case FLOAT:
+			return ((Number) value).floatValue();
+		case DOC:
+		case INT:
+			return ((Number) value).intValue();
+		case LONG:
+			return ((Number) value).longValue();
+		case DOUBLE:
+			return ((Number) value).doubleValue();
+		case STRING:
+		case STRING_VAL:
+			return new BytesRef(value.toString());
+		default:
+			return value;
+		}
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		if (o == null || !(o instanceof SearchAfterDefinition))
+			return false;
+		final SearchAfterDefinition def = (SearchAfterDefinition) o;
+		if (!Objects.equals(doc, def.doc))
+			return false;
+		if (!Objects.equals(score, def.score))
+			return false;
+		if (!Arrays.equals(sort_values, def.sort_values))
+			return false;
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(doc);
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The searcher manager of an index having local shards. The searcher reads the NRT readers of every shard writer
+ * through one MultiReader: the term statistics are the statistics of the whole index. On refresh, only the shards
+ * which changed are reopened.
+ */
+class ShardsSearcherManager extends ReferenceManager<IndexSearcher> {
+
+	private final SearcherFactory searcherFactory;
+
+	ShardsSearcherManager(final IndexWriter[] indexWriters, final SearcherFactory searcherFactory)
+			throws IOException {
+		this.searcherFactory = searcherFactory;
+		final List<DirectoryReader> opened = new ArrayList<>(indexWriters.length);
+		try {
+			for (IndexWriter indexWriter : indexWriters)
+				opened.add(QueryDeadline.wrap(DirectoryReader.open(indexWriter)));
+			current = SearcherManager.getSearcher(searcherFactory,
+					new ShardsReader(opened.toArray(new DirectoryReader[opened.size()])), null);
+		} finally {
+			// The MultiReader holds its own reference
+			for (DirectoryReader reader : opened)
+				reader.decRef();
+		}
+	}
+
+	@Override
+	protected void decRef(final IndexSearcher reference) throws IOException {
+		reference.getIndexReader().decRef();
+	}
+
+	@Override
+	protected IndexSearcher refreshIfNeeded(final IndexSearcher referenceToRefresh) throws IOException {
+		final ShardsReader oldReader = (ShardsReader) referenceToRefresh.getIndexReader();
+		final DirectoryReader[] newReaders = new DirectoryReader[oldReader.shardReaders.length];
+		final List<DirectoryReader> opened = new ArrayList<>();
+		try {
+			for (int i = 0; i < newReaders.length; i++) {
+				final DirectoryReader newReader = DirectoryReader.openIfChanged(oldReader.shardReaders[i]);
+				if (newReader != null)
+					opened.add(newReader);
+				newReaders[i] = newReader == null ? oldReader.shardReaders[i] : newReader;
+			}
+			if (opened.isEmpty())
+				return null;
+			return SearcherManager.getSearcher(searcherFactory, new ShardsReader(newReaders), oldReader);
+		} finally {
+			for (DirectoryReader reader : opened)
+				reader.decRef();
+		}
+	}
+
+	@Override
+	protected boolean tryIncRef(final IndexSearcher reference) {
+		return reference.getIndexReader().tryIncRef();
+	}
+
+	@Override
+	protected int getRefCount(final IndexSearcher reference) {
+		return reference.getIndexReader().getRefCount();
+	}
+
+	/**
+	 * @return the version of the reader. The version of an index having local shards is the sum of the versions of
+	 * the shards: it grows when any shard changes.
+	 */
+	static Long getVersion(final IndexReader indexReader) {
+		if (indexReader instanceof DirectoryReader)
+			return ((DirectoryReader) indexReader).getVersion();
+		if (!(indexReader instanceof ShardsReader))
+			return null;
+		long version = 0;
+		for (DirectoryReader shardReader : ((ShardsReader) indexReader).shardReaders)
+			version += shardReader.getVersion();
+		return version;
+	}
+
+	/**
+	 * @return the readers of the local shards, or null if the index has no local shards
+	 */
+	static DirectoryReader[] getShardReaders(final IndexReader indexReader) {
+		return indexReader instanceof ShardsReader ? ((ShardsReader) indexReader).shardReaders : null;
+	}
+
+	private static class ShardsReader extends MultiReader {
+
+		private final DirectoryReader[] shardReaders;
+
+		private ShardsReader(final DirectoryReader[] shardReaders) throws IOException {
+			super(shardReaders, false);
+			this.shardReaders = shardReaders;
+		}
+	}
+}
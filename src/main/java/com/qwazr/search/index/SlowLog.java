@@ -0,0 +1,138 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.qwazr.utils.json.JsonMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the searches and the updates exceeding the thresholds of the schema settings as one JSON object per line.
+ * The entries go to dedicated loggers, which the logging configuration can send to a rotating file.
+ * Below the thresholds, the cost is a comparison.
+ */
+class SlowLog {
+
+	final static String SEARCH_LOGGER_NAME = "com.qwazr.search.slowlog.search";
+	final static String INDEXING_LOGGER_NAME = "com.qwazr.search.slowlog.indexing";
+
+	/**
+	 * Not final: the tests replace the loggers to read the entries
+	 */
+	static Logger searchLogger = LoggerFactory.getLogger(SEARCH_LOGGER_NAME);
+	static Logger indexingLogger = LoggerFactory.getLogger(INDEXING_LOGGER_NAME);
+
+	/**
+	 * The maximum number of characters of the query
+	 */
+	final static int MAX_QUERY_LENGTH = 8192;
+
+	private static boolean isSlow(final Logger logger, final Long thresholdMs, final Float sampling,
+			final long elapsedNanos) {
+		if (thresholdMs == null || elapsedNanos < TimeUnit.MILLISECONDS.toNanos(thresholdMs))
+			return false;
+		if (sampling != null && sampling < 1 && ThreadLocalRandom.current().nextFloat() >= sampling)
+			return false;
+		return logger.isWarnEnabled();
+	}
+
+	private static Map<String, Object> newEntry(final String schemaName, final String indexName,
+			final long elapsedNanos, final long semaphoreWaitNanos) {
+		final Map<String, Object> entry = new LinkedHashMap<>();
+		entry.put("schema", schemaName);
+		if (indexName != null)
+			entry.put("index", indexName);
+		entry.put("took_ms", TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+		entry.put("semaphore_wait_ms", TimeUnit.NANOSECONDS.toMillis(semaphoreWaitNanos));
+		return entry;
+	}
+
+	private static void write(final Logger logger, final Map<String, Object> entry) {
+		try {
+			logger.warn(JsonMapper.MAPPER.writeValueAsString(entry));
+		} catch (JsonProcessingException e) {
+			logger.warn(entry.toString());
+		}
+	}
+
+	private static String truncatedJson(final QueryDefinition queryDefinition) {
+		if (queryDefinition == null)
+			return null;
+		try {
+			final String json = JsonMapper.MAPPER.writeValueAsString(queryDefinition);
+			return json.length() <= MAX_QUERY_LENGTH ? json : json.substring(0, MAX_QUERY_LENGTH) + "...";
+		} catch (JsonProcessingException e) {
+			return e.getMessage();
+		}
+	}
+
+	/**
+	 * @param settings           the settings of the schema
+	 * @param schemaName         the name of the schema
+	 * @param indexName          the name of the index, or null for a search across the schema
+	 * @param queryDefinition    the query
+	 * @param result             the result, or null if the search failed
+	 * @param readerVersion      the version of the index reader, if any
+	 * @param elapsedNanos       the duration of the search, including the semaphore wait
+	 * @param semaphoreWaitNanos the time spent waiting for the read semaphore
+	 */
+	static void search(final SchemaSettingsDefinition settings, final String schemaName, final String indexName,
+			final QueryDefinition queryDefinition, final ResultDefinition<?> result, final Long readerVersion,
+			final long elapsedNanos, final long semaphoreWaitNanos) {
+		if (settings == null ||
+				!isSlow(searchLogger, settings.slow_search_ms, settings.slow_log_sampling, elapsedNanos))
+			return;
+		final Map<String, Object> entry = newEntry(schemaName, indexName, elapsedNanos, semaphoreWaitNanos);
+		if (readerVersion != null)
+			entry.put("reader_version", readerVersion);
+		if (result != null) {
+			entry.put("total_hits", result.total_hits);
+			if (result.documents != null)
+				entry.put("returned_hits", result.documents.size());
+			if (Boolean.TRUE.equals(result.timed_out))
+				entry.put("timed_out", true);
+			entry.put("timer", result.timer);
+		}
+		entry.put("query", truncatedJson(queryDefinition));
+		write(searchLogger, entry);
+	}
+
+	/**
+	 * @param settings           the settings of the schema
+	 * @param schemaName         the name of the schema
+	 * @param indexName          the name of the index
+	 * @param operation          the name of the update operation
+	 * @param count              the number of updated documents
+	 * @param elapsedNanos       the duration of the update, including the semaphore wait and the commit
+	 * @param semaphoreWaitNanos the time spent waiting for the write semaphore
+	 */
+	static void indexing(final SchemaSettingsDefinition settings, final String schemaName, final String indexName,
+			final String operation, final int count, final long elapsedNanos, final long semaphoreWaitNanos) {
+		if (settings == null ||
+				!isSlow(indexingLogger, settings.slow_indexing_ms, settings.slow_log_sampling, elapsedNanos))
+			return;
+		final Map<String, Object> entry = newEntry(schemaName, indexName, elapsedNanos, semaphoreWaitNanos);
+		entry.put("operation", operation);
+		entry.put("count", count);
+		write(indexingLogger, entry);
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import com.qwazr.utils.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs a writer in a background thread and exposes what it writes as an InputStream.
+ * Only the pipe buffer is kept in memory, the writer is blocked until the client reads.
+ */
+class StreamingPipe {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StreamingPipe.class);
+
+	private final static int PIPE_SIZE = 65536;
+
+	interface Writer {
+		void write(OutputStream output) throws Exception;
+	}
+
+	/**
+	 * @param executorService the executor which runs the writer
+	 * @param writer          the writer producing the content
+	 * @param release         called once the writer is done, even on failure
+	 * @return the stream to read
+	 * @throws IOException if the pipe cannot be created
+	 */
+	static InputStream start(final ExecutorService executorService, final Writer writer, final Runnable release)
+			throws IOException {
+		final PipedInputStream input = new PipedInputStream(PIPE_SIZE);
+		final PipedOutputStream output = new PipedOutputStream(input);
+		executorService.submit(() -> {
+			try {
+				writer.write(output);
+			} catch (Exception e) {
+				LOGGER.warn("Streaming aborted: " + e.getMessage(), e);
+			} finally {
+				IOUtils.closeQuietly(output);
+				release.run();
+			}
+		});
+		return input;
+	}
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.search.index;
+
+import org.apache.lucene.util.IntroSorter;
+
+/**
+ * A merging t-digest (Dunning and Ertl). The values are buffered, then sorted and merged with the centroids.
+ * Adjacent centroids are merged while their span on the arcsine scale k(q) stays below 1: the centroids are small
+ * near the tails, which keeps the extreme percentiles accurate. All the arrays are allocated by the constructor.
+ */
+class TDigest {
+
+	private final double compression;
+
+	private final double[] means;
+	private final double[] weights;
+	private int size;
+	private double totalWeight;
+
+	private final double[] bufferMeans;
+	private final double[] bufferWeights;
+	private int bufferSize;
+	private double bufferWeight;
+
+	private final double[] mergeMeans;
+	private final double[] mergeWeights;
+
+	private double min;
+	private double max;
+
+	private final IntroSorter bufferSorter = new IntroSorter() {
+
+		private double pivot;
+
+		@Override
+		protected void setPivot(final int i) {
+			pivot = bufferMeans[i];
+		}
+
+		@Override
+		protected int comparePivot(final int j) {
+			return Double.compare(pivot, bufferMeans[j]);
+		}
+
+		@Override
+		protected int compare(final int i, final int j) {
+			return Double.compare(bufferMeans[i], bufferMeans[j]);
+		}
+
+		@Override
+		protected void swap(final int i, final int j) {
+			final double mean = bufferMeans[i];
+			bufferMeans[i] = bufferMeans[j];
+			bufferMeans[j] = mean;
+			final double weight = bufferWeights[i];
+			bufferWeights[i] = bufferWeights[j];
+			bufferWeights[j] = weight;
+		}
+	};
+
+	TDigest(final int compression) {
+		this.compression = Math.max(compression, 10);
+		// The k1 scale spans compression / 2, two adjacent centroids span at least 1
+		final int capacity = (int) Math.ceil(this.compression) + 10;
+		final int bufferCapacity = 5 * capacity;
+		means = new double[capacity];
+		weights = new double[capacity];
+		bufferMeans = new double[bufferCapacity];
+		bufferWeights = new double[bufferCapacity];
+		mergeMeans = new double[capacity + bufferCapacity];
+		mergeWeights = new double[capacity + bufferCapacity];
+		size = 0;
+		totalWeight = 0;
+		bufferSize = 0;
+		bufferWeight = 0;
+		min = Double.POSITIVE_INFINITY;
+		max = Double.NEGATIVE_INFINITY;
+	}
+
+	final void add(final double value) {
+		add(value, 1);
+	}
+
+	private void add(final double mean, final double weight) {
+		if (bufferSize == bufferMeans.length)
+			merge();
+		bufferMeans[bufferSize] = mean;
+		bufferWeights[bufferSize++] = weight;
+		bufferWeight += weight;
+		if (mean < min)
+			min = mean;
+		if (mean > max)
+			max = mean;
+	}
+
+	/**
+	 * Adds the centroids of another digest
+	 */
+	final void add(final TDigest other) {
+		other.merge();
+		for (int i = 0; i < other.size; i++)
+			add(other.means[i], other.weights[i]);
+		if (other.min < min)
+			min = other.min;
+		if (other.max > max)
+			max = other.max;
+	}
+
+	final double getTotalWeight() {
+		return totalWeight + bufferWeight;
+	}
+
+	private double k(final double q) {
+		return compression / (2 * Math.PI) * Math.asin(Math.max(-1, Math.min(1, 2 * q - 1)));
+	}
+
+	private void merge() {
+		if (bufferSize == 0)
+			return;
+		bufferSorter.sort(0, bufferSize);
+
+		// Merge the sorted buffer with the sorted centroids
+		int i = 0, j = 0, n = 0;
+		while (i < size || j < bufferSize) {
+			if (j == bufferSize || (i < size && means[i] <= bufferMeans[j])) {
+				mergeMeans[n] = means[i];
+				mergeWeights[n++] = weights[i++];
+			} else {
+				mergeMeans[n] = bufferMeans[j];
+				mergeWeights[n++] = bufferWeights[j++];
+			}
+		}
+
+		final double total = totalWeight + bufferWeight;
+		double weightSoFar = 0;
+		double kLeft = k(0);
+		double mean = mergeMeans[0];
+		double weight = mergeWeights[0];
+		size = 0;
+		for (int m = 1; m < n; m++) {
+			final double proposed = weight + mergeWeights[m];
+			if (k((weightSoFar + proposed) / total) - kLeft <= 1) {
+				mean += (mergeMeans[m] - mean) * mergeWeights[m] / proposed;
+				weight = proposed;
+			} else {
+				means[size] = mean;
+				weights[size++] = weight;
+				weightSoFar += weight;
+				kLeft = k(weightSoFar / total);
+				mean = mergeMeans[m];
+				weight = mergeWeights[m];
+			}
+		}
+		means[size] = mean;
+		weights[size++] = weight;
+
+		totalWeight = total;
+		bufferSize = 0;
+		bufferWeight = 0;
+	}
+
+	/**
+	 * @param q the quantile, between 0 and 1
+	 * @return the estimated value, or NaN if the digest is empty
+	 */
+	final double quantile(final double q) {
+		merge();
+		if (size == 0)
+			return Double.NaN;
+		if (q <= 0)
+			return min;
+		if (q >= 1)
+			return max;
+
+		// Each centroid is centered on the middle of its weight, the tails interpolate with min and max
+		final double index = q * totalWeight;
+		final double firstHalf = weights[0] / 2;
+		if (index <= firstHalf)
+			return min + (means[0] - min) * index / firstHalf;
+		double cumulated = 0;
+		for (int i = 0; i < size - 1; i++) {
+			final double center = cumulated + weights[i] / 2;
+			final double nextCenter = cumulated + weights[i] + weights[i + 1] / 2;
+			if (index <= nextCenter)
+				return means[i] + (means[i + 1] - means[i]) * (index - center) / (nextCenter - center);
+			cumulated += weights[i];
+		}
+		final double lastHalf = weights[size - 1] / 2;
+		final double lastCenter = totalWeight - lastHalf;
+		return means[size - 1] + (max - means[size - 1]) * Math.min(1, (index - lastCenter) / lastHalf);
+	}
+
+}
@@ -0,0 +1,328 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import com.qwazr.search.collector.DocValuesLeafCollector;
+import com.qwazr.search.field.FieldDefinition;
+import com.qwazr.server.ServerException;
+import org.apache.lucene.facet.TopOrdAndIntQueue;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.LongValues;
+
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Groups the matching documents by the terms of a Sorted or SortedSet doc values field. The documents are counted
+ * per segment ordinal in a primitive array. When the segment is done, the counts are moved to the global ordinals
+ * given by the OrdinalMap of the reader. The slices share the global ordinals, their counts are simply added.
+ */
+class TermsAggregationCollector extends AggregationCollector {
+
+	final static int DEFAULT_SIZE = 10;
+
+	private final Factory factory;
+	private final int[] counts;
+	private final BucketMetric[] metrics;
+
+	private int[] segmentCounts;
+	private LongValues segmentToGlobal;
+	private int segmentValueCount;
+
+	private TermsAggregationCollector(final Factory factory) {
+		super(factory);
+		this.factory = factory;
+		this.counts = new int[factory.valueCount];
+		this.metrics = new BucketMetric[factory.metrics.length];
+		for (int i = 0; i < metrics.length; i++)
+			metrics[i] = new BucketMetric(factory.metrics[i], factory.valueCount);
+		this.segmentCounts = new int[0];
+		this.segmentToGlobal = null;
+		this.segmentValueCount = 0;
+	}
+
+	@Override
+	final public LeafCollector getLeafCollector(final LeafReaderContext context) throws IOException {
+		flushSegment();
+		final SortedSetDocValues docValues = DocValues.getSortedSet(context.reader(), factory.field);
+		segmentValueCount = (int) docValues.getValueCount();
+		if (segmentCounts.length < segmentValueCount)
+			segmentCounts = new int[ArrayUtil.oversize(segmentValueCount, Integer.BYTES)];
+		segmentToGlobal = factory.ordinalMap.getGlobalOrds(context.ord);
+		final SortedNumericDocValues[] values = new SortedNumericDocValues[metrics.length];
+		for (int i = 0; i < metrics.length; i++) {
+			metrics[i].startSegment(segmentValueCount);
+			values[i] = DocValues.getSortedNumeric(context.reader(), metrics[i].metric.field);
+		}
+		return new Leaf(docValues, values);
+	}
+
+	/**
+	 * Moves the counts of the last segment to the global ordinals, the segment arrays are cleared for the next one
+	 */
+	private void flushSegment() {
+		for (int ord = 0; ord < segmentValueCount; ord++) {
+			final int count = segmentCounts[ord];
+			if (count == 0)
+				continue;
+			final int globalOrd = (int) segmentToGlobal.get(ord);
+			counts[globalOrd] += count;
+			segmentCounts[ord] = 0;
+			for (BucketMetric metric : metrics)
+				metric.flush(ord, globalOrd);
+		}
+		segmentValueCount = 0;
+	}
+
+	@Override
+	final void add(final AggregationCollector collector) {
+		final TermsAggregationCollector other = (TermsAggregationCollector) collector;
+		other.flushSegment();
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		for (int i = 0; i < metrics.length; i++)
+			metrics[i].add(other.metrics[i]);
+	}
+
+	@Override
+	final public Object getResult() {
+		flushSegment();
+		final Map<String, Object> buckets = new LinkedHashMap<>();
+		final int size = Math.min(factory.size, counts.length);
+		if (size <= 0)
+			return buckets;
+		final TopOrdAndIntQueue queue = new TopOrdAndIntQueue(size);
+		TopOrdAndIntQueue.OrdAndValue reuse = null;
+		for (int ord = 0; ord < counts.length; ord++) {
+			if (counts[ord] < factory.minDocCount)
+				continue;
+			if (reuse == null)
+				reuse = new TopOrdAndIntQueue.OrdAndValue();
+			reuse.ord = ord;
+			reuse.value = counts[ord];
+			reuse = queue.insertWithOverflow(reuse);
+		}
+		final TopOrdAndIntQueue.OrdAndValue[] top = new TopOrdAndIntQueue.OrdAndValue[queue.size()];
+		for (int i = top.length - 1; i >= 0; i--)
+			top[i] = queue.pop();
+		final SortedSetDocValues[] leafValues = new SortedSetDocValues[factory.indexReader.leaves().size()];
+		try {
+			for (TopOrdAndIntQueue.OrdAndValue ordAndValue : top) {
+				final Map<String, Object> bucket = new LinkedHashMap<>();
+				bucket.put("count", ordAndValue.value);
+				for (BucketMetric metric : metrics)
+					bucket.put(metric.metric.name, metric.getResult(ordAndValue.ord));
+				buckets.put(factory.lookupTerm(ordAndValue.ord, leafValues), bucket);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return buckets;
+	}
+
+	private class Leaf extends DocValuesLeafCollector.SortedSet {
+
+		private final SortedNumericDocValues[] values;
+
+		private Leaf(final SortedSetDocValues docValues, final SortedNumericDocValues[] values) throws IOException {
+			super(docValues);
+			this.values = values;
+		}
+
+		@Override
+		final public void collect(final int doc) throws IOException {
+			docValues.setDocument(doc);
+			long ord = docValues.nextOrd();
+			if (ord == SortedSetDocValues.NO_MORE_ORDS)
+				return;
+			for (SortedNumericDocValues value : values)
+				value.setDocument(doc);
+			do {
+				final int segmentOrd = (int) ord;
+				segmentCounts[segmentOrd]++;
+				for (int i = 0; i < values.length; i++)
+					metrics[i].collect(segmentOrd, values[i]);
+			} while ((ord = docValues.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS);
+		}
+	}
+
+	/**
+	 * A metric sub-aggregation, computed for each term with the same per-segment then global arrays
+	 */
+	private static class BucketMetric {
+
+		private final Metric metric;
+
+		private final long[] counts;
+		private final double[] mins;
+		private final double[] maxs;
+		private final double[] sums;
+
+		private long[] segmentCounts;
+		private double[] segmentMins;
+		private double[] segmentMaxs;
+		private double[] segmentSums;
+
+		private BucketMetric(final Metric metric, final int valueCount) {
+			this.metric = metric;
+			counts = new long[valueCount];
+			mins = new double[valueCount];
+			maxs = new double[valueCount];
+			sums = new double[valueCount];
+			Arrays.fill(mins, Double.POSITIVE_INFINITY);
+			Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+			startSegment(0);
+		}
+
+		private void startSegment(final int valueCount) {
+			if (segmentCounts != null && segmentCounts.length >= valueCount)
+				return;
+			final int size = ArrayUtil.oversize(valueCount, Long.BYTES);
+			segmentCounts = new long[size];
+			segmentMins = new double[size];
+			segmentMaxs = new double[size];
+			segmentSums = new double[size];
+			Arrays.fill(segmentMins, Double.POSITIVE_INFINITY);
+			Arrays.fill(segmentMaxs, Double.NEGATIVE_INFINITY);
+		}
+
+		private void collect(final int ord, final SortedNumericDocValues values) {
+			final int valueCount = values.count();
+			for (int i = 0; i < valueCount; i++) {
+				final double value = metric.decoder.decode(values.valueAt(i));
+				segmentCounts[ord]++;
+				segmentSums[ord] += value;
+				if (value < segmentMins[ord])
+					segmentMins[ord] = value;
+				if (value > segmentMaxs[ord])
+					segmentMaxs[ord] = value;
+			}
+		}
+
+		private void flush(final int ord, final int globalOrd) {
+			counts[globalOrd] += segmentCounts[ord];
+			sums[globalOrd] += segmentSums[ord];
+			if (segmentMins[ord] < mins[globalOrd])
+				mins[globalOrd] = segmentMins[ord];
+			if (segmentMaxs[ord] > maxs[globalOrd])
+				maxs[globalOrd] = segmentMaxs[ord];
+			segmentCounts[ord] = 0;
+			segmentSums[ord] = 0;
+			segmentMins[ord] = Double.POSITIVE_INFINITY;
+			segmentMaxs[ord] = Double.NEGATIVE_INFINITY;
+		}
+
+		private void add(final BucketMetric other) {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] += other.counts[i];
+				sums[i] += other.sums[i];
+				if (other.mins[i] < mins[i])
+					mins[i] = other.mins[i];
+				if (other.maxs[i] > maxs[i])
+					maxs[i] = other.maxs[i];
+			}
+		}
+
+		private Object getResult(final int ord) {
+			return getMetric(metric.type, counts[ord], mins[ord], maxs[ord], sums[ord]);
+		}
+	}
+
+	private static class Metric {
+
+		private final String name;
+		private final AggregationDefinition.Type type;
+		private final String field;
+		private final Decoder decoder;
+
+		private Metric(final String name, final AggregationDefinition definition, final FieldMap fieldMap) {
+			if (definition.type == null)
+				throw new ServerException(Response.Status.NOT_ACCEPTABLE,
+						"The type of the aggregation " + name + " is missing");
+			switch (definition.type) {
+			case terms:
+			case percentiles:
+				throw new ServerException(Response.Status.NOT_ACCEPTABLE,
+						"The aggregation " + name + " cannot be nested in a terms aggregation");
+			}
+			this.name = name;
+			this.type = definition.type;
+			this.field = definition.field;
+			this.decoder = Decoder.of(name, definition.field, fieldMap);
+		}
+	}
+
+	static class Factory extends AggregationCollector.Factory {
+
+		private final String field;
+		private final IndexReader indexReader;
+		private final MultiDocValues.OrdinalMap ordinalMap;
+		private final int valueCount;
+		private final int size;
+		private final int minDocCount;
+		private final Metric[] metrics;
+
+		Factory(final String name, final AggregationDefinition definition, final QueryContext queryContext)
+				throws IOException {
+			super(name);
+			final FieldDefinition.Template template = queryContext.fieldMap.find(definition.field).definition.template;
+			if (template != FieldDefinition.Template.SortedDocValuesField &&
+					template != FieldDefinition.Template.SortedSetDocValuesField)
+				throw new ServerException(Response.Status.NOT_ACCEPTABLE, "The field " + definition.field +
+						" of the aggregation " + name + " does not have sorted or sorted set doc values");
+			this.field = definition.field;
+			this.indexReader = queryContext.indexSearcher.getIndexReader();
+			this.ordinalMap = queryContext.ordinalMaps.get(field);
+			this.valueCount = (int) ordinalMap.getValueCount();
+			this.size = definition.size == null ? DEFAULT_SIZE : definition.size;
+			this.minDocCount = definition.min_doc_count == null ? 1 : Math.max(1, definition.min_doc_count);
+			if (definition.aggregations == null || definition.aggregations.isEmpty())
+				this.metrics = new Metric[0];
+			else {
+				this.metrics = new Metric[definition.aggregations.size()];
+				int i = 0;
+				for (Map.Entry<String, AggregationDefinition> entry : definition.aggregations.entrySet())
+					metrics[i++] = new Metric(entry.getKey(), entry.getValue(), queryContext.fieldMap);
+			}
+		}
+
+		/**
+		 * The term is read from the first segment having it
+		 */
+		private String lookupTerm(final int globalOrd, final SortedSetDocValues[] leafValues) throws IOException {
+			final int segment = ordinalMap.getFirstSegmentNumber(globalOrd);
+			if (leafValues[segment] == null)
+				leafValues[segment] = DocValues.getSortedSet(indexReader.leaves().get(segment).reader(), field);
+			return leafValues[segment].lookupOrd(ordinalMap.getFirstSegmentOrd(globalOrd)).utf8ToString();
+		}
+
+		@Override
+		final TermsAggregationCollector newCollector() {
+			return new TermsAggregationCollector(this);
+		}
+	}
+}
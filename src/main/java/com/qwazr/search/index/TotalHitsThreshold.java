@@ -0,0 +1,166 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.qwazr.search.index;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.FilterCollector;
+import org.apache.lucene.search.FilterLeafCollector;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stops the collection once the threshold is reached and the top documents can no longer change.
+ * It is the case when the documents of a segment are visited in the order of the sort: either the scores are
+ * constant (the lowest doc id wins), or the segment is sorted by the requested sort (index sort).
+ */
+class TotalHitsThreshold {
+
+	/**
+	 * Number of collected documents between two updates of the shared counter
+	 */
+	private final static int COUNT_BATCH = 256;
+
+	private final int threshold;
+	private final int numHits;
+	private final Sort sort;
+	private final boolean constantScore;
+	private final AtomicInteger counter;
+	private volatile boolean terminated;
+
+	private TotalHitsThreshold(final int threshold, final int numHits, final Sort sort, final boolean constantScore) {
+		this.threshold = threshold;
+		this.numHits = numHits;
+		this.sort = sort;
+		this.constantScore = constantScore;
+		this.counter = new AtomicInteger();
+		this.terminated = false;
+	}
+
+	/**
+	 * @return null if the query cannot terminate early
+	 */
+	static TotalHitsThreshold of(final QueryDefinition queryDef, final Query query, final Sort sort,
+			final int numHits) {
+		if (queryDef.total_hits_threshold == null || numHits == 0)
+			return null;
+		if (queryDef.search_after != null)
+			return null;
+		if (queryDef.facets != null && !queryDef.facets.isEmpty())
+			return null;
+		if (queryDef.collectors != null && !queryDef.collectors.isEmpty())
+			return null;
+		if (queryDef.aggregations != null && !queryDef.aggregations.isEmpty())
+			return null;
+		final boolean constantScore = sort == null && isConstantScore(query);
+		if (!constantScore && (sort == null || sort.needsScores()))
+			return null;
+		return new TotalHitsThreshold(queryDef.total_hits_threshold, numHits, sort, constantScore);
+	}
+
+	private static boolean isConstantScore(final Query query) {
+		if (query instanceof BoostQuery)
+			return isConstantScore(((BoostQuery) query).getQuery());
+		return query instanceof ConstantScoreQuery || query instanceof MatchAllDocsQuery;
+	}
+
+	private boolean isSortedSegment(final LeafReaderContext context) {
+		if (constantScore)
+			return true;
+		final Sort indexSort = context.reader().getIndexSort();
+		if (indexSort == null)
+			return false;
+		final SortField[] indexSortFields = indexSort.getSort();
+		final SortField[] sortFields = sort.getSort();
+		if (sortFields.length > indexSortFields.length)
+			return false;
+		for (int i = 0; i < sortFields.length; i++)
+			if (!sortFields[i].equals(indexSortFields[i]))
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return true if at least one segment was not fully collected: the total hits is a lower bound
+	 */
+	final boolean isTerminated() {
+		return terminated;
+	}
+
+	/**
+	 * @param collector the top docs collector of one slice
+	 * @return a collector stopping the collection of the slice when possible
+	 */
+	final Collector wrap(final Collector collector) {
+		return new SliceCollector(collector);
+	}
+
+	private class SliceCollector extends FilterCollector {
+
+		private int sliceCount;
+		private int pending;
+
+		private SliceCollector(final Collector collector) {
+			super(collector);
+			sliceCount = 0;
+			pending = 0;
+		}
+
+		@Override
+		public LeafCollector getLeafCollector(final LeafReaderContext context) throws IOException {
+			if (pending > 0) {
+				counter.addAndGet(pending);
+				pending = 0;
+			}
+			// With constant scores, the following segments have higher doc ids: they cannot enter the top docs
+			if (constantScore && sliceCount >= numHits && counter.get() >= threshold) {
+				terminated = true;
+				throw new CollectionTerminatedException();
+			}
+			final LeafCollector leafCollector = super.getLeafCollector(context);
+			if (!isSortedSegment(context))
+				return leafCollector;
+			return new FilterLeafCollector(leafCollector) {
+
+				private int leafCount = 0;
+
+				@Override
+				public void collect(final int doc) throws IOException {
+					if (leafCount >= numHits && pending == 0 && counter.get() >= threshold) {
+						terminated = true;
+						throw new CollectionTerminatedException();
+					}
+					super.collect(doc);
+					leafCount++;
+					sliceCount++;
+					if (++pending == COUNT_BATCH) {
+						counter.addAndGet(pending);
+						pending = 0;
+					}
+				}
+			};
+		}
+	}
+}
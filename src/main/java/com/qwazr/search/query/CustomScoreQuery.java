@@ -169,5 +169,16 @@ public class CustomScoreQuery extends AbstractQuery {
 				throw new RuntimeException(e);
 			}
 		}
+
+		@Override
+		public boolean equals(final Object other) {
+			return super.equals(other) && customScoreProviderConstructor.equals(
+					((CustomScoreQueryWithProvider) other).customScoreProviderConstructor);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * super.hashCode() + customScoreProviderConstructor.hashCode();
+		}
 	}
 }
@@ -17,8 +17,8 @@ package com.qwazr.search.query;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.qwazr.search.analysis.AnalyzerCache;
 import com.qwazr.search.analysis.AnalyzerDefinition;
-import com.qwazr.search.analysis.CustomAnalyzer;
 import com.qwazr.search.analysis.TermConsumer;
 import com.qwazr.search.index.QueryContext;
 import com.qwazr.utils.StringUtils;
@@ -111,13 +111,12 @@ public class MultiFieldQuery extends AbstractQuery {
 		if (StringUtils.isEmpty(queryString))
 			return new org.apache.lucene.search.MatchNoDocsQuery();
 
-		// Build the analyzer used to tokenize the query string
-		final Analyzer tokenAnalyzer = tokenizerAnalyzer != null ?
-				tokenizerAnalyzer :
-				tokenizerDefinition != null ?
-						new CustomAnalyzer(queryContext.classLoaderManager, queryContext.resourceLoader,
-								new AnalyzerDefinition(null, null, tokenizerDefinition, null)) :
-						DEFAULT_TOKEN_ANALYZER;
+		// The analyzer used to tokenize the query string, an inline tokenizer is cached by the schema
+		final AnalyzerCache.Lease lease = tokenizerAnalyzer == null && tokenizerDefinition != null ?
+				queryContext.acquireAnalyzer(new AnalyzerDefinition(null, null, tokenizerDefinition, null)) :
+				null;
+		final Analyzer tokenAnalyzer =
+				tokenizerAnalyzer != null ? tokenizerAnalyzer : lease != null ? lease.analyzer : DEFAULT_TOKEN_ANALYZER;
 
 		final TopLevelTerms topLevelTerms;
 		// Parse the queryString and extract terms and frequencies
@@ -127,6 +126,9 @@ public class MultiFieldQuery extends AbstractQuery {
 							queryContext.queryAnalyzer);
 			topLevelTerms.forEachToken();
 			tokenStream.end();
+		} finally {
+			if (lease != null)
+				lease.close();
 		}
 
 		//////
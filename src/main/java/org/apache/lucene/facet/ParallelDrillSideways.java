@@ -2,6 +2,7 @@ package org.apache.lucene.facet;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
+import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.CollectorManager;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
@@ -14,6 +15,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
 
 /**
  * Created by ekeller on 05/12/2016.
@@ -21,11 +23,57 @@ import java.util.concurrent.Future;
 public class ParallelDrillSideways extends DrillSideways {
 
 	private final ExecutorService executor;
+	private final UnaryOperator<Collector> collectorWrapper;
 
 	public ParallelDrillSideways(final ExecutorService executor, final IndexSearcher searcher,
 			final FacetsConfig config, final SortedSetDocValuesReaderState state) {
+		this(executor, searcher, config, state, null);
+	}
+
+	/**
+	 * @param collectorWrapper wraps every collector of the drill down and drill sideways queries (eg. time limit)
+	 */
+	public ParallelDrillSideways(final ExecutorService executor, final IndexSearcher searcher,
+			final FacetsConfig config, final SortedSetDocValuesReaderState state,
+			final UnaryOperator<Collector> collectorWrapper) {
 		super(searcher, config, state);
 		this.executor = executor;
+		this.collectorWrapper = collectorWrapper;
+	}
+
+	private <C extends Collector, T> CollectorManager<?, T> wrap(final CollectorManager<C, T> collectorManager) {
+		return collectorWrapper == null ?
+				collectorManager :
+				new WrappedCollectorManager<>(collectorManager, collectorWrapper);
+	}
+
+	/**
+	 * Wraps the collectors, the reduce is done on the original collectors
+	 */
+	private static class WrappedCollectorManager<C extends Collector, T> implements CollectorManager<Collector, T> {
+
+		private final CollectorManager<C, T> collectorManager;
+		private final UnaryOperator<Collector> collectorWrapper;
+		private final List<C> collectors;
+
+		private WrappedCollectorManager(final CollectorManager<C, T> collectorManager,
+				final UnaryOperator<Collector> collectorWrapper) {
+			this.collectorManager = collectorManager;
+			this.collectorWrapper = collectorWrapper;
+			this.collectors = new ArrayList<>();
+		}
+
+		@Override
+		public Collector newCollector() throws IOException {
+			final C collector = collectorManager.newCollector();
+			collectors.add(collector);
+			return collectorWrapper.apply(collector);
+		}
+
+		@Override
+		public T reduce(final Collection<Collector> wrappedCollectors) throws IOException {
+			return collectorManager.reduce(collectors);
+		}
 	}
 
 	private DrillDownQuery getDrillDownQuery(final Query baseQuery, final List<Pair<String, String[]>> dimPathList,
@@ -86,7 +134,7 @@ public class ParallelDrillSideways extends DrillSideways {
 
 		// Add the main DrillDownQuery
 		callableCollectors.add(new CallableCollector(0, searcher, drillDownQuery,
-				new MultiCollectorManager(new FacetsCollectorManager(), hitCollectorManager)));
+				wrap(new MultiCollectorManager(new FacetsCollectorManager(), hitCollectorManager))));
 
 		final Query baseQuery = drillDownQuery.getBaseQuery();
 
@@ -95,7 +143,7 @@ public class ParallelDrillSideways extends DrillSideways {
 		for (String facet : facets) {
 			final DrillDownQuery ddq = getDrillDownQuery(baseQuery, dimPathList, facet);
 			if (ddq != null)
-				callableCollectors.add(new CallableCollector(i, searcher, ddq, new FacetsCollectorManager()));
+				callableCollectors.add(new CallableCollector(i, searcher, ddq, wrap(new FacetsCollectorManager())));
 			i++;
 		}
 
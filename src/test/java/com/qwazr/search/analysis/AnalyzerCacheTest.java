@@ -0,0 +1,123 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.search.analysis;
+
+import com.qwazr.classloader.ClassLoaderManager;
+import com.qwazr.utils.json.JsonMapper;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class AnalyzerCacheTest {
+
+	private static ClassLoaderManager classLoaderManager;
+	private static AnalyzerDefinition definition;
+
+	@BeforeClass
+	public static void before() throws IOException {
+		classLoaderManager = new ClassLoaderManager((File) null, null);
+		definition = JsonMapper.MAPPER.readValue("{\"tokenizer\":{\"class\":\"standard.StandardTokenizer\"},"
+				+ "\"filters\":[{\"class\":\"core.LowerCaseFilter\"}]}", AnalyzerDefinition.class);
+	}
+
+	private static AnalyzerCache.Lease acquire(final AnalyzerCache cache, final String key)
+			throws IOException, ReflectiveOperationException {
+		return cache.acquire(key, classLoaderManager, null, definition);
+	}
+
+	private static boolean isClosed(final Analyzer analyzer) throws IOException {
+		try (final TokenStream tokenStream = analyzer.tokenStream("field", "Hello World")) {
+			tokenStream.reset();
+			while (tokenStream.incrementToken())
+				;
+			tokenStream.end();
+			return false;
+		} catch (AlreadyClosedException e) {
+			return true;
+		}
+	}
+
+	@Test
+	public void cacheHit() throws IOException, ReflectiveOperationException {
+		try (final AnalyzerCache cache = new AnalyzerCache(10)) {
+			try (final AnalyzerCache.Lease lease1 = acquire(cache, "key");
+					final AnalyzerCache.Lease lease2 = acquire(cache, "key")) {
+				Assert.assertSame(lease1.analyzer, lease2.analyzer);
+			}
+			try (final AnalyzerCache.Lease lease = acquire(cache, "other")) {
+				Assert.assertEquals(2, cache.size());
+				Assert.assertFalse(isClosed(lease.analyzer));
+			}
+		}
+	}
+
+	@Test
+	public void notCached() throws IOException, ReflectiveOperationException {
+		try (final AnalyzerCache cache = new AnalyzerCache(10)) {
+			final Analyzer analyzer;
+			try (final AnalyzerCache.Lease lease = acquire(cache, null)) {
+				analyzer = lease.analyzer;
+				Assert.assertFalse(isClosed(analyzer));
+			}
+			Assert.assertEquals(0, cache.size());
+			Assert.assertTrue(isClosed(analyzer));
+		}
+	}
+
+	@Test
+	public void evictedAfterLastLease() throws IOException, ReflectiveOperationException {
+		try (final AnalyzerCache cache = new AnalyzerCache(1)) {
+			final AnalyzerCache.Lease lease1 = acquire(cache, "key1");
+			final AnalyzerCache.Lease lease2 = acquire(cache, "key1");
+			try (final AnalyzerCache.Lease lease3 = acquire(cache, "key2")) {
+				// key1 is evicted, but still leased
+				Assert.assertEquals(1, cache.size());
+				Assert.assertFalse(isClosed(lease1.analyzer));
+				lease1.close();
+				Assert.assertFalse(isClosed(lease2.analyzer));
+				lease2.close();
+				Assert.assertTrue(isClosed(lease2.analyzer));
+				Assert.assertFalse(isClosed(lease3.analyzer));
+			}
+			// The cached analyzer is not closed with its lease
+			try (final AnalyzerCache.Lease lease = acquire(cache, "key2")) {
+				Assert.assertFalse(isClosed(lease.analyzer));
+			}
+			// An evicted key is built again
+			try (final AnalyzerCache.Lease lease = acquire(cache, "key1")) {
+				Assert.assertNotSame(lease1.analyzer, lease.analyzer);
+				Assert.assertFalse(isClosed(lease.analyzer));
+			}
+		}
+	}
+
+	@Test
+	public void closedCache() throws IOException, ReflectiveOperationException {
+		final AnalyzerCache cache = new AnalyzerCache(10);
+		final AnalyzerCache.Lease lease = acquire(cache, "key");
+		cache.close();
+		Assert.assertEquals(0, cache.size());
+		Assert.assertFalse(isClosed(lease.analyzer));
+		lease.close();
+		Assert.assertTrue(isClosed(lease.analyzer));
+	}
+}
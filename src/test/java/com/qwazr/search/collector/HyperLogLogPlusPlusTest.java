@@ -0,0 +1,125 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.search.collector;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class HyperLogLogPlusPlusTest {
+
+	private static void checkError(final long expected, final long cardinality, final double maxError) {
+		final double error = Math.abs(cardinality - expected) / (double) expected;
+		Assert.assertTrue("Expected " + expected + " got " + cardinality, error <= maxError);
+	}
+
+	/**
+	 * The first 64 bits of the reference implementation (MurmurHash3_x64_128, seed 0)
+	 */
+	@Test
+	public void murmurHash3() {
+		Assert.assertEquals(0L, HyperLogLogPlusPlus.hash(new BytesRef("")));
+		Assert.assertEquals(0x85555565f6597889L, HyperLogLogPlusPlus.hash(new BytesRef("a")));
+		Assert.assertEquals(0xcbd8a7b341bd9b02L, HyperLogLogPlusPlus.hash(new BytesRef("hello")));
+		Assert.assertEquals(0x533f6046eb7f610eL, HyperLogLogPlusPlus.hash(new BytesRef("hello world")));
+		// One block and no tail
+		Assert.assertEquals(0x4be06d94cf4ad1a7L, HyperLogLogPlusPlus.hash(new BytesRef("0123456789abcdef")));
+		Assert.assertEquals(0xe34bbc7bbc071b6cL,
+				HyperLogLogPlusPlus.hash(new BytesRef("The quick brown fox jumps over the lazy dog")));
+		// One block and a tail of 15 bytes
+		final byte[] bytes = new byte[31];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) i;
+		Assert.assertEquals(0x053dd3e1a32cd094L, HyperLogLogPlusPlus.hash(new BytesRef(bytes)));
+
+		// The offset of the BytesRef is honored
+		final byte[] padded = "__hello world__".getBytes(StandardCharsets.UTF_8);
+		Assert.assertEquals(0x533f6046eb7f610eL, HyperLogLogPlusPlus.hash(new BytesRef(padded, 2, 11)));
+	}
+
+	@Test
+	public void switchToRegisters() {
+		final HyperLogLogPlusPlus sketch = new HyperLogLogPlusPlus(10);
+		// Up to 2^10 / 16 hashes, the count is exact
+		for (long i = 1; i < 64; i++) {
+			sketch.add(HyperLogLogPlusPlus.hash(i));
+			sketch.add(HyperLogLogPlusPlus.hash(i));
+		}
+		Assert.assertEquals(63, sketch.cardinality());
+		// Zero is counted as one
+		sketch.add(0);
+		sketch.add(1);
+		Assert.assertEquals(64, sketch.cardinality());
+
+		// The hashes already collected are moved to the registers
+		sketch.add(HyperLogLogPlusPlus.hash(64));
+		checkError(65, sketch.cardinality(), 0.05);
+		for (long i = 65; i < 1000; i++)
+			sketch.add(HyperLogLogPlusPlus.hash(i));
+		checkError(1000, sketch.cardinality(), 0.05);
+		final long cardinality = sketch.cardinality();
+		for (long i = 1; i < 1000; i++)
+			sketch.add(HyperLogLogPlusPlus.hash(i));
+		Assert.assertEquals(cardinality, sketch.cardinality());
+	}
+
+	@Test
+	public void mergeExactWithRegisters() {
+		final HyperLogLogPlusPlus exact = new HyperLogLogPlusPlus(HyperLogLogPlusPlus.DEFAULT_PRECISION);
+		for (long i = 0; i < 100; i++)
+			exact.add(HyperLogLogPlusPlus.hash(i));
+		final HyperLogLogPlusPlus registers = new HyperLogLogPlusPlus(HyperLogLogPlusPlus.DEFAULT_PRECISION);
+		for (long i = 50; i < 20000; i++)
+			registers.add(HyperLogLogPlusPlus.hash(i));
+
+		// Merging the registers into the exact set
+		final HyperLogLogPlusPlus merged1 = new HyperLogLogPlusPlus(HyperLogLogPlusPlus.DEFAULT_PRECISION);
+		merged1.merge(exact);
+		Assert.assertEquals(100, merged1.cardinality());
+		merged1.merge(registers);
+		checkError(20000, merged1.cardinality(), 0.02);
+
+		// Merging the exact set into the registers
+		final HyperLogLogPlusPlus merged2 = new HyperLogLogPlusPlus(HyperLogLogPlusPlus.DEFAULT_PRECISION);
+		merged2.merge(registers);
+		merged2.merge(exact);
+		Assert.assertEquals(merged1.cardinality(), merged2.cardinality());
+
+		// Two exact sets switch to the registers once their union is large enough
+		final HyperLogLogPlusPlus exact2 = new HyperLogLogPlusPlus(HyperLogLogPlusPlus.DEFAULT_PRECISION);
+		for (long i = 100; i < 1100; i++)
+			exact2.add(HyperLogLogPlusPlus.hash(i));
+		Assert.assertEquals(1000, exact2.cardinality());
+		exact2.merge(exact);
+		checkError(1100, exact2.cardinality(), 0.02);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void mergeDifferentPrecisions() {
+		new HyperLogLogPlusPlus(10).merge(new HyperLogLogPlusPlus(11));
+	}
+
+	@Test
+	public void estimateError() {
+		final HyperLogLogPlusPlus sketch = new HyperLogLogPlusPlus(HyperLogLogPlusPlus.DEFAULT_PRECISION);
+		for (int i = 0; i < 100000; i++)
+			sketch.add(HyperLogLogPlusPlus.hash(new BytesRef("value" + i)));
+		// The standard error is 1.04 / sqrt(2^14), about 0.8%
+		checkError(100000, sketch.cardinality(), 0.025);
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.search.index;
+
+import org.apache.lucene.analysis.util.ClasspathResourceLoader;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+public class FileResourceLoaderTest {
+
+	private final File directory1 = new File("resources1");
+	private final File directory2 = new File("resources2");
+
+	@Test
+	public void changed() {
+		final FileResourceLoader loader = new FileResourceLoader(null, null, directory1);
+		final String version = loader.getVersion();
+		Assert.assertEquals(version, loader.getVersion());
+		loader.changed();
+		Assert.assertNotEquals(version, loader.getVersion());
+	}
+
+	@Test
+	public void reopened() {
+		// A loader opened again on the same directory never gets the version of the previous loader
+		final FileResourceLoader loader1 = new FileResourceLoader(null, null, directory1);
+		final FileResourceLoader loader2 = new FileResourceLoader(null, null, directory1);
+		Assert.assertNotEquals(loader1.getVersion(), loader2.getVersion());
+	}
+
+	@Test
+	public void delegates() {
+		final FileResourceLoader loader1 = new FileResourceLoader(null, null, directory1);
+		final FileResourceLoader loader2 = new FileResourceLoader(null, null, directory2);
+		final FileResourceLoader chain = loader2.withDelegate(loader1.withDelegate(null));
+		final String version = chain.getVersion();
+		Assert.assertTrue(version.startsWith(loader2.getVersion()));
+		Assert.assertTrue(version.endsWith(loader1.getVersion()));
+
+		// The chained loaders share the version of their directory
+		loader1.changed();
+		Assert.assertNotEquals(version, chain.getVersion());
+		Assert.assertTrue(chain.getVersion().endsWith(loader1.getVersion()));
+
+		// The version of other resource loaders is unknown
+		Assert.assertNull(loader1.withDelegate(new ClasspathResourceLoader()).getVersion());
+	}
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.search.index;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+public class IndexBackupTest {
+
+	private static Path tempPath;
+	private static Path sourcePath;
+	private static Directory sourceDirectory;
+	private static Collection<String> fileNames;
+	private static ExecutorService executorService;
+
+	@BeforeClass
+	public static void before() throws IOException {
+		tempPath = Files.createTempDirectory("index-backup");
+		sourcePath = tempPath.resolve("source");
+		sourceDirectory = FSDirectory.open(sourcePath);
+		// One segment per commit, each segment made of several files
+		final IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+		config.setMergePolicy(NoMergePolicy.INSTANCE);
+		config.setUseCompoundFile(false);
+		try (final IndexWriter indexWriter = new IndexWriter(sourceDirectory, config)) {
+			for (int i = 0; i < 5; i++) {
+				final Document document = new Document();
+				document.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+				document.add(new TextField("content", "Content of the document " + i, Field.Store.YES));
+				indexWriter.addDocument(document);
+				indexWriter.commit();
+			}
+		}
+		fileNames = SegmentInfos.readLatestCommit(sourceDirectory).files(true);
+		Assert.assertTrue(fileNames.size() > IndexBackup.COPY_CONCURRENCY);
+		executorService = Executors.newCachedThreadPool();
+	}
+
+	@AfterClass
+	public static void after() throws IOException {
+		executorService.shutdown();
+		sourceDirectory.close();
+		FileUtils.deleteDirectory(tempPath.toFile());
+	}
+
+	private static void checkFiles(final Path targetPath) throws IOException {
+		for (String fileName : fileNames)
+			Assert.assertArrayEquals(Files.readAllBytes(sourcePath.resolve(fileName)),
+					Files.readAllBytes(targetPath.resolve(fileName)));
+		try (final Stream<Path> stream = Files.list(targetPath)) {
+			Assert.assertEquals(fileNames.size(), stream.count());
+		}
+	}
+
+	/**
+	 * Hard links which are not supported, the files are copied
+	 */
+	private static class CopyBackup extends IndexBackup {
+
+		private final AtomicInteger links = new AtomicInteger();
+
+		CopyBackup(final Path targetPath) throws IOException {
+			super(sourceDirectory, sourcePath, targetPath, executorService);
+		}
+
+		@Override
+		void createLink(final Path link, final Path existing) throws IOException {
+			links.incrementAndGet();
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	@Test
+	public void hardLink() throws IOException {
+		final Path targetPath = tempPath.resolve("link");
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		try (final IndexBackup backup = new IndexBackup(sourceDirectory, sourcePath, targetPath, executorService) {
+			@Override
+			void createLink(final Path link, final Path existing) throws IOException {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				} finally {
+					running.decrementAndGet();
+				}
+				super.createLink(link, existing);
+			}
+		}) {
+			backup.copy(fileNames);
+		}
+		checkFiles(targetPath);
+		for (String fileName : fileNames)
+			Assert.assertTrue(Files.isSameFile(sourcePath.resolve(fileName), targetPath.resolve(fileName)));
+		// The copy does not use more threads of the shared executor than its bound
+		Assert.assertTrue(maxRunning.get() <= IndexBackup.COPY_CONCURRENCY);
+	}
+
+	@Test
+	public void copyFallback() throws IOException {
+		final Path targetPath = tempPath.resolve("copy");
+		Files.createDirectories(targetPath);
+		Files.write(targetPath.resolve("not_in_commit"), new byte[] { 1, 2, 3 });
+		try (final CopyBackup backup = new CopyBackup(targetPath)) {
+			backup.copy(fileNames);
+			// Once a link failed, the other files are copied without trying again
+			Assert.assertTrue(backup.links.get() <= IndexBackup.COPY_CONCURRENCY);
+		}
+		checkFiles(targetPath);
+		for (String fileName : fileNames)
+			Assert.assertFalse(Files.isSameFile(sourcePath.resolve(fileName), targetPath.resolve(fileName)));
+	}
+
+	@Test
+	public void checksumSkip() throws IOException {
+		final Path targetPath = tempPath.resolve("incremental");
+		try (final CopyBackup backup = new CopyBackup(targetPath)) {
+			backup.copy(fileNames);
+		}
+		final FileTime past = FileTime.fromMillis(0);
+		for (String fileName : fileNames)
+			Files.setLastModifiedTime(targetPath.resolve(fileName), past);
+
+		// A truncated file and a file having another checksum in its footer are copied again
+		final String[] names = fileNames.stream().filter(name -> !name.startsWith("segments")).toArray(String[]::new);
+		final Path truncated = targetPath.resolve(names[0]);
+		try (final RandomAccessFile file = new RandomAccessFile(truncated.toFile(), "rw")) {
+			file.setLength(file.length() - 1);
+		}
+		final Path corrupted = targetPath.resolve(names[1]);
+		try (final RandomAccessFile file = new RandomAccessFile(corrupted.toFile(), "rw")) {
+			file.seek(file.length() - 1);
+			final int last = file.read();
+			file.seek(file.length() - 1);
+			file.write(last ^ 0xFF);
+		}
+
+		try (final CopyBackup backup = new CopyBackup(targetPath)) {
+			backup.copy(fileNames);
+		}
+		checkFiles(targetPath);
+		for (String fileName : fileNames) {
+			final Path path = targetPath.resolve(fileName);
+			if (path.equals(truncated) || path.equals(corrupted))
+				Assert.assertNotEquals(past, Files.getLastModifiedTime(path));
+			else
+				Assert.assertEquals(past, Files.getLastModifiedTime(path));
+		}
+	}
+}
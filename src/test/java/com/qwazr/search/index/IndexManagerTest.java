@@ -0,0 +1,169 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.search.index;
+
+import com.qwazr.search.field.FieldDefinition;
+import com.qwazr.search.query.MatchAllDocsQuery;
+import com.qwazr.server.ServerException;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.ws.rs.WebApplicationException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class IndexManagerTest {
+
+	private final static String EAGER_SCHEMA = "eager";
+	private final static String LAZY_SCHEMA = "lazy";
+	private final static String SIZED_SCHEMA = "sized";
+	private final static int INDEX_COUNT = 8;
+
+	private static File rootDirectory;
+	private static ExecutorService executorService;
+
+	@BeforeClass
+	public static void before() throws IOException {
+		rootDirectory = Files.createTempDirectory("index-manager").toFile();
+		executorService = Executors.newCachedThreadPool();
+		final IndexManager indexManager = new IndexManager(null, rootDirectory, executorService);
+		try {
+			final IndexServiceInterface service = indexManager.getService();
+			service.createUpdateSchema(EAGER_SCHEMA);
+			service.createUpdateSchema(LAZY_SCHEMA,
+					new SchemaSettingsDefinition(null, null, null, null, null, null, null, null, true));
+			for (int i = 0; i < INDEX_COUNT; i++) {
+				service.createUpdateIndex(EAGER_SCHEMA, "index" + i);
+				service.createUpdateIndex(LAZY_SCHEMA, "index" + i);
+			}
+			service.createUpdateSchema(SIZED_SCHEMA,
+					new SchemaSettingsDefinition(null, null, 10L, null, null, null, null, null, true));
+			postDocuments(service, "index0", 0, 6);
+			postDocuments(service, "index1", 0, 3);
+		} finally {
+			indexManager.close();
+		}
+	}
+
+	private static void postDocuments(final IndexServiceInterface service, final String index, final int start,
+			final int end) {
+		service.createUpdateIndex(SIZED_SCHEMA, index);
+		service.setField(SIZED_SCHEMA, index, "name",
+				FieldDefinition.builder(FieldDefinition.Template.StringField).build());
+		final List<Map<String, Object>> documents = new ArrayList<>();
+		for (int i = start; i < end; i++) {
+			final Map<String, Object> document = new HashMap<>();
+			document.put(FieldDefinition.ID_FIELD, Integer.toString(i));
+			document.put("name", "name" + i);
+			documents.add(document);
+		}
+		service.postMappedDocuments(SIZED_SCHEMA, index, documents);
+	}
+
+	@AfterClass
+	public static void after() throws IOException {
+		executorService.shutdown();
+		FileUtils.deleteDirectory(rootDirectory);
+	}
+
+	@Test
+	public void openThreads() {
+		Assert.assertEquals(4, IndexManager.parseOpenThreads(null, 4));
+		Assert.assertEquals(4, IndexManager.parseOpenThreads(" ", 4));
+		Assert.assertEquals(8, IndexManager.parseOpenThreads("8", 4));
+		Assert.assertEquals(8, IndexManager.parseOpenThreads(" 8 ", 4));
+		// Invalid values fall back to the default, or are clamped
+		Assert.assertEquals(4, IndexManager.parseOpenThreads("eight", 4));
+		Assert.assertEquals(1, IndexManager.parseOpenThreads("0", 4));
+		Assert.assertEquals(1, IndexManager.parseOpenThreads("-3", 4));
+		Assert.assertEquals(IndexManager.MAX_OPEN_THREADS, IndexManager.parseOpenThreads("100000", 4));
+		Assert.assertEquals(IndexManager.MAX_OPEN_THREADS, IndexManager.parseOpenThreads(null, 100000));
+	}
+
+	@Test
+	public void openAtStartup() throws IOException, InterruptedException, ExecutionException {
+		final IndexManager indexManager = new IndexManager(null, rootDirectory, executorService);
+		try {
+			// The indexes of the eager schema are opened in parallel by the constructor
+			final SchemaInstance eager = indexManager.get(EAGER_SCHEMA);
+			Assert.assertTrue(eager.getClosedIndexes().isEmpty());
+
+			// The indexes of the lazy schema are opened on first access
+			final SchemaInstance lazy = indexManager.get(LAZY_SCHEMA);
+			Assert.assertTrue(lazy.isLazy());
+			Assert.assertEquals(INDEX_COUNT, lazy.getClosedIndexes().size());
+			Assert.assertNotNull(lazy.get("index0", false));
+			Assert.assertEquals(INDEX_COUNT - 1, lazy.getClosedIndexes().size());
+			Assert.assertFalse(lazy.getClosedIndexes().contains("index0"));
+
+			// Concurrent first accesses share the same opening
+			final List<Future<IndexInstance>> futures = new ArrayList<>();
+			for (int i = 0; i < 16; i++)
+				futures.add(executorService.submit(() -> lazy.get("index1", false)));
+			final IndexInstance indexInstance = futures.get(0).get();
+			Assert.assertNotNull(indexInstance);
+			for (Future<IndexInstance> future : futures)
+				Assert.assertSame(indexInstance, future.get());
+			Assert.assertEquals(INDEX_COUNT - 2, lazy.getClosedIndexes().size());
+
+			// A search across the schema opens every index
+			final ResultDefinition.WithMap result = indexManager.getService()
+					.searchQuery(LAZY_SCHEMA, "*", new QueryBuilder(new MatchAllDocsQuery()).build(), null);
+			Assert.assertEquals(Long.valueOf(0), result.total_hits);
+			Assert.assertTrue(lazy.getClosedIndexes().isEmpty());
+		} finally {
+			indexManager.close();
+		}
+	}
+
+	@Test
+	public void maxSizeWithClosedIndexes() throws IOException {
+		final IndexManager indexManager = new IndexManager(null, rootDirectory, executorService);
+		try {
+			final SchemaInstance sized = indexManager.get(SIZED_SCHEMA);
+			Assert.assertEquals(2, sized.getClosedIndexes().size());
+
+			// The closed index is counted from its last commit, it is not opened
+			postDocuments(indexManager.getService(), "index0", 6, 7);
+			Assert.assertEquals(1, sized.getClosedIndexes().size());
+			Assert.assertTrue(sized.getClosedIndexes().contains("index1"));
+			try {
+				postDocuments(indexManager.getService(), "index0", 7, 8);
+				Assert.fail("The schema accepted more than 10 documents");
+			} catch (WebApplicationException e) {
+				Assert.assertEquals(406, e.getResponse().getStatus());
+			} catch (ServerException e) {
+				Assert.assertEquals(406, e.getStatusCode());
+			}
+			Assert.assertTrue(sized.getClosedIndexes().contains("index1"));
+		} finally {
+			indexManager.close();
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.search.index;
+
+import com.qwazr.search.field.FieldDefinition;
+import com.qwazr.search.query.MatchAllDocsQuery;
+import com.qwazr.server.ServerException;
+import com.qwazr.utils.CharsetUtils;
+import com.qwazr.utils.IOUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.ws.rs.core.Response;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class IndexRestoreTest {
+
+	private final static String SCHEMA = "restore";
+	private final static String INDEX = "index";
+	private final static String BACKUP = "backup";
+
+	/**
+	 * Enough documents for the export to fill the pipe: the stream holds the index until it is read
+	 */
+	private final static int DOC_COUNT = 5000;
+
+	private static File rootDirectory;
+	private static ExecutorService executorService;
+	private static IndexManager indexManager;
+	private static IndexServiceInterface service;
+
+	@BeforeClass
+	public static void before() throws IOException {
+		rootDirectory = Files.createTempDirectory("index-restore").toFile();
+		executorService = Executors.newCachedThreadPool();
+		indexManager = new IndexManager(null, rootDirectory, executorService);
+		service = indexManager.getService();
+		service.createUpdateSchema(SCHEMA,
+				new SchemaSettingsDefinition(null, null, null, new File(rootDirectory, "backups").getAbsolutePath()));
+		service.createUpdateIndex(SCHEMA, INDEX);
+		final LinkedHashMap<String, FieldDefinition> fields = new LinkedHashMap<>();
+		fields.put("title", FieldDefinition.builder(FieldDefinition.Template.StringField).setStored(true).build());
+		service.setFields(SCHEMA, INDEX, fields);
+		final List<Map<String, Object>> documents = new ArrayList<>();
+		for (int i = 0; i < DOC_COUNT; i++) {
+			final Map<String, Object> document = new HashMap<>();
+			document.put(FieldDefinition.ID_FIELD, Integer.toString(i));
+			document.put("title", "The title of the document " + i);
+			documents.add(document);
+		}
+		service.postMappedDocuments(SCHEMA, INDEX, documents);
+		service.doBackup(SCHEMA, INDEX, BACKUP);
+	}
+
+	@AfterClass
+	public static void after() throws IOException {
+		indexManager.close();
+		executorService.shutdown();
+		FileUtils.deleteDirectory(rootDirectory);
+	}
+
+	private static File getDataDirectory() throws IOException {
+		final File indexDirectory = new File(new File(rootDirectory, SCHEMA), INDEX);
+		return new File(indexDirectory, IndexInstanceBuilder.FileSet.getDataName(indexDirectory));
+	}
+
+	private static void restore() {
+		Assert.assertEquals(Long.valueOf(DOC_COUNT), service.restoreBackup(SCHEMA, INDEX, BACKUP).num_docs);
+	}
+
+	@Test
+	public void drainedByRefCount() throws Exception {
+		restore();
+		final SchemaInstance schemaInstance = indexManager.get(SCHEMA);
+		final IndexInstance oldInstance = schemaInstance.get(INDEX, false);
+		final File oldDataDirectory = getDataDirectory();
+		final QueryDefinition query =
+				new QueryBuilder(new MatchAllDocsQuery()).returnedFields(Arrays.asList("title")).build();
+
+		// The export holds a reference on the index until its stream is read
+		try (final InputStream export = oldInstance.export(query, null, false)) {
+			restore();
+			// The second restore does not take the data of the draining instance for stale data
+			restore();
+			Assert.assertNotSame(oldInstance, schemaInstance.get(INDEX, false));
+			Assert.assertTrue(oldInstance.isUnloaded());
+			Assert.assertTrue(oldDataDirectory.exists());
+
+			// The retired instance rejects the new operations, the schema runs them again on the restored index
+			try {
+				oldInstance.search(query, ResultDocumentBuilder.MapBuilderFactory.INSTANCE);
+				Assert.fail("The retired index accepted a search");
+			} catch (ServerException e) {
+				Assert.assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), e.getStatusCode());
+			}
+			final ResultDefinition.WithMap result = (ResultDefinition.WithMap) schemaInstance.apply(INDEX, false,
+					index -> index.search(query, ResultDocumentBuilder.MapBuilderFactory.INSTANCE));
+			Assert.assertEquals(Long.valueOf(DOC_COUNT), result.total_hits);
+
+			// The running export still reads the retired index
+			final String content = IOUtils.toString(export, CharsetUtils.CharsetUTF8);
+			Assert.assertTrue(content.contains("The title of the document " + (DOC_COUNT - 1)));
+		}
+
+		// The last operation closes the retired index, then its data is deleted
+		final long deadline = System.currentTimeMillis() + 30000;
+		while (oldDataDirectory.exists() && System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+		Assert.assertFalse(oldDataDirectory.exists());
+		Assert.assertTrue(getDataDirectory().exists());
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.search.index;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.join.ScoreMode;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JoinQueryCacheTest {
+
+	private static JoinQueryCache.Key key(final String value) {
+		return new JoinQueryCache.Key("from", "to", false, ScoreMode.None, new TermQuery(new Term("field", value)));
+	}
+
+	@Test
+	public void keys() {
+		Assert.assertEquals(key("a"), key("a"));
+		Assert.assertEquals(key("a").hashCode(), key("a").hashCode());
+		// The from query is compared on its Lucene form
+		Assert.assertNotEquals(key("a"), key("b"));
+		final Query query = new MatchAllDocsQuery();
+		final JoinQueryCache.Key key = new JoinQueryCache.Key("from", "to", false, ScoreMode.None, query);
+		Assert.assertNotEquals(key, new JoinQueryCache.Key("from", "to", true, ScoreMode.None, query));
+		Assert.assertNotEquals(key, new JoinQueryCache.Key("from", "to", false, ScoreMode.Max, query));
+		Assert.assertNotEquals(key, new JoinQueryCache.Key("from", "other", false, ScoreMode.None, query));
+	}
+
+	@Test
+	public void evictedByRam() {
+		final JoinQueryCache cache = new JoinQueryCache(null, 10000);
+		final Query query = new MatchAllDocsQuery();
+		cache.put(key("a"), query, 60);
+		cache.put(key("b"), query, 60);
+		Assert.assertEquals(2, cache.size());
+		final long ramBytesUsed = cache.ramBytesUsed();
+		Assert.assertTrue(ramBytesUsed > 2 * 60);
+		Assert.assertTrue(ramBytesUsed <= 10000);
+
+		// The least recently used join is evicted first
+		Assert.assertSame(query, cache.get(key("a")));
+		cache.put(key("c"), query, 60);
+		Assert.assertEquals(2, cache.size());
+		Assert.assertNull(cache.get(key("b")));
+		Assert.assertSame(query, cache.get(key("a")));
+		Assert.assertSame(query, cache.get(key("c")));
+		Assert.assertEquals(ramBytesUsed, cache.ramBytesUsed());
+
+		// Replacing a join does not count it twice
+		cache.put(key("c"), query, 60);
+		Assert.assertEquals(ramBytesUsed, cache.ramBytesUsed());
+	}
+
+	@Test
+	public void tooLarge() {
+		final JoinQueryCache cache = new JoinQueryCache(null, 10000);
+		cache.put(key("a"), new MatchAllDocsQuery(), 10000);
+		Assert.assertEquals(0, cache.size());
+		Assert.assertEquals(0, cache.ramBytesUsed());
+		Assert.assertNull(cache.get(key("a")));
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.search.index;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SearchAfterDefinitionTest {
+
+	private static void checkRejected(final SearchAfterDefinition searchAfter, final Sort sort, final String message) {
+		try {
+			searchAfter.getScoreDoc(sort);
+			Assert.fail("The cursor has been accepted");
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+		}
+	}
+
+	@Test
+	public void byScore() {
+		final ScoreDoc scoreDoc = new SearchAfterDefinition(12, 1.5f).getScoreDoc(null);
+		Assert.assertEquals(12, scoreDoc.doc);
+		Assert.assertEquals(1.5f, scoreDoc.score, 0);
+		Assert.assertEquals(new SearchAfterDefinition(12, 1.5f), SearchAfterDefinition.of(scoreDoc));
+
+		// A cursor without score would return the first page again
+		checkRejected(new SearchAfterDefinition(12, null), null, "The search_after cursor requires a score");
+		checkRejected(new SearchAfterDefinition(null, 1.5f), null, "The search_after cursor requires a doc");
+	}
+
+	@Test
+	public void bySortValues() {
+		final Sort sort = new Sort(new SortField("name", SortField.Type.STRING), new SortField("price",
+				SortField.Type.DOUBLE));
+		final ScoreDoc scoreDoc = new SearchAfterDefinition(3, null, "abc", 2).getScoreDoc(sort);
+		Assert.assertTrue(scoreDoc instanceof FieldDoc);
+		final Object[] fields = ((FieldDoc) scoreDoc).fields;
+		Assert.assertEquals(new BytesRef("abc"), fields[0]);
+		Assert.assertEquals(2d, fields[1]);
+
+		checkRejected(new SearchAfterDefinition(3, null), sort, "The search_after cursor requires one value");
+		checkRejected(new SearchAfterDefinition(3, null, "abc"), sort, "The search_after cursor requires one value");
+	}
+}
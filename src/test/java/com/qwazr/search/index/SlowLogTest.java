@@ -0,0 +1,225 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.search.index;
+
+import com.qwazr.search.field.FieldDefinition;
+import com.qwazr.search.query.MatchAllDocsQuery;
+import com.qwazr.utils.json.JsonMapper;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class SlowLogTest {
+
+	private final static String SCHEMA = "slowlog";
+	private final static String INDEX = "index";
+
+	private static File rootDirectory;
+	private static ExecutorService executorService;
+
+	private Logger searchLogger;
+	private Logger indexingLogger;
+	private List<String> searchEntries;
+	private List<String> indexingEntries;
+
+	@BeforeClass
+	public static void beforeClass() throws IOException {
+		rootDirectory = Files.createTempDirectory("slow-log").toFile();
+		executorService = Executors.newCachedThreadPool();
+	}
+
+	@AfterClass
+	public static void afterClass() throws IOException {
+		executorService.shutdown();
+		FileUtils.deleteDirectory(rootDirectory);
+	}
+
+	/**
+	 * @return a logger keeping the warnings, the only level used by the slow log
+	 */
+	private static Logger newLogger(final List<String> entries) {
+		return (Logger) Proxy.newProxyInstance(Logger.class.getClassLoader(), new Class<?>[] { Logger.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "isWarnEnabled":
+						return true;
+					case "warn":
+						entries.add((String) args[0]);
+						return null;
+					case "getName":
+						return "test";
+					default:
+						return method.getReturnType() == boolean.class ? false : null;
+					}
+				});
+	}
+
+	@Before
+	public void before() {
+		searchLogger = SlowLog.searchLogger;
+		indexingLogger = SlowLog.indexingLogger;
+		searchEntries = new ArrayList<>();
+		indexingEntries = new ArrayList<>();
+		SlowLog.searchLogger = newLogger(searchEntries);
+		SlowLog.indexingLogger = newLogger(indexingEntries);
+	}
+
+	@After
+	public void after() {
+		SlowLog.searchLogger = searchLogger;
+		SlowLog.indexingLogger = indexingLogger;
+	}
+
+	private static SchemaSettingsDefinition settings(final Long slowSearchMs, final Long slowIndexingMs,
+			final Float sampling) {
+		return new SchemaSettingsDefinition(null, null, null, null, null, slowSearchMs, slowIndexingMs, sampling);
+	}
+
+	private static Map<String, Object> parse(final String entry) throws IOException {
+		return JsonMapper.MAPPER.readValue(entry, Map.class);
+	}
+
+	@Test
+	public void thresholds() throws IOException {
+		final QueryDefinition query = new QueryBuilder(new MatchAllDocsQuery()).build();
+		final long below = TimeUnit.MILLISECONDS.toNanos(99);
+		final long above = TimeUnit.MILLISECONDS.toNanos(150);
+
+		// No settings or no threshold: nothing is logged
+		SlowLog.search(null, SCHEMA, INDEX, query, null, null, above, 0);
+		SlowLog.search(settings(null, 100L, null), SCHEMA, INDEX, query, null, null, above, 0);
+		SlowLog.indexing(settings(100L, null, null), SCHEMA, INDEX, "post_document", 1, above, 0);
+		Assert.assertTrue(searchEntries.isEmpty());
+		Assert.assertTrue(indexingEntries.isEmpty());
+
+		// Below the threshold: nothing is logged
+		final SchemaSettingsDefinition settings = settings(100L, 100L, null);
+		SlowLog.search(settings, SCHEMA, INDEX, query, null, null, below, 0);
+		SlowLog.indexing(settings, SCHEMA, INDEX, "post_document", 1, below, 0);
+		Assert.assertTrue(searchEntries.isEmpty());
+		Assert.assertTrue(indexingEntries.isEmpty());
+
+		// Above the threshold: one entry each
+		SlowLog.search(settings, SCHEMA, INDEX, query, null, 7L, above, TimeUnit.MILLISECONDS.toNanos(20));
+		SlowLog.indexing(settings, SCHEMA, INDEX, "post_document", 3, above, 0);
+		Assert.assertEquals(1, searchEntries.size());
+		Assert.assertEquals(1, indexingEntries.size());
+		final Map<String, Object> search = parse(searchEntries.get(0));
+		Assert.assertEquals(SCHEMA, search.get("schema"));
+		Assert.assertEquals(INDEX, search.get("index"));
+		Assert.assertEquals(150, ((Number) search.get("took_ms")).intValue());
+		Assert.assertEquals(20, ((Number) search.get("semaphore_wait_ms")).intValue());
+		Assert.assertEquals(7, ((Number) search.get("reader_version")).intValue());
+		Assert.assertNotNull(search.get("query"));
+		final Map<String, Object> indexing = parse(indexingEntries.get(0));
+		Assert.assertEquals("post_document", indexing.get("operation"));
+		Assert.assertEquals(3, ((Number) indexing.get("count")).intValue());
+
+		// A null sampling keeps every entry, a zero sampling none
+		final SchemaSettingsDefinition sampled = settings(100L, 100L, 0f);
+		for (int i = 0; i < 100; i++) {
+			SlowLog.search(sampled, SCHEMA, INDEX, query, null, null, above, 0);
+			SlowLog.indexing(sampled, SCHEMA, INDEX, "post_document", 1, above, 0);
+		}
+		Assert.assertEquals(1, searchEntries.size());
+		Assert.assertEquals(1, indexingEntries.size());
+	}
+
+	@Test
+	public void queryTruncated() throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		while (sb.length() <= SlowLog.MAX_QUERY_LENGTH)
+			sb.append("word ");
+		final QueryDefinition query = new QueryBuilder(new MatchAllDocsQuery()).queryString(sb.toString()).build();
+		SlowLog.search(settings(0L, null, null), SCHEMA, null, query, null, null, 0, 0);
+		Assert.assertEquals(1, searchEntries.size());
+		final Map<String, Object> search = parse(searchEntries.get(0));
+		Assert.assertNull(search.get("index"));
+		final String json = (String) search.get("query");
+		Assert.assertEquals(SlowLog.MAX_QUERY_LENGTH + 3, json.length());
+		Assert.assertTrue(json.endsWith("..."));
+	}
+
+	@Test
+	public void searchAndIndexingLogged() throws IOException {
+		final IndexManager indexManager = new IndexManager(null, rootDirectory, executorService);
+		try {
+			final IndexServiceInterface service = indexManager.getService();
+			service.createUpdateSchema(SCHEMA, settings(0L, 0L, null));
+			service.createUpdateIndex(SCHEMA, INDEX);
+			service.setField(SCHEMA, INDEX, "name",
+					FieldDefinition.builder(FieldDefinition.Template.StringField).setStored(true).build());
+
+			final List<Map<String, Object>> documents = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				final Map<String, Object> document = new HashMap<>();
+				document.put(FieldDefinition.ID_FIELD, Integer.toString(i));
+				document.put("name", "name" + i);
+				documents.add(document);
+			}
+			Assert.assertEquals(Integer.valueOf(10), service.postMappedDocuments(SCHEMA, INDEX, documents));
+			Assert.assertEquals(1, indexingEntries.size());
+			final Map<String, Object> indexing = parse(indexingEntries.get(0));
+			Assert.assertEquals(SCHEMA, indexing.get("schema"));
+			Assert.assertEquals(INDEX, indexing.get("index"));
+			Assert.assertEquals("post_mapped_documents", indexing.get("operation"));
+			Assert.assertEquals(10, ((Number) indexing.get("count")).intValue());
+
+			final QueryDefinition query =
+					new QueryBuilder(new MatchAllDocsQuery()).returnedFields(Arrays.asList("name")).build();
+			final ResultDefinition.WithMap result = service.searchQuery(SCHEMA, INDEX, query, null);
+			Assert.assertEquals(Long.valueOf(10), result.total_hits);
+			Assert.assertEquals(1, searchEntries.size());
+			final Map<String, Object> search = parse(searchEntries.get(0));
+			Assert.assertEquals(INDEX, search.get("index"));
+			Assert.assertEquals(10, ((Number) search.get("total_hits")).intValue());
+			Assert.assertEquals(10, ((Number) search.get("returned_hits")).intValue());
+			Assert.assertNotNull(search.get("reader_version"));
+			Assert.assertTrue(((String) search.get("query")).contains("name"));
+
+			// Each query of a multi search is logged
+			service.multiSearchQuery(SCHEMA, INDEX, Arrays.asList(query, query));
+			Assert.assertEquals(3, searchEntries.size());
+
+			// Above the thresholds, nothing more is logged
+			service.createUpdateSchema(SCHEMA, settings(60000L, 60000L, null));
+			service.postMappedDocuments(SCHEMA, INDEX, documents);
+			service.searchQuery(SCHEMA, INDEX, query, null);
+			Assert.assertEquals(1, indexingEntries.size());
+			Assert.assertEquals(3, searchEntries.size());
+		} finally {
+			indexManager.close();
+		}
+	}
+}
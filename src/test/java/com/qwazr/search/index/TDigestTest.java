@@ -0,0 +1,126 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.search.index;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TDigestTest {
+
+	/**
+	 * An exponential distribution: the upper tail is long
+	 */
+	private static double[] values(final int count, final long seed) {
+		final Random random = new Random(seed);
+		final double[] values = new double[count];
+		for (int i = 0; i < count; i++)
+			values[i] = -Math.log(1 - random.nextDouble());
+		return values;
+	}
+
+	/**
+	 * The error is measured on the ranks: the fraction of the values between the estimate and the exact quantile
+	 */
+	private static void checkQuantile(final double[] sorted, final TDigest digest, final double q,
+			final double maxRankError) {
+		final double estimate = digest.quantile(q);
+		int rank = Arrays.binarySearch(sorted, estimate);
+		if (rank < 0)
+			rank = -rank - 1;
+		final double rankError = Math.abs(rank - q * sorted.length) / sorted.length;
+		Assert.assertTrue("Quantile " + q + ": " + estimate + " rank error " + rankError, rankError <= maxRankError);
+	}
+
+	private static void checkTails(final double[] sorted, final TDigest digest) {
+		Assert.assertEquals(sorted.length, digest.getTotalWeight(), 0);
+		Assert.assertEquals(sorted[0], digest.quantile(0), 0);
+		Assert.assertEquals(sorted[sorted.length - 1], digest.quantile(1), 0);
+		// The centroids are small near the tails: the extreme quantiles keep a small rank error
+		checkQuantile(sorted, digest, 0.5, 0.001);
+		checkQuantile(sorted, digest, 0.01, 0.001);
+		checkQuantile(sorted, digest, 0.99, 0.001);
+		checkQuantile(sorted, digest, 0.001, 0.0005);
+		checkQuantile(sorted, digest, 0.999, 0.0005);
+	}
+
+	@Test
+	public void tailQuantiles() {
+		final double[] values = values(1000000, 1);
+		final TDigest digest = new TDigest(100);
+		for (double value : values)
+			digest.add(value);
+		Arrays.sort(values);
+		checkTails(values, digest);
+	}
+
+	@Test
+	public void bufferFull() {
+		// The buffer holds 5 times the capacity of the centroids, it is merged many times
+		final double[] values = values(10000, 2);
+		final TDigest digest = new TDigest(10);
+		for (int i = 0; i < values.length; i++) {
+			digest.add(values[i]);
+			Assert.assertEquals(i + 1, digest.getTotalWeight(), 0);
+		}
+		Arrays.sort(values);
+		Assert.assertEquals(values[0], digest.quantile(0), 0);
+		Assert.assertEquals(values[values.length - 1], digest.quantile(1), 0);
+		checkQuantile(values, digest, 0.5, 0.05);
+		checkQuantile(values, digest, 0.99, 0.02);
+
+		// An empty digest, then a single value
+		final TDigest empty = new TDigest(10);
+		Assert.assertTrue(Double.isNaN(empty.quantile(0.5)));
+		empty.add(1);
+		Assert.assertEquals(1, empty.quantile(0.5), 0);
+	}
+
+	@Test
+	public void concurrentSlices() throws InterruptedException, ExecutionException {
+		final double[] values = values(1000000, 3);
+		final int slices = 8;
+		final ExecutorService executorService = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<TDigest>> futures = new ArrayList<>();
+			for (int s = 0; s < slices; s++) {
+				final int slice = s;
+				futures.add(executorService.submit(() -> {
+					final TDigest digest = new TDigest(100);
+					for (int i = slice; i < values.length; i += slices)
+						digest.add(values[i]);
+					return digest;
+				}));
+			}
+			// The slices are reduced like the aggregation collectors of the concurrent slices
+			final TDigest digest = new TDigest(100);
+			for (Future<TDigest> future : futures)
+				digest.add(future.get());
+			Arrays.sort(values);
+			checkTails(values, digest);
+		} finally {
+			executorService.shutdown();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2015-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.search.test;
+
+import com.qwazr.search.field.FieldDefinition;
+import com.qwazr.search.index.IndexManager;
+import com.qwazr.search.index.IndexServiceInterface;
+import com.qwazr.search.index.IndexSettingsDefinition;
+import com.qwazr.search.index.QueryBuilder;
+import com.qwazr.search.index.RemoteIndex;
+import com.qwazr.search.index.ResultDefinition;
+import com.qwazr.search.index.ResultDocumentMap;
+import com.qwazr.search.query.MatchAllDocsQuery;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A sharded index of a second node (an embedded index manager) having one shard on the test server, reached through
+ * localhost, and one local shard.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class DistributedSearchTest {
+
+	private final static String SCHEMA = "testDistributedNodes";
+	private final static String REMOTE_SHARD = "remoteShard";
+	private final static String LOCAL_SHARD = "localShard";
+	private final static String DISTRIBUTED = "distributed";
+
+	private static ExecutorService executorService;
+	private static File coordinatorDirectory;
+	private static IndexManager coordinator;
+
+	@BeforeClass
+	public static void beforeClass() throws IOException {
+		executorService = Executors.newCachedThreadPool();
+		coordinatorDirectory = Files.createTempDirectory("qwazr_coordinator_test").toFile();
+	}
+
+	@AfterClass
+	public static void afterClass() throws IOException {
+		if (coordinator != null)
+			coordinator.close();
+		executorService.shutdown();
+		FileUtils.deleteDirectory(coordinatorDirectory);
+		if (TestServer.service != null)
+			TestServer.service.deleteSchema(SCHEMA);
+	}
+
+	private static void createShard(final IndexServiceInterface service, final String index, final String prefix,
+			final int count) {
+		service.createUpdateSchema(SCHEMA);
+		service.createUpdateIndex(SCHEMA, index);
+		final LinkedHashMap<String, FieldDefinition> fields = new LinkedHashMap<>();
+		fields.put(FieldDefinition.ID_FIELD,
+				FieldDefinition.builder(FieldDefinition.Template.StringField).setStored(true).build());
+		fields.put("title", FieldDefinition.builder(FieldDefinition.Template.StringField).setStored(true).build());
+		service.setFields(SCHEMA, index, fields);
+		final List<Map<String, Object>> documents = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			final Map<String, Object> document = new HashMap<>();
+			document.put(FieldDefinition.ID_FIELD, prefix + i);
+			document.put("title", prefix + " document " + i);
+			documents.add(document);
+		}
+		Assert.assertEquals(Integer.valueOf(count), service.postMappedDocuments(SCHEMA, index, documents));
+	}
+
+	@Test
+	public void test000startServer() throws Exception {
+		TestServer.startServer();
+	}
+
+	@Test
+	public void test100createNodes() throws IOException, URISyntaxException {
+		createShard(TestServer.service, REMOTE_SHARD, "remote", 3);
+		coordinator = new IndexManager(null, coordinatorDirectory, executorService);
+		final IndexServiceInterface service = coordinator.getService();
+		createShard(service, LOCAL_SHARD, "local", 2);
+		// The coordinator has no index named like the shard of the test server
+		final List<RemoteIndex> shards =
+				Arrays.asList(RemoteIndex.build(TestServer.BASE_URL + "/indexes/" + SCHEMA + "/" + REMOTE_SHARD),
+						new RemoteIndex(SCHEMA, LOCAL_SHARD));
+		service.createUpdateIndex(SCHEMA, DISTRIBUTED,
+				new IndexSettingsDefinition(null, (RemoteIndex) null, null, shards, 10000L));
+	}
+
+	@Test
+	public void test200searchBothNodes() {
+		final ResultDefinition.WithMap result = coordinator.getService()
+				.searchQuery(SCHEMA, DISTRIBUTED, new QueryBuilder(new MatchAllDocsQuery()).rows(10)
+						.returnedField("title")
+						.build(), null);
+		Assert.assertTrue(result.shard_errors == null || result.shard_errors.isEmpty());
+		Assert.assertEquals(Long.valueOf(5), result.total_hits);
+		final Set<Object> titles = new HashSet<>();
+		for (ResultDocumentMap document : result.documents)
+			titles.add(document.fields.get("title"));
+		Assert.assertEquals(new HashSet<>(
+				Arrays.asList("remote document 0", "remote document 1", "remote document 2", "local document 0",
+						"local document 1")), titles);
+	}
+}
@@ -17,25 +17,42 @@ package com.qwazr.search.test;
 
 import com.qwazr.search.analysis.AnalyzerDefinition;
 import com.qwazr.search.annotations.AnnotatedIndexService;
+import com.qwazr.search.collector.CardinalityCollector;
 import com.qwazr.search.collector.MaxNumericCollector;
 import com.qwazr.search.collector.MinNumericCollector;
 import com.qwazr.search.field.FieldDefinition;
 import com.qwazr.search.index.*;
 import com.qwazr.search.query.*;
+import com.qwazr.server.ServerException;
 import com.qwazr.utils.http.HttpClients;
+import com.qwazr.utils.json.JsonMapper;
 import org.apache.http.pool.PoolStats;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
 import org.apache.lucene.analysis.standard.ClassicAnalyzer;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.search.join.ScoreMode;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.junit.Assert;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
+import javax.ws.rs.WebApplicationException;
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
@@ -353,6 +370,48 @@ public abstract class JavaAbstractTest {
 		checkEqualsReturnedFields(records.get(1), record2, docValue2);
 	}
 
+	private static List<String> exportLines(final AnnotatedIndexService<AnnotatedIndex> service, final String after,
+			final Boolean parallel) throws IOException {
+		final QueryDefinition query =
+				new QueryBuilder(new MatchAllDocsQuery()).returnedField("title", "price").build();
+		try (final BufferedReader reader = new BufferedReader(
+				new InputStreamReader(service.exportQuery(query, after, parallel), StandardCharsets.UTF_8))) {
+			final List<String> lines = new ArrayList<>();
+			String line;
+			while ((line = reader.readLine()) != null)
+				lines.add(line);
+			return lines;
+		}
+	}
+
+	@Test
+	public void test430export() throws URISyntaxException, IOException, InterruptedException {
+		final AnnotatedIndexService<AnnotatedIndex> master = getMaster();
+		final List<String> lines = exportLines(master, null, null);
+		Assert.assertEquals(2, lines.size());
+		final Map<String, Object> first = JsonMapper.MAPPER.readValue(lines.get(0), Map.class);
+		Assert.assertNotNull(first.get("title"));
+		Assert.assertNotNull(first.get(FieldDefinition.DOC_FIELD));
+		Assert.assertEquals(record1.id, first.get(FieldDefinition.ID_FIELD));
+		Assert.assertEquals(1, exportLines(master, record1.id, null).size());
+		Assert.assertEquals(2, exportLines(master, null, true).size());
+
+		// The $id$ cursor is still valid after the first document moved to a new segment
+		final AnnotatedIndexService<AnnotatedIndex> service =
+				getService(getIndexService(), AnnotatedIndex.class, "testIndexExport", null);
+		service.createUpdateIndex();
+		service.createUpdateFields();
+		service.postDocuments(Arrays.asList(record1, record2));
+		Assert.assertEquals(2, exportLines(service, null, null).size());
+		service.postDocument(record1);
+		final List<String> resumed = exportLines(service, record1.id, null);
+		Assert.assertEquals(1, resumed.size());
+		Assert.assertEquals(record2.id,
+				JsonMapper.MAPPER.readValue(resumed.get(0), Map.class).get(FieldDefinition.ID_FIELD));
+		Assert.assertEquals(2, exportLines(service, null, null).size());
+		service.deleteIndex();
+	}
+
 	private void testSort(QueryBuilder queryBuilder, int resultCount,
 			BiFunction<AnnotatedIndex, AnnotatedIndex, Boolean> checker) throws URISyntaxException, IOException {
 		final AnnotatedIndexService<AnnotatedIndex> master = getMaster();
@@ -441,6 +500,440 @@ public abstract class JavaAbstractTest {
 		testSort(builder, 2, (doc1, doc2) -> doc1.price.compareTo(doc2.price) > 0);
 	}
 
+	@Test
+	public void test510searchAfter() throws URISyntaxException, IOException {
+		final AnnotatedIndexService<AnnotatedIndex> master = getMaster();
+		final QueryBuilder builder = new QueryBuilder(new MatchAllDocsQuery());
+		builder.sort("price", QueryDefinition.SortEnum.ascending_missing_last).returnedField("price").rows(1);
+		final ResultDefinition.WithObject<AnnotatedIndex> page1 = master.searchQuery(builder.build());
+		Assert.assertEquals(Long.valueOf(2), page1.total_hits);
+		Assert.assertEquals(1, page1.documents.size());
+		Assert.assertNotNull(page1.search_after);
+		final ResultDefinition.WithObject<AnnotatedIndex> page2 =
+				master.searchQuery(builder.searchAfter(page1.search_after).build());
+		Assert.assertEquals(1, page2.documents.size());
+		Assert.assertTrue(page1.documents.get(0).record.price < page2.documents.get(0).record.price);
+		final ResultDefinition.WithObject<AnnotatedIndex> page3 =
+				master.searchQuery(builder.searchAfter(page2.search_after).build());
+		Assert.assertTrue(page3.documents.isEmpty());
+
+		// Without sort, the cursor carries the score
+		final QueryBuilder byScore = new QueryBuilder(new MatchAllDocsQuery()).returnedField("price").rows(1);
+		final ResultDefinition.WithObject<AnnotatedIndex> scorePage1 = master.searchQuery(byScore.build());
+		Assert.assertNotNull(scorePage1.search_after.score);
+		final ResultDefinition.WithObject<AnnotatedIndex> scorePage2 =
+				master.searchQuery(byScore.searchAfter(scorePage1.search_after).build());
+		Assert.assertEquals(1, scorePage2.documents.size());
+		Assert.assertNotEquals(scorePage1.documents.get(0).getDoc(), scorePage2.documents.get(0).getDoc());
+	}
+
+	@Test
+	public void test520searchStream() throws URISyntaxException, IOException {
+		final AnnotatedIndexService<AnnotatedIndex> master = getMaster();
+		final QueryBuilder builder = new QueryBuilder(new MatchAllDocsQuery());
+		builder.sort("price", QueryDefinition.SortEnum.ascending_missing_last).returnedField(RETURNED_FIELDS);
+		final ResultDefinition.WithMap result = master.searchQueryWithMap(builder.build());
+		final ResultDefinition.WithMap streamed;
+		try (final InputStream input = master.searchQueryStream(builder.build())) {
+			streamed = JsonMapper.MAPPER.readValue(input, ResultDefinition.WithMap.class);
+		}
+		Assert.assertEquals(result.total_hits, streamed.total_hits);
+		Assert.assertEquals(result.documents.size(), streamed.documents.size());
+		for (int i = 0; i < result.documents.size(); i++) {
+			final ResultDocumentMap doc = result.documents.get(i);
+			final ResultDocumentMap streamedDoc = streamed.documents.get(i);
+			Assert.assertEquals(doc.getDoc(), streamedDoc.getDoc());
+			Assert.assertEquals(doc.fields.keySet(), streamedDoc.fields.keySet());
+			Assert.assertEquals(doc.fields.get("title"), streamedDoc.fields.get("title"));
+			Assert.assertEquals(doc.fields.get("price"), streamedDoc.fields.get("price"));
+		}
+		Assert.assertEquals(result.search_after, streamed.search_after);
+	}
+
+	@Test
+	public void test540totalHitsThreshold() throws URISyntaxException, IOException {
+		final AnnotatedIndexService<AnnotatedIndex> master = getMaster();
+		final QueryBuilder builder = new QueryBuilder(new MatchAllDocsQuery()).returnedField("title");
+		final ResultDefinition.WithObject<AnnotatedIndex> exact = master.searchQuery(builder.build());
+		Assert.assertNull(exact.total_hits_lower_bound);
+		final ResultDefinition.WithObject<AnnotatedIndex> bounded =
+				master.searchQuery(builder.totalHitsThreshold(1).rows(1).build());
+		// The total is exact unless it is flagged as a lower bound
+		if (bounded.total_hits_lower_bound == null)
+			Assert.assertEquals(exact.total_hits, bounded.total_hits);
+		else {
+			Assert.assertEquals(Boolean.TRUE, bounded.total_hits_lower_bound);
+			Assert.assertTrue(bounded.total_hits < exact.total_hits);
+		}
+		Assert.assertEquals(exact.documents.get(0).record.title, bounded.documents.get(0).record.title);
+		final ResultDefinition.WithObject<AnnotatedIndex> count =
+				master.searchQuery(new QueryBuilder(new MatchAllDocsQuery()).rows(0).build());
+		Assert.assertEquals(exact.total_hits, count.total_hits);
+		Assert.assertNull(count.total_hits_lower_bound);
+	}
+
+	@Test
+	public void test545totalHitsLowerBound() throws URISyntaxException, IOException {
+		final AnnotatedIndexService<AnnotatedIndex> service =
+				getService(getIndexService(), AnnotatedIndex.class, "testIndexTotalHits", null);
+		service.createUpdateIndex();
+		service.createUpdateFields();
+		final int count = 2000;
+		final List<AnnotatedIndex> documents = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			documents.add(new AnnotatedIndex(i, "Total hits article " + i, "Content of the total hits article",
+					(double) i, 1L, false, false, "total"));
+			if (documents.size() == 500) {
+				service.postDocuments(documents);
+				documents.clear();
+			}
+		}
+
+		final QueryBuilder builder = new QueryBuilder(new MatchAllDocsQuery()).rows(10).returnedField("title");
+		final ResultDefinition.WithObject<AnnotatedIndex> exact = service.searchQuery(builder.build());
+		Assert.assertEquals(Long.valueOf(count), exact.total_hits);
+		Assert.assertNull(exact.total_hits_lower_bound);
+
+		// The collection stops once the threshold is reached: the total is a lower bound
+		final ResultDefinition.WithObject<AnnotatedIndex> bounded =
+				service.searchQuery(builder.totalHitsThreshold(100).build());
+		Assert.assertEquals(Boolean.TRUE, bounded.total_hits_lower_bound);
+		Assert.assertTrue(bounded.total_hits >= 100);
+		Assert.assertTrue(bounded.total_hits < count);
+		Assert.assertEquals(exact.documents.size(), bounded.documents.size());
+		for (int i = 0; i < exact.documents.size(); i++)
+			Assert.assertEquals(exact.documents.get(i).record.title, bounded.documents.get(i).record.title);
+
+		// A threshold above the number of hits keeps the exact total
+		final ResultDefinition.WithObject<AnnotatedIndex> above =
+				service.searchQuery(builder.totalHitsThreshold(count * 2).build());
+		Assert.assertEquals(Long.valueOf(count), above.total_hits);
+		Assert.assertNull(above.total_hits_lower_bound);
+
+		service.deleteIndex();
+	}
+
+	@Test
+	public void test550timeout() throws URISyntaxException, IOException {
+		final AnnotatedIndexService<AnnotatedIndex> master = getMaster();
+		final QueryBuilder builder = new QueryBuilder(new MatchAllDocsQuery()).returnedField("title");
+		final ResultDefinition.WithObject<AnnotatedIndex> result = master.searchQuery(builder.timeoutMs(60000L).build());
+		Assert.assertNull(result.timed_out);
+		Assert.assertEquals(result.total_hits,
+				master.searchQuery(builder.timeoutMs(null).build()).total_hits);
+	}
+
+	@Test
+	public void test555timeoutExpired() throws URISyntaxException, IOException, InterruptedException {
+		final AnnotatedIndexService<AnnotatedIndex> service =
+				getService(getIndexService(), AnnotatedIndex.class, "testIndexTimeout", null);
+		service.createUpdateIndex();
+		service.createUpdateFields();
+		final int count = 20000;
+		final List<AnnotatedIndex> documents = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			documents.add(new AnnotatedIndex(i, "Timeout article " + i, "Content of the timeout article", (double) i,
+					1L, false, false, "timeout"));
+			if (documents.size() == 1000) {
+				service.postDocuments(documents);
+				documents.clear();
+			}
+		}
+
+		// Every term of the id field is enumerated, and every document is collected
+		final QueryBuilder builder = new QueryBuilder(new WildcardQuery(FieldDefinition.ID_FIELD, "*")).rows(10);
+		final ResultDefinition.WithObject<AnnotatedIndex> complete = service.searchQuery(builder.build());
+		Assert.assertNull(complete.timed_out);
+		Assert.assertEquals(Long.valueOf(count), complete.total_hits);
+
+		// The enumeration or the collection stops at the time limit, the partial results are returned
+		ResultDefinition.WithObject<AnnotatedIndex> partial = null;
+		for (int i = 0; i < 10; i++) {
+			partial = service.searchQuery(builder.timeoutMs(1L).build());
+			if (partial.timed_out != null)
+				break;
+		}
+		Assert.assertEquals(Boolean.TRUE, partial.timed_out);
+		Assert.assertNull(partial.error);
+		Assert.assertTrue(partial.total_hits == null || partial.total_hits < count);
+
+		service.deleteIndex();
+	}
+
+	@Test
+	public void test556storedFieldsParallel() throws URISyntaxException, IOException {
+		final AnnotatedIndexService<AnnotatedIndex> service =
+				getService(getIndexService(), AnnotatedIndex.class, "testIndexStoredFields", null);
+		service.createUpdateIndex();
+		service.createUpdateFields();
+		// Several segments, and more returned documents than the threshold of the parallel reading
+		final int count = 1000;
+		final List<AnnotatedIndex> documents = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			documents.add(new AnnotatedIndex(i, "Stored article " + i, "Content of the stored article " + i, (double) i,
+					1L, false, false, "stored"));
+			if (documents.size() == 100) {
+				service.postDocuments(documents);
+				documents.clear();
+			}
+		}
+
+		// The documents are returned by decreasing price: the reverse of the doc id order
+		final QueryBuilder builder = new QueryBuilder(new MatchAllDocsQuery()).rows(count)
+				.sort("price", QueryDefinition.SortEnum.descending)
+				.returnedField(FieldDefinition.ID_FIELD, "title", "content");
+		final ResultDefinition.WithObject<AnnotatedIndex> result = service.searchQuery(builder.build());
+		Assert.assertEquals(Long.valueOf(count), result.total_hits);
+		Assert.assertEquals(count, result.documents.size());
+		for (int i = 0; i < count; i++) {
+			final AnnotatedIndex record = result.documents.get(i).record;
+			final int id = count - 1 - i;
+			Assert.assertEquals(Integer.toString(id), record.id);
+			Assert.assertEquals("Stored article " + id, record.title);
+			Assert.assertEquals("Content of the stored article " + id, record.content);
+		}
+
+		service.deleteIndex();
+	}
+
+	@Test
+	public void test560profile() throws URISyntaxException, IOException {
+		final AnnotatedIndexService<AnnotatedIndex> master = getMaster();
+		final QueryBuilder builder = new QueryBuilder(new MatchAllDocsQuery()).returnedField("title");
+		Assert.assertNull(master.searchQuery(builder.build()).profile);
+		final ResultDefinition.WithObject<AnnotatedIndex> result = master.searchQuery(builder.profile(true).build());
+		Assert.assertNotNull(result.profile);
+		Assert.assertNotNull(result.profile.get("queries"));
+		Assert.assertNotNull(result.profile.get("collectors"));
+	}
+
+	private Map<String, Object> getMasterSearchMetrics() throws URISyntaxException, IOException {
+		final Map<String, Object> metrics = getIndexService().getMetrics();
+		final Map<String, Object> schema = (Map<String, Object>) metrics.get(AnnotatedIndex.SCHEMA_NAME);
+		Assert.assertNotNull(schema);
+		final Map<String, Object> indexes = (Map<String, Object>) schema.get("indexes");
+		final Map<String, Object> index = (Map<String, Object>) indexes.get(AnnotatedIndex.INDEX_NAME_MASTER);
+		return (Map<String, Object>) index.get("search");
+	}
+
+	@Test
+	public void test570metrics() throws URISyntaxException, IOException {
+		final AnnotatedIndexService<AnnotatedIndex> master = getMaster();
+		master.searchQuery(new QueryBuilder(new MatchAllDocsQuery()).build());
+		final Map<String, Object> search = getMasterSearchMetrics();
+		Assert.assertTrue(((Number) search.get("count")).longValue() > 0);
+		Assert.assertNotNull(search.get("p99_us"));
+	}
+
+	@Test
+	public void test580multiSearch() throws URISyntaxException, IOException {
+		final AnnotatedIndexService<AnnotatedIndex> master = getMaster();
+		final QueryDefinition all = new QueryBuilder(new MatchAllDocsQuery()).build();
+		final QueryDefinition one = new QueryBuilder(new TermQuery(FieldDefinition.ID_FIELD, "1")).build();
+		final QueryDefinition wrong = new QueryBuilder(new MatchAllDocsQuery()).sort("not_a_field",
+				QueryDefinition.SortEnum.ascending).build();
+		final long searchCount = ((Number) getMasterSearchMetrics().get("count")).longValue();
+		final List<ResultDefinition.WithObject<AnnotatedIndex>> results =
+				master.multiSearchQuery(Arrays.asList(all, one, wrong));
+		Assert.assertEquals(3, results.size());
+		// Each query is recorded, including the failed one
+		Assert.assertEquals(searchCount + 3, ((Number) getMasterSearchMetrics().get("count")).longValue());
+		Assert.assertEquals(master.searchQuery(all).total_hits, results.get(0).total_hits);
+		Assert.assertEquals(Long.valueOf(1), results.get(1).total_hits);
+		Assert.assertNull(results.get(1).error);
+		Assert.assertNotNull(results.get(2).error);
+		Assert.assertNull(results.get(2).total_hits);
+	}
+
+	@Test
+	public void test590distributedSearch() throws Exception {
+		final IndexServiceInterface service = getIndexService();
+		// Two shards having different documents
+		final AnnotatedIndexService<AnnotatedIndex> shardA =
+				getService(service, AnnotatedIndex.class, "testShardA", null);
+		final AnnotatedIndexService<AnnotatedIndex> shardB =
+				getService(service, AnnotatedIndex.class, "testShardB", null);
+		for (AnnotatedIndexService<AnnotatedIndex> shard : Arrays.asList(shardA, shardB)) {
+			shard.createUpdateIndex();
+			shard.createUpdateFields();
+		}
+		for (int i = 0; i < 10; i++)
+			(i % 3 == 0 ? shardB : shardA).postDocument(
+					new AnnotatedIndex(200 + i, "Shard article " + i, "Content of the shard article", (double) i, 1L,
+							false, false, i % 2 == 0 ? "even" : "odd"));
+
+		final List<RemoteIndex> shards = Arrays.asList(new RemoteIndex(AnnotatedIndex.SCHEMA_NAME, "testShardA"),
+				new RemoteIndex(AnnotatedIndex.SCHEMA_NAME, "testShardB"),
+				new RemoteIndex(AnnotatedIndex.SCHEMA_NAME, "not_an_index"));
+		final AnnotatedIndexService<AnnotatedIndex> distributed =
+				getService(service, AnnotatedIndex.class, "testDistributed",
+						new IndexSettingsDefinition(null, (RemoteIndex) null, null, shards, 10000L));
+		distributed.createUpdateIndex();
+
+		final QueryDefinition query = new QueryBuilder(new MatchAllDocsQuery()).sort("price",
+				QueryDefinition.SortEnum.ascending)
+				.start(2)
+				.rows(5)
+				.returnedField("title")
+				.facet("category", new FacetDefinition(10, null))
+				.build();
+		final ResultDefinition.WithMap result = distributed.searchQueryWithMap(query);
+		Assert.assertEquals(Long.valueOf(10), result.total_hits);
+		Assert.assertTrue(result.total_hits_lower_bound);
+		Assert.assertNotNull(result.shard_errors.get("2"));
+		// The page mixes the documents of both shards, each one gets its own fields back
+		Assert.assertEquals(5, result.documents.size());
+		for (int i = 0; i < 5; i++) {
+			final ResultDocumentMap document = result.documents.get(i);
+			Assert.assertEquals("Shard article " + (i + 2), document.fields.get("title"));
+			Assert.assertFalse(document.fields.containsKey(FieldDefinition.ID_FIELD));
+		}
+		Assert.assertEquals(5L, result.facets.get("category").get("even").longValue());
+		Assert.assertEquals(5L, result.facets.get("category").get("odd").longValue());
+
+		// The multiple queries are routed to the shards
+		final List<ResultDefinition.WithObject<AnnotatedIndex>> results =
+				distributed.multiSearchQuery(Arrays.asList(query, query));
+		Assert.assertEquals(2, results.size());
+		for (ResultDefinition.WithObject<AnnotatedIndex> r : results) {
+			Assert.assertEquals(Long.valueOf(10), r.total_hits);
+			Assert.assertEquals("Shard article 2", r.documents.get(0).record.title);
+		}
+
+		// The documents are written to the shards, the streaming APIs are not supported
+		checkNotAcceptable(() -> {
+			distributed.postDocument(record1);
+			return null;
+		});
+		checkNotAcceptable(() -> distributed.searchQueryStream(query));
+		checkNotAcceptable(() -> distributed.exportQuery(query, null, false));
+
+		distributed.deleteIndex();
+		shardA.deleteIndex();
+		shardB.deleteIndex();
+	}
+
+	private static void checkNotAcceptable(final Callable<?> callable) throws Exception {
+		try {
+			callable.call();
+			Assert.fail("The request has been accepted");
+		} catch (WebApplicationException e) {
+			Assert.assertEquals(406, e.getResponse().getStatus());
+		} catch (ServerException e) {
+			Assert.assertEquals(406, e.getStatusCode());
+		}
+	}
+
+	@Test
+	public void test595localShards() throws Exception {
+		// The number of shards of an empty index can be changed
+		getService(getIndexService(), AnnotatedIndex.class, "testIndexShards",
+				new IndexSettingsDefinition(null, (RemoteIndex) null, null, null, null, 2)).createUpdateIndex();
+		final AnnotatedIndexService<AnnotatedIndex> sharded =
+				getService(getIndexService(), AnnotatedIndex.class, "testIndexShards",
+						new IndexSettingsDefinition(null, (RemoteIndex) null, null, null, null, 3));
+		sharded.createUpdateIndex();
+		sharded.createUpdateFields();
+		sharded.postDocuments(Arrays.asList(record1, record2));
+		Assert.assertEquals(record1, sharded.getDocument(record1.id));
+		Assert.assertEquals(record2, sharded.getDocument(record2.id));
+		final QueryDefinition all = new QueryBuilder(new MatchAllDocsQuery()).build();
+		Assert.assertEquals(Long.valueOf(2), sharded.searchQuery(all).total_hits);
+		// An update is routed to the shard holding the document
+		sharded.postDocument(record1);
+		Assert.assertEquals(Long.valueOf(2), sharded.searchQuery(all).total_hits);
+
+		// The documents are spread across the shards
+		final List<AnnotatedIndex> records = new ArrayList<>();
+		for (int i = 100; i < 130; i++)
+			records.add(new AnnotatedIndex(i, "Sharded article " + i, "Content of the sharded article", 0d, 1L, false,
+					false));
+		final Long version = sharded.getIndexStatus().version;
+		Assert.assertNotNull(version);
+		sharded.postDocuments(records);
+		final IndexStatus status = sharded.getIndexStatus();
+		Assert.assertEquals(Long.valueOf(32), status.num_docs);
+		Assert.assertTrue(status.version > version);
+		Assert.assertEquals(3, status.shards_num_docs.size());
+		long shardsNumDocs = 0;
+		for (Long numDocs : status.shards_num_docs) {
+			Assert.assertTrue(numDocs > 0);
+			shardsNumDocs += numDocs;
+		}
+		Assert.assertEquals(32, shardsNumDocs);
+
+		// The number of shards of an index having documents cannot be changed
+		checkNotAcceptable(() -> getService(getIndexService(), AnnotatedIndex.class, "testIndexShards",
+				new IndexSettingsDefinition(null, (RemoteIndex) null, null, null, null, 2)).createUpdateIndex());
+		// The index is still available with its three shards
+		Assert.assertEquals(Long.valueOf(32), sharded.searchQuery(all).total_hits);
+		Assert.assertEquals(3, sharded.getIndexStatus().shards_num_docs.size());
+		sharded.deleteIndex();
+	}
+
+	private long getSchemaMetric(final String schemaName, final String metric) {
+		final Map<String, Object> schemaMetrics = (Map<String, Object>) getIndexService().getMetrics().get(schemaName);
+		final Object value = schemaMetrics.get(metric);
+		return ((Number) (value instanceof Map ? ((Map<String, Object>) value).get("count") : value)).longValue();
+	}
+
+	@Test
+	public void test596unloadIdleIndexes() throws Exception {
+		final String schemaName = "testSchemaUnload";
+		final AnnotatedIndexService<AnnotatedIndex> service =
+				new AnnotatedIndexService<>(getIndexService(), AnnotatedIndex.class, schemaName, "testIndexUnload",
+						null);
+		service.createUpdateSchema(
+				new SchemaSettingsDefinition(null, null, null, null, null, null, null, null, null, null, 1L));
+		service.createUpdateIndex();
+		service.createUpdateFields();
+		service.postDocuments(Arrays.asList(record1, record2));
+		final QueryDefinition all = new QueryBuilder(new MatchAllDocsQuery()).build();
+
+		// The idle index is closed by the periodic check
+		final long timeout = System.currentTimeMillis() + 30000;
+		while (getSchemaMetric(schemaName, "index_unloads") == 0) {
+			Assert.assertTrue("The idle index has not been unloaded", System.currentTimeMillis() < timeout);
+			Thread.sleep(100);
+		}
+		Assert.assertEquals(1, getSchemaMetric(schemaName, "closed_indexes"));
+
+		// The next access opens it again, with its documents
+		Assert.assertEquals(Long.valueOf(2), service.searchQuery(all).total_hits);
+		Assert.assertEquals(record1, service.getDocument(record1.id));
+		Assert.assertEquals(0, getSchemaMetric(schemaName, "closed_indexes"));
+		Assert.assertTrue(getSchemaMetric(schemaName, "index_reopen") >= 1);
+
+		// The operations keep running while the index is unloaded and reopened between them
+		final long unloads = getSchemaMetric(schemaName, "index_unloads");
+		int i = 0;
+		while (getSchemaMetric(schemaName, "index_unloads") < unloads + 2) {
+			Assert.assertTrue("The index has not been unloaded", System.currentTimeMillis() < timeout + 30000);
+			service.postDocument(
+					new AnnotatedIndex(300 + (i % 10), "Unload article", "Content of the unload article", 0d, 1L, false,
+							false));
+			Assert.assertEquals(record2, service.getDocument(record2.id));
+			i++;
+			Thread.sleep(2);
+		}
+		Assert.assertEquals(Long.valueOf(2 + Math.min(i, 10)), service.searchQuery(all).total_hits);
+		service.deleteSchema();
+	}
+
+	@Test
+	public void test530docValuesOnly() throws URISyntaxException, IOException {
+		final AnnotatedIndexService<AnnotatedIndex> master = getMaster();
+		final QueryBuilder builder = new QueryBuilder(new MatchAllDocsQuery());
+		builder.returnedField("title", "titleSort", "price").docValuesOnly(true);
+		final ResultDefinition.WithObject<AnnotatedIndex> result = master.searchQuery(builder.build());
+		Assert.assertFalse(result.documents.isEmpty());
+		for (ResultDocumentObject<AnnotatedIndex> document : result.documents) {
+			Assert.assertNull(document.record.title);
+			Assert.assertNotNull(document.record.titleSort);
+			Assert.assertNotNull(document.record.price);
+		}
+	}
+
 	public static List<TermEnumDefinition> checkTermList(List<TermEnumDefinition> terms) {
 		Assert.assertNotNull(terms);
 		Assert.assertFalse(terms.isEmpty());
@@ -531,6 +1024,186 @@ public abstract class JavaAbstractTest {
 		Assert.assertArrayEquals(slaveAnalyzers.keySet().toArray(), masterAnalyzers.keySet().toArray());
 	}
 
+	@Test
+	public void test805replicationManifest() throws URISyntaxException, IOException {
+		final IndexServiceInterface service = getIndexService();
+		final IndexStatus masterStatus = getMaster().getIndexStatus();
+		final ReplicationManifest manifest =
+				service.getReplicationManifest(AnnotatedIndex.SCHEMA_NAME, AnnotatedIndex.INDEX_NAME_MASTER, null,
+						null);
+		Assert.assertNotNull(manifest);
+		Assert.assertEquals(masterStatus.index_uuid, manifest.index_uuid);
+		Assert.assertEquals(masterStatus.version, manifest.version);
+		Assert.assertNotNull(manifest.fields_etag);
+		Assert.assertNotNull(manifest.analyzers_etag);
+		Assert.assertNotNull(manifest.resources_etag);
+
+		// Nothing is published: the master waits then returns the same manifest
+		final long start = System.currentTimeMillis();
+		final ReplicationManifest sameManifest =
+				service.getReplicationManifest(AnnotatedIndex.SCHEMA_NAME, AnnotatedIndex.INDEX_NAME_MASTER,
+						manifest.version, 200L);
+		Assert.assertTrue(System.currentTimeMillis() - start >= 200);
+		Assert.assertEquals(manifest.version, sameManifest.version);
+		Assert.assertEquals(manifest.fields_etag, sameManifest.fields_etag);
+		Assert.assertEquals(manifest.analyzers_etag, sameManifest.analyzers_etag);
+		Assert.assertEquals(manifest.resources_etag, sameManifest.resources_etag);
+	}
+
+	private static File getIndexDirectory(final String schemaName, final String indexName) {
+		return new File(new File(new File(System.getProperty("QWAZR_DATA"), IndexManager.INDEXES_DIRECTORY),
+				schemaName), indexName);
+	}
+
+	@Test
+	public void test810replicationFetch() throws IOException {
+		final IndexServiceInterface service = getIndexService();
+		final String slaveName = "testIndexFetch";
+		final IndexStatus masterStatus = service.getIndex(AnnotatedIndex.SCHEMA_NAME, AnnotatedIndex.INDEX_NAME_MASTER);
+		service.createUpdateIndex(AnnotatedIndex.SCHEMA_NAME, slaveName,
+				new IndexSettingsDefinition(null, new RemoteIndex(AnnotatedIndex.SCHEMA_NAME,
+						AnnotatedIndex.INDEX_NAME_MASTER), null, null, null, null, 2, true));
+
+		// The largest file of the last commit of the master
+		final File masterDirectory = getIndexDirectory(AnnotatedIndex.SCHEMA_NAME, AnnotatedIndex.INDEX_NAME_MASTER);
+		final File currentData = new File(masterDirectory, "data.current");
+		final Path masterData = masterDirectory.toPath()
+				.resolve(currentData.exists() ? new String(Files.readAllBytes(currentData.toPath())).trim() : "data");
+		final Path masterFile;
+		try (final Directory directory = FSDirectory.open(masterData)) {
+			masterFile = SegmentInfos.readLatestCommit(directory)
+					.files(false)
+					.stream()
+					.map(masterData::resolve)
+					.max(Comparator.comparingLong(path -> path.toFile().length()))
+					.get();
+		}
+		final byte[] bytes = Files.readAllBytes(masterFile);
+		final Path fetchedFile = getIndexDirectory(AnnotatedIndex.SCHEMA_NAME, slaveName).toPath()
+				.resolve("repl_fetch")
+				.resolve("index")
+				.resolve(masterFile.getFileName());
+		Files.createDirectories(fetchedFile.getParent());
+
+		// A corrupted beginning left by an interrupted transfer is completed, then rejected by the checksum
+		final byte[] corrupted = Arrays.copyOf(bytes, bytes.length / 2);
+		for (int i = 0; i < corrupted.length; i++)
+			corrupted[i] ^= 0xFF;
+		Files.write(fetchedFile, corrupted);
+		try {
+			service.replicationCheck(AnnotatedIndex.SCHEMA_NAME, slaveName);
+			Assert.fail("The corrupted file has been accepted");
+		} catch (WebApplicationException e) {
+			Assert.assertFalse(Files.exists(fetchedFile));
+		}
+
+		// The transfer resumes from the valid bytes, the other files are compressed
+		Files.write(fetchedFile, Arrays.copyOf(bytes, bytes.length / 2));
+		Assert.assertEquals(200, service.replicationCheck(AnnotatedIndex.SCHEMA_NAME, slaveName).getStatus());
+		Assert.assertFalse(Files.exists(fetchedFile.getParent()));
+		final IndexStatus slaveStatus = service.getIndex(AnnotatedIndex.SCHEMA_NAME, slaveName);
+		Assert.assertEquals(masterStatus.version, slaveStatus.version);
+		Assert.assertEquals(masterStatus.num_docs, slaveStatus.num_docs);
+		final QueryDefinition all = new QueryBuilder(new MatchAllDocsQuery()).build();
+		Assert.assertEquals(masterStatus.num_docs,
+				service.searchQuery(AnnotatedIndex.SCHEMA_NAME, slaveName, all, null).total_hits);
+		service.deleteIndex(AnnotatedIndex.SCHEMA_NAME, slaveName);
+	}
+
+	private static void waitFor(final String message, final Callable<Boolean> condition) throws Exception {
+		final long end = System.currentTimeMillis() + 30000;
+		while (!condition.call()) {
+			Assert.assertTrue(message, System.currentTimeMillis() < end);
+			Thread.sleep(100);
+		}
+	}
+
+	private static boolean isReplicated(final IndexServiceInterface service, final String masterName,
+			final String slaveName) {
+		final IndexStatus masterStatus = service.getIndex(AnnotatedIndex.SCHEMA_NAME, masterName);
+		final IndexStatus slaveStatus = service.getIndex(AnnotatedIndex.SCHEMA_NAME, slaveName);
+		return Objects.equals(masterStatus.version, slaveStatus.version) &&
+				Objects.equals(masterStatus.num_docs, slaveStatus.num_docs);
+	}
+
+	@Test
+	public void test815replicationScheduled() throws Exception {
+		final IndexServiceInterface service = getIndexService();
+		final String masterName = "testIndexScheduledMaster";
+		final String slaveName = "testIndexScheduledSlave";
+		final AnnotatedIndexService<AnnotatedIndex> master =
+				getService(service, AnnotatedIndex.class, masterName, null);
+		master.createUpdateIndex();
+		master.createUpdateFields();
+		master.postDocument(new AnnotatedIndex(1, "First scheduled article", "Content", 1.0, 1L, false, false));
+
+		// The slave replicates itself, waiting on the master between two versions
+		service.createUpdateIndex(AnnotatedIndex.SCHEMA_NAME, slaveName,
+				new IndexSettingsDefinition(null, new RemoteIndex(AnnotatedIndex.SCHEMA_NAME, masterName), null,
+						null, null, null, null, null, 100L, 2000L));
+		waitFor("First scheduled replication", () -> isReplicated(service, masterName, slaveName));
+		Assert.assertEquals(master.getFields().keySet(),
+				service.getFields(AnnotatedIndex.SCHEMA_NAME, slaveName).keySet());
+
+		// A new version with the same fields: the fields are not fetched again
+		final Path slaveFieldsFile =
+				getIndexDirectory(AnnotatedIndex.SCHEMA_NAME, slaveName).toPath().resolve("fields.json");
+		final long fieldsModified = Files.getLastModifiedTime(slaveFieldsFile).toMillis();
+		// The file system may only keep the seconds
+		Thread.sleep(1100);
+		master.postDocument(new AnnotatedIndex(2, "Second scheduled article", "Content", 2.0, 1L, false, false));
+		waitFor("Second scheduled replication", () -> isReplicated(service, masterName, slaveName));
+		Assert.assertEquals(Long.valueOf(2), service.getIndex(AnnotatedIndex.SCHEMA_NAME, slaveName).num_docs);
+		Assert.assertEquals(fieldsModified, Files.getLastModifiedTime(slaveFieldsFile).toMillis());
+
+		// New fields have a new ETag: they are replicated
+		master.setField("scheduledExtra", master.getFields().get("title"));
+		waitFor("Fields replication", () -> service.getFields(AnnotatedIndex.SCHEMA_NAME, slaveName)
+				.containsKey("scheduledExtra"));
+		Assert.assertTrue(Files.getLastModifiedTime(slaveFieldsFile).toMillis() > fieldsModified);
+
+		service.deleteIndex(AnnotatedIndex.SCHEMA_NAME, slaveName);
+		master.deleteIndex();
+	}
+
+	@Test
+	public void test816replicationManifestWakeUp() throws Exception {
+		final IndexServiceInterface service = getIndexService();
+		final String masterName = "testIndexWakeUpMaster";
+		final AnnotatedIndexService<AnnotatedIndex> master =
+				getService(service, AnnotatedIndex.class, masterName, null);
+		master.createUpdateIndex();
+		master.createUpdateFields();
+		master.postDocument(new AnnotatedIndex(1, "First wake up article", "Content", 1.0, 1L, false, false));
+		final ReplicationManifest manifest =
+				service.getReplicationManifest(AnnotatedIndex.SCHEMA_NAME, masterName, null, null);
+
+		// The master holds the request until a new version is published, not until the end of the wait
+		final long start = System.currentTimeMillis();
+		final CompletableFuture<ReplicationManifest> waiting = CompletableFuture.supplyAsync(
+				() -> service.getReplicationManifest(AnnotatedIndex.SCHEMA_NAME, masterName, manifest.version,
+						50000L));
+		Thread.sleep(500);
+		Assert.assertFalse(waiting.isDone());
+		master.postDocument(new AnnotatedIndex(2, "Second wake up article", "Content", 2.0, 1L, false, false));
+		final ReplicationManifest newManifest = waiting.get(30, TimeUnit.SECONDS);
+		Assert.assertTrue(System.currentTimeMillis() - start < 30000);
+		Assert.assertTrue(newManifest.version > manifest.version);
+		Assert.assertEquals(manifest.fields_etag, newManifest.fields_etag);
+		Assert.assertEquals(manifest.analyzers_etag, newManifest.analyzers_etag);
+
+		// A change of the fields also wakes up the request
+		final CompletableFuture<ReplicationManifest> waitingFields = CompletableFuture.supplyAsync(
+				() -> service.getReplicationManifest(AnnotatedIndex.SCHEMA_NAME, masterName, newManifest.version,
+						50000L));
+		Thread.sleep(500);
+		master.setField("wakeUpExtra", master.getFields().get("title"));
+		final ReplicationManifest fieldsManifest = waitingFields.get(30, TimeUnit.SECONDS);
+		Assert.assertNotEquals(newManifest.fields_etag, fieldsManifest.fields_etag);
+
+		master.deleteIndex();
+	}
+
 	@Test
 	public void test900join() throws URISyntaxException, IOException {
 		final AnnotatedIndexService master = getMaster();
@@ -543,6 +1216,24 @@ public abstract class JavaAbstractTest {
 		Assert.assertEquals(new Long(2), result.total_hits);
 	}
 
+	@Test
+	public void test901joinCached() throws URISyntaxException, IOException {
+		final AnnotatedIndexService master = getMaster();
+		final QueryBuilder builder = new QueryBuilder();
+		builder.query(new JoinQuery(AnnotatedIndex.INDEX_NAME_SLAVE, "docValuesCategory", "storedCategory", true,
+				ScoreMode.Max, new MatchAllDocsQuery()));
+		final ResultDefinition.WithObject<AnnotatedIndex> result1 = master.searchQuery(builder.build());
+		final ResultDefinition.WithObject<AnnotatedIndex> result2 = master.searchQuery(builder.build());
+		Assert.assertEquals(result1.total_hits, result2.total_hits);
+		// The second join reuses the terms collected on the slave
+		final Map<String, Object> schemaMetrics =
+				(Map<String, Object>) getIndexService().getMetrics().get(AnnotatedIndex.SCHEMA_NAME);
+		final Map<String, Object> indexMetrics = (Map<String, Object>) ((Map<String, Object>) schemaMetrics.get(
+				"indexes")).get(AnnotatedIndex.INDEX_NAME_SLAVE);
+		final Map<String, Object> joinMetrics = (Map<String, Object>) indexMetrics.get("join");
+		Assert.assertTrue(((Number) joinMetrics.get("cache_hits")).longValue() >= 1);
+	}
+
 	static void checkCollector(ResultDefinition result, String name, Object... possibleValues) {
 		Assert.assertNotNull(result);
 		Assert.assertNotNull(result.collectors);
@@ -577,6 +1268,74 @@ public abstract class JavaAbstractTest {
 		checkCollector(result, "maxQuantity", 20L, 20);
 	}
 
+	@Test
+	public void test911aggregations() throws URISyntaxException, IOException {
+		final AnnotatedIndexService master = getMaster();
+		final QueryBuilder builder = new QueryBuilder();
+		builder.aggregation("count",
+				new AggregationDefinition(AggregationDefinition.Type.count, AnnotatedIndex.DV_QUANTITY_FIELD));
+		builder.aggregation("stats",
+				new AggregationDefinition(AggregationDefinition.Type.stats, AnnotatedIndex.DV_QUANTITY_FIELD));
+		builder.aggregation("maxPrice", new AggregationDefinition(AggregationDefinition.Type.max, "price"));
+		builder.aggregation("median",
+				new AggregationDefinition(AggregationDefinition.Type.percentiles, AnnotatedIndex.DV_QUANTITY_FIELD,
+						new double[] { 50 }, null));
+		builder.query(new MatchAllDocsQuery());
+		final ResultDefinition.WithObject<AnnotatedIndex> result = master.searchQuery(builder.build());
+		Assert.assertNotNull(result.aggregations);
+		Assert.assertEquals(2, ((Number) result.getAggregation("count")).intValue());
+		final Map<String, Number> stats = result.getAggregation("stats");
+		Assert.assertEquals(10, stats.get("min").doubleValue(), 0);
+		Assert.assertEquals(20, stats.get("max").doubleValue(), 0);
+		Assert.assertEquals(30, stats.get("sum").doubleValue(), 0);
+		Assert.assertEquals(15, stats.get("avg").doubleValue(), 0);
+		Assert.assertEquals(2.22d, ((Number) result.getAggregation("maxPrice")).doubleValue(), 0);
+		final Map<String, Number> median = result.getAggregation("median");
+		Assert.assertEquals(15, median.get("50.0").doubleValue(), 0.001);
+	}
+
+	@Test
+	public void test911aggregationsNotNumeric() throws Exception {
+		final AnnotatedIndexService master = getMaster();
+		for (String field : Arrays.asList("title", "storedCategory", "docValuesCategory")) {
+			final QueryBuilder builder = new QueryBuilder(new MatchAllDocsQuery());
+			builder.aggregation("percentiles",
+					new AggregationDefinition(AggregationDefinition.Type.percentiles, field, null, null));
+			checkNotAcceptable(() -> master.searchQuery(builder.build()));
+		}
+	}
+
+	@Test
+	public void test912termsAggregation() throws URISyntaxException, IOException {
+		final AnnotatedIndexService master = getMaster();
+		final LinkedHashMap<String, AggregationDefinition> metrics = new LinkedHashMap<>();
+		metrics.put("avgQuantity",
+				new AggregationDefinition(AggregationDefinition.Type.avg, AnnotatedIndex.DV_QUANTITY_FIELD));
+		final QueryBuilder builder = new QueryBuilder();
+		builder.aggregation("categories", new AggregationDefinition("docValuesCategory", 2, null, metrics));
+		builder.query(new MatchAllDocsQuery());
+		final ResultDefinition.WithObject<AnnotatedIndex> result = master.searchQuery(builder.build());
+		final Map<String, Map<String, Number>> categories = result.getAggregation("categories");
+		Assert.assertNotNull(categories);
+		Assert.assertEquals(Arrays.asList("news", "economy"), new ArrayList<>(categories.keySet()));
+		Assert.assertEquals(2, categories.get("news").get("count").intValue());
+		Assert.assertEquals(15, categories.get("news").get("avgQuantity").doubleValue(), 0);
+		Assert.assertEquals(1, categories.get("economy").get("count").intValue());
+		Assert.assertEquals(10, categories.get("economy").get("avgQuantity").doubleValue(), 0);
+	}
+
+	@Test
+	public void test913cardinality() throws URISyntaxException, IOException {
+		final AnnotatedIndexService master = getMaster();
+		final QueryBuilder builder = new QueryBuilder();
+		builder.collector("categories", CardinalityCollector.SortedSet.class, "docValuesCategory");
+		builder.collector("quantities", CardinalityCollector.Numeric.class, AnnotatedIndex.DV_QUANTITY_FIELD, 10);
+		builder.query(new MatchAllDocsQuery());
+		final ResultDefinition.WithObject<AnnotatedIndex> result = master.searchQuery(builder.build());
+		checkCollector(result, "categories", 3L, 3);
+		checkCollector(result, "quantities", 2L, 2);
+	}
+
 	@Test
 	public void test950DeleteAll() throws URISyntaxException, IOException {
 		getMaster().deleteAll();
@@ -33,13 +33,16 @@ import org.junit.runners.MethodSorters;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.qwazr.search.test.JavaAbstractTest.checkCollector;
 
@@ -345,6 +348,33 @@ public abstract class JsonAbstractTest {
 		Assert.assertTrue(dot.contains("wealthy"));
 	}
 
+	private static Set<String> testSynonymAnalyzer(final IndexServiceInterface client) {
+		final Set<String> terms = new HashSet<>();
+		client.testAnalyzer(SCHEMA_NAME, INDEX_MASTER_NAME, "EnglishSynonymAnalyzer", "usa")
+				.forEach(term -> terms.add(term.char_term));
+		return terms;
+	}
+
+	private void postSynonyms(final IndexServiceInterface client, final InputStream input) {
+		checkResponse(client.postResource(SCHEMA_NAME, INDEX_MASTER_NAME, SYNONYMS_TXT, SYNONYM_LAST_MODIFIED, input),
+				200);
+	}
+
+	@Test
+	public void test129TestAnalyzerResourceChange() throws URISyntaxException, IOException {
+		final IndexServiceInterface client = getClient();
+		Assert.assertTrue(testSynonymAnalyzer(client).contains("united"));
+		// The cached analyzer is not used once the resource is replaced, even with the same size and date
+		postSynonyms(client, new ByteArrayInputStream("usa,america,yankee,unit,tres,statis,ameri".getBytes()));
+		final Set<String> terms = testSynonymAnalyzer(client);
+		Assert.assertTrue(terms.contains("america"));
+		Assert.assertFalse(terms.contains("united"));
+		try (final InputStream input = JsonAbstractTest.class.getResourceAsStream(SYNONYMS_TXT)) {
+			postSynonyms(client, input);
+		}
+		Assert.assertTrue(testSynonymAnalyzer(client).contains("united"));
+	}
+
 	@Test
 	public void test130SetFields() throws URISyntaxException, IOException {
 		final IndexServiceInterface client = getClient();
@@ -766,6 +796,45 @@ public abstract class JsonAbstractTest {
 		checkSynonyms(client, "united states of america", "United", "States");
 	}
 
+	private ResultDocumentMap termVectorsHighlight(final IndexServiceInterface client, final Integer maxLength)
+			throws IOException {
+		final HighlighterDefinition.Builder highlighter = new HighlighterDefinition.Builder().setField("description")
+				.setEngine(HighlighterDefinition.Engine.term_vectors)
+				.setPreTag("<i>")
+				.setPostTag("</i>");
+		if (maxLength != null)
+			highlighter.setMaxLength(maxLength);
+		// The highlighters of QUERY_HIGHLIGHT are shared, they are not modified
+		final QueryBuilder builder = new QueryBuilder(QUERY_HIGHLIGHT.query).queryString(QUERY_HIGHLIGHT.query_string);
+		builder.highlighter("my_term_vectors_snippet", highlighter.build());
+		final ResultDefinition<ResultDocumentMap> result = checkQueryIndex(client, builder.build(), 1);
+		return result.getDocuments().get(0);
+	}
+
+	@Test
+	public void test444TermVectorsHighlight() throws URISyntaxException, IOException {
+		final IndexServiceInterface client = getClient();
+		ResultDocumentMap document = termVectorsHighlight(client, null);
+		checkSnippets(document, "my_term_vectors_snippet", "<i>search</i>", "<i>engine</i>");
+
+		// "A web search engine": the terms ending after max_length are not highlighted
+		document = termVectorsHighlight(client, 20);
+		checkSnippets(document, "my_term_vectors_snippet", "<i>search</i>", "<i>engine</i>");
+		document = termVectorsHighlight(client, 15);
+		checkSnippets(document, "my_term_vectors_snippet", "<i>search</i>");
+		Assert.assertFalse(document.getHighlights().get("my_term_vectors_snippet").contains("<i>engine</i>"));
+		document = termVectorsHighlight(client, 10);
+		Assert.assertTrue(document.getHighlights() == null ||
+				document.getHighlights().get("my_term_vectors_snippet") == null);
+
+		// The field must store the term vectors
+		final QueryBuilder builder = new QueryBuilder(QUERY_HIGHLIGHT.query).queryString(QUERY_HIGHLIGHT.query_string);
+		builder.highlighter("my_term_vectors_snippet", new HighlighterDefinition.Builder().setField("name")
+				.setEngine(HighlighterDefinition.Engine.term_vectors)
+				.build());
+		checkErrorStatusCode(() -> client.searchQuery(SCHEMA_NAME, INDEX_MASTER_NAME, builder.build(), null), 406);
+	}
+
 	@Test
 	public void test450MultiFieldQuery() throws URISyntaxException, IOException {
 		final IndexServiceInterface client = getClient();
@@ -892,6 +961,76 @@ public abstract class JsonAbstractTest {
 		checkBackup(backups, INDEX_BACKUP_NAME3);
 	}
 
+	@Test
+	public void test805RestoreBackup() throws URISyntaxException, IOException {
+		final IndexServiceInterface client = getClient();
+		checkErrorStatusCode(() -> client.restoreBackup(SCHEMA_NAME, INDEX_DUMMY_NAME, INDEX_BACKUP_NAME2), 404);
+		final IndexStatus status2 = client.restoreBackup(SCHEMA_NAME, INDEX_MASTER_NAME, INDEX_BACKUP_NAME2);
+		Assert.assertNotNull(status2);
+		Assert.assertEquals(Long.valueOf(5), status2.num_docs);
+		checkAllSizes(client, 5);
+		final IndexStatus status3 = client.restoreBackup(SCHEMA_NAME, INDEX_MASTER_NAME, INDEX_BACKUP_NAME3);
+		Assert.assertNotNull(status3);
+		Assert.assertEquals(Long.valueOf(3), status3.num_docs);
+		Assert.assertNotEquals(status2.index_uuid, status3.index_uuid);
+		checkAllSizes(client, 3);
+	}
+
+	private static int getStatusCode(final RuntimeException e) {
+		if (e instanceof WebApplicationException)
+			return ((WebApplicationException) e).getResponse().getStatus();
+		if (e instanceof ServerException)
+			return ((ServerException) e).getStatusCode();
+		throw e;
+	}
+
+	@Test
+	public void test806RestoreWhileWriting() throws URISyntaxException, InterruptedException, ExecutionException {
+		final IndexServiceInterface client = getClient();
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong restored = new AtomicLong(Long.MAX_VALUE);
+		final List<String> writtenAfterRestore = Collections.synchronizedList(new ArrayList<>());
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final Future<Integer> writer = executor.submit(() -> {
+			int rejected = 0;
+			for (int i = 0; running.get(); i++) {
+				final Map<String, Object> doc = new LinkedHashMap<>(UPDATE_DOC);
+				final String id = "restore-" + i;
+				doc.put(FieldDefinition.ID_FIELD, id);
+				final long start = System.nanoTime();
+				try {
+					client.postMappedDocument(SCHEMA_NAME, INDEX_MASTER_NAME, doc);
+					if (start > restored.get())
+						writtenAfterRestore.add(id);
+				} catch (RuntimeException e) {
+					// A write reaching the index being replaced is rejected, it is not acknowledged then lost
+					Assert.assertEquals(503, getStatusCode(e));
+					rejected++;
+				}
+			}
+			return rejected;
+		});
+		try {
+			String uuid = client.getIndex(SCHEMA_NAME, INDEX_MASTER_NAME).index_uuid;
+			for (int i = 0; i < 3; i++) {
+				final IndexStatus status = client.restoreBackup(SCHEMA_NAME, INDEX_MASTER_NAME, INDEX_BACKUP_NAME3);
+				Assert.assertNotEquals(uuid, status.index_uuid);
+				uuid = status.index_uuid;
+			}
+			restored.set(System.nanoTime());
+			Thread.sleep(500);
+		} finally {
+			running.set(false);
+			executor.shutdown();
+		}
+		writer.get();
+		Assert.assertFalse(writtenAfterRestore.isEmpty());
+		for (String id : writtenAfterRestore)
+			Assert.assertNotNull(client.getDocument(SCHEMA_NAME, INDEX_MASTER_NAME, id));
+		client.restoreBackup(SCHEMA_NAME, INDEX_MASTER_NAME, INDEX_BACKUP_NAME3);
+		checkAllSizes(client, 3);
+	}
+
 	@Test
 	public void test810DeleteBackup() throws URISyntaxException, IOException {
 		final IndexServiceInterface client = getClient();
@@ -1013,6 +1152,29 @@ public abstract class JsonAbstractTest {
 		checkReplication(client);
 	}
 
+	@Test
+	public void test870replicationAfterRestore() throws URISyntaxException {
+		final IndexServiceInterface client = getClient();
+		checkReplication(client);
+		final String backupName = "my_backup-4";
+		client.doBackup(SCHEMA_NAME, INDEX_MASTER_NAME, backupName);
+		final String uuid = client.getIndex(SCHEMA_NAME, INDEX_MASTER_NAME).index_uuid;
+
+		// The slave gets a version greater than the version of the backup
+		Assert.assertEquals(Integer.valueOf(1), client.postMappedDocument(SCHEMA_NAME, INDEX_MASTER_NAME, UPDATE_DOC));
+		Assert.assertEquals(200, client.replicationCheck(SCHEMA_NAME, INDEX_SLAVE_NAME).getStatus());
+		checkReplication(client);
+
+		// The restored master has a new UUID and an older version, the slave copies the whole index
+		final IndexStatus restored = client.restoreBackup(SCHEMA_NAME, INDEX_MASTER_NAME, backupName);
+		Assert.assertNotEquals(uuid, restored.index_uuid);
+		Assert.assertEquals(200, client.replicationCheck(SCHEMA_NAME, INDEX_SLAVE_NAME).getStatus());
+		checkReplication(client);
+		Assert.assertEquals(restored.index_uuid, client.getIndex(SCHEMA_NAME, INDEX_SLAVE_NAME).master_uuid);
+
+		Assert.assertEquals(Integer.valueOf(1), client.deleteBackups(SCHEMA_NAME, INDEX_MASTER_NAME, backupName));
+	}
+
 	@Test
 	public void test880errorRecoveryOnFieldUpdate() throws URISyntaxException {
 		final IndexServiceInterface client = getClient();